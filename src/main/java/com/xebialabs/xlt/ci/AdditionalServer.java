@@ -0,0 +1,117 @@
+package com.xebialabs.xlt.ci;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.List;
+import org.kohsuke.stapler.AncestorInPath;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.QueryParameter;
+import com.cloudbees.plugins.credentials.common.StandardUsernameListBoxModel;
+import com.cloudbees.plugins.credentials.common.StandardUsernamePasswordCredentials;
+import com.google.common.base.Objects;
+import com.google.common.base.Strings;
+
+import com.xebialabs.xlt.ci.server.XLTestServer;
+import com.xebialabs.xlt.ci.server.XLTestServerFactory;
+
+import hudson.Extension;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import hudson.model.ItemGroup;
+import hudson.security.ACL;
+import hudson.util.FormValidation;
+import hudson.util.ListBoxModel;
+
+import static com.cloudbees.plugins.credentials.CredentialsProvider.lookupCredentials;
+
+/**
+ * Another XL TestView server that receives the same test runs as the one configured globally, for instance a staging
+ * instance. Test specifications are expected to have the same ids there.
+ */
+public class AdditionalServer extends AbstractDescribableImpl<AdditionalServer> {
+
+    private final String serverUrl;
+    private final String proxyUrl;
+    private final String credentialsId;
+    private final boolean makeUnstable;
+
+    @DataBoundConstructor
+    public AdditionalServer(String serverUrl, String proxyUrl, String credentialsId, boolean makeUnstable) {
+        this.serverUrl = serverUrl;
+        this.proxyUrl = proxyUrl;
+        this.credentialsId = credentialsId;
+        this.makeUnstable = makeUnstable;
+    }
+
+    public String getServerUrl() {
+        return serverUrl;
+    }
+
+    public String getProxyUrl() {
+        return proxyUrl;
+    }
+
+    public String getCredentialsId() {
+        return credentialsId;
+    }
+
+    /**
+     * @return whether failing to send a test run to this server makes the build unstable
+     */
+    public boolean getMakeUnstable() {
+        return makeUnstable;
+    }
+
+    public XLTestServer getXLTestServer() {
+        return XLTestServerFactory.getInstance(serverUrl, proxyUrl, credentialsId, XLTestView.lookupSystemCredentials(credentialsId));
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this)
+                .add("serverUrl", serverUrl)
+                .add("proxyUrl", proxyUrl)
+                .add("credentialsId", credentialsId)
+                .add("makeUnstable", makeUnstable)
+                .toString();
+    }
+
+    @Extension
+    public static class AdditionalServerDescriptor extends Descriptor<AdditionalServer> {
+
+        @Override
+        public String getDisplayName() {
+            return "Additional XL TestView server";
+        }
+
+        public ListBoxModel doFillCredentialsIdItems(@AncestorInPath ItemGroup context) {
+            List<StandardUsernamePasswordCredentials> creds = lookupCredentials(StandardUsernamePasswordCredentials.class, context,
+                    ACL.SYSTEM,
+                    XLTestView.HTTP_SCHEME, XLTestView.HTTPS_SCHEME);
+
+            return new StandardUsernameListBoxModel().withAll(creds);
+        }
+
+        public FormValidation doCheckServerUrl(@QueryParameter String value) {
+            if (Strings.isNullOrEmpty(value)) {
+                return FormValidation.error("No server URL specified");
+            }
+            return validateOptionalUrl(value);
+        }
+
+        public FormValidation doCheckProxyUrl(@QueryParameter String value) {
+            return validateOptionalUrl(value);
+        }
+
+        private FormValidation validateOptionalUrl(String url) {
+            try {
+                if (!Strings.isNullOrEmpty(url)) {
+                    new URL(url);
+                }
+            } catch (MalformedURLException e) {
+                return FormValidation.error("%s is not a valid URL.", url);
+            }
+            return FormValidation.ok();
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.xebialabs.xlt.ci;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.QueryParameter;
+import com.google.common.base.Objects;
+import com.google.common.base.Strings;
+
+import hudson.Extension;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import hudson.model.Label;
+import hudson.util.FormValidation;
+
+import antlr.ANTLRException;
+
+/**
+ * Another node of the XL TestView cluster the main server belongs to. Uploads from Jenkins nodes that match its label
+ * expression go to it when it is healthy.
+ */
+public class ClusterNode extends AbstractDescribableImpl<ClusterNode> {
+
+    private final String serverUrl;
+    private final String labels;
+
+    @DataBoundConstructor
+    public ClusterNode(String serverUrl, String labels) {
+        this.serverUrl = serverUrl;
+        this.labels = labels;
+    }
+
+    public String getServerUrl() {
+        return serverUrl;
+    }
+
+    public String getLabels() {
+        return labels;
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this)
+                .add("serverUrl", serverUrl)
+                .add("labels", labels)
+                .toString();
+    }
+
+    @Extension
+    public static class ClusterNodeDescriptor extends Descriptor<ClusterNode> {
+
+        @Override
+        public String getDisplayName() {
+            return "XL TestView cluster node";
+        }
+
+        public FormValidation doCheckServerUrl(@QueryParameter String value) {
+            if (Strings.isNullOrEmpty(value)) {
+                return FormValidation.error("No server URL specified");
+            }
+            try {
+                new URL(value);
+            } catch (MalformedURLException e) {
+                return FormValidation.error("%s is not a valid URL.", value);
+            }
+            return FormValidation.ok();
+        }
+
+        public FormValidation doCheckLabels(@QueryParameter String value) {
+            if (Strings.isNullOrEmpty(value)) {
+                return FormValidation.ok();
+            }
+            try {
+                Label.parseExpression(value);
+            } catch (ANTLRException e) {
+                return FormValidation.error("Invalid label expression: %s", e.getMessage());
+            }
+            return FormValidation.ok();
+        }
+    }
+}
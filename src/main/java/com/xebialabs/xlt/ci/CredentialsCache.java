@@ -0,0 +1,108 @@
+package com.xebialabs.xlt.ci;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.cloudbees.plugins.credentials.CredentialsMatchers;
+import com.cloudbees.plugins.credentials.CredentialsProvider;
+import com.cloudbees.plugins.credentials.SystemCredentialsProvider;
+import com.cloudbees.plugins.credentials.common.StandardUsernamePasswordCredentials;
+import com.google.common.base.Function;
+
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.model.Saveable;
+import hudson.model.listeners.SaveableListener;
+import hudson.security.ACL;
+import jenkins.model.Jenkins;
+
+import static com.cloudbees.plugins.credentials.CredentialsProvider.lookupCredentials;
+import static com.xebialabs.xlt.ci.XLTestView.HTTPS_SCHEME;
+import static com.xebialabs.xlt.ci.XLTestView.HTTP_SCHEME;
+
+/**
+ * Resolved system credentials by id, so uploads do not scan all credentials of the instance every time.
+ * <p/>
+ * The cache is cleared whenever a credentials store is saved. Providers that do not save through Jenkins are
+ * covered by a time-to-live.
+ */
+public final class CredentialsCache {
+    private static final Logger LOG = LoggerFactory.getLogger(CredentialsCache.class);
+
+    private static final long TTL_MILLIS = TimeUnit.SECONDS.toMillis(
+            Long.getLong(CredentialsCache.class.getName() + ".ttlSeconds", 300));
+
+    private static final ConcurrentMap<String, Cached> CACHE = new ConcurrentHashMap<String, Cached>();
+
+    private static final Function<String, StandardUsernamePasswordCredentials> SYSTEM_CREDENTIALS =
+            new Function<String, StandardUsernamePasswordCredentials>() {
+                @Override
+                public StandardUsernamePasswordCredentials apply(String credentialsId) {
+                    LOG.debug("lookupSystemCredentials id={}", credentialsId);
+                    return CredentialsMatchers.firstOrNull(
+                            lookupCredentials(StandardUsernamePasswordCredentials.class, Jenkins.getInstance(), ACL.SYSTEM,
+                                    HTTP_SCHEME, HTTPS_SCHEME),
+                            CredentialsMatchers.withId(credentialsId)
+                    );
+                }
+            };
+
+    private CredentialsCache() {
+    }
+
+    public static StandardUsernamePasswordCredentials lookup(String credentialsId) {
+        return lookup(credentialsId, SYSTEM_CREDENTIALS);
+    }
+
+    /**
+     * @param resolver finds the credentials when they are not cached
+     */
+    static StandardUsernamePasswordCredentials lookup(String credentialsId, Function<String, StandardUsernamePasswordCredentials> resolver) {
+        if (credentialsId == null) {
+            return null;
+        }
+        Cached cached = CACHE.get(credentialsId);
+        if (cached != null && !cached.isExpired()) {
+            return cached.credentials;
+        }
+
+        StandardUsernamePasswordCredentials credentials = resolver.apply(credentialsId);
+        if (credentials != null) {
+            CACHE.put(credentialsId, new Cached(credentials));
+        } else {
+            CACHE.remove(credentialsId);
+        }
+        return credentials;
+    }
+
+    public static void invalidateAll() {
+        CACHE.clear();
+    }
+
+    private static final class Cached {
+        private final StandardUsernamePasswordCredentials credentials;
+        private final long expiresAt = System.currentTimeMillis() + TTL_MILLIS;
+
+        Cached(StandardUsernamePasswordCredentials credentials) {
+            this.credentials = credentials;
+        }
+
+        boolean isExpired() {
+            return System.currentTimeMillis() >= expiresAt;
+        }
+    }
+
+    @Extension
+    public static final class CredentialsStoreListener extends SaveableListener {
+        @Override
+        public void onChange(Saveable o, XmlFile file) {
+            if (o instanceof SystemCredentialsProvider || o instanceof CredentialsProvider
+                    || o.getClass().getName().startsWith("com.cloudbees.plugins.credentials.")) {
+                LOG.debug("Credentials changed in {}, clearing cache", o);
+                invalidateAll();
+            }
+        }
+    }
+}
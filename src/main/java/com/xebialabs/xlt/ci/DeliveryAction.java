@@ -0,0 +1,56 @@
+package com.xebialabs.xlt.ci;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import hudson.model.InvisibleAction;
+
+/**
+ * Tells on the build page what became of the test runs that were delivered asynchronously, after the build finished.
+ */
+public class DeliveryAction extends InvisibleAction {
+
+    public enum Status {
+        QUEUED("waiting to be sent"),
+        RETRYING("waiting to be sent again"),
+        DELIVERED("sent"),
+        FAILED("not sent");
+
+        private final String description;
+
+        Status(String description) {
+            this.description = description;
+        }
+    }
+
+    private final Map<String, Status> statuses = new LinkedHashMap<String, Status>();
+    private final Map<String, String> problems = new LinkedHashMap<String, String>();
+
+    synchronized void update(String testSpecificationId, Status status, String problem) {
+        statuses.put(testSpecificationId, status);
+        if (problem == null) {
+            problems.remove(testSpecificationId);
+        } else {
+            problems.put(testSpecificationId, problem);
+        }
+    }
+
+    synchronized Status getStatus(String testSpecificationId) {
+        return statuses.get(testSpecificationId);
+    }
+
+    /**
+     * @return a line per test specification, for summary.jelly
+     */
+    public synchronized List<String> getLines() {
+        List<String> lines = new ArrayList<String>();
+        for (Map.Entry<String, Status> status : statuses.entrySet()) {
+            String problem = problems.get(status.getKey());
+            lines.add(String.format("Test run for test specification '%s' %s%s", status.getKey(), status.getValue().description,
+                    problem == null ? "" : ": " + problem));
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,33 @@
+package com.xebialabs.xlt.ci;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import hudson.util.DirScanner;
+import hudson.util.FileVisitor;
+
+/**
+ * Visits a list of files that was collected earlier, instead of walking the directory again.
+ */
+class FileListScanner extends DirScanner {
+    private static final long serialVersionUID = 1L;
+
+    private final ArrayList<String> relativePaths;
+
+    FileListScanner(List<String> relativePaths) {
+        this.relativePaths = new ArrayList<String>(relativePaths);
+    }
+
+    @Override
+    public void scan(File dir, FileVisitor visitor) throws IOException {
+        for (String relativePath : relativePaths) {
+            File file = new File(dir, relativePath);
+            // the file may have been removed since the scan
+            if (file.isFile()) {
+                visitor.visit(file, relativePath);
+            }
+        }
+    }
+}
@@ -0,0 +1,359 @@
+package com.xebialabs.xlt.ci;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.google.common.base.Supplier;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import com.xebialabs.xlt.ci.server.ServerCapabilities;
+import com.xebialabs.xlt.ci.server.XLTestServer;
+
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.BuildListener;
+import hudson.tasks.BuildWrapper;
+import hudson.tasks.BuildWrapperDescriptor;
+import jenkins.util.Timer;
+
+/**
+ * Sends the results of the test specifications of the XL TestView post-build step while the build is still running.
+ * <p/>
+ * Every interval the workspace is scanned for files modified since the previous part was sent, leaving out files that
+ * may still be being written. Those are sent as the next part of the test run, with an import id shared by all parts.
+ * The post-build step then sends the files modified since and marks the test run complete.
+ * <p/>
+ * Only servers that put the parts of a test run together are sent parts; with others the test run is sent when the
+ * build ends, as usual. No released version of XL TestView is known to, so the wrapper is only offered when such a version
+ * is configured, and a build checks the server before it schedules anything.
+ */
+public class LiveUpload extends BuildWrapper {
+
+    private final static Logger LOG = LoggerFactory.getLogger(LiveUpload.class);
+
+    static final int DEFAULT_INTERVAL_SECONDS = 60;
+    static final int DEFAULT_QUIET_SECONDS = 10;
+
+    /**
+     * Number of threads sending parts, shared by all builds.
+     */
+    static final int WORKERS = Integer.getInteger(LiveUpload.class.getName() + ".workers", 2);
+
+    private static ExecutorService workers;
+
+    private Integer intervalSeconds;
+    private Integer quietSeconds;
+
+    @DataBoundConstructor
+    public LiveUpload() {
+    }
+
+    public int getIntervalSeconds() {
+        return intervalSeconds != null && intervalSeconds > 0 ? intervalSeconds : DEFAULT_INTERVAL_SECONDS;
+    }
+
+    @DataBoundSetter
+    public void setIntervalSeconds(Integer intervalSeconds) {
+        this.intervalSeconds = intervalSeconds;
+    }
+
+    public int getQuietSeconds() {
+        return quietSeconds != null && quietSeconds >= 0 ? quietSeconds : DEFAULT_QUIET_SECONDS;
+    }
+
+    @DataBoundSetter
+    public void setQuietSeconds(Integer quietSeconds) {
+        this.quietSeconds = quietSeconds;
+    }
+
+    @Override
+    public Environment setUp(final AbstractBuild build, Launcher launcher, BuildListener listener) throws IOException, InterruptedException {
+        PrintStream logger = listener.getLogger();
+        final XLTestView publisher = (XLTestView) build.getProject().getPublishersList().get(XLTestView.class);
+        if (publisher == null || publisher.testSpecifications.isEmpty()) {
+            logger.printf("[XL TestView] Not sending test results while the build runs, since the job has no XL TestView post-build step%n");
+            return new Environment() {
+            };
+        }
+        String rootUrl = XLTestView.getRootUrl();
+        FilePath workspace = build.getWorkspace();
+        if (rootUrl == null || workspace == null) {
+            logger.printf("[XL TestView] Not sending test results while the build runs, since the root URL of jenkins or the workspace is unknown%n");
+            return new Environment() {
+            };
+        }
+
+        // checked before scanning anything, so builds against servers that would import every part separately cost nothing
+        ServerCapabilities capabilities;
+        try {
+            capabilities = publisher.getDescriptor().getXLTestServer(build.getBuiltOn()).getCapabilities();
+        } catch (RuntimeException e) {
+            logger.printf("[XL TestView] Not sending test results while the build runs, since the version of XL TestView is unknown: %s%n",
+                    e.getMessage());
+            return new Environment() {
+            };
+        }
+        if (!capabilities.supportsPartialImports()) {
+            logger.printf("[XL TestView] XL TestView %s does not accept test runs in parts, sending the test results when the build ends%n",
+                    capabilities.getVersion());
+            return new Environment() {
+            };
+        }
+
+        long clockDifference = XLTestView.getClockDifference(build, logger);
+        LiveUploadAction action = new LiveUploadAction(build.getExternalizableId(),
+                build.getStartTimeInMillis() - ScanIndex.GRANULARITY - clockDifference);
+        build.addAction(action);
+
+        Map<String, Object> metadata = publisher.createMetadata(build, rootUrl);
+        metadata.put(LiveUploadAction.IMPORT_ID, action.getImportId());
+
+        final Uploader uploader = new Uploader(publisher, new Supplier<XLTestServer>() {
+            @Override
+            public XLTestServer get() {
+                return publisher.getDescriptor().getXLTestServer(build.getBuiltOn());
+            }
+        }, publisher.getDescriptor().getArchiverThreads(), workspace, action, metadata, clockDifference, getQuietSeconds() * 1000L, logger);
+        int interval = getIntervalSeconds();
+        logger.printf("[XL TestView] Sending test results every %d seconds while the build runs%n", interval);
+        uploader.start(Timer.get().scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                if (build.isBuilding()) {
+                    uploader.submitTo(getWorkers());
+                } else {
+                    // the build ended without tearing down its environment
+                    uploader.cancel();
+                }
+            }
+        }, interval, interval, TimeUnit.SECONDS));
+
+        return new Environment() {
+            @Override
+            public boolean tearDown(AbstractBuild build, BuildListener listener) throws IOException, InterruptedException {
+                uploader.stop();
+                return true;
+            }
+        };
+    }
+
+    private static synchronized ExecutorService getWorkers() {
+        if (workers == null) {
+            workers = Executors.newFixedThreadPool(WORKERS, new ThreadFactoryBuilder().setDaemon(true).setNameFormat("XL TestView live upload %d").build());
+        }
+        return workers;
+    }
+
+    /**
+     * Sends one part per interval. The timer of jenkins only submits the parts to the {@link #WORKERS} threads sending
+     * them, so slow uploads do not hold up its other tasks. A part that cannot be sent to some test specifications is
+     * sent to those again, before the next part is started.
+     */
+    static final class Uploader implements Runnable {
+        private final XLTestView publisher;
+        private final Supplier<XLTestServer> servers;
+        private final int archiverThreads;
+        private final FilePath workspace;
+        private final LiveUploadAction action;
+        private final Map<String, Object> metadata;
+        private final long clockDifference;
+        private final long quietMillis;
+        private final PrintStream logger;
+
+        private final AtomicBoolean submitted = new AtomicBoolean();
+        private volatile Future<?> ticks;
+        private volatile boolean stopped;
+
+        /**
+         * @param servers returns the server to send the next part to
+         */
+        Uploader(XLTestView publisher, Supplier<XLTestServer> servers, int archiverThreads, FilePath workspace, LiveUploadAction action,
+                 Map<String, Object> metadata, long clockDifference, long quietMillis, PrintStream logger) {
+            this.publisher = publisher;
+            this.servers = servers;
+            this.archiverThreads = archiverThreads;
+            this.workspace = workspace;
+            this.action = action;
+            this.metadata = metadata;
+            this.clockDifference = clockDifference;
+            this.quietMillis = quietMillis;
+            this.logger = logger;
+        }
+
+        void start(Future<?> ticks) {
+            this.ticks = ticks;
+            if (stopped) {
+                ticks.cancel(false);
+            }
+        }
+
+        /**
+         * Has the workers send the next part, unless the previous one is still waiting or being sent.
+         */
+        void submitTo(Executor workers) {
+            if (!stopped && submitted.compareAndSet(false, true)) {
+                try {
+                    workers.execute(this);
+                } catch (RejectedExecutionException e) {
+                    submitted.set(false);
+                    throw e;
+                }
+            }
+        }
+
+        /**
+         * Stops sending parts, without waiting for one that is being sent.
+         */
+        void cancel() {
+            stopped = true;
+            Future<?> ticks = this.ticks;
+            if (ticks != null) {
+                ticks.cancel(false);
+            }
+        }
+
+        /**
+         * Stops sending parts, waiting for one that is being sent.
+         */
+        synchronized void stop() {
+            cancel();
+        }
+
+        @Override
+        public synchronized void run() {
+            try {
+                if (stopped) {
+                    return;
+                }
+                sendPart();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                LOG.warn("Unable to send test results of {} while the build runs", metadata.get(LiveUploadAction.IMPORT_ID), e);
+                logger.printf("[XL TestView] Unable to send test results while the build runs, will retry: %s%n", e.getMessage());
+            } finally {
+                submitted.set(false);
+            }
+        }
+
+        private void sendPart() throws InterruptedException, IOException {
+            long since = action.getCutoff();
+            int part = action.getPendingPart();
+            long until;
+            List<TestSpecificationDescribable> candidates = new ArrayList<TestSpecificationDescribable>();
+            if (part != 0) {
+                // the same files again, only for the test specifications that did not receive them
+                until = action.getPendingUntil();
+                for (TestSpecificationDescribable ts : publisher.testSpecifications) {
+                    if (action.isPendingFor(ts.getTestSpecificationId())) {
+                        candidates.add(ts);
+                    }
+                }
+            } else {
+                // files modified during the quiet period may still be being written
+                until = System.currentTimeMillis() - clockDifference - quietMillis;
+                if (until <= since) {
+                    return;
+                }
+                candidates.addAll(publisher.testSpecifications);
+            }
+
+            UploadPlan plan = new UploadPlan(candidates, archiverThreads, publisher.getRetryUploads());
+            try {
+                ByteArrayOutputStream scanOutput = new ByteArrayOutputStream();
+                plan.scan(workspace, since, until, new PrintStream(scanOutput, true));
+                List<TestSpecificationDescribable> due = new ArrayList<TestSpecificationDescribable>();
+                for (TestSpecificationDescribable ts : candidates) {
+                    int files = plan.countFiles(ts);
+                    if (files < 0) {
+                        logger.write(scanOutput.toByteArray());
+                        return;
+                    }
+                    if (files > 0) {
+                        due.add(ts);
+                    } else if (part != 0) {
+                        // its files were removed since
+                        action.delivered(ts.getTestSpecificationId(), 0);
+                    }
+                }
+                if (due.isEmpty()) {
+                    action.advance(until);
+                    return;
+                }
+
+                XLTestServer server = servers.get();
+                ServerCapabilities capabilities = server.getCapabilities();
+                if (!capabilities.supportsPartialImports()) {
+                    logger.printf("[XL TestView] XL TestView %s does not accept test runs in parts, sending the test results when the build ends%n",
+                            capabilities.getVersion());
+                    cancel();
+                    return;
+                }
+                if (part == 0) {
+                    List<String> ids = new ArrayList<String>();
+                    for (TestSpecificationDescribable ts : due) {
+                        ids.add(ts.getTestSpecificationId());
+                    }
+                    part = action.startPart(until, ids);
+                }
+                for (TestSpecificationDescribable ts : due) {
+                    Map<String, Object> partMetadata = new HashMap<String, Object>(metadata);
+                    partMetadata.put(LiveUploadAction.PART, part);
+                    capabilities.removeUnsupportedMetadata(partMetadata);
+                    ByteArrayOutputStream output = new ByteArrayOutputStream();
+                    try {
+                        publisher.sendTestRun(server, ts, partMetadata, workspace, plan, publisher.startDeadline(plan.getScanMillis()),
+                                new PrintStream(output, true));
+                        logger.printf("[XL TestView] Sent part %d of the test run for test specification with id '%s': %d files%n",
+                                part, ts.getTestSpecificationId(), plan.countFiles(ts));
+                        action.delivered(ts.getTestSpecificationId(), plan.countFiles(ts));
+                    } catch (InterruptedException e) {
+                        throw e;
+                    } catch (Exception e) {
+                        logger.write(output.toByteArray());
+                        logger.printf("[XL TestView] Unable to send part %d of the test run for test specification with id '%s', will retry: %s%n",
+                                part, ts.getTestSpecificationId(), e.getMessage());
+                    }
+                }
+            } finally {
+                plan.close();
+            }
+        }
+    }
+
+    @Extension
+    public static final class LiveUploadDescriptor extends BuildWrapperDescriptor {
+
+        /**
+         * Only offered once some XL TestView version is known to put the parts of a test run together, see
+         * {@link ServerCapabilities#isPartialImportsVersionKnown()}.
+         */
+        @Override
+        public boolean isApplicable(AbstractProject<?, ?> item) {
+            return ServerCapabilities.isPartialImportsVersionKnown();
+        }
+
+        @Override
+        public String getDisplayName() {
+            return Messages.LiveUpload_displayName();
+        }
+    }
+}
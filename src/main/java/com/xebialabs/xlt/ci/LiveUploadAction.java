@@ -0,0 +1,140 @@
+package com.xebialabs.xlt.ci;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import hudson.model.InvisibleAction;
+
+/**
+ * Tracks the parts of the test runs sent while a build is running, so the post-build step only sends what is left
+ * and marks the test runs complete.
+ */
+class LiveUploadAction extends InvisibleAction {
+    /**
+     * Metadata field with the id shared by all parts of a test run.
+     */
+    static final String IMPORT_ID = "importId";
+
+    /**
+     * Metadata field with the number of a part; only set on the parts sent while the build is running.
+     */
+    static final String PART = "part";
+
+    /**
+     * Metadata field set on the last part, after which XL TestView may qualify the test run.
+     */
+    static final String COMPLETE = "complete";
+
+    private final String importId;
+    private long cutoff;
+    private int parts;
+    private int filesSent;
+    private boolean delivered;
+    // the part being sent, until every test specification with files in it received it
+    private int pendingPart;
+    private long pendingUntil;
+    private final Set<String> pendingFor = new HashSet<String>();
+
+    /**
+     * @param cutoff the start of the build on the clock of the node it runs on
+     */
+    LiveUploadAction(String importId, long cutoff) {
+        this.importId = importId;
+        this.cutoff = cutoff;
+    }
+
+    String getImportId() {
+        return importId;
+    }
+
+    /**
+     * @return the time on the node before which all modified files were sent to all test specifications
+     */
+    synchronized long getCutoff() {
+        return cutoff;
+    }
+
+    /**
+     * @return the time on the node before which all modified files were sent to the test specification
+     */
+    synchronized long getCutoff(String testSpecificationId) {
+        return pendingPart != 0 && !pendingFor.contains(testSpecificationId) ? pendingUntil : cutoff;
+    }
+
+    synchronized Map<String, Long> getCutoffs(List<TestSpecificationDescribable> testSpecifications) {
+        Map<String, Long> cutoffs = new HashMap<String, Long>();
+        for (TestSpecificationDescribable ts : testSpecifications) {
+            cutoffs.put(ts.getTestSpecificationId(), getCutoff(ts.getTestSpecificationId()));
+        }
+        return cutoffs;
+    }
+
+    /**
+     * @return the number of the part that did not reach all its test specifications yet, or 0 when there is none
+     */
+    synchronized int getPendingPart() {
+        return pendingPart;
+    }
+
+    synchronized long getPendingUntil() {
+        return pendingUntil;
+    }
+
+    synchronized boolean isPendingFor(String testSpecificationId) {
+        return pendingPart != 0 && pendingFor.contains(testSpecificationId);
+    }
+
+    /**
+     * Starts the next part, with the files modified before {@code until}.
+     *
+     * @param testSpecificationIds the test specifications that have files in it
+     * @return the number of the part
+     */
+    synchronized int startPart(long until, Collection<String> testSpecificationIds) {
+        pendingPart = ++parts;
+        pendingUntil = until;
+        pendingFor.clear();
+        pendingFor.addAll(testSpecificationIds);
+        return pendingPart;
+    }
+
+    /**
+     * Records that the test specification received the pending part. Once all did, all files modified before its end
+     * were sent.
+     */
+    synchronized void delivered(String testSpecificationId, int files) {
+        if (pendingPart == 0 || !pendingFor.remove(testSpecificationId)) {
+            return;
+        }
+        filesSent += files;
+        delivered = true;
+        if (pendingFor.isEmpty()) {
+            cutoff = pendingUntil;
+            pendingPart = 0;
+        }
+    }
+
+    /**
+     * Records that no files were modified before {@code cutoff}, when there is no pending part.
+     */
+    synchronized void advance(long cutoff) {
+        if (pendingPart == 0) {
+            this.cutoff = cutoff;
+        }
+    }
+
+    synchronized int getFilesSent() {
+        return filesSent;
+    }
+
+    /**
+     * @return whether any test specification received a part, so the post-build step has to complete the test runs
+     */
+    synchronized boolean hasDelivered() {
+        return delivered;
+    }
+}
@@ -0,0 +1,359 @@
+package com.xebialabs.xlt.ci;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import com.xebialabs.xlt.ci.server.ArchiveException;
+import com.xebialabs.xlt.ci.server.CircuitOpenException;
+import com.xebialabs.xlt.ci.server.DeadlineExceededException;
+import com.xebialabs.xlt.ci.server.ServerUnavailableException;
+import com.xebialabs.xlt.ci.server.SpooledArchive;
+
+import hudson.XmlFile;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+
+/**
+ * Holds the test runs of builds that do not wait for XL TestView, until a small pool of workers sent them.
+ * <p/>
+ * Every test run gets a directory under {@code JENKINS_HOME/xltestview-outbox} with its archive and an
+ * {@code entry.xml}, which is written last; directories without one were never completely added and are removed when
+ * Jenkins starts, after which the remaining entries are sent again. The test runs of a job are sent one at a time in
+ * the order of their builds, whichever build finished first, while those of different jobs are sent in parallel. When sending fails in a way that may
+ * pass, the job waits for a growing delay and tries again, until the test run is {@link #MAX_AGE_MILLIS} old.
+ */
+public class Outbox {
+    private static final Logger LOG = LoggerFactory.getLogger(Outbox.class);
+
+    static final String DIRECTORY = "xltestview-outbox";
+    static final String ENTRY = "entry.xml";
+    static final String ARCHIVE = "archive.zip";
+
+    static final int WORKERS = Integer.getInteger(Outbox.class.getName() + ".workers", 2);
+    static final long FIRST_RETRY_MILLIS = TimeUnit.SECONDS.toMillis(30);
+    static final long MAX_RETRY_MILLIS = TimeUnit.MINUTES.toMillis(30);
+    static final long MAX_AGE_MILLIS = TimeUnit.HOURS.toMillis(Long.getLong(Outbox.class.getName() + ".maxAgeHours", 24));
+
+    /**
+     * What the outbox does with its entries; separate so it can be tested without Jenkins.
+     */
+    interface Delivery {
+        /**
+         * @throws Exception when the test run was not delivered
+         */
+        void deliver(OutboxEntry entry, SpooledArchive archive) throws Exception;
+
+        /**
+         * Records what became of the test run on its build.
+         */
+        void record(OutboxEntry entry, DeliveryAction.Status status);
+    }
+
+    private static Outbox instance;
+
+    private final File root;
+    private final Delivery delivery;
+    private final ExecutorService workers;
+    private final ScheduledExecutorService timer;
+
+    /**
+     * The order in which the test runs of a job are sent: by build, then in the order they were added.
+     */
+    static final Comparator<OutboxEntry> ORDER = new Comparator<OutboxEntry>() {
+        @Override
+        public int compare(OutboxEntry a, OutboxEntry b) {
+            int byBuild = Integer.compare(a.getBuildNumber(), b.getBuildNumber());
+            return byBuild != 0 ? byBuild : Long.compare(a.getSequence(), b.getSequence());
+        }
+    };
+
+    // guarded by this
+    private final Map<String, LinkedList<OutboxEntry>> queues = new HashMap<String, LinkedList<OutboxEntry>>();
+    private final Set<String> draining = new HashSet<String>();
+    private long lastSequence;
+
+    Outbox(File root, Delivery delivery, ExecutorService workers, ScheduledExecutorService timer) {
+        this.root = root;
+        this.delivery = delivery;
+        this.workers = workers;
+        this.timer = timer;
+    }
+
+    static synchronized Outbox get() {
+        if (instance == null) {
+            Jenkins jenkins = Jenkins.getInstance();
+            if (jenkins == null) {
+                throw new IllegalStateException("Jenkins is not running");
+            }
+            instance = new Outbox(new File(jenkins.getRootDir(), DIRECTORY), new OutboxDelivery(),
+                    Executors.newFixedThreadPool(WORKERS, new ThreadFactoryBuilder().setDaemon(true).setNameFormat("XL TestView outbox %d").build()),
+                    Timer.get());
+            instance.load();
+        }
+        return instance;
+    }
+
+    /**
+     * Resumes sending what was left in the outbox when Jenkins stopped.
+     */
+    @Initializer(after = InitMilestone.JOB_LOADED)
+    public static void resume() {
+        get();
+    }
+
+    /**
+     * Puts the test run in the outbox. Once this returns, it is sent even when Jenkins restarts.
+     *
+     * @param archive linked or copied into the outbox; the caller still deletes it
+     */
+    OutboxEntry add(String jobName, int buildNumber, String testSpecificationId, Map<String, Object> metadata, SpooledArchive archive,
+                    int deadlineMinutes) throws IOException {
+        OutboxEntry entry = new OutboxEntry(nextSequence(), jobName, buildNumber, testSpecificationId, metadata, archive.getNumberOfFiles(),
+                deadlineMinutes, UUID.randomUUID().toString());
+        File dir = directoryOf(entry);
+        if (!dir.mkdirs()) {
+            throw new IOException("Unable to create " + dir);
+        }
+        boolean added = false;
+        try {
+            File target = new File(dir, ARCHIVE);
+            try {
+                java.nio.file.Files.createLink(target.toPath(), archive.getFile().toPath());
+            } catch (Exception e) {
+                LOG.debug("Unable to link {} into the outbox, copying it", archive.getFile(), e);
+                Files.copy(archive.getFile(), target);
+            }
+            save(entry);
+            added = true;
+        } finally {
+            if (!added) {
+                FileUtils.deleteQuietly(dir);
+            }
+        }
+        enqueue(entry);
+        return entry;
+    }
+
+    private synchronized long nextSequence() {
+        lastSequence = Math.max(lastSequence + 1, System.currentTimeMillis());
+        return lastSequence;
+    }
+
+    /**
+     * Picks up the entries that were left, oldest build first, and removes what was never completely added.
+     */
+    void load() {
+        File[] dirs = root.listFiles();
+        if (dirs == null) {
+            return;
+        }
+        List<OutboxEntry> entries = new ArrayList<OutboxEntry>();
+        for (File dir : dirs) {
+            XmlFile file = new XmlFile(new File(dir, ENTRY));
+            try {
+                if (file.exists()) {
+                    entries.add((OutboxEntry) file.read());
+                    continue;
+                }
+            } catch (Exception e) {
+                LOG.warn("Unable to read {}, removing it from the outbox", file, e);
+            }
+            FileUtils.deleteQuietly(dir);
+        }
+        Collections.sort(entries, ORDER);
+        if (!entries.isEmpty()) {
+            LOG.info("Resuming delivery of {} test runs to XL TestView", entries.size());
+        }
+        for (OutboxEntry entry : entries) {
+            synchronized (this) {
+                lastSequence = Math.max(lastSequence, entry.getSequence());
+            }
+            enqueue(entry);
+        }
+    }
+
+    /**
+     * @return the number of test runs waiting to be sent
+     */
+    synchronized int size() {
+        int size = 0;
+        for (LinkedList<OutboxEntry> queue : queues.values()) {
+            size += queue.size();
+        }
+        return size;
+    }
+
+    /**
+     * Queues the entry behind the test runs of earlier builds of its job. The first entry of a job that is being sent
+     * may be on its way already, so nothing is put before it.
+     */
+    private void enqueue(OutboxEntry entry) {
+        String job = entry.getJobName();
+        synchronized (this) {
+            LinkedList<OutboxEntry> queue = queues.get(job);
+            if (queue == null) {
+                queue = new LinkedList<OutboxEntry>();
+                queues.put(job, queue);
+            }
+            int first = draining.contains(job) ? 1 : 0;
+            int index = queue.size();
+            while (index > first && ORDER.compare(queue.get(index - 1), entry) > 0) {
+                index--;
+            }
+            queue.add(index, entry);
+            if (!draining.add(job)) {
+                return;
+            }
+        }
+        drainLater(job, 0);
+    }
+
+    private void drainLater(final String job, long delayMillis) {
+        final Runnable drain = new Runnable() {
+            @Override
+            public void run() {
+                drain(job);
+            }
+        };
+        if (delayMillis == 0) {
+            workers.execute(drain);
+            return;
+        }
+        timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                workers.execute(drain);
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Sends the test runs of the job one after another, until none are left or one has to wait. Should anything
+     * unexpected go wrong, the job is drained again later rather than left waiting for a restart.
+     */
+    private void drain(String job) {
+        boolean settled = false;
+        try {
+            while (true) {
+                OutboxEntry entry;
+                synchronized (this) {
+                    LinkedList<OutboxEntry> queue = queues.get(job);
+                    entry = queue == null ? null : queue.peekFirst();
+                    if (entry == null) {
+                        queues.remove(job);
+                        draining.remove(job);
+                        settled = true;
+                        return;
+                    }
+                }
+                long retryDelay = send(entry);
+                if (retryDelay > 0) {
+                    drainLater(job, retryDelay);
+                    settled = true;
+                    return;
+                }
+                synchronized (this) {
+                    queues.get(job).remove(entry);
+                }
+            }
+        } finally {
+            if (!settled) {
+                LOG.warn("Unable to deliver the test runs of {}, trying again in {} s", job, TimeUnit.MILLISECONDS.toSeconds(FIRST_RETRY_MILLIS));
+                try {
+                    drainLater(job, FIRST_RETRY_MILLIS);
+                } catch (RuntimeException e) {
+                    // Jenkins is stopping; the entries are sent when it starts again
+                    synchronized (this) {
+                        draining.remove(job);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return how long to wait before sending the entry again, or 0 when it is done with
+     */
+    private long send(OutboxEntry entry) {
+        File dir = directoryOf(entry);
+        DeliveryAction.Status status;
+        long retryDelay = 0;
+        try {
+            delivery.deliver(entry, SpooledArchive.reopen(new File(dir, ARCHIVE), entry.getNumberOfFiles()));
+            LOG.debug("Delivered {}", entry);
+            status = DeliveryAction.Status.DELIVERED;
+        } catch (Exception e) {
+            entry.failed(e.getMessage());
+            if (isTransient(e) && System.currentTimeMillis() - entry.getCreated() < MAX_AGE_MILLIS) {
+                retryDelay = Math.min(MAX_RETRY_MILLIS, FIRST_RETRY_MILLIS << Math.min(entry.getAttempts() - 1, 10));
+                LOG.info("Unable to deliver {}, trying again in {} s: {}", entry, TimeUnit.MILLISECONDS.toSeconds(retryDelay), e.getMessage());
+                try {
+                    save(entry);
+                } catch (IOException saveFailed) {
+                    LOG.warn("Unable to save {}", entry, saveFailed);
+                }
+                status = DeliveryAction.Status.RETRYING;
+            } else {
+                LOG.warn("Giving up delivering {}", entry, e);
+                status = DeliveryAction.Status.FAILED;
+            }
+        }
+        record(entry, status);
+        if (retryDelay == 0) {
+            FileUtils.deleteQuietly(dir);
+        }
+        return retryDelay;
+    }
+
+    /**
+     * Recording the outcome on the build is a courtesy; failing to does not change what became of the test run.
+     */
+    private void record(OutboxEntry entry, DeliveryAction.Status status) {
+        try {
+            delivery.record(entry, status);
+        } catch (RuntimeException e) {
+            LOG.warn("Unable to record on the build that {} was {}", entry, status, e);
+        }
+    }
+
+    /**
+     * Failures that may pass by themselves; anything else, such as a rejected password, results XL TestView cannot
+     * import or an archive in the outbox that cannot be read, will fail again.
+     */
+    static boolean isTransient(Exception e) {
+        if (e instanceof ArchiveException) {
+            return false;
+        }
+        return e instanceof IOException || e instanceof ServerUnavailableException || e instanceof CircuitOpenException
+                || e instanceof DeadlineExceededException || e instanceof InterruptedException;
+    }
+
+    private File directoryOf(OutboxEntry entry) {
+        return new File(root, Long.toString(entry.getSequence()));
+    }
+
+    private void save(OutboxEntry entry) throws IOException {
+        new XmlFile(new File(directoryOf(entry), ENTRY)).write(entry);
+    }
+}
@@ -0,0 +1,72 @@
+package com.xebialabs.xlt.ci;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.acegisecurity.context.SecurityContext;
+import org.acegisecurity.context.SecurityContextHolder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.google.common.base.Charsets;
+
+import com.xebialabs.xlt.ci.server.Deadline;
+import com.xebialabs.xlt.ci.server.SpooledArchive;
+import com.xebialabs.xlt.ci.server.XLTestServer;
+
+import hudson.model.Job;
+import hudson.model.Run;
+import hudson.security.ACL;
+import jenkins.model.Jenkins;
+
+/**
+ * Sends the test runs in the {@link Outbox} to the XL TestView server configured now, which is not necessarily the one
+ * configured when the build ran, and records the outcome on the {@link DeliveryAction} of the build.
+ */
+class OutboxDelivery implements Outbox.Delivery {
+    private static final Logger LOG = LoggerFactory.getLogger(OutboxDelivery.class);
+
+    @Override
+    public void deliver(OutboxEntry entry, SpooledArchive archive) throws Exception {
+        XLTestView.XLTestDescriptor descriptor = Jenkins.getInstance().getDescriptorByType(XLTestView.XLTestDescriptor.class);
+        XLTestServer server = descriptor.getXLTestServer();
+        Map<String, Object> metadata = new HashMap<String, Object>(entry.getMetadata());
+        server.getCapabilities().removeUnsupportedMetadata(metadata);
+
+        Deadline deadline = entry.getDeadlineMinutes() == 0 ? Deadline.NONE
+                : Deadline.after(TimeUnit.MINUTES.toMillis(entry.getDeadlineMinutes()));
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        PrintStream logger = new PrintStream(log, true, Charsets.UTF_8.name());
+        try {
+            server.uploadTestRun(entry.getTestSpecificationId(), archive, metadata, deadline, entry.getIdempotencyKey(), logger);
+        } finally {
+            LOG.debug("Sending {}:\n{}", entry, log.toString(Charsets.UTF_8.name()));
+        }
+    }
+
+    @Override
+    public void record(OutboxEntry entry, DeliveryAction.Status status) {
+        SecurityContext previous = ACL.impersonate(ACL.SYSTEM);
+        try {
+            Job<?, ?> job = Jenkins.getInstance().getItemByFullName(entry.getJobName(), Job.class);
+            Run<?, ?> run = job == null ? null : job.getBuildByNumber(entry.getBuildNumber());
+            if (run == null) {
+                LOG.debug("Build of {} is gone, not recording that it was {}", entry, status);
+                return;
+            }
+            DeliveryAction action = run.getAction(DeliveryAction.class);
+            if (action == null) {
+                action = new DeliveryAction();
+                run.addAction(action);
+            }
+            action.update(entry.getTestSpecificationId(), status, status == DeliveryAction.Status.DELIVERED ? null : entry.getProblem());
+            run.save();
+        } catch (IOException e) {
+            LOG.warn("Unable to record on the build that {} was {}", entry, status, e);
+        } finally {
+            SecurityContextHolder.setContext(previous);
+        }
+    }
+}
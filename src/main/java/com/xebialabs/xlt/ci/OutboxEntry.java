@@ -0,0 +1,100 @@
+package com.xebialabs.xlt.ci;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A test run waiting in the {@link Outbox}. Stored next to its archive, so it survives a restart of Jenkins.
+ */
+final class OutboxEntry {
+    private final long sequence;
+    private final String jobName;
+    private final int buildNumber;
+    private final String testSpecificationId;
+    private final HashMap<String, Object> metadata;
+    private final int numberOfFiles;
+    private final int deadlineMinutes;
+    private final long created;
+    private final String idempotencyKey;
+    private int attempts;
+    private String problem;
+
+    OutboxEntry(long sequence, String jobName, int buildNumber, String testSpecificationId, Map<String, Object> metadata, int numberOfFiles,
+                int deadlineMinutes, String idempotencyKey) {
+        this.sequence = sequence;
+        this.jobName = jobName;
+        this.buildNumber = buildNumber;
+        this.testSpecificationId = testSpecificationId;
+        this.metadata = new HashMap<String, Object>(metadata);
+        this.numberOfFiles = numberOfFiles;
+        this.deadlineMinutes = deadlineMinutes;
+        this.created = System.currentTimeMillis();
+        this.idempotencyKey = idempotencyKey;
+    }
+
+    /**
+     * @return the position of the entry in the outbox; entries of the same build are sent in this order
+     */
+    long getSequence() {
+        return sequence;
+    }
+
+    String getJobName() {
+        return jobName;
+    }
+
+    int getBuildNumber() {
+        return buildNumber;
+    }
+
+    String getTestSpecificationId() {
+        return testSpecificationId;
+    }
+
+    Map<String, Object> getMetadata() {
+        return metadata;
+    }
+
+    int getNumberOfFiles() {
+        return numberOfFiles;
+    }
+
+    /**
+     * @return the minutes each attempt to send the test run may take, or 0 for no limit
+     */
+    int getDeadlineMinutes() {
+        return deadlineMinutes;
+    }
+
+    /**
+     * @return the same for every attempt to send the test run, so the server imports it once
+     */
+    String getIdempotencyKey() {
+        return idempotencyKey;
+    }
+
+    long getCreated() {
+        return created;
+    }
+
+    int getAttempts() {
+        return attempts;
+    }
+
+    /**
+     * @return why the last attempt failed, or {@code null}
+     */
+    String getProblem() {
+        return problem;
+    }
+
+    void failed(String problem) {
+        this.attempts++;
+        this.problem = problem;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("test run #%d of %s #%d for test specification %s", sequence, jobName, buildNumber, testSpecificationId);
+    }
+}
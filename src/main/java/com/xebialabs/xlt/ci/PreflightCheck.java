@@ -0,0 +1,93 @@
+package com.xebialabs.xlt.ci;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+
+import static java.lang.String.format;
+
+/**
+ * Sniffs the files of a test specification where the workspace lives, to tell whether any of them can be results of
+ * its test tool. Only the first bytes of each file are read.
+ */
+class PreflightCheck extends MasterToSlaveFileCallable<PreflightCheck.Result> {
+    private static final long serialVersionUID = 1L;
+
+    private static final int MAX_EXAMPLES = 3;
+
+    private final ArrayList<String> files;
+    private final ResultFormat format;
+
+    PreflightCheck(List<String> files, ResultFormat format) {
+        this.files = new ArrayList<String>(files);
+        this.format = format;
+    }
+
+    @Override
+    public Result invoke(File dir, VirtualChannel channel) throws IOException, InterruptedException {
+        Result result = new Result(format, files.size());
+        for (String file : files) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            String kind;
+            try {
+                kind = ResultFormat.sniff(new File(dir, file));
+            } catch (IOException e) {
+                result.mismatch(file, "cannot be read: " + e.getMessage());
+                continue;
+            }
+            if (format.accepts(kind)) {
+                result.matching++;
+            } else if (kind == null) {
+                result.mismatch(file, "is neither XML nor JSON");
+            } else if (ResultFormat.JSON.equals(kind)) {
+                result.mismatch(file, "is JSON");
+            } else {
+                result.mismatch(file, "has root element <" + kind + ">");
+            }
+        }
+        return result;
+    }
+
+    static final class Result implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final ResultFormat format;
+        private final int files;
+        private int matching;
+        private final List<String> examples = new ArrayList<String>();
+
+        Result(ResultFormat format, int files) {
+            this.format = format;
+            this.files = files;
+        }
+
+        private void mismatch(String file, String reason) {
+            if (examples.size() < MAX_EXAMPLES) {
+                examples.add(file + " " + reason);
+            }
+        }
+
+        boolean isImportable() {
+            return matching > 0;
+        }
+
+        String describe() {
+            return format("%d of %d files look like %s", matching, files, format.describe());
+        }
+
+        /**
+         * @return why nothing can be imported, with a few of the files that do not fit
+         */
+        String describeProblem() {
+            return format("None of the %d files matched by the include/exclude pattern look like %s, e.g. %s", files,
+                    format.describe(), examples);
+        }
+    }
+}
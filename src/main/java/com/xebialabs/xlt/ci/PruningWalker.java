@@ -0,0 +1,296 @@
+package com.xebialabs.xlt.ci;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.FileVisitOption;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import org.apache.tools.ant.DirectoryScanner;
+import org.apache.tools.ant.types.selectors.SelectorUtils;
+
+/**
+ * Finds the files matching any of several include/exclude pattern pairs, walking directories on several threads.
+ * <p/>
+ * Patterns are compiled once. A directory is only entered when some include pattern of a pair can match below it and
+ * the excludes of that pair do not exclude its whole contents, so trees like {@code node_modules} or {@code .git} are
+ * skipped instead of walked. Ant's default excludes apply, like for {@link hudson.util.DirScanner.Glob}. Symbolic
+ * links are followed like Ant follows them, except for a link to a directory that is already being walked above it,
+ * which would never end.
+ * <p/>
+ * Optionally only files modified in a given time window are returned, and a {@link ScanIndex} of a previous walk saves
+ * listing the directories that did not change since.
+ */
+class PruningWalker {
+    private static final String[] DEFAULT_EXCLUDES = SharedWorkspaceScan.compile(join(DirectoryScanner.getDefaultExcludes()));
+    private static final String DEEP_TREE = File.separator + "**";
+
+    private final List<String[]> includes = new ArrayList<String[]>();
+    private final List<String[]> excludes = new ArrayList<String[]>();
+    private final List<String[]> excludedTrees = new ArrayList<String[]>();
+
+    /**
+     * @param includes compiled include patterns per pair; an empty array means everything
+     * @param excludes compiled exclude patterns per pair
+     */
+    PruningWalker(List<String[]> includes, List<String[]> excludes) {
+        for (int i = 0; i < includes.size(); i++) {
+            String[] include = includes.get(i);
+            this.includes.add(include.length == 0 ? new String[]{"**"} : include);
+
+            List<String> exclude = new ArrayList<String>();
+            Collections.addAll(exclude, excludes.get(i));
+            Collections.addAll(exclude, DEFAULT_EXCLUDES);
+            this.excludes.add(exclude.toArray(new String[exclude.size()]));
+
+            List<String> trees = new ArrayList<String>();
+            for (String pattern : exclude) {
+                if (pattern.endsWith(DEEP_TREE)) {
+                    trees.add(pattern.substring(0, pattern.length() - DEEP_TREE.length()));
+                }
+            }
+            this.excludedTrees.add(trees.toArray(new String[trees.size()]));
+        }
+    }
+
+    /**
+     * @return the paths relative to {@code dir} that match any pair, sorted
+     */
+    List<String> walk(File dir, int threads) throws InterruptedException {
+        return walk(dir, threads, Long.MIN_VALUE, null, null);
+    }
+
+    /**
+     * @param modifiedSince only return files modified at or after this time, in milliseconds
+     * @param previous      index of a previous walk of {@code dir}, may be {@code null}
+     * @param next          index to record this walk in, may be {@code null}
+     * @return the paths relative to {@code dir} that match any pair, sorted
+     */
+    List<String> walk(File dir, int threads, long modifiedSince, ScanIndex previous, ScanIndex next) throws InterruptedException {
+        return walk(dir, threads, modifiedSince, Long.MAX_VALUE, previous, next);
+    }
+
+    /**
+     * @param modifiedBefore only return files modified before this time, in milliseconds
+     */
+    List<String> walk(File dir, int threads, long modifiedSince, long modifiedBefore, ScanIndex previous, ScanIndex next) throws InterruptedException {
+        Walk walk = new Walk(modifiedSince, modifiedBefore, previous);
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            pool.invoke(new Directory(walk, dir.toPath(), "", Collections.<Path>emptySet(), previous == null ? null : previous.getRoot(),
+                    next == null ? null : next.getRoot()));
+        } finally {
+            pool.shutdownNow();
+        }
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+        List<String> files = new ArrayList<String>(walk.found);
+        Collections.sort(files);
+        return files;
+    }
+
+    /**
+     * @return whether a file below the directory can match any pair
+     */
+    boolean mayContainMatches(String relativeDir) {
+        for (int i = 0; i < includes.size(); i++) {
+            if (couldHoldIncluded(includes.get(i), relativeDir) && !SharedWorkspaceScan.matchesAny(excludedTrees.get(i), relativeDir)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    boolean matches(String relativePath) {
+        for (int i = 0; i < includes.size(); i++) {
+            if (SharedWorkspaceScan.matchesAny(includes.get(i), relativePath) && !SharedWorkspaceScan.matchesAny(excludes.get(i), relativePath)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean couldHoldIncluded(String[] patterns, String relativeDir) {
+        for (String pattern : patterns) {
+            if (SelectorUtils.matchPatternStart(pattern, relativeDir, true)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String join(String[] patterns) {
+        StringBuilder joined = new StringBuilder();
+        for (String pattern : patterns) {
+            joined.append(pattern).append(',');
+        }
+        return joined.toString();
+    }
+
+    private static final class Walk {
+        private final Queue<String> found = new ConcurrentLinkedQueue<String>();
+        private final long modifiedSince;
+        private final long modifiedBefore;
+        private final ScanIndex previous;
+
+        Walk(long modifiedSince, long modifiedBefore, ScanIndex previous) {
+            this.modifiedSince = modifiedSince;
+            this.modifiedBefore = modifiedBefore;
+            this.previous = previous;
+        }
+    }
+
+    /**
+     * Reads one directory, from the file system or from the previous index when it did not change, and forks a task
+     * per subdirectory worth entering.
+     */
+    private final class Directory extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Walk walk;
+        private final Path path;
+        private final String relativePath;
+        // where the links to directories followed on the way here point to
+        private final Set<Path> linkTargets;
+        private final ScanIndex.Directory previous;
+        private final ScanIndex.Directory next;
+
+        Directory(Walk walk, Path path, String relativePath, Set<Path> linkTargets, ScanIndex.Directory previous, ScanIndex.Directory next) {
+            this.walk = walk;
+            this.path = path;
+            this.relativePath = relativePath;
+            this.linkTargets = linkTargets;
+            this.previous = previous;
+            this.next = next;
+        }
+
+        @Override
+        protected void compute() {
+            final List<Directory> subdirectories = new ArrayList<Directory>();
+            try {
+                if (next == null) {
+                    list(subdirectories);
+                } else {
+                    // read before listing, so a change made meanwhile is seen by the next walk
+                    long lastModified = Files.getLastModifiedTime(path).toMillis();
+                    if (walk.previous != null && walk.previous.isUnchanged(previous, lastModified)) {
+                        readIndex(subdirectories);
+                    } else {
+                        list(subdirectories);
+                    }
+                    next.setLastModified(lastModified);
+                }
+            } catch (IOException e) {
+                return;
+            }
+            invokeAll(subdirectories);
+        }
+
+        private void list(List<Directory> subdirectories) throws IOException {
+            if (!list(path, subdirectories)) {
+                // reached through a link, so it is listed where the link points to
+                list(path.toRealPath(), subdirectories);
+            }
+        }
+
+        /**
+         * @return {@code false} when {@code dir} is a link, which is not listed
+         */
+        private boolean list(final Path dir, final List<Directory> subdirectories) throws IOException {
+            final boolean[] listed = {true};
+            Files.walkFileTree(dir, EnumSet.noneOf(FileVisitOption.class), 1, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+                    if (file.equals(dir)) {
+                        listed[0] = false;
+                        return FileVisitResult.CONTINUE;
+                    }
+                    String fileName = file.getFileName().toString();
+                    if (attributes.isDirectory()) {
+                        subdirectory(fileName, previous == null ? null : previous.getDirectories().get(fileName), subdirectories, linkTargets);
+                    } else if (attributes.isRegularFile()) {
+                        file(fileName, attributes.size(), attributes.lastModifiedTime().toMillis());
+                    } else if (attributes.isSymbolicLink() && Files.isRegularFile(file)) {
+                        BasicFileAttributes target = Files.readAttributes(file, BasicFileAttributes.class);
+                        file(fileName, target.size(), target.lastModifiedTime().toMillis());
+                    } else if (attributes.isSymbolicLink() && Files.isDirectory(file)) {
+                        Path target = file.toRealPath();
+                        if (!linkTargets.contains(target) && !path.toRealPath().startsWith(target)) {
+                            Set<Path> followed = new HashSet<Path>(linkTargets);
+                            followed.add(target);
+                            subdirectory(fileName, previous == null ? null : previous.getDirectories().get(fileName), subdirectories, followed);
+                        }
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    // like Ant, skip what cannot be read
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+            return listed[0];
+        }
+
+        /**
+         * Takes the entries from the previous index. Files that can match are read again, since they may have been
+         * rewritten in place.
+         */
+        private void readIndex(List<Directory> subdirectories) {
+            for (Map.Entry<String, long[]> entry : previous.getFiles().entrySet()) {
+                String fileName = entry.getKey();
+                if (!matches(relativePath + fileName)) {
+                    next.addFile(fileName, entry.getValue()[0], entry.getValue()[1]);
+                    continue;
+                }
+                try {
+                    BasicFileAttributes attributes = Files.readAttributes(path.resolve(fileName), BasicFileAttributes.class);
+                    if (attributes.isRegularFile()) {
+                        file(fileName, attributes.size(), attributes.lastModifiedTime().toMillis());
+                    }
+                } catch (IOException e) {
+                    // removed since, although the directory did not change: skip like an unreadable file
+                }
+            }
+            for (Map.Entry<String, ScanIndex.Directory> entry : previous.getDirectories().entrySet()) {
+                subdirectory(entry.getKey(), entry.getValue(), subdirectories, linkTargets);
+            }
+        }
+
+        private void file(String fileName, long size, long lastModified) {
+            String name = relativePath + fileName;
+            if (next != null) {
+                next.addFile(fileName, size, lastModified);
+            }
+            if (lastModified >= walk.modifiedSince && lastModified < walk.modifiedBefore && matches(name)) {
+                walk.found.add(name);
+            }
+        }
+
+        private void subdirectory(String fileName, ScanIndex.Directory indexed, List<Directory> subdirectories, Set<Path> followed) {
+            String name = relativePath + fileName;
+            if (mayContainMatches(name)) {
+                ScanIndex.Directory child = next == null ? null : next.addDirectory(fileName);
+                subdirectories.add(new Directory(walk, path.resolve(fileName), name + File.separator, followed, indexed, child));
+            } else if (next != null) {
+                // not entered; what is known about it stays valid, since it is checked when the directory is entered
+                next.keepDirectory(fileName, indexed);
+            }
+        }
+    }
+}
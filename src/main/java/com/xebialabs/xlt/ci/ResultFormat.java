@@ -0,0 +1,136 @@
+package com.xebialabs.xlt.ci;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * The result files XL TestView expects for a test tool, recognized from their first bytes.
+ */
+enum ResultFormat {
+    JUNIT("JUnit XML", "testsuite", "testsuites"),
+    TESTNG("TestNG XML", "testng-results", "testsuite", "testsuites"),
+    NUNIT("NUnit XML", "test-results", "test-run"),
+    XUNIT("xUnit.net XML", "assemblies", "assembly"),
+    FITNESSE("FitNesse XML", "testResults", "suiteResults"),
+    CUCUMBER("Cucumber JSON");
+
+    static final String JSON = "JSON";
+
+    private static final int HEAD_SIZE = 64;
+
+    private final String label;
+    private final List<String> rootElements;
+
+    ResultFormat(String label, String... rootElements) {
+        this.label = label;
+        this.rootElements = Arrays.asList(rootElements);
+    }
+
+    /**
+     * @return the format of the test tool, or {@code null} when its files are not checked
+     */
+    static ResultFormat of(String testToolName) {
+        if (testToolName == null) {
+            return null;
+        }
+        String name = testToolName.toLowerCase(Locale.ENGLISH);
+        for (ResultFormat format : values()) {
+            if (name.startsWith(format.name().toLowerCase(Locale.ENGLISH))) {
+                return format;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param kind what {@link #sniff(File)} found
+     */
+    boolean accepts(String kind) {
+        return this == CUCUMBER ? JSON.equals(kind) : rootElements.contains(kind);
+    }
+
+    String describe() {
+        if (this == CUCUMBER) {
+            return label;
+        }
+        StringBuilder roots = new StringBuilder();
+        for (String root : rootElements) {
+            roots.append(roots.length() == 0 ? "" : " or ").append('<').append(root).append('>');
+        }
+        return label + " with root element " + roots;
+    }
+
+    /**
+     * Reads as little of the file as needed to tell what it holds.
+     *
+     * @return the name of the root element of an XML file, {@link #JSON} for JSON, or {@code null} for anything else
+     */
+    static String sniff(File file) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(file));
+        try {
+            in.mark(HEAD_SIZE);
+            int bom = in.read() << 8 | in.read();
+            in.reset();
+            if (bom == 0xFEFF || bom == 0xFFFE) {
+                // UTF-16; the XML parser tells the encoding from the byte order mark
+                return rootElement(in);
+            }
+            int first = firstSignificantByte(in);
+            int second = firstSignificantByte(in);
+            in.reset();
+            if (first == '{' || first == '[' && (second == -1 || "{[]\"-0123456789tfn".indexOf(second) != -1)) {
+                return JSON;
+            }
+            if (first != '<') {
+                return null;
+            }
+            return rootElement(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Skips a UTF-8 byte order mark and white space, within the first bytes of the file.
+     */
+    private static int firstSignificantByte(InputStream in) throws IOException {
+        for (int i = 0; i < HEAD_SIZE / 2; i++) {
+            int b = in.read();
+            if (b != 0xEF && b != 0xBB && b != 0xBF && !Character.isWhitespace(b)) {
+                return b;
+            }
+        }
+        return -1;
+    }
+
+    private static String rootElement(InputStream in) {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        try {
+            XMLStreamReader reader = factory.createXMLStreamReader(in);
+            try {
+                while (reader.hasNext()) {
+                    if (reader.next() == XMLStreamConstants.START_ELEMENT) {
+                        return reader.getLocalName();
+                    }
+                }
+                return null;
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException e) {
+            return null;
+        }
+    }
+}
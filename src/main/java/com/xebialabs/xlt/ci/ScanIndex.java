@@ -0,0 +1,205 @@
+package com.xebialabs.xlt.ci;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Remembers the directories a workspace scan entered: their modification time, the size and modification time of
+ * their files and their subdirectories.
+ * <p/>
+ * Adding, removing or renaming an entry changes the modification time of its directory, so a directory whose time is
+ * unchanged since the previous scan has the same entries and is not listed again. Files can still be rewritten in
+ * place, so those matching the patterns are always read again; only the other entries are taken from the index.
+ * Directories changed less than {@link #GRANULARITY} before the previous scan are always listed, since file systems
+ * with coarse timestamps cannot tell such a change from one made just after the scan.
+ * <p/>
+ * The index is kept next to the workspace, in the {@code @tmp} directory Jenkins uses for temporary files of a
+ * workspace.
+ */
+class ScanIndex {
+    static final long GRANULARITY = 2000;
+
+    private static final int MAGIC = 0x584c5449;
+    private static final int VERSION = 1;
+    private static final long UNKNOWN = Long.MIN_VALUE;
+    private static final String FILE_NAME = "xltestview-scan.idx";
+
+    /**
+     * Indexes with more entries than this are not saved, the time to read them would outweigh what they save.
+     */
+    static final int MAX_ENTRIES = 1000000;
+
+    private final long scanStart;
+    private final Directory root;
+
+    ScanIndex(long scanStart) {
+        this(scanStart, new Directory());
+    }
+
+    private ScanIndex(long scanStart, Directory root) {
+        this.scanStart = scanStart;
+        this.root = root;
+    }
+
+    Directory getRoot() {
+        return root;
+    }
+
+    /**
+     * @return whether the entries of the directory are still those recorded in {@code previous}
+     */
+    boolean isUnchanged(Directory previous, long lastModified) {
+        return previous != null && previous.lastModified != UNKNOWN && previous.lastModified == lastModified
+                && lastModified < scanStart - GRANULARITY;
+    }
+
+    static File locate(File workspace) {
+        return new File(new File(workspace.getParentFile(), workspace.getName() + "@tmp"), FILE_NAME);
+    }
+
+    /**
+     * @return the index, or {@code null} when there is none or it cannot be read
+     */
+    static ScanIndex load(File file) {
+        if (!file.isFile()) {
+            return null;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                    return null;
+                }
+                long scanStart = in.readLong();
+                return new ScanIndex(scanStart, readDirectory(in));
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            // a missing or damaged index only costs a full scan
+            return null;
+        }
+    }
+
+    /**
+     * Replaces the index file, unless the index grew too large.
+     *
+     * @return whether the index was saved
+     */
+    boolean save(File file) throws IOException {
+        if (root.count() > MAX_ENTRIES) {
+            file.delete();
+            return false;
+        }
+        File dir = file.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create " + dir);
+        }
+        File temp = new File(dir, file.getName() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(scanStart);
+            writeDirectory(out, root);
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            file.delete();
+            if (!temp.renameTo(file)) {
+                temp.delete();
+                throw new IOException("Unable to replace " + file);
+            }
+        }
+        return true;
+    }
+
+    private static Directory readDirectory(DataInputStream in) throws IOException {
+        Directory directory = new Directory();
+        directory.lastModified = in.readLong();
+        int files = in.readInt();
+        for (int i = 0; i < files; i++) {
+            String name = in.readUTF();
+            directory.files.put(name, new long[]{in.readLong(), in.readLong()});
+        }
+        int directories = in.readInt();
+        for (int i = 0; i < directories; i++) {
+            String name = in.readUTF();
+            directory.directories.put(name, readDirectory(in));
+        }
+        return directory;
+    }
+
+    private static void writeDirectory(DataOutputStream out, Directory directory) throws IOException {
+        out.writeLong(directory.lastModified);
+        out.writeInt(directory.files.size());
+        for (Map.Entry<String, long[]> file : directory.files.entrySet()) {
+            out.writeUTF(file.getKey());
+            out.writeLong(file.getValue()[0]);
+            out.writeLong(file.getValue()[1]);
+        }
+        out.writeInt(directory.directories.size());
+        for (Map.Entry<String, Directory> subdirectory : directory.directories.entrySet()) {
+            out.writeUTF(subdirectory.getKey());
+            writeDirectory(out, subdirectory.getValue());
+        }
+    }
+
+    /**
+     * One directory of the index. Only the task scanning the directory modifies it.
+     */
+    static final class Directory {
+        private long lastModified = UNKNOWN;
+        private final Map<String, long[]> files = new HashMap<String, long[]>();
+        private final Map<String, Directory> directories = new HashMap<String, Directory>();
+
+        void setLastModified(long lastModified) {
+            this.lastModified = lastModified;
+        }
+
+        Map<String, long[]> getFiles() {
+            return files;
+        }
+
+        Map<String, Directory> getDirectories() {
+            return directories;
+        }
+
+        void addFile(String name, long size, long lastModified) {
+            files.put(name, new long[]{size, lastModified});
+        }
+
+        /**
+         * Records a subdirectory. It is only described in detail once a scan enters it.
+         */
+        Directory addDirectory(String name) {
+            Directory directory = new Directory();
+            directories.put(name, directory);
+            return directory;
+        }
+
+        /**
+         * Records a subdirectory that was not entered, keeping what a previous index knew about it.
+         */
+        void keepDirectory(String name, Directory previous) {
+            directories.put(name, previous != null ? previous : new Directory());
+        }
+
+        private long count() {
+            long count = files.size() + directories.size();
+            for (Directory directory : directories.values()) {
+                count += directory.count();
+            }
+            return count;
+        }
+    }
+}
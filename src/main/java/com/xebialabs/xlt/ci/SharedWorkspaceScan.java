@@ -0,0 +1,122 @@
+package com.xebialabs.xlt.ci;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.tools.ant.types.selectors.SelectorUtils;
+
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+
+/**
+ * Walks the workspace once for several include/exclude pattern pairs, then splits the matches per pair. Runs on the
+ * node that holds the workspace.
+ * <p/>
+ * When only files modified in some time window are wanted, the walk is recorded in a {@link ScanIndex} next to the
+ * workspace, so the next build reusing the workspace does not list the directories that did not change.
+ *
+ * @see PruningWalker
+ */
+class SharedWorkspaceScan extends MasterToSlaveFileCallable<List<List<String>>> {
+    private static final long serialVersionUID = 1L;
+
+    private final ArrayList<String> includes;
+    private final ArrayList<String> excludes;
+    private final long modifiedSince;
+    private final long modifiedBefore;
+
+    /**
+     * @param includes comma separated include patterns per pair; empty means everything
+     * @param excludes comma separated exclude patterns per pair, may be empty
+     */
+    SharedWorkspaceScan(List<String> includes, List<String> excludes) {
+        this(includes, excludes, Long.MIN_VALUE);
+    }
+
+    /**
+     * @param modifiedSince only collect files modified at or after this time of the node holding the workspace, or
+     *                      {@link Long#MIN_VALUE} for all files
+     */
+    SharedWorkspaceScan(List<String> includes, List<String> excludes, long modifiedSince) {
+        this(includes, excludes, modifiedSince, Long.MAX_VALUE);
+    }
+
+    /**
+     * @param modifiedBefore only collect files modified before this time of the node holding the workspace
+     */
+    SharedWorkspaceScan(List<String> includes, List<String> excludes, long modifiedSince, long modifiedBefore) {
+        this.includes = new ArrayList<String>(includes);
+        this.excludes = new ArrayList<String>(excludes);
+        this.modifiedSince = modifiedSince;
+        this.modifiedBefore = modifiedBefore;
+    }
+
+    @Override
+    public List<List<String>> invoke(File dir, VirtualChannel channel) throws IOException, InterruptedException {
+        List<String[]> includePatterns = new ArrayList<String[]>();
+        List<String[]> excludePatterns = new ArrayList<String[]>();
+        for (int i = 0; i < includes.size(); i++) {
+            String[] include = compile(includes.get(i));
+            includePatterns.add(include.length == 0 ? new String[]{"**"} : include);
+            excludePatterns.add(compile(excludes.get(i)));
+        }
+
+        PruningWalker walker = new PruningWalker(includePatterns, excludePatterns);
+        int threads = Runtime.getRuntime().availableProcessors();
+        List<String> files;
+        if (modifiedSince == Long.MIN_VALUE && modifiedBefore == Long.MAX_VALUE) {
+            files = walker.walk(dir, threads);
+        } else {
+            File indexFile = ScanIndex.locate(dir);
+            ScanIndex next = new ScanIndex(System.currentTimeMillis());
+            files = walker.walk(dir, threads, modifiedSince, modifiedBefore, ScanIndex.load(indexFile), next);
+            try {
+                next.save(indexFile);
+            } catch (IOException e) {
+                // the next scan lists every directory again
+                indexFile.delete();
+            }
+        }
+
+        List<List<String>> result = new ArrayList<List<String>>();
+        for (int i = 0; i < includePatterns.size(); i++) {
+            List<String> matches = new ArrayList<String>();
+            for (String file : files) {
+                if (matchesAny(includePatterns.get(i), file) && !matchesAny(excludePatterns.get(i), file)) {
+                    matches.add(file);
+                }
+            }
+            result.add(matches);
+        }
+        return result;
+    }
+
+    static String[] compile(String patterns) {
+        List<String> compiled = new ArrayList<String>();
+        if (patterns != null) {
+            for (String pattern : patterns.split(",")) {
+                pattern = pattern.trim();
+                if (pattern.isEmpty()) {
+                    continue;
+                }
+                // same normalization as org.apache.tools.ant.DirectoryScanner
+                pattern = pattern.replace('/', File.separatorChar).replace('\\', File.separatorChar);
+                if (pattern.endsWith(File.separator)) {
+                    pattern += "**";
+                }
+                compiled.add(pattern);
+            }
+        }
+        return compiled.toArray(new String[compiled.size()]);
+    }
+
+    static boolean matchesAny(String[] patterns, String path) {
+        for (String pattern : patterns) {
+            if (SelectorUtils.matchPath(pattern, path, true)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
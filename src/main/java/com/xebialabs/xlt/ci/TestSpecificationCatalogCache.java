@@ -0,0 +1,152 @@
+package com.xebialabs.xlt.ci;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.google.common.base.Objects;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import com.xebialabs.xlt.ci.server.domain.TestSpecificationCatalog;
+
+/**
+ * Master-side copy of the test specification catalog of the configured XL TestView server.
+ * <p/>
+ * Configuration pages are served from memory. The catalog is warmed when Jenkins starts and revalidated in the
+ * background by {@link TestSpecificationCatalogRefresher}; a changed server configuration discards it.
+ */
+public class TestSpecificationCatalogCache {
+    private static final Logger LOG = LoggerFactory.getLogger(TestSpecificationCatalogCache.class);
+
+    private final XLTestView.XLTestDescriptor descriptor;
+    private final AtomicBoolean refreshing = new AtomicBoolean();
+
+    private volatile Snapshot snapshot;
+    private volatile Snapshot indexed;
+
+    TestSpecificationCatalogCache(XLTestView.XLTestDescriptor descriptor) {
+        this.descriptor = descriptor;
+    }
+
+    /**
+     * Returns the cached catalog. Only blocks when nothing has been loaded yet for the current configuration.
+     */
+    public TestSpecificationCatalog get() {
+        Snapshot current = snapshot;
+        if (current != null && current.settings.equals(currentSettings())) {
+            return current.catalog;
+        }
+        return refresh();
+    }
+
+    /**
+     * Returns the cached catalog without ever waiting for the server.
+     *
+     * @return {@code null} when nothing has been loaded yet for the current configuration
+     */
+    public TestSpecificationCatalog peek() {
+        Snapshot current = snapshot;
+        return current != null && current.settings.equals(currentSettings()) ? current.catalog : null;
+    }
+
+    /**
+     * Returns the search index of the cached catalog; it is only rebuilt when the catalog actually changed.
+     */
+    public TestSpecificationIndex getIndex() {
+        TestSpecificationCatalog catalog = get();
+        Snapshot current = indexed;
+        if (current != null && current.catalog.getTestSpecifications() == catalog.getTestSpecifications()) {
+            return current.index;
+        }
+        TestSpecificationIndex index = new TestSpecificationIndex(catalog.getTestSpecifications());
+        indexed = new Snapshot(null, catalog, index);
+        return index;
+    }
+
+    /**
+     * Revalidates the catalog with the server; unchanged catalogs cost a 304 response only.
+     */
+    public synchronized TestSpecificationCatalog refresh() {
+        if (!descriptor.isConfigured()) {
+            snapshot = null;
+            return TestSpecificationCatalog.EMPTY;
+        }
+        String settings = currentSettings();
+        Snapshot current = snapshot;
+        TestSpecificationCatalog previous = current != null && current.settings.equals(settings) ? current.catalog : null;
+
+        TestSpecificationCatalog catalog = descriptor.getXLTestServer().getTestSpecificationCatalog(previous);
+        update(settings, previous, catalog);
+        return catalog;
+    }
+
+    /**
+     * Starts a refresh unless one is running already. No thread waits for the server while it is in flight.
+     */
+    public void refreshAsync() {
+        if (!descriptor.isConfigured()) {
+            invalidate();
+            return;
+        }
+        if (!refreshing.compareAndSet(false, true)) {
+            return;
+        }
+        final String settings = currentSettings();
+        Snapshot current = snapshot;
+        final TestSpecificationCatalog previous = current != null && current.settings.equals(settings) ? current.catalog : null;
+
+        ListenableFuture<TestSpecificationCatalog> catalog;
+        try {
+            catalog = descriptor.getXLTestServer().getTestSpecificationCatalogAsync(previous);
+        } catch (RuntimeException e) {
+            refreshing.set(false);
+            LOG.warn("Unable to refresh test specifications from XL TestView: {}", e.toString());
+            return;
+        }
+        Futures.addCallback(catalog, new FutureCallback<TestSpecificationCatalog>() {
+            @Override
+            public void onSuccess(TestSpecificationCatalog result) {
+                update(settings, previous, result);
+                refreshing.set(false);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                refreshing.set(false);
+                LOG.warn("Unable to refresh test specifications from XL TestView: {}", t.toString());
+            }
+        });
+    }
+
+    private synchronized void update(String settings, TestSpecificationCatalog previous, TestSpecificationCatalog catalog) {
+        if (catalog != previous) {
+            LOG.debug("Loaded {} test specifications from {}", catalog.size(), descriptor.getServerUrl());
+        }
+        snapshot = new Snapshot(settings, catalog, null);
+    }
+
+    public void invalidate() {
+        snapshot = null;
+    }
+
+    private String currentSettings() {
+        return Objects.toStringHelper("settings")
+                .add("serverUrl", descriptor.getServerUrl())
+                .add("proxyUrl", descriptor.getProxyUrl())
+                .add("credentialsId", descriptor.getCredentialsId())
+                .toString();
+    }
+
+    private static final class Snapshot {
+        private final String settings;
+        private final TestSpecificationCatalog catalog;
+        private final TestSpecificationIndex index;
+
+        Snapshot(String settings, TestSpecificationCatalog catalog, TestSpecificationIndex index) {
+            this.settings = settings;
+            this.catalog = catalog;
+            this.index = index;
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package com.xebialabs.xlt.ci;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import hudson.Extension;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.TaskListener;
+import jenkins.model.Jenkins;
+
+/**
+ * Warms the {@link TestSpecificationCatalogCache} when Jenkins starts and revalidates it periodically.
+ */
+@Extension
+public class TestSpecificationCatalogRefresher extends AsyncPeriodicWork {
+
+    private static final long RECURRENCE_PERIOD = TimeUnit.MINUTES.toMillis(
+            Long.getLong(TestSpecificationCatalogRefresher.class.getName() + ".minutes", 15));
+
+    public TestSpecificationCatalogRefresher() {
+        super("XL TestView test specification refresh");
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return RECURRENCE_PERIOD;
+    }
+
+    @Override
+    protected void execute(TaskListener listener) throws IOException, InterruptedException {
+        XLTestView.XLTestDescriptor descriptor = getDescriptor();
+        if (descriptor != null && descriptor.isConfigured()) {
+            descriptor.getCatalogCache().refresh();
+            listener.getLogger().printf("Refreshed %d test specifications%n", descriptor.getCatalogCache().get().size());
+        }
+    }
+
+    @Initializer(after = InitMilestone.JOB_LOADED)
+    public static void warmUp() {
+        XLTestView.XLTestDescriptor descriptor = getDescriptor();
+        if (descriptor != null && descriptor.isConfigured()) {
+            descriptor.getCatalogCache().refreshAsync();
+        }
+    }
+
+    private static XLTestView.XLTestDescriptor getDescriptor() {
+        Jenkins jenkins = Jenkins.getInstance();
+        return jenkins == null ? null : jenkins.getDescriptorByType(XLTestView.XLTestDescriptor.class);
+    }
+}
@@ -1,20 +1,31 @@
 package com.xebialabs.xlt.ci;
 
+import java.util.Collections;
 import java.util.Map;
+import org.kohsuke.stapler.AncestorInPath;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.interceptor.RequirePOST;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import com.google.common.base.Objects;
+import com.google.common.base.Strings;
 import com.google.inject.Inject;
 
-import com.xebialabs.xlt.ci.server.XLTestServer;
-import com.xebialabs.xlt.ci.server.XLTestServerFactory;
+import com.xebialabs.xlt.ci.server.CompressionPolicy;
+import com.xebialabs.xlt.ci.server.XmlCompaction;
 import com.xebialabs.xlt.ci.server.domain.TestSpecification;
+import com.xebialabs.xlt.ci.server.domain.TestSpecificationCatalog;
 
 import hudson.Extension;
 import hudson.model.AbstractDescribableImpl;
+import hudson.model.AutoCompletionCandidates;
 import hudson.model.Descriptor;
+import hudson.model.Item;
+import hudson.util.FormValidation;
 import hudson.util.ListBoxModel;
+import jenkins.model.Jenkins;
 
 import static java.lang.String.format;
 
@@ -26,6 +37,14 @@ public class TestSpecificationDescribable extends AbstractDescribableImpl<TestSp
     private final String includes;
     private final String excludes;
     private final Boolean makeUnstable;
+    private String projectId;
+    private Integer compressionLevel;
+    private Boolean storeCompressedContent;
+    private Integer maxOutputLength;
+    private Integer maxStackTraceFrames;
+    private Boolean deduplicateStackTraces;
+    // only narrows down the test specification list in the configuration page
+    private transient String filter;
 
     // Attention: This constructor is *NOT* used when loading the config.xml, so previously stored TestSpecificationDescribable's have
     // their values injected via some other way. :'(
@@ -51,6 +70,98 @@ public class TestSpecificationDescribable extends AbstractDescribableImpl<TestSp
         return includes;
     }
 
+    /**
+     * Returns the project of the test specification; configurations saved before projects could be selected derive
+     * it from the test specification catalog.
+     */
+    public String getProjectId() {
+        if (projectId == null && testSpecificationId != null) {
+            return ((TestSpecificationDescriptor) getDescriptor()).findProjectId(testSpecificationId);
+        }
+        return projectId;
+    }
+
+    @DataBoundSetter
+    public void setProjectId(String projectId) {
+        this.projectId = Strings.emptyToNull(projectId);
+    }
+
+    public String getFilter() {
+        return filter;
+    }
+
+    @DataBoundSetter
+    public void setFilter(String filter) {
+        this.filter = filter;
+    }
+
+    /**
+     * @return deflate level for text and other compressible files, from 0 (store) to 9 (smallest)
+     */
+    public int getCompressionLevel() {
+        return compressionLevel != null ? compressionLevel : CompressionPolicy.DEFAULT_LEVEL;
+    }
+
+    @DataBoundSetter
+    public void setCompressionLevel(Integer compressionLevel) {
+        this.compressionLevel = compressionLevel;
+    }
+
+    /**
+     * @return whether screenshots, videos and archives are stored instead of deflated again
+     */
+    public boolean getStoreCompressedContent() {
+        return storeCompressedContent == null || storeCompressedContent;
+    }
+
+    @DataBoundSetter
+    public void setStoreCompressedContent(Boolean storeCompressedContent) {
+        this.storeCompressedContent = storeCompressedContent;
+    }
+
+    public CompressionPolicy getCompressionPolicy() {
+        return new CompressionPolicy(getCompressionLevel(), getStoreCompressedContent());
+    }
+
+    /**
+     * @return characters of {@code system-out} and {@code system-err} to keep per element, 0 to drop them, or
+     * {@code null} to keep all
+     */
+    public Integer getMaxOutputLength() {
+        return maxOutputLength;
+    }
+
+    @DataBoundSetter
+    public void setMaxOutputLength(Integer maxOutputLength) {
+        this.maxOutputLength = maxOutputLength != null && maxOutputLength >= 0 ? maxOutputLength : null;
+    }
+
+    /**
+     * @return stack frames to keep per exception, or {@code null} to keep all
+     */
+    public Integer getMaxStackTraceFrames() {
+        return maxStackTraceFrames;
+    }
+
+    @DataBoundSetter
+    public void setMaxStackTraceFrames(Integer maxStackTraceFrames) {
+        this.maxStackTraceFrames = maxStackTraceFrames != null && maxStackTraceFrames >= 0 ? maxStackTraceFrames : null;
+    }
+
+    public boolean getDeduplicateStackTraces() {
+        return deduplicateStackTraces != null && deduplicateStackTraces;
+    }
+
+    @DataBoundSetter
+    public void setDeduplicateStackTraces(Boolean deduplicateStackTraces) {
+        this.deduplicateStackTraces = deduplicateStackTraces;
+    }
+
+    public XmlCompaction getXmlCompaction() {
+        return new XmlCompaction(maxOutputLength != null ? maxOutputLength : XmlCompaction.KEEP,
+                maxStackTraceFrames != null ? maxStackTraceFrames : XmlCompaction.KEEP, getDeduplicateStackTraces());
+    }
+
     // Previous jenkins plugin would affect build stability by default. So if value is not known, keep doing that.
     public boolean getMakeUnstable() {
         return makeUnstable == null || makeUnstable;
@@ -63,6 +174,12 @@ public class TestSpecificationDescribable extends AbstractDescribableImpl<TestSp
                 .add("includes", includes)
                 .add("excludes", excludes)
                 .add("makeUnstable", makeUnstable)
+                .add("projectId", projectId)
+                .add("compressionLevel", compressionLevel)
+                .add("storeCompressedContent", storeCompressedContent)
+                .add("maxOutputLength", maxOutputLength)
+                .add("maxStackTraceFrames", maxStackTraceFrames)
+                .add("deduplicateStackTraces", deduplicateStackTraces)
                 .toString();
     }
 
@@ -75,50 +192,102 @@ public class TestSpecificationDescribable extends AbstractDescribableImpl<TestSp
         @Inject
         private XLTestView.XLTestDescriptor xlTestDescriptor;
 
+        static final int MAX_OPTIONS = 100;
+        static final int MAX_SUGGESTIONS = 20;
+
         @Override
         public String getDisplayName() {
             return "TestSpecification";
         }
 
-        public ListBoxModel doFillTestSpecificationIdItems() {
+        public ListBoxModel doFillProjectIdItems() {
+            ListBoxModel items = new ListBoxModel();
+            items.add("All projects", "");
+            if (!xlTestDescriptor.isConfigured()) {
+                return items;
+            }
+            for (Map.Entry<String, String> project : xlTestDescriptor.getCatalogCache().getIndex().getProjects().entrySet()) {
+                items.add(project.getValue(), project.getKey());
+            }
+            return items;
+        }
+
+        /**
+         * Lists the test specifications of the selected project, or the best matches of the filter. Without a project
+         * only the first {@link #MAX_OPTIONS} are sent, so the page stays small however large the catalog is; the
+         * test specification that is configured already is always listed, so saving the page keeps it.
+         */
+        public ListBoxModel doFillTestSpecificationIdItems(@QueryParameter String projectId, @QueryParameter String filter,
+                                                           @QueryParameter String configuredTestSpecificationId) {
             // no use if no url/creds
-            if (xlTestDescriptor.getServerUrl().isEmpty() || xlTestDescriptor.getCredentialsId().isEmpty()) {
-                return new ListBoxModel();
+            if (!xlTestDescriptor.isConfigured()) {
+                return TestSpecificationIndex.EMPTY.toListBoxModel(Collections.<TestSpecificationIndex.Entry>emptyList(),
+                        configuredTestSpecificationId);
             }
 
-            XLTestServer xlTest = XLTestServerFactory.newInstance(
-                    xlTestDescriptor.getServerUrl(),
-                    xlTestDescriptor.getProxyUrl(),
-                    XLTestView.lookupSystemCredentials(xlTestDescriptor.getCredentialsId()));
+            TestSpecificationIndex index = xlTestDescriptor.getCatalogCache().getIndex();
+            if (Strings.isNullOrEmpty(filter) && !Strings.isNullOrEmpty(projectId)) {
+                return index.toListBoxModel(index.getTestSpecifications(projectId), configuredTestSpecificationId);
+            }
+            return index.toListBoxModel(index.search(filter, projectId, MAX_OPTIONS), configuredTestSpecificationId);
+        }
 
-            Map<String, TestSpecification> ts = xlTest.getTestSpecifications();
-            return getSpecificationOptions(ts);
+        public AutoCompletionCandidates doAutoCompleteFilter(@QueryParameter String value) {
+            AutoCompletionCandidates candidates = new AutoCompletionCandidates();
+            if (!xlTestDescriptor.isConfigured()) {
+                return candidates;
+            }
+            for (TestSpecificationIndex.Entry entry : xlTestDescriptor.getCatalogCache().getIndex().search(value, null, MAX_SUGGESTIONS)) {
+                candidates.add(entry.getSuggestion());
+            }
+            return candidates;
         }
 
-        public static ListBoxModel getSpecificationOptions(Map<String, TestSpecification> ts) {
+        public ListBoxModel doFillCompressionLevelItems() {
             ListBoxModel items = new ListBoxModel();
-            for (Map.Entry<String, TestSpecification> t : ts.entrySet()) {
-                TestSpecification testSpecification = t.getValue();
-                if (!isSetOfTestSpecifications(testSpecification)) {
-                    items.add(
-                            format("%s > %s (%s, %s) - %s",
-                                    testSpecification.getProject().getTitle(),
-                                    testSpecification.getTitle(),
-                                    testSpecification.getTestToolName(),
-                                    testSpecification.getTestToolDefaultSearchPattern(),
-                                    testSpecification.getQualificationDescription()
-                            ),
-                            t.getKey()
-                    );
-                }
+            items.add("0 - store only", "0");
+            for (int level = 1; level <= 9; level++) {
+                String label = level == 1 ? " - fastest" : level == CompressionPolicy.DEFAULT_LEVEL ? " - default" : level == 9 ? " - smallest" : "";
+                items.add(level + label, String.valueOf(level));
             }
-            JellyUtil.sortListBoxModel(items);
             return items;
         }
 
-        static private boolean isSetOfTestSpecifications(TestSpecification testSpecification) {
-            // TODO: this should be a check on the type system
-            return "xlt.TestSpecificationSet".equals(testSpecification.getType());
+        String findProjectId(String testSpecificationId) {
+            if (testSpecificationId == null || !xlTestDescriptor.isConfigured()) {
+                return null;
+            }
+            try {
+                return xlTestDescriptor.getCatalogCache().getIndex().getProjectId(testSpecificationId);
+            } catch (RuntimeException e) {
+                LOG.debug("Unable to determine project of test specification {}", testSpecificationId, e);
+                return null;
+            }
+        }
+
+        /**
+         * Downloads the catalog while the user waits, so only those who may configure the job can ask for it.
+         */
+        @RequirePOST
+        public FormValidation doRefreshTestSpecifications(@AncestorInPath Item item) {
+            if (item == null) {
+                Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+            } else {
+                item.checkPermission(Item.CONFIGURE);
+            }
+            if (!xlTestDescriptor.isConfigured()) {
+                return FormValidation.error("XL TestView is not configured");
+            }
+            try {
+                TestSpecificationCatalog catalog = xlTestDescriptor.getCatalogCache().refresh();
+                return FormValidation.ok(format("Loaded %d test specifications. Reload the page to update the list.", catalog.size()));
+            } catch (RuntimeException e) {
+                return FormValidation.error("Client error : " + e.getMessage());
+            }
+        }
+
+        public static ListBoxModel getSpecificationOptions(Map<String, TestSpecification> ts) {
+            return new TestSpecificationIndex(ts).toListBoxModel();
         }
     }
 }
@@ -0,0 +1,266 @@
+package com.xebialabs.xlt.ci;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import com.xebialabs.xlt.ci.server.domain.Project;
+import com.xebialabs.xlt.ci.server.domain.Qualification;
+import com.xebialabs.xlt.ci.server.domain.TestSpecification;
+
+import hudson.util.ListBoxModel;
+
+import static com.google.common.base.Strings.nullToEmpty;
+
+/**
+ * In-memory index over the test specifications of a catalog, used for type-ahead search and the
+ * project &gt; test specification drill-down in the job configuration.
+ * <p/>
+ * Labels and search tokens are computed once per catalog. Entries are kept in label order, so a search only has to
+ * walk the matching postings until it has found enough results.
+ */
+public class TestSpecificationIndex {
+
+    public static final TestSpecificationIndex EMPTY = new TestSpecificationIndex(Collections.<String, TestSpecification>emptyMap());
+
+    private static final Comparator<Entry> BY_LABEL = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry e1, Entry e2) {
+            return e1.label.compareToIgnoreCase(e2.label);
+        }
+    };
+
+    private final Entry[] entries;
+    private final Map<String, Integer> ordinals = new HashMap<String, Integer>();
+    private final TreeMap<String, int[]> postings = new TreeMap<String, int[]>();
+    private final Map<String, List<Entry>> byProject = new HashMap<String, List<Entry>>();
+    private final Map<String, String> projects = new LinkedHashMap<String, String>();
+
+    public TestSpecificationIndex(Map<String, TestSpecification> testSpecifications) {
+        List<Entry> list = new ArrayList<Entry>(testSpecifications.size());
+        for (Map.Entry<String, TestSpecification> t : testSpecifications.entrySet()) {
+            if (!isSetOfTestSpecifications(t.getValue())) {
+                list.add(new Entry(t.getKey(), t.getValue()));
+            }
+        }
+        Collections.sort(list, BY_LABEL);
+        entries = list.toArray(new Entry[list.size()]);
+
+        Map<String, List<Integer>> tokens = new HashMap<String, List<Integer>>();
+        SortedMap<String, String> projectsByTitle = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+        for (int i = 0; i < entries.length; i++) {
+            Entry entry = entries[i];
+            ordinals.put(entry.id, i);
+            for (String token : tokenize(entry.searchText)) {
+                List<Integer> posting = tokens.get(token);
+                if (posting == null) {
+                    posting = new ArrayList<Integer>();
+                    tokens.put(token, posting);
+                }
+                // entries are visited in order, so a posting can only end with the current ordinal
+                if (posting.isEmpty() || posting.get(posting.size() - 1) != i) {
+                    posting.add(i);
+                }
+            }
+            List<Entry> projectEntries = byProject.get(entry.projectId);
+            if (projectEntries == null) {
+                projectEntries = new ArrayList<Entry>();
+                byProject.put(entry.projectId, projectEntries);
+                projectsByTitle.put(entry.projectTitle + '\u0000' + entry.projectId, entry.projectId);
+            }
+            projectEntries.add(entry);
+        }
+        for (Map.Entry<String, List<Integer>> token : tokens.entrySet()) {
+            List<Integer> posting = token.getValue();
+            int[] ordinalArray = new int[posting.size()];
+            for (int i = 0; i < ordinalArray.length; i++) {
+                ordinalArray[i] = posting.get(i);
+            }
+            postings.put(token.getKey(), ordinalArray);
+        }
+        for (Map.Entry<String, String> project : projectsByTitle.entrySet()) {
+            String projectId = project.getValue();
+            projects.put(projectId, byProject.get(projectId).get(0).projectTitle);
+        }
+    }
+
+    public int size() {
+        return entries.length;
+    }
+
+    /**
+     * Returns the first {@code limit} entries (in label order) for which every word of the query is a prefix of a
+     * word in the project title, test specification title, test tool or qualification.
+     *
+     * @param projectId only return entries of this project, or all projects when empty
+     */
+    public List<Entry> search(String query, String projectId, int limit) {
+        List<String> queryTokens = tokenize(query);
+        boolean anyProject = projectId == null || projectId.isEmpty();
+
+        List<Entry> result = new ArrayList<Entry>(Math.min(limit, entries.length));
+        if (queryTokens.isEmpty()) {
+            for (Entry entry : anyProject ? Arrays.asList(entries) : getTestSpecifications(projectId)) {
+                if (result.size() >= limit) {
+                    break;
+                }
+                result.add(entry);
+            }
+            return result;
+        }
+
+        BitSet matches = null;
+        for (String token : queryTokens) {
+            BitSet tokenMatches = new BitSet(entries.length);
+            for (int[] posting : postings.subMap(token, token + Character.MAX_VALUE).values()) {
+                for (int ordinal : posting) {
+                    tokenMatches.set(ordinal);
+                }
+            }
+            if (matches == null) {
+                matches = tokenMatches;
+            } else {
+                matches.and(tokenMatches);
+            }
+            if (matches.isEmpty()) {
+                return result;
+            }
+        }
+        for (int i = matches.nextSetBit(0); i >= 0 && result.size() < limit; i = matches.nextSetBit(i + 1)) {
+            if (anyProject || entries[i].projectId.equals(projectId)) {
+                result.add(entries[i]);
+            }
+        }
+        return result;
+    }
+
+    public List<Entry> getTestSpecifications(String projectId) {
+        List<Entry> projectEntries = byProject.get(projectId);
+        return projectEntries == null ? Collections.<Entry>emptyList() : Collections.unmodifiableList(projectEntries);
+    }
+
+    /**
+     * @return project id to project title, ordered by title
+     */
+    public Map<String, String> getProjects() {
+        return Collections.unmodifiableMap(projects);
+    }
+
+    public String getProjectId(String testSpecificationId) {
+        Integer ordinal = testSpecificationId == null ? null : ordinals.get(testSpecificationId);
+        return ordinal == null ? null : entries[ordinal].projectId;
+    }
+
+    public ListBoxModel toListBoxModel(List<Entry> selection) {
+        ListBoxModel items = new ListBoxModel(selection.size());
+        for (Entry entry : selection) {
+            items.add(entry.label, entry.id);
+        }
+        return items;
+    }
+
+    /**
+     * Like {@link #toListBoxModel(List)}, but also lists the test specification that is configured already when the
+     * selection leaves it out, so the browser does not replace it with the first option on the next save.
+     *
+     * @param configuredId the configured test specification, or {@code null} for none
+     */
+    public ListBoxModel toListBoxModel(List<Entry> selection, String configuredId) {
+        ListBoxModel items = toListBoxModel(selection);
+        if (configuredId == null || configuredId.isEmpty()) {
+            return items;
+        }
+        for (Entry entry : selection) {
+            if (entry.id.equals(configuredId)) {
+                return items;
+            }
+        }
+        Integer ordinal = ordinals.get(configuredId);
+        // it may have been removed from XL TestView since
+        items.add(ordinal == null ? configuredId : entries[ordinal].label, configuredId);
+        return items;
+    }
+
+    public ListBoxModel toListBoxModel() {
+        return toListBoxModel(Arrays.asList(entries));
+    }
+
+    static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<String>();
+        if (text == null) {
+            return tokens;
+        }
+        String lower = text.toLowerCase(Locale.ENGLISH);
+        int start = -1;
+        for (int i = 0; i <= lower.length(); i++) {
+            boolean wordChar = i < lower.length() && Character.isLetterOrDigit(lower.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                tokens.add(lower.substring(start, i));
+                start = -1;
+            }
+        }
+        return tokens;
+    }
+
+    static boolean isSetOfTestSpecifications(TestSpecification testSpecification) {
+        // TODO: this should be a check on the type system
+        return "xlt.TestSpecificationSet".equals(testSpecification.getType());
+    }
+
+    public static final class Entry {
+        private final String id;
+        private final String label;
+        private final String suggestion;
+        private final String projectId;
+        private final String projectTitle;
+        private final String searchText;
+
+        Entry(String id, TestSpecification testSpecification) {
+            Project project = testSpecification.getProject();
+            Qualification qualification = testSpecification.getQualification();
+            this.id = id;
+            this.projectId = project != null && project.getId() != null ? project.getId() : "";
+            this.projectTitle = project != null && project.getTitle() != null ? project.getTitle() : "";
+            this.label = projectTitle + " > " + testSpecification.getTitle()
+                    + " (" + testSpecification.getTestToolName() + ", " + testSpecification.getTestToolDefaultSearchPattern() + ") - "
+                    + testSpecification.getQualificationDescription();
+            String testToolName = testSpecification.getTestTool() != null ? nullToEmpty(testSpecification.getTestToolName()) : "";
+            // only words that are searched, so a picked suggestion finds its entry again
+            this.suggestion = projectTitle + " > " + nullToEmpty(testSpecification.getTitle())
+                    + (testToolName.isEmpty() ? "" : " (" + testToolName + ")");
+            this.searchText = projectTitle + ' ' + nullToEmpty(testSpecification.getTitle()) + ' '
+                    + testToolName + ' '
+                    + (qualification != null ? nullToEmpty(qualification.getName()) + ' ' + nullToEmpty(qualification.getDescription()) : "");
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+
+        /**
+         * @return the text to suggest while typing a filter
+         */
+        public String getSuggestion() {
+            return suggestion;
+        }
+
+        public String getProjectId() {
+            return projectId;
+        }
+    }
+}
@@ -0,0 +1,277 @@
+package com.xebialabs.xlt.ci;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import com.google.common.base.Strings;
+
+import com.xebialabs.xlt.ci.server.CompressionPolicy;
+import com.xebialabs.xlt.ci.server.ParallelZipArchiverFactory;
+import com.xebialabs.xlt.ci.server.SpooledArchive;
+import com.xebialabs.xlt.ci.server.TestRunArchive;
+import com.xebialabs.xlt.ci.server.WorkspaceArchive;
+import com.xebialabs.xlt.ci.server.XmlCompaction;
+
+import hudson.FilePath;
+import hudson.util.DirScanner;
+
+import static java.lang.String.format;
+
+/**
+ * Plans the archives of all test specifications of a build.
+ * <p/>
+ * The workspace is walked once for all include patterns. Test specifications with the same include and exclude
+ * patterns, compression policy and XML compaction share one archive, which is spooled to a temporary file and sent
+ * once per test specification. When failed uploads are to be retried, every archive is spooled, so sending it again
+ * does not collect or compress the files again.
+ */
+final class UploadPlan {
+
+    private final List<Group> groups = new ArrayList<Group>();
+    private final Map<TestSpecificationDescribable, Group> groupOf = new IdentityHashMap<TestSpecificationDescribable, Group>();
+    private final boolean spoolAll;
+    private long scanMillis;
+
+    /**
+     * @param archiverThreads number of threads zipping each archive, or 0 for one per core
+     * @param spoolAll        whether to spool archives that are sent only once too
+     */
+    UploadPlan(List<TestSpecificationDescribable> testSpecifications, int archiverThreads, boolean spoolAll) {
+        this(testSpecifications, Collections.<String, Long>emptyMap(), archiverThreads, spoolAll);
+    }
+
+    /**
+     * @param modifiedSince per test specification id, only collect files modified at or after this time of the node
+     *                      holding the workspace, e.g. when some test specifications received more parts of a test run
+     *                      than others
+     */
+    UploadPlan(List<TestSpecificationDescribable> testSpecifications, Map<String, Long> modifiedSince, int archiverThreads, boolean spoolAll) {
+        this.spoolAll = spoolAll;
+        Map<String, Group> byPatterns = new LinkedHashMap<String, Group>();
+        for (TestSpecificationDescribable ts : testSpecifications) {
+            String includes = Strings.nullToEmpty(ts.getIncludes()).trim();
+            String excludes = Strings.nullToEmpty(ts.getExcludes()).trim();
+            CompressionPolicy policy = ts.getCompressionPolicy();
+            XmlCompaction compaction = ts.getXmlCompaction();
+            Long since = modifiedSince.get(ts.getTestSpecificationId());
+            String key = includes + '\u0000' + excludes + '\u0000' + policy + '\u0000' + compaction + '\u0000' + since;
+            Group group = byPatterns.get(key);
+            if (group == null) {
+                group = new Group(includes, excludes, since == null ? Long.MIN_VALUE : since,
+                        new ParallelZipArchiverFactory(archiverThreads, policy, compaction));
+                byPatterns.put(key, group);
+                groups.add(group);
+            }
+            group.size++;
+            groupOf.put(ts, group);
+        }
+    }
+
+    /**
+     * Collects the files of all test specifications in one pass over the workspace. When this fails, every test
+     * specification falls back to scanning for itself.
+     */
+    void scan(FilePath workspace, PrintStream logger) throws InterruptedException {
+        scan(workspace, Long.MIN_VALUE, logger);
+    }
+
+    /**
+     * Like {@link #scan(FilePath, PrintStream)}, but only collects files modified at or after {@code modifiedSince},
+     * a time of the node holding the workspace. Falling back to scanning per test specification then collects all
+     * files.
+     */
+    void scan(FilePath workspace, long modifiedSince, PrintStream logger) throws InterruptedException {
+        scan(workspace, modifiedSince, Long.MAX_VALUE, logger);
+    }
+
+    /**
+     * Like {@link #scan(FilePath, long, PrintStream)}, but only collects files modified before {@code modifiedBefore}.
+     */
+    void scan(FilePath workspace, long modifiedSince, long modifiedBefore, PrintStream logger) throws InterruptedException {
+        // one walk per time window, which is one walk unless test specifications were given windows of their own
+        Map<Long, List<Group>> bySince = new LinkedHashMap<Long, List<Group>>();
+        for (Group group : groups) {
+            long since = Math.max(modifiedSince, group.modifiedSince);
+            List<Group> window = bySince.get(since);
+            if (window == null) {
+                window = new ArrayList<Group>();
+                bySince.put(since, window);
+            }
+            window.add(group);
+        }
+        logger.printf("[XL TestView] Collecting files from '%s' for %d distinct include/exclude patterns%n", workspace.getRemote(), groups.size());
+        long started = System.currentTimeMillis();
+        try {
+            Map<Group, List<String>> found = new IdentityHashMap<Group, List<String>>();
+            for (Map.Entry<Long, List<Group>> window : bySince.entrySet()) {
+                List<String> includes = new ArrayList<String>();
+                List<String> excludes = new ArrayList<String>();
+                for (Group group : window.getValue()) {
+                    includes.add(group.includes);
+                    excludes.add(group.excludes);
+                }
+                List<List<String>> files = workspace.act(new SharedWorkspaceScan(includes, excludes, window.getKey(), modifiedBefore));
+                for (int i = 0; i < window.getValue().size(); i++) {
+                    found.put(window.getValue().get(i), files.get(i));
+                }
+            }
+            for (Group group : groups) {
+                group.files = found.get(group);
+                logger.printf("[XL TestView] Found %d files using include pattern: '%s' and exclude pattern '%s'%n",
+                        group.files.size(), group.includes, group.excludes);
+            }
+        } catch (IOException e) {
+            logger.printf("[XL TestView] Unable to scan the workspace once for all test specifications: %s%n", e.getMessage());
+        } finally {
+            scanMillis = System.currentTimeMillis() - started;
+        }
+    }
+
+    /**
+     * @return how long collecting the files took, or 0 when the workspace was not scanned
+     */
+    long getScanMillis() {
+        return scanMillis;
+    }
+
+    /**
+     * Checks the files of the test specification before anything is zipped or sent: that there are any, and that some
+     * of them look like results of its test tool. Skipped when the workspace could not be scanned; the format is only
+     * checked for known test tools.
+     *
+     * @throws IllegalStateException when XL TestView would not be able to import the files
+     */
+    void check(TestSpecificationDescribable ts, String testToolName, FilePath workspace, PrintStream logger)
+            throws IOException, InterruptedException {
+        Group group = groupOf.get(ts);
+        List<String> files = group.files;
+        if (files == null) {
+            return;
+        }
+        if (files.isEmpty()) {
+            throw new IllegalStateException(format("The include pattern '%s' and exclude pattern '%s' match no files in '%s'",
+                    group.includes, group.excludes, workspace.getRemote()));
+        }
+        ResultFormat resultFormat = ResultFormat.of(testToolName);
+        if (resultFormat == null) {
+            return;
+        }
+        PreflightCheck.Result result = group.check(resultFormat, workspace);
+        logger.printf("[XL TestView] %s%n", result.describe());
+        if (!result.isImportable()) {
+            throw new IllegalStateException(result.describeProblem());
+        }
+    }
+
+    /**
+     * Returns the archive to send for the test specification. Safe to call from concurrent uploads.
+     */
+    TestRunArchive getArchive(TestSpecificationDescribable ts, FilePath workspace) throws IOException, InterruptedException {
+        return groupOf.get(ts).getArchive(workspace, spoolAll);
+    }
+
+    /**
+     * Returns the archive for the test specification as a file on the master, whatever the plan would send otherwise.
+     * It is deleted when the plan is closed.
+     */
+    SpooledArchive spool(TestSpecificationDescribable ts, FilePath workspace) throws IOException, InterruptedException {
+        return groupOf.get(ts).spool(workspace);
+    }
+
+    /**
+     * Returns what to zip for the test specification where the workspace lives, for uploads that do not go through
+     * the master and so do not share spooled archives.
+     */
+    DirScanner getScanner(TestSpecificationDescribable ts) {
+        return groupOf.get(ts).getScanner();
+    }
+
+    ParallelZipArchiverFactory getArchiver(TestSpecificationDescribable ts) {
+        return groupOf.get(ts).archiver;
+    }
+
+    /**
+     * @return whether the workspace was scanned and no files were found for the test specification
+     */
+    boolean isEmpty(TestSpecificationDescribable ts) {
+        List<String> files = groupOf.get(ts).files;
+        return files != null && files.isEmpty();
+    }
+
+    /**
+     * @return the number of files collected for the test specification, or -1 when the workspace was not scanned
+     */
+    int countFiles(TestSpecificationDescribable ts) {
+        List<String> files = groupOf.get(ts).files;
+        return files == null ? -1 : files.size();
+    }
+
+    /**
+     * Deletes spooled archives.
+     */
+    void close() {
+        for (Group group : groups) {
+            group.close();
+        }
+    }
+
+    private static final class Group {
+        private final String includes;
+        private final String excludes;
+        private final long modifiedSince;
+        private int size;
+        private volatile List<String> files;
+        private SpooledArchive spooled;
+        private final Map<ResultFormat, PreflightCheck.Result> checks = new EnumMap<ResultFormat, PreflightCheck.Result>(ResultFormat.class);
+
+        private final ParallelZipArchiverFactory archiver;
+
+        Group(String includes, String excludes, long modifiedSince, ParallelZipArchiverFactory archiver) {
+            this.includes = includes;
+            this.excludes = excludes;
+            this.modifiedSince = modifiedSince;
+            this.archiver = archiver;
+        }
+
+        DirScanner getScanner() {
+            return files == null ? new DirScanner.Glob(includes, excludes) : new FileListScanner(files);
+        }
+
+        synchronized TestRunArchive getArchive(FilePath workspace, boolean spoolAll) throws IOException, InterruptedException {
+            DirScanner scanner = getScanner();
+            if (!spoolAll && (files == null || size == 1)) {
+                return new WorkspaceArchive(workspace, scanner, archiver);
+            }
+            return spool(workspace);
+        }
+
+        synchronized SpooledArchive spool(FilePath workspace) throws IOException, InterruptedException {
+            if (spooled == null) {
+                spooled = SpooledArchive.spool(workspace, getScanner(), archiver);
+            }
+            return spooled;
+        }
+
+        synchronized PreflightCheck.Result check(ResultFormat resultFormat, FilePath workspace) throws IOException, InterruptedException {
+            PreflightCheck.Result result = checks.get(resultFormat);
+            if (result == null) {
+                result = workspace.act(new PreflightCheck(files, resultFormat));
+                checks.put(resultFormat, result);
+            }
+            return result;
+        }
+
+        synchronized void close() {
+            if (spooled != null) {
+                spooled.delete();
+                spooled = null;
+            }
+        }
+    }
+}
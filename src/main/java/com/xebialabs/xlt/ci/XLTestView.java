@@ -22,36 +22,66 @@
  */
 package com.xebialabs.xlt.ci;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.io.Serializable;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import org.kohsuke.stapler.AncestorInPath;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import com.cloudbees.plugins.credentials.CredentialsMatchers;
 import com.cloudbees.plugins.credentials.common.StandardUsernameListBoxModel;
 import com.cloudbees.plugins.credentials.common.StandardUsernamePasswordCredentials;
 import com.cloudbees.plugins.credentials.domains.SchemeRequirement;
-import com.github.zafarkhaja.semver.Version;
+import com.google.common.base.Function;
 import com.google.common.base.Objects;
+import com.google.common.base.Predicate;
+import com.google.common.base.Predicates;
 import com.google.common.base.Strings;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
+import com.xebialabs.xlt.ci.server.CircuitBreaker;
+import com.xebialabs.xlt.ci.server.Deadline;
+import com.xebialabs.xlt.ci.server.MatrixArchive;
+import com.xebialabs.xlt.ci.server.ServerCapabilities;
+import com.xebialabs.xlt.ci.server.ServerCluster;
+import com.xebialabs.xlt.ci.server.SpooledArchive;
+import com.xebialabs.xlt.ci.server.TeeArchive;
+import com.xebialabs.xlt.ci.server.TestRunArchive;
 import com.xebialabs.xlt.ci.server.XLTestServer;
 import com.xebialabs.xlt.ci.server.XLTestServerFactory;
-import com.xebialabs.xlt.ci.server.domain.ServerInfo;
+import com.xebialabs.xlt.ci.server.XLTestServerRegistry;
+import com.xebialabs.xlt.ci.server.domain.TestSpecification;
+import com.xebialabs.xlt.ci.server.domain.TestSpecificationCatalog;
 
 import hudson.Extension;
 import hudson.FilePath;
 import hudson.Launcher;
+import hudson.matrix.MatrixAggregatable;
+import hudson.matrix.MatrixAggregator;
+import hudson.matrix.MatrixBuild;
+import hudson.matrix.MatrixRun;
 import hudson.model.*;
 import hudson.security.ACL;
 import hudson.tasks.BuildStepDescriptor;
@@ -61,22 +91,34 @@ import hudson.tasks.Publisher;
 import hudson.util.FormValidation;
 import hudson.util.ListBoxModel;
 import jenkins.model.Jenkins;
+import jenkins.util.Timer;
 import net.sf.json.JSONObject;
 
 import static com.cloudbees.plugins.credentials.CredentialsProvider.lookupCredentials;
+import static java.lang.String.format;
 import static hudson.util.FormValidation.error;
 import static hudson.util.FormValidation.ok;
 
 // TODO: should use Recorder if we want to fail the build based upon a Qualification see ArtifactArchiver
-public class XLTestView extends Notifier implements Serializable {
+public class XLTestView extends Notifier implements MatrixAggregatable, Serializable {
 
     private final static Logger LOG = LoggerFactory.getLogger(XLTestView.class);
 
     public static final SchemeRequirement HTTP_SCHEME = new SchemeRequirement("http");
     public static final SchemeRequirement HTTPS_SCHEME = new SchemeRequirement("https");
 
+    public static final int DEFAULT_UPLOAD_DEADLINE_MINUTES = 60;
+
     public List<TestSpecificationDescribable> testSpecifications = Collections.emptyList();
 
+    private Integer maxConcurrentUploads;
+    private Boolean modifiedFilesOnly;
+    private Boolean uploadFromAgent;
+    private Boolean aggregateMatrix;
+    private Integer uploadDeadlineMinutes;
+    private Boolean retryUploads;
+    private Boolean deliverAsynchronously;
+
     // constructor arguments must match config.jelly fields
     @DataBoundConstructor
     public XLTestView(List<TestSpecificationDescribable> testSpecifications) {
@@ -85,9 +127,88 @@ public class XLTestView extends Notifier implements Serializable {
         this.testSpecifications = testSpecifications;
     }
 
+    public int getMaxConcurrentUploads() {
+        return maxConcurrentUploads != null && maxConcurrentUploads > 0 ? maxConcurrentUploads : 1;
+    }
+
+    @DataBoundSetter
+    public void setMaxConcurrentUploads(Integer maxConcurrentUploads) {
+        this.maxConcurrentUploads = maxConcurrentUploads;
+    }
+
+    public boolean getModifiedFilesOnly() {
+        return modifiedFilesOnly != null && modifiedFilesOnly;
+    }
+
+    @DataBoundSetter
+    public void setModifiedFilesOnly(Boolean modifiedFilesOnly) {
+        this.modifiedFilesOnly = modifiedFilesOnly;
+    }
+
+    public boolean getUploadFromAgent() {
+        return uploadFromAgent != null && uploadFromAgent;
+    }
+
+    @DataBoundSetter
+    public void setUploadFromAgent(Boolean uploadFromAgent) {
+        this.uploadFromAgent = uploadFromAgent;
+    }
+
+    public boolean getAggregateMatrix() {
+        return aggregateMatrix != null && aggregateMatrix;
+    }
+
+    @DataBoundSetter
+    public void setAggregateMatrix(Boolean aggregateMatrix) {
+        this.aggregateMatrix = aggregateMatrix;
+    }
+
+    /**
+     * @return the minutes each test specification may take to be collected, zipped, sent and imported, or 0 for no limit
+     */
+    public int getUploadDeadlineMinutes() {
+        return uploadDeadlineMinutes != null ? Math.max(0, uploadDeadlineMinutes) : DEFAULT_UPLOAD_DEADLINE_MINUTES;
+    }
+
+    @DataBoundSetter
+    public void setUploadDeadlineMinutes(Integer uploadDeadlineMinutes) {
+        this.uploadDeadlineMinutes = uploadDeadlineMinutes;
+    }
+
+    public boolean getRetryUploads() {
+        return retryUploads != null && retryUploads;
+    }
+
+    @DataBoundSetter
+    public void setRetryUploads(Boolean retryUploads) {
+        this.retryUploads = retryUploads;
+    }
+
+    /**
+     * @return whether test runs are left in the {@link Outbox} for after the build, instead of being sent during it
+     */
+    public boolean getDeliverAsynchronously() {
+        return deliverAsynchronously != null && deliverAsynchronously;
+    }
+
+    @DataBoundSetter
+    public void setDeliverAsynchronously(Boolean deliverAsynchronously) {
+        this.deliverAsynchronously = deliverAsynchronously;
+    }
+
+    /**
+     * Starts the deadline of sending one test run. Collecting the files is shared by all test specifications and has
+     * already happened, so the time it took is taken off.
+     */
+    Deadline startDeadline(long scanMillis) {
+        int minutes = getUploadDeadlineMinutes();
+        return minutes == 0 ? Deadline.NONE : Deadline.after(TimeUnit.MINUTES.toMillis(minutes) - scanMillis);
+    }
+
     @Override
     public BuildStepMonitor getRequiredMonitorService() {
-        return BuildStepMonitor.BUILD;
+        // nothing is sent during the build, and the outbox sends the test runs of a job in the order of their builds
+        return getDeliverAsynchronously() ? BuildStepMonitor.NONE : BuildStepMonitor.BUILD;
     }
 
     @Override
@@ -100,6 +221,10 @@ public class XLTestView extends Notifier implements Serializable {
             // TODO: or throw an exception?
             return true;
         }
+        if (getAggregateMatrix() && (build instanceof MatrixRun || build instanceof MatrixBuild)) {
+            logger.printf("[XL TestView] The test run data of all configurations is uploaded at the end of the matrix build%n");
+            return true;
+        }
         FilePath workspace = build.getWorkspace();
 
         // TODO: metadata.put("buildEnvironment", build.getEnvironment(listener));
@@ -113,48 +238,357 @@ public class XLTestView extends Notifier implements Serializable {
             logger.printf("[XL TestView] unable to determine root URL for the jenkins instance%n");
             throw new IllegalStateException("Unable to determine root URL for jenkins instance. Aborting XL TestView post build step.");
         }
-        String jobUrl = rootUrl + build.getProject().getUrl();
-        String buildUrl = rootUrl + build.getUrl();
         String buildResult = translateResult(result);
-        String buildNumber = Integer.toString(build.getNumber());
         // build duration is an approximation like this, since we're running in the build
         long buildDuration = System.currentTimeMillis() - build.getStartTimeInMillis();
 
-        for (TestSpecificationDescribable ts : testSpecifications) {
-            Map<String, Object> metadata = new HashMap<String, Object>();
-            metadata.put("source", "jenkins");
-            metadata.put("serverUrl", rootUrl);
-            metadata.put("buildResult", buildResult);
-            metadata.put("buildDuration", buildDuration);
-            metadata.put("buildNumber", buildNumber);
-            metadata.put("jobName", build.getProject().getFullName());
-            metadata.put("jobUrl", jobUrl);
-            metadata.put("buildUrl", buildUrl);
-            metadata.put("executedOn", getBuildSlaveBuild(build));   // "" in case of master
-            metadata.put("buildParameters", build.getBuildVariables());
+        Map<String, Object> metadata = createMetadata(build, rootUrl);
+        metadata.put("buildResult", buildResult);
+        metadata.put("buildDuration", buildDuration);
+
+        LiveUploadAction live = build.getAction(LiveUploadAction.class);
+        if (live != null && !live.hasDelivered()) {
+            // no part was sent while the build was running, so this sends the whole test run as usual
+            live = null;
+        }
+        if (live != null) {
+            metadata.put(LiveUploadAction.IMPORT_ID, live.getImportId());
+            metadata.put(LiveUploadAction.COMPLETE, true);
+        }
+
+        boolean spoolAll = getRetryUploads() || getDeliverAsynchronously();
+        UploadPlan plan = live != null
+                ? new UploadPlan(testSpecifications, live.getCutoffs(testSpecifications), getDescriptor().getArchiverThreads(), spoolAll)
+                : new UploadPlan(testSpecifications, getDescriptor().getArchiverThreads(), spoolAll);
+        try {
+            if (live != null) {
+                logger.printf("[XL TestView] %d files were sent while the build was running, only collecting files modified since%n", live.getFilesSent());
+                plan.scan(workspace, logger);
+            } else if (getModifiedFilesOnly()) {
+                logger.printf("[XL TestView] Only collecting files modified since the build started%n");
+                plan.scan(workspace, getStartTimeOnNode(build, logger), logger);
+            } else {
+                plan.scan(workspace, logger);
+            }
+
+            if (getDeliverAsynchronously()) {
+                enqueueTestRuns(build, result, workspace, plan, metadata, live != null, logger);
+                return true;
+            }
+
+            int concurrency = Math.min(getMaxConcurrentUploads(), testSpecifications.size());
+            if (concurrency > 1) {
+                uploadInParallel(build, result, workspace, plan, metadata, live != null, concurrency, logger);
+                return true;
+            }
+
+            for (TestSpecificationDescribable ts : testSpecifications) {
+                Map<AdditionalServer, Exception> additionalFailures = new LinkedHashMap<AdditionalServer, Exception>();
+                try {
+                    uploadTestRun(ts, new HashMap<String, Object>(metadata), workspace, plan, live != null, additionalFailures, logger);
+                } catch (Exception e) {
+                    handleUploadFailure(build, result, ts, e, logger);
+                }
+                handleAdditionalFailures(build, result, additionalFailures, logger);
+            }
+        } finally {
+            plan.close();
+        }
+
+        return true;
+    }
+
+    @Override
+    public MatrixAggregator createAggregator(MatrixBuild build, Launcher launcher, BuildListener listener) {
+        if (!getAggregateMatrix()) {
+            return null;
+        }
+        return new MatrixAggregator(build, launcher, listener) {
+            @Override
+            public boolean endBuild() throws InterruptedException, IOException {
+                return performForMatrix(build, listener);
+            }
+        };
+    }
+
+    /**
+     * Uploads one test run per test specification with the files of all configurations of the matrix build, each
+     * under a directory named after its configuration.
+     */
+    private boolean performForMatrix(MatrixBuild build, BuildListener listener) throws InterruptedException, IOException {
+        PrintStream logger = listener.getLogger();
+        Result result = Objects.firstNonNull(build.getResult(), Result.SUCCESS);
+        if (!result.completeBuild) {
+            logger.printf("[XL TestView] Not sending test run data since the build was aborted%n");
+            return true;
+        }
+        String rootUrl = getRootUrl();
+        if (rootUrl == null) {
+            logger.printf("[XL TestView] unable to determine root URL for the jenkins instance%n");
+            throw new IllegalStateException("Unable to determine root URL for jenkins instance. Aborting XL TestView post build step.");
+        }
+        List<MatrixRun> runs = build.getExactRuns();
+        logger.printf("[XL TestView] Uploading test run data of %d configurations to '%s'%n", runs.size(), getDescriptor().getServerUrl());
+
+        Map<String, Object> metadata = createMetadata(build, rootUrl);
+        metadata.put("buildResult", translateResult(result));
+        metadata.put("buildDuration", System.currentTimeMillis() - build.getStartTimeInMillis());
+
+        Map<String, Map<String, String>> configurations = new LinkedHashMap<String, Map<String, String>>();
+        List<List<MatrixArchive.Cell>> cells = new ArrayList<List<MatrixArchive.Cell>>();
+        int[] files = new int[testSpecifications.size()];
+        for (int i = 0; i < testSpecifications.size(); i++) {
+            cells.add(new ArrayList<MatrixArchive.Cell>());
+        }
+        List<UploadPlan> plans = new ArrayList<UploadPlan>();
+        try {
+            for (MatrixRun run : runs) {
+                String name = run.getParent().getCombination().toString();
+                FilePath cellWorkspace = run.getWorkspace();
+                if (cellWorkspace == null) {
+                    logger.printf("[XL TestView] The workspace of configuration '%s' is no longer available, leaving it out%n", name);
+                    continue;
+                }
+                configurations.put(name, new TreeMap<String, String>(run.getParent().getCombination()));
+                // only the file lists are kept per configuration; nothing is spooled
+                UploadPlan plan = new UploadPlan(testSpecifications, getDescriptor().getArchiverThreads(), false);
+                plans.add(plan);
+                if (getModifiedFilesOnly()) {
+                    plan.scan(cellWorkspace, getStartTimeOnNode(run, logger), logger);
+                } else {
+                    plan.scan(cellWorkspace, logger);
+                }
+                for (int i = 0; i < testSpecifications.size(); i++) {
+                    TestSpecificationDescribable ts = testSpecifications.get(i);
+                    cells.get(i).add(new MatrixArchive.Cell(name, cellWorkspace, plan.getScanner(ts), plan.getArchiver(ts)));
+                    int count = plan.countFiles(ts);
+                    // not known when the workspace could not be scanned at once
+                    files[i] = count < 0 || files[i] < 0 ? -1 : files[i] + count;
+                }
+            }
+            metadata.put("matrixConfigurations", configurations);
+            long scanMillis = 0;
+            for (UploadPlan plan : plans) {
+                scanMillis += plan.getScanMillis();
+            }
+
+            for (int i = 0; i < testSpecifications.size(); i++) {
+                TestSpecificationDescribable ts = testSpecifications.get(i);
+                try {
+                    uploadMatrixTestRun(ts, new HashMap<String, Object>(metadata), cells.get(i), files[i], startDeadline(scanMillis), logger);
+                } catch (Exception e) {
+                    handleUploadFailure(build, result, ts, e, logger);
+                }
+            }
+        } finally {
+            for (UploadPlan plan : plans) {
+                plan.close();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param files the number of files in all configurations, or -1 when not known
+     */
+    private void uploadMatrixTestRun(TestSpecificationDescribable ts, Map<String, Object> metadata, List<MatrixArchive.Cell> cells, int files,
+                                     Deadline deadline, PrintStream logger) throws InterruptedException, IOException {
+        try {
+            if (files == 0) {
+                if (getModifiedFilesOnly()) {
+                    logger.printf("[XL TestView] No files modified during this build for test specification with id '%s', not uploading%n", ts.getTestSpecificationId());
+                    return;
+                }
+                throw new IllegalStateException(format("The include pattern '%s' and exclude pattern '%s' match no files in any configuration",
+                        ts.getIncludes(), ts.getExcludes()));
+            }
+            logger.printf("[XL TestView] Uploading test run for test specification with id '%s' from %d configurations%n", ts.getTestSpecificationId(), cells.size());
+            XLTestServer server = getXLTestServer();
+            List<String> removed = server.getCapabilities().removeUnsupportedMetadata(metadata);
+            if (!removed.isEmpty()) {
+                logger.printf("[XL TestView] Removing metadata fields not supported for this version: %s%n", removed);
+            }
+            TestRunArchive archive = new MatrixArchive(cells);
+            if (!getRetryUploads()) {
+                server.uploadTestRun(ts.getTestSpecificationId(), archive, metadata, deadline, logger);
+                return;
+            }
+            SpooledArchive spooled = SpooledArchive.spool(archive);
+            try {
+                server.uploadTestRun(ts.getTestSpecificationId(), spooled, metadata, deadline, logger);
+            } finally {
+                spooled.delete();
+            }
+        } catch (IOException e) {
+            logger.printf("[XL TestView] Error uploading: %s%n", e.getMessage());
+            throw e;
+        } catch (InterruptedException e) {
+            logger.printf("[XL TestView] Upload interrupted: %s%n", e.getMessage());
+            throw e;
+        }
+    }
 
+    /**
+     * Puts the test run of each test specification in the {@link Outbox}, which sends them after the build finished.
+     * Only the main server receives them, from the master, and the outcome is shown on the build page.
+     */
+    private void enqueueTestRuns(AbstractBuild<?, ?> build, Result result, FilePath workspace, UploadPlan plan, Map<String, Object> metadata,
+                                 boolean completesLiveUpload, PrintStream logger) {
+        logger.printf("[XL TestView] Leaving test runs to be sent after the build, the build page tells whether they arrived%n");
+        if (getUploadFromAgent()) {
+            logger.printf("[XL TestView] Test runs sent after the build go from the master, not from the node holding the workspace%n");
+        }
+        if (!getDescriptor().getAdditionalServers().isEmpty()) {
+            logger.printf("[XL TestView] Not sending to additional servers, since only the main server receives test runs sent after the build%n");
+        }
+        DeliveryAction action = build.getAction(DeliveryAction.class);
+        if (action == null) {
+            action = new DeliveryAction();
+            build.addAction(action);
+        }
+        for (TestSpecificationDescribable ts : testSpecifications) {
             try {
-                uploadTestRun(ts, metadata, workspace, logger);
-            } catch (Exception e) {
-                if (result.equals(Result.FAILURE)) {
-                    logger.printf("[XL TestView] Reason: %s%n", e.getMessage());
+                if (completesLiveUpload) {
+                    logger.printf("[XL TestView] Completing test run for test specification with id '%s'%n", ts.getTestSpecificationId());
+                    if (!plan.isEmpty(ts)) {
+                        plan.check(ts, getTestToolName(ts.getTestSpecificationId()), workspace, logger);
+                    }
+                } else if (getModifiedFilesOnly() && plan.isEmpty(ts)) {
+                    logger.printf("[XL TestView] No files modified during this build for test specification with id '%s', not uploading%n", ts.getTestSpecificationId());
+                    continue;
                 } else {
-                    if (ts.getMakeUnstable()) {
-                        logger.printf("[XL TestView] XL TestView changes the build status to UNSTABLE%n");
-                        logger.printf("[XL TestView] Reason: %s%n", e.getMessage());
-                        build.setResult(Result.UNSTABLE);
-                    } else {
-                        logger.printf("[XL TestView] XL TestView produced an exception, but build status is left unchanged%n");
-                        logger.printf("[XL TestView] Reason: %s%n", e.getMessage());
+                    logger.printf("[XL TestView] Queueing test run for test specification with id '%s'%n", ts.getTestSpecificationId());
+                    plan.check(ts, getTestToolName(ts.getTestSpecificationId()), workspace, logger);
+                }
+                SpooledArchive archive = plan.spool(ts, workspace);
+                action.update(ts.getTestSpecificationId(), DeliveryAction.Status.QUEUED, null);
+                Outbox.get().add(build.getProject().getFullName(), build.getNumber(), ts.getTestSpecificationId(), metadata, archive,
+                        getUploadDeadlineMinutes());
+            } catch (Exception e) {
+                action.update(ts.getTestSpecificationId(), DeliveryAction.Status.FAILED, e.getMessage());
+                logger.printf("[XL TestView] Unable to queue test run: %s%n", e.getMessage());
+                handleUploadFailure(build, result, ts, e, logger);
+            }
+        }
+    }
+
+    /**
+     * Runs the uploads on a bounded pool. Each upload logs into its own buffer; buffers and failures are then handled
+     * in the configured order, so the console and the resulting build status are the same as for serial uploads.
+     */
+    private void uploadInParallel(AbstractBuild<?, ?> build, Result result, final FilePath workspace, final UploadPlan plan,
+                                  Map<String, Object> metadata, final boolean completesLiveUpload, int concurrency, PrintStream logger)
+            throws InterruptedException, IOException {
+        logger.printf("[XL TestView] Uploading %d test specifications, %d at a time%n", testSpecifications.size(), concurrency);
+
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency,
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("XL TestView upload %d").build());
+        List<Future<Void>> uploads = new ArrayList<Future<Void>>();
+        List<ByteArrayOutputStream> outputs = new ArrayList<ByteArrayOutputStream>();
+        List<Map<AdditionalServer, Exception>> additionalFailures = new ArrayList<Map<AdditionalServer, Exception>>();
+        try {
+            for (final TestSpecificationDescribable ts : testSpecifications) {
+                final ByteArrayOutputStream output = new ByteArrayOutputStream();
+                final PrintStream specLogger = new PrintStream(output, true);
+                final Map<String, Object> specMetadata = new HashMap<String, Object>(metadata);
+                final Map<AdditionalServer, Exception> specFailures = new LinkedHashMap<AdditionalServer, Exception>();
+                outputs.add(output);
+                additionalFailures.add(specFailures);
+                uploads.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        uploadTestRun(ts, specMetadata, workspace, plan, completesLiveUpload, specFailures, specLogger);
+                        return null;
                     }
+                }));
+            }
+
+            for (int i = 0; i < testSpecifications.size(); i++) {
+                Exception failure = null;
+                try {
+                    uploads.get(i).get();
+                } catch (ExecutionException e) {
+                    failure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
                 }
+                logger.write(outputs.get(i).toByteArray());
+                if (failure != null) {
+                    handleUploadFailure(build, result, testSpecifications.get(i), failure, logger);
+                }
+                handleAdditionalFailures(build, result, additionalFailures.get(i), logger);
             }
+        } finally {
+            executor.shutdownNow();
         }
+    }
 
-        return true;
+    /**
+     * The metadata describing the build that is the same for every test specification and does not depend on the
+     * outcome of the build.
+     */
+    Map<String, Object> createMetadata(AbstractBuild<?, ?> build, String rootUrl) {
+        Map<String, Object> metadata = new HashMap<String, Object>();
+        metadata.put("source", "jenkins");
+        metadata.put("serverUrl", rootUrl);
+        metadata.put("buildNumber", Integer.toString(build.getNumber()));
+        metadata.put("jobName", build.getProject().getFullName());
+        metadata.put("jobUrl", rootUrl + build.getProject().getUrl());
+        metadata.put("buildUrl", rootUrl + build.getUrl());
+        metadata.put("executedOn", getBuildSlaveBuild(build));   // "" in case of master
+        metadata.put("buildParameters", build.getBuildVariables());
+        return metadata;
+    }
+
+    /**
+     * Returns the start time of the build on the clock of the node it runs on, less the timestamp granularity of
+     * coarse file systems, so files written right at the start are not missed.
+     */
+    private long getStartTimeOnNode(AbstractBuild<?, ?> build, PrintStream logger) throws InterruptedException {
+        return build.getStartTimeInMillis() - ScanIndex.GRANULARITY - getClockDifference(build, logger);
     }
 
-    private String getRootUrl() {
+    /**
+     * @return how far the clock of the node the build runs on is behind the one of the master, in milliseconds
+     */
+    static long getClockDifference(AbstractBuild<?, ?> build, PrintStream logger) throws InterruptedException {
+        Node builtOn = build.getBuiltOn();
+        if (builtOn == null) {
+            return 0;
+        }
+        try {
+            return builtOn.getClockDifference().diff;
+        } catch (IOException e) {
+            logger.printf("[XL TestView] Unable to determine the clock difference with '%s', assuming none: %s%n", builtOn.getNodeName(), e.getMessage());
+            return 0;
+        }
+    }
+
+    private void handleUploadFailure(AbstractBuild<?, ?> build, Result result, TestSpecificationDescribable ts, Exception e, PrintStream logger) {
+        handleUploadFailure(build, result, ts.getMakeUnstable(), e, logger);
+    }
+
+    private void handleAdditionalFailures(AbstractBuild<?, ?> build, Result result, Map<AdditionalServer, Exception> failures, PrintStream logger) {
+        for (Map.Entry<AdditionalServer, Exception> failure : failures.entrySet()) {
+            logger.printf("[XL TestView] Sending test run to additional server '%s' failed%n", failure.getKey().getServerUrl());
+            handleUploadFailure(build, result, failure.getKey().getMakeUnstable(), failure.getValue(), logger);
+        }
+    }
+
+    private void handleUploadFailure(AbstractBuild<?, ?> build, Result result, boolean makeUnstable, Exception e, PrintStream logger) {
+        if (result.equals(Result.FAILURE)) {
+            logger.printf("[XL TestView] Reason: %s%n", e.getMessage());
+        } else {
+            if (makeUnstable) {
+                logger.printf("[XL TestView] XL TestView changes the build status to UNSTABLE%n");
+                logger.printf("[XL TestView] Reason: %s%n", e.getMessage());
+                build.setResult(Result.UNSTABLE);
+            } else {
+                logger.printf("[XL TestView] XL TestView produced an exception, but build status is left unchanged%n");
+                logger.printf("[XL TestView] Reason: %s%n", e.getMessage());
+            }
+        }
+    }
+
+    static String getRootUrl() {
         final Jenkins instance = Jenkins.getInstance();
         if (instance == null) {
             throw new IllegalStateException("Jenkins is not running");
@@ -162,6 +596,14 @@ public class XLTestView extends Notifier implements Serializable {
         return instance.getRootUrl();
     }
 
+    /**
+     * @return the node holding the workspace, or {@code null} when it is gone
+     */
+    static Node getNode(FilePath workspace) {
+        Computer computer = workspace.toComputer();
+        return computer == null ? null : computer.getNode();
+    }
+
     private String getBuildSlaveBuild(final AbstractBuild<?, ?> build) {
         final Node builtOn = build.getBuiltOn();
         if (builtOn == null) {
@@ -170,23 +612,53 @@ public class XLTestView extends Notifier implements Serializable {
         return builtOn.getNodeName();
     }
 
-    private void uploadTestRun(TestSpecificationDescribable ts, Map<String, Object> metadata, FilePath workspace, PrintStream logger) throws InterruptedException, IOException {
+    /**
+     * @param completesLiveUpload whether this completes a test run sent in parts while the build was running; it is
+     *                            then sent even when no files are left
+     * @param additionalFailures  receives why sending to additional servers failed; failing to send to the main
+     *                            server is thrown
+     */
+    private void uploadTestRun(TestSpecificationDescribable ts, Map<String, Object> metadata, FilePath workspace, UploadPlan plan,
+                               boolean completesLiveUpload, Map<AdditionalServer, Exception> additionalFailures, PrintStream logger)
+            throws InterruptedException, IOException {
+        Deadline deadline = startDeadline(plan.getScanMillis());
         try {
+            deadline.check();
             // TODO: title would be nicer..
-            logger.printf("[XL TestView] Uploading test run for test specification with id '%s'%n", ts.getTestSpecificationId());
+            if (completesLiveUpload) {
+                logger.printf("[XL TestView] Completing test run for test specification with id '%s'%n", ts.getTestSpecificationId());
+                if (!plan.isEmpty(ts)) {
+                    plan.check(ts, getTestToolName(ts.getTestSpecificationId()), workspace, logger);
+                }
+            } else if (getModifiedFilesOnly() && plan.isEmpty(ts)) {
+                logger.printf("[XL TestView] No files modified during this build for test specification with id '%s', not uploading%n", ts.getTestSpecificationId());
+                return;
+            } else {
+                logger.printf("[XL TestView] Uploading test run for test specification with id '%s'%n", ts.getTestSpecificationId());
+                plan.check(ts, getTestToolName(ts.getTestSpecificationId()), workspace, logger);
+            }
             logger.printf("[XL TestView] Jenkins data:%n%s%n", metadata.toString());
-            XLTestServer server = getXLTestServer();
+            XLTestServer server = getDescriptor().getXLTestServer(getNode(workspace));
 
             // TODO: Ideally it would be nicer to switch to the public API for 1.4.x versions requires some refactoring to keep things clean
-            Version version = getServerVersion(server);
-            logger.printf("[XL TestView] Remote server version: %s%n", version.toString());
+            ServerCapabilities capabilities = server.getCapabilities();
+            logger.printf("[XL TestView] Remote server version: %s%n", capabilities.getVersion());
 
-            if (version.compareTo(Version.forIntegers(1, 4, 3)) <= 0) {
-                logger.printf("[XL TestView] Removing metadata fields not supported for this version%n");
-                metadata.remove("buildDuration");
+            List<String> removed = capabilities.removeUnsupportedMetadata(metadata);
+            if (!removed.isEmpty()) {
+                logger.printf("[XL TestView] Removing metadata fields not supported for this version: %s%n", removed);
             }
 
-            server.uploadTestRun(ts.getTestSpecificationId(), workspace, ts.getIncludes(), ts.getExcludes(), metadata, logger);
+            List<AdditionalServer> additionalServers = getDescriptor().getAdditionalServers();
+            if (additionalServers.isEmpty()) {
+                sendTestRun(server, ts, metadata, workspace, plan, deadline, logger);
+            } else if (getUploadFromAgent() || completesLiveUpload) {
+                logger.printf("[XL TestView] Not sending to additional servers, since only the main server receives test runs sent %s%n",
+                        completesLiveUpload ? "in parts" : "from the agent");
+                sendTestRun(server, ts, metadata, workspace, plan, deadline, logger);
+            } else {
+                sendToAllServers(server, ts, metadata, plan.getArchive(ts, workspace), additionalServers, deadline, additionalFailures, logger);
+            }
         } catch (IOException e) {
             // this probably means the build was aborted in some way...
             logger.printf("[XL TestView] Error uploading: %s%n", e.getMessage());
@@ -198,9 +670,134 @@ public class XLTestView extends Notifier implements Serializable {
         }
     }
 
-    private Version getServerVersion(XLTestServer server) {
-        ServerInfo info = server.getServerInfo();
-        return Version.valueOf(info.getVersion());
+    /**
+     * Sends the archive to the main server and the additional servers at the same time. Unless it was spooled
+     * already, the archive is zipped once into a temporary file that all uploads read as it grows.
+     * <p/>
+     * Every server is sent the test run by a thread of its own, which for an additional server first looks up its
+     * capabilities, so an additional server that does not answer delays neither zipping nor the upload to the main
+     * server. The uploads block these threads rather than the dispatcher shared by all calls to XL TestView, whose
+     * per-host limit would otherwise have long uploads queue up the calls of other builds.
+     */
+    private void sendToAllServers(final XLTestServer server, final TestSpecificationDescribable ts, final Map<String, Object> metadata,
+                                  TestRunArchive archive, List<AdditionalServer> additionalServers, final Deadline deadline,
+                                  Map<AdditionalServer, Exception> additionalFailures, PrintStream logger)
+            throws InterruptedException, IOException {
+        logger.printf("[XL TestView] Sending test run to %d servers at the same time%n", additionalServers.size() + 1);
+        TeeArchive tee = archive instanceof SpooledArchive ? null : new TeeArchive(archive);
+        List<ListenableFuture<Void>> uploads = new ArrayList<ListenableFuture<Void>>();
+        List<ByteArrayOutputStream> outputs = new ArrayList<ByteArrayOutputStream>();
+        ListeningExecutorService senders = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(additionalServers.size() + 1,
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("XL TestView tee upload %d").build()));
+        try {
+            for (int i = 0; i <= additionalServers.size(); i++) {
+                ByteArrayOutputStream output = new ByteArrayOutputStream();
+                outputs.add(output);
+                final PrintStream targetLogger = new PrintStream(output, true);
+                final TestRunArchive targetArchive = tee == null ? archive : tee.newReader();
+                if (i == 0) {
+                    uploads.add(senders.submit(new Callable<Void>() {
+                        @Override
+                        public Void call() throws Exception {
+                            server.uploadTestRun(ts.getTestSpecificationId(), targetArchive, metadata, deadline, targetLogger);
+                            return null;
+                        }
+                    }));
+                    continue;
+                }
+                final AdditionalServer additionalServer = additionalServers.get(i - 1);
+                uploads.add(senders.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        XLTestServer target = additionalServer.getXLTestServer();
+                        Map<String, Object> targetMetadata = new HashMap<String, Object>(metadata);
+                        target.getCapabilities().removeUnsupportedMetadata(targetMetadata);
+                        target.uploadTestRun(ts.getTestSpecificationId(), targetArchive, targetMetadata, deadline, targetLogger);
+                        return null;
+                    }
+                }));
+            }
+            if (tee != null) {
+                try {
+                    tee.spool();
+                } catch (IOException e) {
+                    // the uploads fail with it
+                    LOG.debug("Unable to zip the test run of {}", ts.getTestSpecificationId(), e);
+                }
+            }
+
+            Exception failure = null;
+            for (int i = 0; i < uploads.size(); i++) {
+                if (i > 0) {
+                    logger.printf("[XL TestView] Additional server '%s':%n", additionalServers.get(i - 1).getServerUrl());
+                }
+                try {
+                    uploads.get(i).get();
+                } catch (ExecutionException e) {
+                    Exception cause = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                    if (i == 0) {
+                        failure = cause;
+                    } else {
+                        additionalFailures.put(additionalServers.get(i - 1), cause);
+                    }
+                }
+                logger.write(outputs.get(i).toByteArray());
+            }
+            if (failure instanceof IOException) {
+                throw (IOException) failure;
+            }
+            if (failure instanceof RuntimeException) {
+                throw (RuntimeException) failure;
+            }
+            if (failure != null) {
+                throw new IOException(failure.getMessage(), failure);
+            }
+        } finally {
+            for (ListenableFuture<Void> upload : uploads) {
+                upload.cancel(true);
+            }
+            senders.shutdownNow();
+            if (tee != null) {
+                tee.delete();
+            }
+        }
+    }
+
+    /**
+     * Sends the files the plan collected for the test specification, from the agent if so configured.
+     */
+    void sendTestRun(XLTestServer server, TestSpecificationDescribable ts, Map<String, Object> metadata, FilePath workspace, UploadPlan plan,
+                     Deadline deadline, PrintStream logger) throws InterruptedException, IOException {
+        if (getUploadFromAgent()) {
+            logger.printf("[XL TestView] Sending test run from the node holding the workspace%n");
+            server.uploadTestRunFromAgent(ts.getTestSpecificationId(), workspace, plan.getScanner(ts), plan.getArchiver(ts), getRetryUploads(), metadata,
+                    deadline, logger);
+            return;
+        }
+        TestRunArchive archive = plan.getArchive(ts, workspace);
+        server.uploadTestRun(ts.getTestSpecificationId(), archive, metadata, deadline, logger);
+    }
+
+    /**
+     * Only looks at the cached catalog, so builds never wait for the server to learn a test tool. When nothing is
+     * cached yet, the check of the result format is skipped and the catalog is loaded in the background.
+     *
+     * @return the test tool of the test specification, or {@code null} when the catalog does not tell
+     */
+    private String getTestToolName(String testSpecificationId) {
+        try {
+            TestSpecificationCatalogCache cache = getDescriptor().getCatalogCache();
+            TestSpecificationCatalog catalog = cache.peek();
+            if (catalog == null) {
+                cache.refreshAsync();
+                return null;
+            }
+            TestSpecification testSpecification = catalog.getTestSpecifications().get(testSpecificationId);
+            return testSpecification != null ? testSpecification.getTestToolName() : null;
+        } catch (RuntimeException e) {
+            LOG.debug("Unable to determine the test tool of test specification {}", testSpecificationId, e);
+            return null;
+        }
     }
 
     @Override
@@ -217,19 +814,11 @@ public class XLTestView extends Notifier implements Serializable {
     }
 
     private XLTestServer getXLTestServer() {
-        XLTestDescriptor desc = getDescriptor();
-        return XLTestServerFactory.newInstance(desc.getServerUrl(), desc.getProxyUrl(),
-                lookupSystemCredentials(desc.getCredentialsId()));
+        return getDescriptor().getXLTestServer();
     }
 
     public static StandardUsernamePasswordCredentials lookupSystemCredentials(String credentialsId) {
-        LOG.debug("lookupSystemCredentials id={}", credentialsId);
-
-        return CredentialsMatchers.firstOrNull(
-                lookupCredentials(StandardUsernamePasswordCredentials.class, Jenkins.getInstance(), ACL.SYSTEM,
-                        HTTP_SCHEME, HTTPS_SCHEME),
-                CredentialsMatchers.withId(credentialsId)
-        );
+        return CredentialsCache.lookup(credentialsId);
     }
 
     @Extension
@@ -240,10 +829,21 @@ public class XLTestView extends Notifier implements Serializable {
         private String serverUrl;
         private String proxyUrl;
         private String credentialsId;
+        private Integer maxIdleConnections;
+        private Long keepAliveSeconds;
+        private Integer archiverThreads;
+        private List<AdditionalServer> additionalServers;
+        private List<ClusterNode> clusterNodes;
+
+        private transient volatile ServerCluster cluster;
+
+        private final transient TestSpecificationCatalogCache catalogCache = new TestSpecificationCatalogCache(this);
 
         // Executed on start-up of the application...
         public XLTestDescriptor() {
             load();  //deserialize from xml
+            configureRegistry();
+            configureCluster();
         }
 
         /**
@@ -256,14 +856,99 @@ public class XLTestView extends Notifier implements Serializable {
             serverUrl = json.get("serverUrl").toString();
             proxyUrl = json.get("proxyUrl").toString();
             credentialsId = json.get("credentialsId").toString();
+            maxIdleConnections = json.optInt("maxIdleConnections", XLTestServerRegistry.DEFAULT_MAX_IDLE_CONNECTIONS);
+            keepAliveSeconds = json.optLong("keepAliveSeconds", XLTestServerRegistry.DEFAULT_KEEP_ALIVE_SECONDS);
+            archiverThreads = json.optInt("archiverThreads", 0);
+            additionalServers = req.bindJSONToList(AdditionalServer.class, json.opt("additionalServers"));
+            clusterNodes = req.bindJSONToList(ClusterNode.class, json.opt("clusterNodes"));
 
             // TODO could check URLs here? and return false?
 
             save();  //serialize to xml
+            configureRegistry();
+            configureCluster();
+            catalogCache.invalidate();
+            catalogCache.refreshAsync();
 
             return true;
         }
 
+        public boolean isConfigured() {
+            return !Strings.isNullOrEmpty(serverUrl) && !Strings.isNullOrEmpty(credentialsId);
+        }
+
+        /**
+         * Returns the shared server for the saved global configuration.
+         */
+        public XLTestServer getXLTestServer() {
+            ServerCluster current = cluster;
+            if (current != null) {
+                return current.route(Predicates.<ServerCluster.Member>alwaysFalse());
+            }
+            return getServerFor(serverUrl);
+        }
+
+        /**
+         * Like {@link #getXLTestServer()}, but prefers the cluster nodes close to the given Jenkins node, and sends
+         * all calls to the cluster node chosen now.
+         */
+        public XLTestServer getXLTestServer(Node node) {
+            ServerCluster current = cluster;
+            if (current != null) {
+                return current.pin(closeTo(node));
+            }
+            return getXLTestServer();
+        }
+
+        private XLTestServer getServerFor(String url) {
+            return XLTestServerFactory.getInstance(url, proxyUrl, credentialsId, lookupSystemCredentials(credentialsId));
+        }
+
+        private static Predicate<ServerCluster.Member> closeTo(final Node node) {
+            return new Predicate<ServerCluster.Member>() {
+                @Override
+                public boolean apply(ServerCluster.Member member) {
+                    Label label = member.getLabel();
+                    return node != null && label != null && label.matches(node);
+                }
+            };
+        }
+
+        /**
+         * Replaces the cluster, if other nodes are configured, and starts probing its nodes.
+         */
+        private void configureCluster() {
+            ServerCluster old = cluster;
+            if (old != null) {
+                old.stop();
+            }
+            if (getClusterNodes().isEmpty() || Strings.isNullOrEmpty(serverUrl)) {
+                cluster = null;
+                return;
+            }
+            List<ServerCluster.Endpoint> endpoints = new ArrayList<ServerCluster.Endpoint>();
+            endpoints.add(new ServerCluster.Endpoint(serverUrl, null));
+            for (ClusterNode node : getClusterNodes()) {
+                endpoints.add(new ServerCluster.Endpoint(node.getServerUrl(), node.getLabels()));
+            }
+            ServerCluster fresh = new ServerCluster(endpoints, new Function<String, XLTestServer>() {
+                @Override
+                public XLTestServer apply(String url) {
+                    return getServerFor(url);
+                }
+            });
+            fresh.start(Timer.get());
+            cluster = fresh;
+        }
+
+        public TestSpecificationCatalogCache getCatalogCache() {
+            return catalogCache;
+        }
+
+        private void configureRegistry() {
+            XLTestServerRegistry.getInstance().configure(getMaxIdleConnections(), getKeepAliveSeconds());
+        }
+
         public ListBoxModel doFillCredentialsIdItems(@AncestorInPath ItemGroup context) {
             // TODO: also add requirement on host derived from URL ?
             List<StandardUsernamePasswordCredentials> creds = lookupCredentials(StandardUsernamePasswordCredentials.class, context,
@@ -343,12 +1028,75 @@ public class XLTestView extends Notifier implements Serializable {
             return credentialsId;
         }
 
+        public int getMaxIdleConnections() {
+            return maxIdleConnections != null ? maxIdleConnections : XLTestServerRegistry.DEFAULT_MAX_IDLE_CONNECTIONS;
+        }
+
+        public long getKeepAliveSeconds() {
+            return keepAliveSeconds != null ? keepAliveSeconds : XLTestServerRegistry.DEFAULT_KEEP_ALIVE_SECONDS;
+        }
+
+        /**
+         * @return number of threads zipping test results on the machine of the workspace; 0 means one per core
+         */
+        public int getArchiverThreads() {
+            return archiverThreads != null ? archiverThreads : 0;
+        }
+
+        /**
+         * @return the servers that receive every test run sent to the main server as well
+         */
+        public List<AdditionalServer> getAdditionalServers() {
+            return additionalServers != null ? additionalServers : Collections.<AdditionalServer>emptyList();
+        }
+
+        public List<ClusterNode> getClusterNodes() {
+            return clusterNodes != null ? clusterNodes : Collections.<ClusterNode>emptyList();
+        }
+
+        /**
+         * @return a line per node of the cluster, or nothing when there is no cluster
+         */
+        public List<String> getClusterStatus() {
+            ServerCluster current = cluster;
+            if (current == null) {
+                return Collections.emptyList();
+            }
+            List<String> status = new ArrayList<String>();
+            for (ServerCluster.Member member : current.getMembers()) {
+                status.add(String.format("%s: %s, %d upload(s) in flight, %s", member.getServerUrl(),
+                        member.isHealthy() ? "healthy" : "unhealthy (" + member.getProblem() + ")", member.getInFlight(),
+                        Double.isNaN(member.getLatency()) ? "no answer yet" : String.format("%.0f ms latency", member.getLatency())));
+            }
+            return status;
+        }
+
+        /**
+         * @return a line per server that was called since Jenkins started, telling whether builds fail fast on it
+         */
+        public List<String> getCircuitBreakerStatus() {
+            List<String> status = new ArrayList<String>();
+            for (CircuitBreaker breaker : XLTestServerRegistry.getInstance().getCircuitBreakers()) {
+                status.add(breaker.describe());
+            }
+            return status;
+        }
+
+        public XLTestServerRegistry.Statistics getConnectionPoolStatistics() {
+            return XLTestServerRegistry.getInstance().getStatistics();
+        }
+
         @Override
         public String toString() {
             return Objects.toStringHelper(this)
                     .add("serverUrl", serverUrl)
                     .add("proxyUrl", proxyUrl)
                     .add("credentialsId", credentialsId)
+                    .add("maxIdleConnections", maxIdleConnections)
+                    .add("keepAliveSeconds", keepAliveSeconds)
+                    .add("archiverThreads", archiverThreads)
+                    .add("additionalServers", additionalServers)
+                    .add("clusterNodes", clusterNodes)
                     .toString();
         }
     }
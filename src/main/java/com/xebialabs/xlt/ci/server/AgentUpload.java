@@ -0,0 +1,226 @@
+package com.xebialabs.xlt.ci.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.xebialabs.xlt.ci.server.authentication.UsernamePassword;
+
+import hudson.FilePath;
+import hudson.remoting.RemoteOutputStream;
+import hudson.remoting.VirtualChannel;
+import hudson.util.DirScanner;
+import hudson.util.io.ArchiverFactory;
+import jenkins.MasterToSlaveFileCallable;
+
+/**
+ * Zips a test run and sends it to XL TestView from the node that holds the workspace, so the results do not pass
+ * through the master. The master decides what to send and to which server; console output is streamed back to the
+ * build.
+ * <p/>
+ * The credentials are resolved on the master and only travel over the remoting channel of the node, as part of this
+ * callable; they are never written to disk there.
+ * <p/>
+ * When failed uploads are to be retried, the archive is spooled to a temporary file on the node first.
+ * <p/>
+ * The time left until the deadline of the upload travels along, since the clocks of master and node cannot be compared.
+ * <p/>
+ * The circuit breaker and the upload timeouts of the server are kept on the master. The node starts from a copy of
+ * the timeouts and returns an {@link Outcome} with what it measured and how its calls went, for the master to record.
+ */
+class AgentUpload extends MasterToSlaveFileCallable<AgentUpload.Outcome> {
+    private static final long serialVersionUID = 1L;
+
+    private final String serverUrl;
+    private final String proxyUrl;
+    private final CredentialsSnapshot credentials;
+    private final String testSpecificationId;
+    private final HashMap<String, Object> metadata;
+    private final DirScanner scanner;
+    private final ArchiverFactory archiver;
+    private final boolean spool;
+    private final UploadTimeouts timeouts;
+    private final long deadlineMillis;
+    private final OutputStream log;
+
+    AgentUpload(String serverUrl, String proxyUrl, UsernamePassword credentials, String testSpecificationId, Map<String, Object> metadata,
+                DirScanner scanner, ArchiverFactory archiver, boolean spool, UploadTimeouts timeouts, Deadline deadline, PrintStream logger) {
+        if (credentials == null) {
+            throw new IllegalArgumentException("Need credentials to connect to " + serverUrl);
+        }
+        this.serverUrl = serverUrl;
+        this.proxyUrl = proxyUrl;
+        this.credentials = new CredentialsSnapshot(credentials.getUsername(), credentials.getPassword());
+        this.testSpecificationId = testSpecificationId;
+        this.metadata = new HashMap<String, Object>(metadata);
+        this.scanner = scanner;
+        this.archiver = archiver;
+        this.spool = spool;
+        this.timeouts = new UploadTimeouts(timeouts);
+        this.deadlineMillis = deadline.getRemainingMillis();
+        this.log = new RemoteOutputStream(logger);
+    }
+
+    @Override
+    public Outcome invoke(File dir, VirtualChannel channel) throws IOException, InterruptedException {
+        final Outcome outcome = new Outcome();
+        PrintStream logger = new PrintStream(log, true);
+        try {
+            UploadTimeouts measuring = new UploadTimeouts(timeouts) {
+                @Override
+                public synchronized void transferred(long bytes, long millis) {
+                    super.transferred(bytes, millis);
+                    outcome.transferred(bytes, millis);
+                }
+
+                @Override
+                public synchronized void imported(long bytes, long millis) {
+                    super.imported(bytes, millis);
+                    outcome.imported(bytes, millis);
+                }
+            };
+            CircuitBreaker reporting = new CircuitBreaker(serverUrl) {
+                @Override
+                public void acquire() {
+                    // the master already decided that the server may be called
+                }
+
+                @Override
+                public void succeeded(long millis) {
+                    outcome.called(true);
+                }
+
+                @Override
+                public void failed() {
+                    outcome.called(false);
+                }
+
+                @Override
+                public void cancelled() {
+                }
+            };
+            XLTestServer server = new XLTestServerImpl(XLTestServerRegistry.getInstance().newClient(), serverUrl, proxyUrl, credentials, reporting,
+                    measuring);
+            Deadline deadline = Deadline.after(deadlineMillis);
+            if (!spool) {
+                server.uploadTestRun(testSpecificationId, new WorkspaceArchive(new FilePath(dir), scanner, archiver), metadata, deadline, logger);
+                return outcome;
+            }
+            SpooledArchive archive;
+            try {
+                archive = SpooledArchive.spool(new FilePath(dir), scanner, archiver);
+            } catch (IOException e) {
+                throw new ArchiveException("Unable to zip the test run: " + e.getMessage(), e);
+            }
+            try {
+                server.uploadTestRun(testSpecificationId, archive, metadata, deadline, logger);
+            } finally {
+                archive.delete();
+            }
+        } catch (IOException e) {
+            outcome.failure = e;
+        } catch (RuntimeException e) {
+            outcome.failure = e;
+        } finally {
+            logger.flush();
+        }
+        return outcome;
+    }
+
+    /**
+     * What the node measured and how its calls to the server went, and why the upload failed, if it did. Returned
+     * instead of thrown, so the master learns about the calls of a failed upload as well.
+     */
+    static final class Outcome implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final List<long[]> transfers = new ArrayList<long[]>();
+        private final List<long[]> imports = new ArrayList<long[]>();
+        private final List<Boolean> calls = new ArrayList<Boolean>();
+        private Exception failure;
+
+        synchronized void transferred(long bytes, long millis) {
+            transfers.add(new long[]{bytes, millis});
+        }
+
+        synchronized void imported(long bytes, long millis) {
+            imports.add(new long[]{bytes, millis});
+        }
+
+        synchronized void called(boolean succeeded) {
+            calls.add(succeeded);
+        }
+
+        /**
+         * Records the calls on the circuit breaker that let the upload through, and the measurements on the timeouts
+         * of the server.
+         */
+        synchronized void record(CircuitBreaker circuitBreaker, UploadTimeouts timeouts) {
+            for (long[] transfer : transfers) {
+                timeouts.transferred(transfer[0], transfer[1]);
+            }
+            for (long[] imported : imports) {
+                timeouts.imported(imported[0], imported[1]);
+            }
+            if (calls.isEmpty()) {
+                circuitBreaker.cancelled();
+            }
+            for (boolean succeeded : calls) {
+                if (succeeded) {
+                    circuitBreaker.succeeded(-1);
+                } else {
+                    circuitBreaker.failed();
+                }
+            }
+        }
+
+        /**
+         * @throws IOException or a runtime exception when the upload failed
+         */
+        void rethrow() throws IOException {
+            if (failure instanceof IOException) {
+                throw (IOException) failure;
+            }
+            if (failure instanceof RuntimeException) {
+                throw (RuntimeException) failure;
+            }
+        }
+    }
+
+    /**
+     * The user name and password, taken from the Jenkins credentials on the master; a {@link hudson.util.Secret} can
+     * only be decrypted there.
+     */
+    private static final class CredentialsSnapshot implements UsernamePassword, Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final String username;
+        private final String password;
+
+        CredentialsSnapshot(String username, String password) {
+            this.username = username;
+            this.password = password;
+        }
+
+        @Override
+        public String getUsername() {
+            return username;
+        }
+
+        @Override
+        public String getPassword() {
+            return password;
+        }
+
+        @Override
+        public String toString() {
+            return username + ":****";
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package com.xebialabs.xlt.ci.server;
+
+import java.io.IOException;
+
+/**
+ * Thrown when the test run could not be read or zipped while it was being sent, which says nothing about the server.
+ */
+public class ArchiveException extends IOException {
+
+    public ArchiveException(final String s, final Throwable cause) {
+        super(s, cause);
+    }
+}
@@ -0,0 +1,35 @@
+package com.xebialabs.xlt.ci.server;
+
+import java.io.PrintStream;
+import java.util.Map;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import com.xebialabs.xlt.ci.server.domain.ServerInfo;
+import com.xebialabs.xlt.ci.server.domain.TestSpecificationCatalog;
+
+/**
+ * Non-blocking variant of the {@link XLTestServer} calls.
+ * <p/>
+ * Requests are queued on the shared OkHttp dispatcher and no caller thread waits for the network. Returned futures
+ * fail with the exceptions the blocking calls would throw, or with the {@link java.io.IOException} of the HTTP call.
+ * Compose them and attach callbacks with {@link com.google.common.util.concurrent.Futures}; callbacks run on the
+ * dispatcher threads unless an executor is given, so they should not block. Cancelling a future cancels its call.
+ */
+public interface AsyncXLTestServer {
+
+    ListenableFuture<Void> checkConnectionAsync();
+
+    /**
+     * @see XLTestServer#getTestSpecificationCatalog(TestSpecificationCatalog)
+     */
+    ListenableFuture<TestSpecificationCatalog> getTestSpecificationCatalogAsync(TestSpecificationCatalog previous);
+
+    ListenableFuture<ServerInfo> getServerInfoAsync();
+
+    /**
+     * The archive is written on a dispatcher thread while the request is sent. The future fails with a
+     * {@link DeadlineExceededException} when the upload was cancelled at the deadline.
+     */
+    ListenableFuture<Void> uploadTestRunAsync(String testSpecificationId, TestRunArchive archive, Map<String, Object> metadata, Deadline deadline,
+                                              PrintStream logger);
+}
@@ -0,0 +1,196 @@
+package com.xebialabs.xlt.ci.server;
+
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.google.common.base.Ticker;
+
+import static java.lang.String.format;
+
+/**
+ * Stops calling a server for a while once too many of the recent calls to it failed or were slow, so an outage costs
+ * every build a fast failure instead of a connect and read timeout per test specification.
+ * <p/>
+ * The outcome of the last {@link #WINDOW} calls is kept. When at least {@link #MIN_CALLS} of them are known and half or
+ * more failed or were slow, the circuit opens: calls fail right away for {@link #OPEN_MILLIS}. Then a single trial call
+ * is let through; the circuit closes when it succeeds and opens again when it does not. An upload only ends once the
+ * whole test run was sent, so once a trial has run for {@link #TRIAL_MILLIS} another call may try, such as a short
+ * request for the server version, and the first response the server handles closes the circuit.
+ */
+public class CircuitBreaker {
+    private static final Logger LOG = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    static final int WINDOW = 20;
+    static final int MIN_CALLS = 5;
+    static final int FAILURE_RATE_PERCENT = 50;
+    static final int SLOW_CALL_RATE_PERCENT = 50;
+    static final long SLOW_CALL_MILLIS = Long.getLong(CircuitBreaker.class.getName() + ".slowCallMillis", 5000);
+    static final long OPEN_MILLIS = TimeUnit.SECONDS.toMillis(Long.getLong(CircuitBreaker.class.getName() + ".openSeconds", 60));
+    static final long TRIAL_MILLIS = Long.getLong(CircuitBreaker.class.getName() + ".trialMillis", SLOW_CALL_MILLIS);
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private static final byte SUCCESS = 1;
+    private static final byte SLOW = 2;
+    private static final byte FAILURE = 3;
+
+    private final String serverUrl;
+    private final Ticker ticker;
+
+    // guarded by this
+    private final byte[] outcomes = new byte[WINDOW];
+    private int next;
+    private int calls;
+    private State state = State.CLOSED;
+    private long openedAt;
+    private boolean trialRunning;
+    private long trialStartedAt;
+    private String reason;
+
+    public CircuitBreaker(String serverUrl) {
+        this(serverUrl, Ticker.systemTicker());
+    }
+
+    CircuitBreaker(String serverUrl, Ticker ticker) {
+        this.serverUrl = serverUrl;
+        this.ticker = ticker;
+    }
+
+    /**
+     * Call before every call to the server.
+     *
+     * @throws CircuitOpenException when the server should not be called now
+     */
+    public synchronized void acquire() {
+        if (state == State.OPEN) {
+            long remaining = OPEN_MILLIS - millisSince(openedAt);
+            if (remaining > 0) {
+                throw new CircuitOpenException(format("XL TestView at %s is considered unavailable for another %d s, since %s",
+                        serverUrl, toSecondsRoundingUp(remaining), reason));
+            }
+            state = State.HALF_OPEN;
+        }
+        if (state == State.HALF_OPEN) {
+            if (trialRunning && millisSince(trialStartedAt) < TRIAL_MILLIS) {
+                throw new CircuitOpenException(format("XL TestView at %s is considered unavailable while a trial call checks whether it recovered, since %s",
+                        serverUrl, reason));
+            }
+            trialRunning = true;
+            trialStartedAt = ticker.read();
+        }
+    }
+
+    /**
+     * Records a call that got a response the server could handle.
+     *
+     * @param millis how long the call took, or -1 when that says nothing about the server, e.g. for uploads
+     */
+    public synchronized void succeeded(long millis) {
+        record(millis >= SLOW_CALL_MILLIS ? SLOW : SUCCESS);
+    }
+
+    /**
+     * Records a call that failed to connect, timed out or got a server error.
+     */
+    public synchronized void failed() {
+        record(FAILURE);
+    }
+
+    /**
+     * Records a call that was cancelled before it completed, which says nothing about the server.
+     */
+    public synchronized void cancelled() {
+        if (state == State.HALF_OPEN) {
+            trialRunning = false;
+        }
+    }
+
+    private void record(byte outcome) {
+        if (state == State.HALF_OPEN) {
+            trialRunning = false;
+            if (outcome == SUCCESS) {
+                LOG.info("XL TestView at {} recovered, closing the circuit", serverUrl);
+                reset(State.CLOSED);
+            } else {
+                reason = "the trial call " + (outcome == SLOW ? "was slow" : "failed");
+                open();
+            }
+            return;
+        }
+        if (state == State.OPEN) {
+            // a call that started before the circuit opened
+            return;
+        }
+        outcomes[next] = outcome;
+        next = (next + 1) % WINDOW;
+        calls = Math.min(calls + 1, WINDOW);
+        if (calls < MIN_CALLS) {
+            return;
+        }
+        int failures = count(FAILURE);
+        int slow = count(SLOW);
+        if (failures * 100 >= FAILURE_RATE_PERCENT * calls) {
+            reason = format("%d of the last %d calls failed", failures, calls);
+            open();
+        } else if (slow * 100 >= SLOW_CALL_RATE_PERCENT * calls) {
+            reason = format("%d of the last %d calls took longer than %d ms", slow, calls, SLOW_CALL_MILLIS);
+            open();
+        }
+    }
+
+    private void open() {
+        LOG.warn("Opening the circuit to XL TestView at {} for {} s, since {}", serverUrl, TimeUnit.MILLISECONDS.toSeconds(OPEN_MILLIS), reason);
+        reset(State.OPEN);
+        openedAt = ticker.read();
+    }
+
+    private void reset(State state) {
+        this.state = state;
+        calls = 0;
+        next = 0;
+        trialRunning = false;
+    }
+
+    private int count(byte outcome) {
+        int count = 0;
+        for (int i = 0; i < calls; i++) {
+            if (outcomes[i] == outcome) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private long millisSince(long nanos) {
+        return TimeUnit.NANOSECONDS.toMillis(ticker.read() - nanos);
+    }
+
+    private static long toSecondsRoundingUp(long millis) {
+        return (millis + 999) / 1000;
+    }
+
+    public synchronized State getState() {
+        return state == State.OPEN && millisSince(openedAt) >= OPEN_MILLIS ? State.HALF_OPEN : state;
+    }
+
+    public String getServerUrl() {
+        return serverUrl;
+    }
+
+    /**
+     * @return the state in a few words, for the global configuration page
+     */
+    public synchronized String describe() {
+        switch (getState()) {
+            case OPEN:
+                return format("%s: open for another %d s, since %s", serverUrl,
+                        toSecondsRoundingUp(OPEN_MILLIS - millisSince(openedAt)), reason);
+            case HALF_OPEN:
+                return format("%s: half-open, letting a trial call through, since %s", serverUrl, reason);
+            default:
+                return format("%s: closed, %d failed and %d slow of the last %d calls", serverUrl, count(FAILURE), count(SLOW), calls);
+        }
+    }
+}
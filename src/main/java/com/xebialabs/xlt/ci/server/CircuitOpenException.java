@@ -0,0 +1,11 @@
+package com.xebialabs.xlt.ci.server;
+
+/**
+ * Thrown instead of calling a server that recently kept failing or responding slowly.
+ */
+public class CircuitOpenException extends ConnectionException {
+
+    public CircuitOpenException(final String s) {
+        super(s);
+    }
+}
@@ -0,0 +1,65 @@
+package com.xebialabs.xlt.ci.server;
+
+import java.io.Serializable;
+import java.util.zip.Deflater;
+import com.google.common.base.Objects;
+
+/**
+ * Decides per entry whether to deflate it, and how hard.
+ */
+public final class CompressionPolicy implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public static final int DEFAULT_LEVEL = 6;
+
+    public static final CompressionPolicy DEFAULT = new CompressionPolicy(DEFAULT_LEVEL, true);
+
+    private final int level;
+    private final boolean storeCompressedContent;
+
+    /**
+     * @param level                  deflate level from 0 (store everything) to 9
+     * @param storeCompressedContent store images, videos and archives instead of deflating them again
+     */
+    public CompressionPolicy(int level, boolean storeCompressedContent) {
+        if (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Compression level must be between 0 and 9, not " + level);
+        }
+        this.level = level;
+        this.storeCompressedContent = storeCompressedContent;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    public boolean isStoreCompressedContent() {
+        return storeCompressedContent;
+    }
+
+    public boolean shouldStore(ContentClass contentClass) {
+        return level == Deflater.NO_COMPRESSION || storeCompressedContent && contentClass.isCompressed();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof CompressionPolicy)) {
+            return false;
+        }
+        CompressionPolicy other = (CompressionPolicy) o;
+        return level == other.level && storeCompressedContent == other.storeCompressedContent;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hashCode(level, storeCompressedContent);
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this)
+                .add("level", level)
+                .add("storeCompressedContent", storeCompressedContent)
+                .toString();
+    }
+}
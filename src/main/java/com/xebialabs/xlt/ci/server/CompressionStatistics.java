@@ -0,0 +1,104 @@
+package com.xebialabs.xlt.ci.server;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import hudson.Functions;
+
+import static java.lang.String.format;
+
+/**
+ * What zipping the files of a test run achieved, per {@link ContentClass}. Collected where the workspace lives and
+ * sent back to the master.
+ */
+public class CompressionStatistics implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final Map<ContentClass, long[]> totals = new EnumMap<ContentClass, long[]>(ContentClass.class);
+    private int entries;
+    private long compactedFiles;
+    private long compactedSize;
+    private long compactedToSize;
+
+    synchronized void add(ContentClass contentClass, long size, long compressedSize, long nanos) {
+        long[] total = totals.get(contentClass);
+        if (total == null) {
+            total = new long[4];
+            totals.put(contentClass, total);
+        }
+        total[0]++;
+        total[1] += size;
+        total[2] += compressedSize;
+        total[3] += nanos;
+    }
+
+    synchronized void addCompacted(long size, long compactedSize) {
+        compactedFiles++;
+        this.compactedSize += size;
+        compactedToSize += compactedSize;
+    }
+
+    /**
+     * Adds what zipping another archive achieved, e.g. that of one configuration of a matrix build.
+     */
+    void addAll(CompressionStatistics other) {
+        Map<ContentClass, long[]> otherTotals = new EnumMap<ContentClass, long[]>(ContentClass.class);
+        long[] otherCompacted;
+        synchronized (other) {
+            for (Map.Entry<ContentClass, long[]> entry : other.totals.entrySet()) {
+                otherTotals.put(entry.getKey(), entry.getValue().clone());
+            }
+            otherCompacted = new long[]{other.compactedFiles, other.compactedSize, other.compactedToSize};
+        }
+        synchronized (this) {
+            for (Map.Entry<ContentClass, long[]> entry : otherTotals.entrySet()) {
+                long[] total = totals.get(entry.getKey());
+                if (total == null) {
+                    totals.put(entry.getKey(), entry.getValue());
+                } else {
+                    for (int i = 0; i < total.length; i++) {
+                        total[i] += entry.getValue()[i];
+                    }
+                }
+            }
+            compactedFiles += otherCompacted[0];
+            compactedSize += otherCompacted[1];
+            compactedToSize += otherCompacted[2];
+        }
+    }
+
+    /**
+     * @return the number of entries in the archive
+     */
+    public int getEntries() {
+        return entries;
+    }
+
+    void setEntries(int entries) {
+        this.entries = entries;
+    }
+
+    /**
+     * @return one line per content class, with the number of files, the sizes before and after and the time spent
+     * compressing on all threads together, and a line on the XML files compacted before compressing
+     */
+    public synchronized List<String> describe() {
+        List<String> lines = new ArrayList<String>();
+        for (Map.Entry<ContentClass, long[]> entry : totals.entrySet()) {
+            long[] total = entry.getValue();
+            lines.add(format("%s: %d files, %s to %s (%.1f%%) in %d ms", entry.getKey().getLabel(), total[0],
+                    Functions.humanReadableByteSize(total[1]), Functions.humanReadableByteSize(total[2]),
+                    total[1] == 0 ? 100.0 : 100.0 * total[2] / total[1], TimeUnit.NANOSECONDS.toMillis(total[3])));
+        }
+        if (compactedFiles > 0) {
+            lines.add(format("xml compaction: %d files, %s to %s, saved %s", compactedFiles,
+                    Functions.humanReadableByteSize(compactedSize), Functions.humanReadableByteSize(compactedToSize),
+                    Functions.humanReadableByteSize(compactedSize - compactedToSize)));
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,104 @@
+package com.xebialabs.xlt.ci.server;
+
+import java.util.Locale;
+
+/**
+ * The kinds of files found next to test results, told apart by extension or, failing that, by their first bytes.
+ */
+public enum ContentClass {
+    TEXT("text", false),
+    IMAGE("images", true),
+    VIDEO("videos", true),
+    ARCHIVE("archives", true),
+    OTHER("other files", false);
+
+    /**
+     * Number of leading bytes needed to recognize a file by its content.
+     */
+    public static final int HEAD_SIZE = 12;
+
+    private final String label;
+    private final boolean compressed;
+
+    ContentClass(String label, boolean compressed) {
+        this.label = label;
+        this.compressed = compressed;
+    }
+
+    public String getLabel() {
+        return label;
+    }
+
+    /**
+     * @return whether files of this class are compressed already, so deflating them gains next to nothing
+     */
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+    public static ContentClass of(String name, byte[] head, int length) {
+        ContentClass byExtension = byExtension(name);
+        return byExtension != null ? byExtension : byContent(head, length);
+    }
+
+    static ContentClass byExtension(String name) {
+        int dot = name.lastIndexOf('.');
+        if (dot < 0 || dot < name.lastIndexOf('/')) {
+            return null;
+        }
+        String extension = name.substring(dot + 1).toLowerCase(Locale.ENGLISH);
+        if (extension.matches("xml|json|txt|log|html?|csv|properties|js|css|svg|feature|trx|jtl")) {
+            return TEXT;
+        }
+        if (extension.matches("png|jpe?g|gif|webp")) {
+            return IMAGE;
+        }
+        if (extension.matches("mp4|m4v|webm|mkv|mov|flv")) {
+            return VIDEO;
+        }
+        if (extension.matches("zip|jar|war|ear|gz|tgz|bz2|xz|7z|zst")) {
+            return ARCHIVE;
+        }
+        return null;
+    }
+
+    static ContentClass byContent(byte[] head, int length) {
+        if (startsWith(head, length, 0x89, 'P', 'N', 'G') || startsWith(head, length, 0xFF, 0xD8, 0xFF)
+                || startsWith(head, length, 'G', 'I', 'F', '8')
+                || startsWith(head, length, 'R', 'I', 'F', 'F') && length >= 12 && head[8] == 'W' && head[9] == 'E' && head[10] == 'B' && head[11] == 'P') {
+            return IMAGE;
+        }
+        if (length >= 8 && head[4] == 'f' && head[5] == 't' && head[6] == 'y' && head[7] == 'p'
+                || startsWith(head, length, 0x1A, 0x45, 0xDF, 0xA3)) {
+            return VIDEO;
+        }
+        if (startsWith(head, length, 'P', 'K', 3, 4) || startsWith(head, length, 0x1F, 0x8B) || startsWith(head, length, 'B', 'Z', 'h')
+                || startsWith(head, length, 0xFD, '7', 'z', 'X', 'Z', 0) || startsWith(head, length, '7', 'z', 0xBC, 0xAF, 0x27, 0x1C)
+                || startsWith(head, length, 0x28, 0xB5, 0x2F, 0xFD)) {
+            return ARCHIVE;
+        }
+        return length > 0 && isText(head, length) ? TEXT : OTHER;
+    }
+
+    private static boolean startsWith(byte[] head, int length, int... magic) {
+        if (length < magic.length) {
+            return false;
+        }
+        for (int i = 0; i < magic.length; i++) {
+            if ((head[i] & 0xFF) != magic[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isText(byte[] head, int length) {
+        for (int i = 0; i < length; i++) {
+            int b = head[i] & 0xFF;
+            if (b < 0x09 || b > 0x0D && b < 0x20 && b != 0x1B) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
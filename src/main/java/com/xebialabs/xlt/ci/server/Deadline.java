@@ -0,0 +1,85 @@
+package com.xebialabs.xlt.ci.server;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import com.google.common.util.concurrent.Futures;
+import com.squareup.okhttp.Call;
+
+import jenkins.util.Timer;
+
+/**
+ * The time left for sending one test run, from zipping the files to the server importing them.
+ */
+public final class Deadline {
+
+    /**
+     * No deadline; calls only end by their timeouts.
+     */
+    public static final Deadline NONE = new Deadline(Long.MAX_VALUE, 0);
+
+    private final long budgetMillis;
+    private final long startedAt;
+
+    private Deadline(long budgetMillis, long startedAt) {
+        this.budgetMillis = budgetMillis;
+        this.startedAt = startedAt;
+    }
+
+    /**
+     * @param millis the time left, at most 0 for a deadline that passed already, or {@link Long#MAX_VALUE} for none
+     */
+    public static Deadline after(long millis) {
+        return millis == Long.MAX_VALUE ? NONE : new Deadline(millis, System.nanoTime());
+    }
+
+    /**
+     * @return the milliseconds left, 0 once the deadline passed, or {@link Long#MAX_VALUE} when there is none
+     */
+    public long getRemainingMillis() {
+        if (this == NONE) {
+            return Long.MAX_VALUE;
+        }
+        return Math.max(0, budgetMillis - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt));
+    }
+
+    public boolean isExpired() {
+        return getRemainingMillis() == 0;
+    }
+
+    /**
+     * @throws DeadlineExceededException when the deadline passed
+     */
+    public void check() {
+        if (isExpired()) {
+            throw exceeded();
+        }
+    }
+
+    DeadlineExceededException exceeded() {
+        return new DeadlineExceededException(String.format("Sending the test run did not complete within its deadline of %d s and was cancelled",
+                TimeUnit.MILLISECONDS.toSeconds(budgetMillis)));
+    }
+
+    /**
+     * Cancels the call once the deadline passes, which makes it fail wherever it is: connecting, writing the archive
+     * or waiting for the server to import it.
+     *
+     * @return cancel it when the call completed
+     */
+    Future<?> cancelWhenExpired(final Call call) {
+        if (this == NONE) {
+            return Futures.immediateFuture(null);
+        }
+        return Timer.get().schedule(new Runnable() {
+            @Override
+            public void run() {
+                call.cancel();
+            }
+        }, getRemainingMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public String toString() {
+        return this == NONE ? "no deadline" : getRemainingMillis() + " ms left";
+    }
+}
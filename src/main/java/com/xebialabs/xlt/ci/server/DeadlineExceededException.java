@@ -0,0 +1,11 @@
+package com.xebialabs.xlt.ci.server;
+
+/**
+ * Thrown when an upload was cancelled because it did not complete within its {@link Deadline}.
+ */
+public class DeadlineExceededException extends IllegalStateException {
+
+    public DeadlineExceededException(final String s) {
+        super(s);
+    }
+}
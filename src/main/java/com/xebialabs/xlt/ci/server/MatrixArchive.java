@@ -0,0 +1,195 @@
+package com.xebialabs.xlt.ci.server;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.apache.commons.io.IOUtils;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import hudson.FilePath;
+import hudson.util.DirScanner;
+
+import static java.lang.String.format;
+
+/**
+ * One archive with the files of all configurations of a matrix build, each under a directory named after its
+ * configuration.
+ * <p/>
+ * The configurations are zipped one after another where their workspaces live and streamed through a small pipe, so
+ * zipping a configuration waits for the upload to catch up and at most {@link #PIPE_SIZE} bytes of it are held here.
+ * Their entries are copied as they were compressed, only renamed; the archivers of the configurations write sizes and
+ * checksums before the data, so nothing is inflated or deflated again.
+ */
+public class MatrixArchive extends TestRunArchive {
+    static final int PIPE_SIZE = 64 * 1024;
+
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int DATA_DESCRIPTOR_FLAG = 1 << 3;
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+    private static final long MAX_32 = 0xFFFFFFFFL;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final List<Cell> cells;
+    private volatile CompressionStatistics statistics;
+
+    public MatrixArchive(List<Cell> cells) {
+        this.cells = new ArrayList<Cell>(cells);
+    }
+
+    /**
+     * @return what compressing achieved in all configurations together the last time the archive was written
+     */
+    @Override
+    public CompressionStatistics getStatistics() {
+        return statistics;
+    }
+
+    @Override
+    public int writeTo(OutputStream out) throws IOException, InterruptedException {
+        ExecutorService executor = Executors.newSingleThreadExecutor(
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("XL TestView matrix archive %d").build());
+        try {
+            CompressionStatistics combined = new CompressionStatistics();
+            // only writes the copied entries, its threads stay idle
+            ParallelZipArchiver zip = new ParallelZipArchiver(out, 1, 0, CompressionPolicy.DEFAULT);
+            try {
+                for (Cell cell : cells) {
+                    combined.addAll(copy(cell, zip, executor));
+                }
+            } finally {
+                zip.close();
+            }
+            combined.setEntries(zip.countEntries());
+            statistics = combined;
+            return combined.getEntries();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static CompressionStatistics copy(final Cell cell, ParallelZipArchiver zip, ExecutorService executor)
+            throws IOException, InterruptedException {
+        final PipedInputStream in = new PipedInputStream(PIPE_SIZE);
+        final PipedOutputStream pipe = new PipedOutputStream(in);
+        Future<CompressionStatistics> archived = executor.submit(new Callable<CompressionStatistics>() {
+            @Override
+            public CompressionStatistics call() throws Exception {
+                try {
+                    return WorkspaceArchive.archive(cell.workspace, cell.archiver, pipe, cell.scanner);
+                } finally {
+                    pipe.close();
+                }
+            }
+        });
+        try {
+            DataInputStream cellZip = new DataInputStream(in);
+            byte[] header = new byte[30];
+            while (true) {
+                cellZip.readFully(header, 0, 4);
+                if (readInt(header, 0) != LOCAL_HEADER_SIGNATURE) {
+                    // the central directory
+                    break;
+                }
+                cellZip.readFully(header, 4, header.length - 4);
+                int flags = readShort(header, 6);
+                int method = readShort(header, 8);
+                int dosTime = readInt(header, 10);
+                long crc = readInt(header, 14) & MAX_32;
+                long compressedSize = readInt(header, 18) & MAX_32;
+                long size = readInt(header, 22) & MAX_32;
+                byte[] name = new byte[readShort(header, 26)];
+                byte[] extra = new byte[readShort(header, 28)];
+                cellZip.readFully(name);
+                cellZip.readFully(extra);
+                String entryName = new String(name, UTF_8);
+                if ((flags & DATA_DESCRIPTOR_FLAG) != 0) {
+                    throw new IOException(format("The archive of %s has no sizes before the data of %s", cell.prefix, entryName));
+                }
+                if (size == MAX_32 || compressedSize == MAX_32) {
+                    long[] sizes = readZip64Sizes(extra);
+                    size = sizes[0];
+                    compressedSize = sizes[1];
+                }
+                if (entryName.endsWith("/")) {
+                    IOUtils.skipFully(cellZip, compressedSize);
+                    continue;
+                }
+                zip.copy(cell.prefix + entryName, dosTime, method, crc, size, compressedSize, cellZip);
+            }
+            // drain what follows the entries, so the archiver is not left blocking on a full pipe
+            byte[] buffer = new byte[8192];
+            while (in.read(buffer) != -1) {
+                // ignore the central directory
+            }
+            return archived.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof InterruptedException) {
+                throw (InterruptedException) cause;
+            }
+            throw new IOException("Unable to zip the files of " + cell.prefix, cause);
+        } finally {
+            // fails the archiver if we stopped reading early
+            in.close();
+            archived.cancel(true);
+        }
+    }
+
+    private static long[] readZip64Sizes(byte[] extra) throws IOException {
+        for (int i = 0; i + 4 <= extra.length; ) {
+            int id = readShort(extra, i);
+            int length = readShort(extra, i + 2);
+            if (id == ZIP64_EXTRA_ID && length >= 16 && i + 4 + length <= extra.length) {
+                return new long[]{readLong(extra, i + 4), readLong(extra, i + 12)};
+            }
+            i += 4 + length;
+        }
+        throw new IOException("Zip64 entry without its sizes");
+    }
+
+    private static int readShort(byte[] b, int i) {
+        return (b[i] & 0xFF) | (b[i + 1] & 0xFF) << 8;
+    }
+
+    private static int readInt(byte[] b, int i) {
+        return readShort(b, i) | readShort(b, i + 2) << 16;
+    }
+
+    private static long readLong(byte[] b, int i) {
+        return (readInt(b, i) & MAX_32) | (long) readInt(b, i + 4) << 32;
+    }
+
+    /**
+     * The files of one configuration.
+     */
+    public static final class Cell {
+        private final String prefix;
+        private final FilePath workspace;
+        private final DirScanner scanner;
+        private final ParallelZipArchiverFactory archiver;
+
+        /**
+         * @param name     the directory to put the files of the configuration in
+         * @param archiver zips the files where the workspace lives, writing the sizes of each entry before its data
+         */
+        public Cell(String name, FilePath workspace, DirScanner scanner, ParallelZipArchiverFactory archiver) {
+            this.prefix = name.endsWith("/") ? name : name + "/";
+            this.workspace = workspace;
+            this.scanner = scanner;
+            this.archiver = archiver;
+        }
+    }
+}
@@ -0,0 +1,562 @@
+package com.xebialabs.xlt.ci.server;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.CountingOutputStream;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import hudson.util.io.Archiver;
+
+/**
+ * Zips files while deflating up to a fixed number of entries concurrently.
+ * <p/>
+ * Entries are written in the order in which they are visited, each as soon as it and all entries before it are
+ * compressed, so the archive streams while later files are still being deflated. At most a few entries per thread are
+ * compressed ahead. Their data is kept in memory as long as the file is no larger than the in-memory limit and all
+ * entries held fit in the memory budget of the archiver; otherwise it is deflated to a temporary file, so memory does
+ * not grow with the number of threads. Sizes and checksums are known before an entry is written, so no data descriptors
+ * are needed. Zip64 records are added when the archive outgrows the classic format.
+ * <p/>
+ * The {@link CompressionPolicy} decides per entry whether it is deflated or stored as is. Stored files that do not fit
+ * in memory are read again from the workspace when they are written, instead of being copied. XML files are passed
+ * through the {@link XmlCompaction} before they are deflated; those that are not well-formed are zipped as they are.
+ */
+class ParallelZipArchiver extends Archiver {
+    static final int DEFAULT_IN_MEMORY_LIMIT = 4 * 1024 * 1024;
+
+    /**
+     * Bytes all entries of one archive waiting to be written may hold in memory, however many threads compress them.
+     */
+    static final int DEFAULT_MEMORY_BUDGET = Integer.getInteger(ParallelZipArchiver.class.getName() + ".memoryBudgetMB", 32) * 1024 * 1024;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50;
+    private static final int ZIP64_END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06064b50;
+    private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+    private static final int UTF8_NAMES = 1 << 11;
+    private static final int VERSION = 20;
+    private static final int VERSION_ZIP64 = 45;
+    private static final long MAX_32 = 0xFFFFFFFFL;
+    private static final int MAX_16 = 0xFFFF;
+
+    static final int STORED = 0;
+    static final int DEFLATED = 8;
+
+    private final CountingOutputStream out;
+    private final ExecutorService pool;
+    private final int maxPending;
+    private final int inMemoryLimit;
+    private final int memoryBudget;
+    // bytes of the budget not held by entries waiting to be written
+    private final Semaphore memory;
+    private final AtomicInteger peakMemory = new AtomicInteger();
+    private final CompressionPolicy policy;
+    private final XmlCompaction compaction;
+    private final CompressionStatistics statistics = new CompressionStatistics();
+    private final Deque<Future<Entry>> pending = new ArrayDeque<Future<Entry>>();
+    private final List<Entry> written = new ArrayList<Entry>();
+
+    ParallelZipArchiver(OutputStream out, int threads, int inMemoryLimit, CompressionPolicy policy) {
+        this(out, threads, inMemoryLimit, policy, XmlCompaction.NONE);
+    }
+
+    ParallelZipArchiver(OutputStream out, int threads, int inMemoryLimit, CompressionPolicy policy, XmlCompaction compaction) {
+        this(out, threads, inMemoryLimit, DEFAULT_MEMORY_BUDGET, policy, compaction);
+    }
+
+    /**
+     * @param memoryBudget bytes the entries waiting to be written may hold in memory together
+     */
+    ParallelZipArchiver(OutputStream out, int threads, int inMemoryLimit, int memoryBudget, CompressionPolicy policy, XmlCompaction compaction) {
+        this.out = new CountingOutputStream(new BufferedOutputStream(out, BUFFER_SIZE));
+        this.pool = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder()
+                .setNameFormat("XL TestView zip %d").setDaemon(true).build());
+        this.maxPending = threads * 4;
+        this.inMemoryLimit = inMemoryLimit;
+        this.memoryBudget = memoryBudget;
+        this.memory = new Semaphore(memoryBudget);
+        this.policy = policy;
+        this.compaction = compaction;
+    }
+
+    /**
+     * @return the most bytes entries held in memory at the same time
+     */
+    int getPeakMemory() {
+        return peakMemory.get();
+    }
+
+    CompressionStatistics getStatistics() {
+        statistics.setEntries(countEntries());
+        return statistics;
+    }
+
+    @Override
+    public void visit(final File f, String relativePath) throws IOException {
+        final boolean directory = f.isDirectory();
+        String name = relativePath.replace('\\', '/');
+        if (directory && !name.endsWith("/")) {
+            name += '/';
+        }
+        final String entryName = name;
+        pending.add(pool.submit(new Callable<Entry>() {
+            @Override
+            public Entry call() throws IOException {
+                return directory ? new Entry(entryName, f.lastModified()) : compress(entryName, f);
+            }
+        }));
+        entriesWritten++;
+        writeCompleted(false);
+    }
+
+    /**
+     * Writes an entry that another archiver compressed, copying its data as it is. Used to merge archives without
+     * inflating and deflating their entries again.
+     *
+     * @param data the compressed data, of which {@code compressedSize} bytes are read
+     */
+    void copy(String name, int dosTime, int method, long crc, long size, long compressedSize, InputStream data) throws IOException {
+        writeCompleted(true);
+        Entry entry = new Entry(name, dosTime, method, crc, size, compressedSize, data);
+        try {
+            writeEntry(entry);
+        } finally {
+            dispose(entry);
+        }
+        entriesWritten++;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            writeCompleted(true);
+            writeCentralDirectory();
+            out.flush();
+        } finally {
+            discardPending();
+            pool.shutdownNow();
+            out.close();
+        }
+    }
+
+    /**
+     * Writes the compressed entries at the head of the queue; blocks on the head when too many are in flight.
+     */
+    private void writeCompleted(boolean all) throws IOException {
+        while (!pending.isEmpty() && (all || pending.size() > maxPending || pending.peek().isDone())) {
+            Entry entry = await(pending.peek());
+            pending.poll();
+            try {
+                writeEntry(entry);
+            } finally {
+                dispose(entry);
+            }
+        }
+    }
+
+    private static Entry await(Future<Entry> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while zipping");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private void dispose(Entry entry) {
+        memory.release(entry.dispose());
+    }
+
+    /**
+     * Takes the bytes from the memory budget, if they are left.
+     *
+     * @return whether they were
+     */
+    private boolean reserve(int bytes) {
+        if (!memory.tryAcquire(bytes)) {
+            return false;
+        }
+        int held = memoryBudget - memory.availablePermits();
+        for (int peak = peakMemory.get(); held > peak && !peakMemory.compareAndSet(peak, held); peak = peakMemory.get()) {
+            // another thread raised the peak
+        }
+        return true;
+    }
+
+    private void discardPending() {
+        for (Future<Entry> future : pending) {
+            future.cancel(true);
+            if (future.isDone() && !future.isCancelled()) {
+                try {
+                    dispose(future.get());
+                } catch (Exception ignored) {
+                    // nothing was stored for a failed entry
+                }
+            }
+        }
+        pending.clear();
+    }
+
+    private Entry compress(String name, File f) throws IOException {
+        long start = System.nanoTime();
+        InputStream in = new FileInputStream(f);
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int head = 0;
+            int n;
+            while (head < ContentClass.HEAD_SIZE && (n = in.read(buffer, head, BUFFER_SIZE - head)) != -1) {
+                head += n;
+            }
+            ContentClass contentClass = ContentClass.of(name, buffer, head);
+            Entry entry;
+            if (policy.shouldStore(contentClass)) {
+                entry = store(name, f, in, buffer, head);
+            } else if (compaction.appliesTo(name, contentClass)) {
+                entry = compact(name, f, in, buffer, head);
+            } else {
+                entry = deflate(name, f, in, buffer, head, null);
+            }
+            statistics.add(contentClass, entry.size, entry.compressedSize, System.nanoTime() - start);
+            return entry;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Checksums the file; keeps its bytes when they fit in memory, and otherwise reads it again when it is written.
+     */
+    private Entry store(String name, File f, InputStream in, byte[] buffer, int head) throws IOException {
+        int reserved = (int) Math.min(Math.max(f.length(), 32), Integer.MAX_VALUE);
+        boolean inMemory = f.length() <= inMemoryLimit && reserve(reserved);
+        boolean done = false;
+        try {
+            ByteArrayOutputStream bytes = inMemory ? new ByteArrayOutputStream(reserved) : null;
+            CRC32 crc = new CRC32();
+            long size = 0;
+            for (int n = head; n != -1; n = in.read(buffer)) {
+                crc.update(buffer, 0, n);
+                if (bytes != null) {
+                    bytes.write(buffer, 0, n);
+                }
+                size += n;
+            }
+            Entry entry = new Entry(name, f.lastModified(), STORED, crc.getValue(), size, size, bytes, null, inMemory ? null : f);
+            entry.reserved = inMemory ? reserved : 0;
+            done = true;
+            return entry;
+        } finally {
+            if (inMemory && !done) {
+                memory.release(reserved);
+            }
+        }
+    }
+
+    private Entry compact(String name, File f, InputStream in, byte[] buffer, int head) throws IOException {
+        long length = f.length();
+        try {
+            Entry entry = deflate(name, f, new SequenceInputStream(new ByteArrayInputStream(buffer, 0, head), in), buffer, 0, compaction);
+            statistics.addCompacted(length, entry.size);
+            return entry;
+        } catch (XmlCompaction.MalformedXmlException e) {
+            InputStream again = new FileInputStream(f);
+            try {
+                return deflate(name, f, again, buffer, 0, null);
+            } finally {
+                again.close();
+            }
+        }
+    }
+
+    /**
+     * @param compaction applied to the contents when not {@code null}
+     */
+    private Entry deflate(String name, File f, InputStream in, byte[] buffer, int head, XmlCompaction compaction) throws IOException {
+        // deflating adds a few bytes per block to data it cannot compress; the buffer is allocated whole, so it never grows
+        int reserved = (int) Math.min(f.length() + f.length() / 16 + 64, Integer.MAX_VALUE);
+        boolean inMemory = f.length() <= inMemoryLimit && reserve(reserved);
+        File spill = inMemory ? null : File.createTempFile("xltestview-entry", ".deflate");
+        ByteArrayOutputStream bytes = inMemory ? new ByteArrayOutputStream(reserved) : null;
+        OutputStream sink = inMemory ? bytes : new BufferedOutputStream(new FileOutputStream(spill), BUFFER_SIZE);
+
+        Deflater deflater = new Deflater(policy.getLevel(), true);
+        CRC32 crc = new CRC32();
+        boolean done = false;
+        try {
+            DeflaterOutputStream deflating = new DeflaterOutputStream(sink, deflater, BUFFER_SIZE);
+            if (compaction != null) {
+                compaction.compact(in, new CheckedOutputStream(deflating, crc));
+            } else {
+                for (int n = head; n != -1; n = in.read(buffer)) {
+                    crc.update(buffer, 0, n);
+                    deflating.write(buffer, 0, n);
+                }
+            }
+            deflating.finish();
+            sink.close();
+            Entry entry = new Entry(name, f.lastModified(), DEFLATED, crc.getValue(), deflater.getBytesRead(), deflater.getBytesWritten(), bytes, spill,
+                    null);
+            entry.reserved = inMemory ? reserved : 0;
+            done = true;
+            return entry;
+        } finally {
+            deflater.end();
+            if (!done) {
+                IOUtils.closeQuietly(sink);
+                if (inMemory) {
+                    memory.release(reserved);
+                }
+                if (spill != null) {
+                    spill.delete();
+                }
+            }
+        }
+    }
+
+    private void writeEntry(Entry entry) throws IOException {
+        entry.offset = out.getByteCount();
+        boolean zip64 = entry.size >= MAX_32 || entry.compressedSize >= MAX_32;
+
+        writeInt(LOCAL_HEADER_SIGNATURE);
+        writeShort(zip64 ? VERSION_ZIP64 : VERSION);
+        writeShort(UTF8_NAMES);
+        writeShort(entry.method);
+        writeInt(entry.dosTime);
+        writeInt((int) entry.crc);
+        writeInt((int) (zip64 ? MAX_32 : entry.compressedSize));
+        writeInt((int) (zip64 ? MAX_32 : entry.size));
+        writeShort(entry.name.length);
+        writeShort(zip64 ? 20 : 0);
+        out.write(entry.name);
+        if (zip64) {
+            writeShort(ZIP64_EXTRA_ID);
+            writeShort(16);
+            writeLong(entry.size);
+            writeLong(entry.compressedSize);
+        }
+        entry.writeDataTo(out);
+        written.add(entry);
+    }
+
+    private void writeCentralDirectory() throws IOException {
+        long start = out.getByteCount();
+        for (Entry entry : written) {
+            boolean size64 = entry.size >= MAX_32 || entry.compressedSize >= MAX_32;
+            boolean offset64 = entry.offset >= MAX_32;
+            int extra = (size64 ? 16 : 0) + (offset64 ? 8 : 0);
+            int version = extra > 0 ? VERSION_ZIP64 : VERSION;
+
+            writeInt(CENTRAL_HEADER_SIGNATURE);
+            writeShort(version);
+            writeShort(version);
+            writeShort(UTF8_NAMES);
+            writeShort(entry.method);
+            writeInt(entry.dosTime);
+            writeInt((int) entry.crc);
+            writeInt((int) (size64 ? MAX_32 : entry.compressedSize));
+            writeInt((int) (size64 ? MAX_32 : entry.size));
+            writeShort(entry.name.length);
+            writeShort(extra > 0 ? extra + 4 : 0);
+            writeShort(0); // comment
+            writeShort(0); // disk
+            writeShort(0); // internal attributes
+            writeInt(entry.directory ? 0x10 : 0);
+            writeInt((int) (offset64 ? MAX_32 : entry.offset));
+            out.write(entry.name);
+            if (extra > 0) {
+                writeShort(ZIP64_EXTRA_ID);
+                writeShort(extra);
+                if (size64) {
+                    writeLong(entry.size);
+                    writeLong(entry.compressedSize);
+                }
+                if (offset64) {
+                    writeLong(entry.offset);
+                }
+            }
+        }
+        long end = out.getByteCount();
+        long size = end - start;
+        int count = written.size();
+
+        if (count >= MAX_16 || start >= MAX_32 || size >= MAX_32) {
+            writeInt(ZIP64_END_OF_CENTRAL_DIRECTORY_SIGNATURE);
+            writeLong(44);
+            writeShort(VERSION_ZIP64);
+            writeShort(VERSION_ZIP64);
+            writeInt(0);
+            writeInt(0);
+            writeLong(count);
+            writeLong(count);
+            writeLong(size);
+            writeLong(start);
+
+            writeInt(ZIP64_LOCATOR_SIGNATURE);
+            writeInt(0);
+            writeLong(end);
+            writeInt(1);
+        }
+
+        writeInt(END_OF_CENTRAL_DIRECTORY_SIGNATURE);
+        writeShort(0);
+        writeShort(0);
+        writeShort(Math.min(count, MAX_16));
+        writeShort(Math.min(count, MAX_16));
+        writeInt((int) Math.min(size, MAX_32));
+        writeInt((int) Math.min(start, MAX_32));
+        writeShort(0);
+    }
+
+    private void writeShort(int value) throws IOException {
+        out.write(value & 0xFF);
+        out.write((value >>> 8) & 0xFF);
+    }
+
+    private void writeInt(int value) throws IOException {
+        writeShort(value & 0xFFFF);
+        writeShort(value >>> 16);
+    }
+
+    private void writeLong(long value) throws IOException {
+        writeInt((int) value);
+        writeInt((int) (value >>> 32));
+    }
+
+    private static int toDosTime(long time) {
+        Calendar c = Calendar.getInstance();
+        c.setTimeInMillis(time);
+        int year = c.get(Calendar.YEAR);
+        if (year < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+        return (year - 1980) << 25 | (c.get(Calendar.MONTH) + 1) << 21 | c.get(Calendar.DAY_OF_MONTH) << 16
+                | c.get(Calendar.HOUR_OF_DAY) << 11 | c.get(Calendar.MINUTE) << 5 | c.get(Calendar.SECOND) >> 1;
+    }
+
+    /**
+     * A compressed entry waiting to be written. Only its header fields are kept once it has been written.
+     */
+    static final class Entry {
+        private final byte[] name;
+        private final int dosTime;
+        private final boolean directory;
+        private final int method;
+        private final long crc;
+        private final long size;
+        private final long compressedSize;
+        private ByteArrayOutputStream bytes;
+        private File spill;
+        private final File source;
+        private InputStream compressed;
+        private long offset;
+        // bytes of the memory budget held by the data
+        private int reserved;
+
+        Entry(String name, long time) {
+            this(name, time, STORED, 0, 0, 0, null, null, null);
+        }
+
+        Entry(String name, long time, int method, long crc, long size, long compressedSize, ByteArrayOutputStream bytes, File spill,
+              File source) {
+            this(name, toDosTime(time), method, crc, size, compressedSize, bytes, spill, source, null);
+        }
+
+        Entry(String name, int dosTime, int method, long crc, long size, long compressedSize, InputStream compressed) {
+            this(name, dosTime, method, crc, size, compressedSize, null, null, null, compressed);
+        }
+
+        private Entry(String name, int dosTime, int method, long crc, long size, long compressedSize, ByteArrayOutputStream bytes, File spill,
+                      File source, InputStream compressed) {
+            this.name = name.getBytes(UTF_8);
+            this.dosTime = dosTime;
+            this.directory = name.endsWith("/");
+            this.method = method;
+            this.crc = crc;
+            this.size = size;
+            this.compressedSize = compressedSize;
+            this.bytes = bytes;
+            this.spill = spill;
+            this.source = source;
+            this.compressed = compressed;
+        }
+
+        void writeDataTo(OutputStream out) throws IOException {
+            if (bytes != null) {
+                bytes.writeTo(out);
+            } else if (spill != null) {
+                InputStream in = new FileInputStream(spill);
+                try {
+                    IOUtils.copyLarge(in, out);
+                } finally {
+                    in.close();
+                }
+            } else if (source != null) {
+                InputStream in = new FileInputStream(source);
+                try {
+                    if (IOUtils.copyLarge(in, out, 0, size) != size) {
+                        throw new IOException(source + " changed while it was being zipped");
+                    }
+                } finally {
+                    in.close();
+                }
+            } else if (compressed != null) {
+                if (IOUtils.copyLarge(compressed, out, 0, compressedSize) != compressedSize) {
+                    throw new EOFException("The archive ended in the middle of " + new String(name, UTF_8));
+                }
+            }
+        }
+
+        /**
+         * @return the bytes of the memory budget the data held, which it no longer does
+         */
+        int dispose() {
+            bytes = null;
+            compressed = null;
+            if (spill != null) {
+                spill.delete();
+                spill = null;
+            }
+            int released = reserved;
+            reserved = 0;
+            return released;
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package com.xebialabs.xlt.ci.server;
+
+import java.io.OutputStream;
+
+import hudson.util.io.Archiver;
+import hudson.util.io.ArchiverFactory;
+
+/**
+ * Creates zip archivers that compress entries on several threads of the machine the workspace lives on.
+ *
+ * @see ParallelZipArchiver
+ */
+public class ParallelZipArchiverFactory extends ArchiverFactory {
+    private static final long serialVersionUID = 1L;
+
+    private final int threads;
+    private final CompressionPolicy policy;
+    private final XmlCompaction compaction;
+
+    /**
+     * @param threads number of threads compressing entries, or 0 for one per core
+     */
+    public ParallelZipArchiverFactory(int threads, CompressionPolicy policy) {
+        this(threads, policy, XmlCompaction.NONE);
+    }
+
+    public ParallelZipArchiverFactory(int threads, CompressionPolicy policy, XmlCompaction compaction) {
+        this.threads = threads;
+        this.policy = policy;
+        this.compaction = compaction;
+    }
+
+    @Override
+    public Archiver create(OutputStream out) {
+        int n = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        return new ParallelZipArchiver(out, n, ParallelZipArchiver.DEFAULT_IN_MEMORY_LIMIT, policy, compaction);
+    }
+}
@@ -0,0 +1,149 @@
+/**
+ * Copyright (c) 2014-2015, XebiaLabs B.V., All rights reserved.
+ * <p/>
+ * The XL TestView plugin for Jenkins is licensed under the terms of the GPLv2
+ * <http://www.gnu.org/licenses/old-licenses/gpl-2.0.html>, like most XebiaLabs
+ * Libraries. There are special exceptions to the terms and conditions of the
+ * GPLv2 as it is applied to this software, see the FLOSS License Exception
+ * <https://github.com/jenkinsci/xltestview-plugin/blob/master/LICENSE>.
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; version 2 of the License.
+ * <p/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package com.xebialabs.xlt.ci.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import com.github.zafarkhaja.semver.ParseException;
+import com.github.zafarkhaja.semver.Version;
+import com.google.common.base.Objects;
+
+import com.xebialabs.xlt.ci.server.domain.ServerInfo;
+
+/**
+ * What a particular XL TestView version supports, parsed once from its {@link ServerInfo}.
+ */
+public class ServerCapabilities {
+
+    private static final Version LAST_WITHOUT_BUILD_DURATION = Version.forIntegers(1, 4, 3);
+
+    /**
+     * The first version that puts the parts of a test run sent while the build is running back together, if any.
+     * No released version is known to, so it has to be set with the system property
+     * {@code com.xebialabs.xlt.ci.server.ServerCapabilities.partialImportsSince}.
+     */
+    private static final Version FIRST_WITH_PARTIAL_IMPORTS = parseOptional(System.getProperty(ServerCapabilities.class.getName() + ".partialImportsSince"));
+
+    private final Version version;
+    private final Set<String> unsupportedMetadata;
+    private final boolean partialImports;
+
+    ServerCapabilities(Version version) {
+        this(version, FIRST_WITH_PARTIAL_IMPORTS);
+    }
+
+    /**
+     * @param firstWithPartialImports the first version that accepts test runs in parts, or {@code null} for none
+     */
+    ServerCapabilities(Version version, Version firstWithPartialImports) {
+        this.version = version;
+        this.partialImports = firstWithPartialImports != null && version.compareTo(firstWithPartialImports) >= 0;
+        Set<String> unsupported = new TreeSet<String>();
+        // pre-releases of 1.4.4 already accept it
+        if (version.compareTo(LAST_WITHOUT_BUILD_DURATION) <= 0) {
+            unsupported.add("buildDuration");
+        }
+        if (!partialImports) {
+            unsupported.add("importId");
+            unsupported.add("part");
+            unsupported.add("complete");
+        }
+        this.unsupportedMetadata = Collections.unmodifiableSet(unsupported);
+    }
+
+    private static Version parseOptional(String version) {
+        if (version == null || version.trim().isEmpty()) {
+            return null;
+        }
+        try {
+            return Version.valueOf(version.trim());
+        } catch (ParseException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return whether any XL TestView version is known to accept test runs in parts
+     */
+    public static boolean isPartialImportsVersionKnown() {
+        return FIRST_WITH_PARTIAL_IMPORTS != null;
+    }
+
+    /**
+     * @throws UnexpectedServerVersionException if the server reports a version we cannot interpret.
+     */
+    public static ServerCapabilities from(ServerInfo info) {
+        if (info == null || info.getVersion() == null) {
+            throw new UnexpectedServerVersionException("XL TestView did not report its version");
+        }
+        try {
+            return new ServerCapabilities(Version.valueOf(info.getVersion()));
+        } catch (ParseException e) {
+            throw new UnexpectedServerVersionException(String.format("XL TestView reported unexpected version '%s'", info.getVersion()));
+        }
+    }
+
+    public Version getVersion() {
+        return version;
+    }
+
+    public boolean supportsMetadata(String field) {
+        return !unsupportedMetadata.contains(field);
+    }
+
+    /**
+     * @return whether the server puts the parts of a test run sent with the same import id together; other servers
+     * import every part as a test run of its own
+     */
+    public boolean supportsPartialImports() {
+        return partialImports;
+    }
+
+    /**
+     * Removes the metadata fields this server version does not understand.
+     *
+     * @return the names of the removed fields
+     */
+    public List<String> removeUnsupportedMetadata(Map<String, Object> metadata) {
+        List<String> removed = new ArrayList<String>();
+        for (String field : unsupportedMetadata) {
+            if (metadata.remove(field) != null) {
+                removed.add(field);
+            }
+        }
+        return removed;
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this)
+                .add("version", version)
+                .add("unsupportedMetadata", unsupportedMetadata)
+                .add("partialImports", partialImports)
+                .toString();
+    }
+}
@@ -0,0 +1,131 @@
+/**
+ * Copyright (c) 2014-2015, XebiaLabs B.V., All rights reserved.
+ * <p/>
+ * The XL TestView plugin for Jenkins is licensed under the terms of the GPLv2
+ * <http://www.gnu.org/licenses/old-licenses/gpl-2.0.html>, like most XebiaLabs
+ * Libraries. There are special exceptions to the terms and conditions of the
+ * GPLv2 as it is applied to this software, see the FLOSS License Exception
+ * <https://github.com/jenkinsci/xltestview-plugin/blob/master/LICENSE>.
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; version 2 of the License.
+ * <p/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package com.xebialabs.xlt.ci.server;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Caches the {@link ServerCapabilities} of one server.
+ * <p/>
+ * Only the very first lookup does a blocking call to {@code /api/v1/info}. After the TTL has passed the cached value
+ * is still returned while a single refresh runs in the background, so uploads never wait for it.
+ */
+class ServerCapabilitiesCache {
+    private static final Logger LOG = LoggerFactory.getLogger(ServerCapabilitiesCache.class);
+
+    static final long DEFAULT_TTL_MILLIS = TimeUnit.SECONDS.toMillis(
+            Long.getLong(ServerCapabilitiesCache.class.getName() + ".ttlSeconds", 600));
+
+    private final XLTestServer server;
+    private final Executor executor;
+    private final long ttlMillis;
+    private final AtomicBoolean refreshing = new AtomicBoolean();
+
+    private volatile Cached cached;
+
+    ServerCapabilitiesCache(XLTestServer server, Executor executor, long ttlMillis) {
+        this.server = server;
+        this.executor = executor;
+        this.ttlMillis = ttlMillis;
+    }
+
+    ServerCapabilities get() {
+        Cached current = cached;
+        if (current == null) {
+            return load();
+        }
+        if (current.isExpired()) {
+            scheduleRefresh();
+        }
+        return current.capabilities;
+    }
+
+    void invalidate() {
+        LOG.debug("Invalidating capabilities of {}", server);
+        cached = null;
+    }
+
+    private synchronized ServerCapabilities load() {
+        Cached current = cached;
+        if (current == null) {
+            current = fetch();
+            cached = current;
+        }
+        return current.capabilities;
+    }
+
+    private void scheduleRefresh() {
+        if (!refreshing.compareAndSet(false, true)) {
+            return;
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    refresh();
+                } finally {
+                    refreshing.set(false);
+                }
+            }
+        });
+    }
+
+    private void refresh() {
+        try {
+            Cached fresh = fetch();
+            Cached previous = cached;
+            if (previous != null && !previous.capabilities.getVersion().equals(fresh.capabilities.getVersion())) {
+                LOG.info("XL TestView version changed from {} to {}", previous.capabilities.getVersion(), fresh.capabilities.getVersion());
+            }
+            cached = fresh;
+        } catch (UnexpectedServerVersionException e) {
+            LOG.warn("Dropping cached capabilities: {}", e.getMessage());
+            invalidate();
+        } catch (RuntimeException e) {
+            // keep serving the stale value, the next lookup will try again
+            LOG.warn("Unable to refresh XL TestView capabilities: {}", e.toString());
+        }
+    }
+
+    private Cached fetch() {
+        return new Cached(ServerCapabilities.from(server.getServerInfo()), System.currentTimeMillis() + ttlMillis);
+    }
+
+    private static final class Cached {
+        private final ServerCapabilities capabilities;
+        private final long expiresAt;
+
+        Cached(ServerCapabilities capabilities, long expiresAt) {
+            this.capabilities = capabilities;
+            this.expiresAt = expiresAt;
+        }
+
+        boolean isExpired() {
+            return System.currentTimeMillis() >= expiresAt;
+        }
+    }
+}
@@ -0,0 +1,555 @@
+package com.xebialabs.xlt.ci.server;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.PrintStream;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.google.common.base.Function;
+import com.google.common.base.Objects;
+import com.google.common.base.Predicate;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import com.xebialabs.xlt.ci.server.domain.ServerInfo;
+import com.xebialabs.xlt.ci.server.domain.TestSpecification;
+import com.xebialabs.xlt.ci.server.domain.TestSpecificationCatalog;
+
+import hudson.FilePath;
+import hudson.model.Label;
+import hudson.util.DirScanner;
+import hudson.util.io.ArchiverFactory;
+
+import antlr.ANTLRException;
+
+/**
+ * Several XL TestView nodes that serve the same data, without a load balancer in front of them.
+ * <p/>
+ * Each call goes to the healthy node with the least load, taken as the number of uploads in flight times the latency
+ * of {@code /api/v1/info}. Nodes are probed in the background; one that fails a probe or an upload is avoided until it
+ * answers a probe again. When no node is healthy, all of them are tried.
+ */
+public class ServerCluster {
+    private static final Logger LOG = LoggerFactory.getLogger(ServerCluster.class);
+
+    static final long PROBE_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(
+            Long.getLong(ServerCluster.class.getName() + ".probeSeconds", 30));
+
+    /**
+     * Weight of the latest probe in the average latency.
+     */
+    static final double ALPHA = 0.3;
+
+    private final List<Member> members;
+    private final AtomicInteger rotation = new AtomicInteger();
+    private volatile ScheduledFuture<?> probes;
+
+    /**
+     * @param servers creates the server of a node from its URL, when it is first used
+     */
+    public ServerCluster(List<Endpoint> endpoints, Function<String, XLTestServer> servers) {
+        if (endpoints.isEmpty()) {
+            throw new IllegalArgumentException("A cluster needs at least one node");
+        }
+        List<Member> members = new ArrayList<Member>();
+        for (Endpoint endpoint : endpoints) {
+            members.add(new Member(endpoint, servers));
+        }
+        this.members = Collections.unmodifiableList(members);
+    }
+
+    public List<Member> getMembers() {
+        return members;
+    }
+
+    public void start(ScheduledExecutorService executor) {
+        probes = executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                probe();
+            }
+        }, 0, PROBE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        ScheduledFuture<?> current = probes;
+        if (current != null) {
+            current.cancel(false);
+        }
+    }
+
+    /**
+     * Asks every node for its version, without waiting for the answers.
+     */
+    void probe() {
+        for (final Member member : members) {
+            final long start = System.nanoTime();
+            ListenableFuture<ServerInfo> info;
+            try {
+                info = member.getServer().getServerInfoAsync();
+            } catch (RuntimeException e) {
+                member.failed(e);
+                continue;
+            }
+            Futures.addCallback(info, new FutureCallback<ServerInfo>() {
+                @Override
+                public void onSuccess(ServerInfo result) {
+                    member.answered(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    member.failed(t);
+                }
+            });
+        }
+    }
+
+    /**
+     * @param preferred the nodes to use when any of them is healthy
+     */
+    public Member choose(Predicate<Member> preferred) {
+        List<Member> healthy = new ArrayList<Member>();
+        List<Member> healthyPreferred = new ArrayList<Member>();
+        for (Member member : members) {
+            if (member.healthy) {
+                healthy.add(member);
+                if (preferred.apply(member)) {
+                    healthyPreferred.add(member);
+                }
+            }
+        }
+        List<Member> candidates = !healthyPreferred.isEmpty() ? healthyPreferred : !healthy.isEmpty() ? healthy : members;
+
+        double sum = 0;
+        int measured = 0;
+        for (Member member : candidates) {
+            if (!Double.isNaN(member.latency)) {
+                sum += member.latency;
+                measured++;
+            }
+        }
+        double unknownLatency = measured == 0 ? 1 : sum / measured;
+
+        // start at a rotating offset, so nodes with the same load take turns
+        int offset = Math.abs(rotation.getAndIncrement() % candidates.size());
+        Member best = null;
+        double bestLoad = Double.MAX_VALUE;
+        for (int i = 0; i < candidates.size(); i++) {
+            Member member = candidates.get((offset + i) % candidates.size());
+            double latency = Double.isNaN(member.latency) ? unknownLatency : member.latency;
+            double load = (member.inFlight.get() + 1) * Math.max(latency, 1);
+            if (load < bestLoad) {
+                best = member;
+                bestLoad = load;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Returns a server that sends each call to the node chosen at that moment.
+     *
+     * @param preferred the nodes to use when any of them is healthy, e.g. those close to an agent
+     */
+    public XLTestServer route(Predicate<Member> preferred) {
+        return new Routed(preferred);
+    }
+
+    /**
+     * Returns a server that sends every call to the node chosen now, so the capabilities negotiated with it hold for
+     * the upload that follows.
+     *
+     * @param preferred the nodes to use when any of them is healthy, e.g. those close to an agent
+     */
+    public XLTestServer pin(Predicate<Member> preferred) {
+        return new Pinned(choose(preferred));
+    }
+
+    /**
+     * A node of the cluster, with an optional label expression of the Jenkins nodes that should prefer it.
+     */
+    public static final class Endpoint {
+        private final String serverUrl;
+        private final String labels;
+        // parsed on first use, since parsing needs Jenkins to be running
+        private final Supplier<Label> label;
+
+        public Endpoint(String serverUrl, String labels) {
+            this.serverUrl = serverUrl;
+            this.labels = labels == null ? "" : labels.trim();
+            this.label = Suppliers.memoize(new Supplier<Label>() {
+                @Override
+                public Label get() {
+                    if (Endpoint.this.labels.isEmpty()) {
+                        return null;
+                    }
+                    try {
+                        return Label.parseExpression(Endpoint.this.labels);
+                    } catch (ANTLRException e) {
+                        LOG.warn("Ignoring invalid label expression '{}' of XL TestView node {}", Endpoint.this.labels, Endpoint.this.serverUrl);
+                        return null;
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * What is known about a node of the cluster.
+     */
+    public static final class Member {
+        private final Endpoint endpoint;
+        private final Function<String, XLTestServer> servers;
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private volatile boolean healthy = true;
+        private volatile double latency = Double.NaN;
+        private volatile String problem;
+
+        Member(Endpoint endpoint, Function<String, XLTestServer> servers) {
+            this.endpoint = endpoint;
+            this.servers = servers;
+        }
+
+        public String getServerUrl() {
+            return endpoint.serverUrl;
+        }
+
+        /**
+         * @return the label expression of the Jenkins nodes that prefer this node, or an empty string
+         */
+        public String getLabels() {
+            return endpoint.labels;
+        }
+
+        /**
+         * @return the parsed label expression of the Jenkins nodes that prefer this node, or {@code null} when there is
+         * none or it is invalid
+         */
+        public Label getLabel() {
+            return endpoint.label.get();
+        }
+
+        XLTestServer getServer() {
+            return servers.apply(endpoint.serverUrl);
+        }
+
+        public boolean isHealthy() {
+            return healthy;
+        }
+
+        public int getInFlight() {
+            return inFlight.get();
+        }
+
+        /**
+         * @return the average latency of the probes in milliseconds, or NaN before the first answer
+         */
+        public double getLatency() {
+            return latency;
+        }
+
+        /**
+         * @return why the node was last found unhealthy
+         */
+        public String getProblem() {
+            return problem;
+        }
+
+        void begin() {
+            inFlight.incrementAndGet();
+        }
+
+        void end() {
+            inFlight.decrementAndGet();
+        }
+
+        synchronized void answered(long millis) {
+            latency = Double.isNaN(latency) ? millis : ALPHA * millis + (1 - ALPHA) * latency;
+            if (!healthy) {
+                LOG.info("XL TestView node {} is healthy again", endpoint.serverUrl);
+            }
+            healthy = true;
+        }
+
+        void failed(Throwable t) {
+            if (healthy) {
+                LOG.warn("XL TestView node {} is unhealthy: {}", endpoint.serverUrl, t.toString());
+            }
+            problem = t.getMessage();
+            healthy = false;
+        }
+
+        @Override
+        public String toString() {
+            return Objects.toStringHelper(this)
+                    .add("serverUrl", endpoint.serverUrl)
+                    .add("labels", endpoint.labels)
+                    .add("healthy", healthy)
+                    .add("inFlight", inFlight)
+                    .add("latency", latency)
+                    .toString();
+        }
+    }
+
+    private final class Routed implements XLTestServer {
+        private final Predicate<Member> preferred;
+
+        Routed(Predicate<Member> preferred) {
+            this.preferred = preferred;
+        }
+
+        private XLTestServer server() {
+            return choose(preferred).getServer();
+        }
+
+        @Override
+        public void checkConnection() {
+            server().checkConnection();
+        }
+
+        @Override
+        public Map<String, TestSpecification> getTestSpecifications() {
+            return server().getTestSpecifications();
+        }
+
+        @Override
+        public TestSpecificationCatalog getTestSpecificationCatalog(TestSpecificationCatalog previous) {
+            return server().getTestSpecificationCatalog(previous);
+        }
+
+        @Override
+        public void uploadTestRun(String testSpecificationId, FilePath workspace, String includes, String excludes, Map<String, Object> metadata,
+                                  PrintStream logger) throws InterruptedException, IOException {
+            pin(preferred).uploadTestRun(testSpecificationId, workspace, includes, excludes, metadata, logger);
+        }
+
+        @Override
+        public void uploadTestRun(String testSpecificationId, TestRunArchive archive, Map<String, Object> metadata, Deadline deadline,
+                                  PrintStream logger) throws InterruptedException, IOException {
+            pin(preferred).uploadTestRun(testSpecificationId, archive, metadata, deadline, logger);
+        }
+
+        @Override
+        public void uploadTestRun(String testSpecificationId, TestRunArchive archive, Map<String, Object> metadata, Deadline deadline,
+                                  String idempotencyKey, PrintStream logger) throws InterruptedException, IOException {
+            pin(preferred).uploadTestRun(testSpecificationId, archive, metadata, deadline, idempotencyKey, logger);
+        }
+
+        @Override
+        public void uploadTestRunFromAgent(String testSpecificationId, FilePath workspace, DirScanner scanner, ArchiverFactory archiver, boolean spool,
+                                           Map<String, Object> metadata, Deadline deadline, PrintStream logger) throws InterruptedException, IOException {
+            pin(preferred).uploadTestRunFromAgent(testSpecificationId, workspace, scanner, archiver, spool, metadata, deadline, logger);
+        }
+
+        @Override
+        public ListenableFuture<Void> uploadTestRunAsync(String testSpecificationId, TestRunArchive archive, Map<String, Object> metadata,
+                                                         Deadline deadline, PrintStream logger) {
+            return pin(preferred).uploadTestRunAsync(testSpecificationId, archive, metadata, deadline, logger);
+        }
+
+        @Override
+        public ServerInfo getServerInfo() {
+            return server().getServerInfo();
+        }
+
+        @Override
+        public ServerCapabilities getCapabilities() {
+            return server().getCapabilities();
+        }
+
+        @Override
+        public ListenableFuture<Void> checkConnectionAsync() {
+            return server().checkConnectionAsync();
+        }
+
+        @Override
+        public ListenableFuture<TestSpecificationCatalog> getTestSpecificationCatalogAsync(TestSpecificationCatalog previous) {
+            return server().getTestSpecificationCatalogAsync(previous);
+        }
+
+        @Override
+        public ListenableFuture<ServerInfo> getServerInfoAsync() {
+            return server().getServerInfoAsync();
+        }
+    }
+
+    /**
+     * Sends every call to one node, counting its uploads in flight and avoiding it after an upload could not reach it or
+     * the node answered with a server error. When the test run itself could not be read, the node is not to blame.
+     */
+    private static final class Pinned implements XLTestServer {
+        private final Member member;
+
+        Pinned(Member member) {
+            this.member = member;
+        }
+
+        @Override
+        public void checkConnection() {
+            member.getServer().checkConnection();
+        }
+
+        @Override
+        public Map<String, TestSpecification> getTestSpecifications() {
+            return member.getServer().getTestSpecifications();
+        }
+
+        @Override
+        public TestSpecificationCatalog getTestSpecificationCatalog(TestSpecificationCatalog previous) {
+            return member.getServer().getTestSpecificationCatalog(previous);
+        }
+
+        @Override
+        public void uploadTestRun(String testSpecificationId, FilePath workspace, String includes, String excludes, Map<String, Object> metadata,
+                                  PrintStream logger) throws InterruptedException, IOException {
+            begin(logger);
+            try {
+                member.getServer().uploadTestRun(testSpecificationId, workspace, includes, excludes, metadata, logger);
+            } catch (IOException e) {
+                blame(e);
+                throw e;
+            } catch (ServerErrorException e) {
+                blame(e);
+                throw e;
+            } finally {
+                member.end();
+            }
+        }
+
+        @Override
+        public void uploadTestRun(String testSpecificationId, TestRunArchive archive, Map<String, Object> metadata, Deadline deadline,
+                                  PrintStream logger) throws InterruptedException, IOException {
+            begin(logger);
+            try {
+                member.getServer().uploadTestRun(testSpecificationId, archive, metadata, deadline, logger);
+            } catch (IOException e) {
+                blame(e);
+                throw e;
+            } catch (ServerErrorException e) {
+                blame(e);
+                throw e;
+            } finally {
+                member.end();
+            }
+        }
+
+        @Override
+        public void uploadTestRun(String testSpecificationId, TestRunArchive archive, Map<String, Object> metadata, Deadline deadline,
+                                  String idempotencyKey, PrintStream logger) throws InterruptedException, IOException {
+            begin(logger);
+            try {
+                member.getServer().uploadTestRun(testSpecificationId, archive, metadata, deadline, idempotencyKey, logger);
+            } catch (IOException e) {
+                blame(e);
+                throw e;
+            } catch (ServerErrorException e) {
+                blame(e);
+                throw e;
+            } finally {
+                member.end();
+            }
+        }
+
+        @Override
+        public void uploadTestRunFromAgent(String testSpecificationId, FilePath workspace, DirScanner scanner, ArchiverFactory archiver, boolean spool,
+                                           Map<String, Object> metadata, Deadline deadline, PrintStream logger) throws InterruptedException, IOException {
+            begin(logger);
+            try {
+                member.getServer().uploadTestRunFromAgent(testSpecificationId, workspace, scanner, archiver, spool, metadata, deadline, logger);
+            } catch (IOException e) {
+                blame(e);
+                throw e;
+            } catch (ServerErrorException e) {
+                blame(e);
+                throw e;
+            } finally {
+                member.end();
+            }
+        }
+
+        @Override
+        public ListenableFuture<Void> uploadTestRunAsync(String testSpecificationId, TestRunArchive archive, Map<String, Object> metadata,
+                                                         Deadline deadline, PrintStream logger) {
+            begin(logger);
+            ListenableFuture<Void> upload;
+            try {
+                upload = member.getServer().uploadTestRunAsync(testSpecificationId, archive, metadata, deadline, logger);
+            } catch (RuntimeException e) {
+                member.end();
+                throw e;
+            }
+            Futures.addCallback(upload, new FutureCallback<Void>() {
+                @Override
+                public void onSuccess(Void result) {
+                    member.end();
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    member.end();
+                    blame(t);
+                }
+            });
+            return upload;
+        }
+
+        /**
+         * Avoids the node when the upload could not reach it or it answered with a server error; not when the test run
+         * could not be read or the build was aborted, which say nothing about the node.
+         */
+        private void blame(Throwable t) {
+            if (!(t instanceof IOException || t instanceof ServerErrorException)) {
+                return;
+            }
+            for (Throwable cause = t; cause != null; cause = cause.getCause()) {
+                if (cause instanceof ArchiveException || cause instanceof InterruptedIOException && !(cause instanceof SocketTimeoutException)) {
+                    return;
+                }
+            }
+            member.failed(t);
+        }
+
+        private void begin(PrintStream logger) {
+            member.begin();
+            logger.printf("[XL TestView] Sending to cluster node '%s'%n", member.getServerUrl());
+        }
+
+        @Override
+        public ServerInfo getServerInfo() {
+            return member.getServer().getServerInfo();
+        }
+
+        @Override
+        public ServerCapabilities getCapabilities() {
+            return member.getServer().getCapabilities();
+        }
+
+        @Override
+        public ListenableFuture<Void> checkConnectionAsync() {
+            return member.getServer().checkConnectionAsync();
+        }
+
+        @Override
+        public ListenableFuture<TestSpecificationCatalog> getTestSpecificationCatalogAsync(TestSpecificationCatalog previous) {
+            return member.getServer().getTestSpecificationCatalogAsync(previous);
+        }
+
+        @Override
+        public ListenableFuture<ServerInfo> getServerInfoAsync() {
+            return member.getServer().getServerInfoAsync();
+        }
+    }
+}
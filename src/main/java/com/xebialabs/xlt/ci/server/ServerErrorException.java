@@ -0,0 +1,11 @@
+package com.xebialabs.xlt.ci.server;
+
+/**
+ * Thrown when the server answered with a 5xx status code.
+ */
+public class ServerErrorException extends IllegalStateException {
+
+    public ServerErrorException(final String s) {
+        super(s);
+    }
+}
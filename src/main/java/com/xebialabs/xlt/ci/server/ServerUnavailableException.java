@@ -0,0 +1,21 @@
+package com.xebialabs.xlt.ci.server;
+
+/**
+ * Thrown when the server is overloaded or cannot be reached behind a proxy, which is expected to pass.
+ */
+public class ServerUnavailableException extends ServerErrorException {
+
+    private final long retryAfterMillis;
+
+    public ServerUnavailableException(final String s, final long retryAfterMillis) {
+        super(s);
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    /**
+     * @return how long the server asked to wait before trying again, or -1 when it did not tell
+     */
+    public long getRetryAfterMillis() {
+        return retryAfterMillis;
+    }
+}
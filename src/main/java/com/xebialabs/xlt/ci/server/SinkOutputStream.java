@@ -0,0 +1,41 @@
+package com.xebialabs.xlt.ci.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import okio.BufferedSink;
+
+/**
+ * Adapts a {@link BufferedSink} for archivers that insist on an {@link OutputStream}.
+ * <p/>
+ * Arrays are copied into the segments of the sink in bulk. Closing is ignored: archivers close their stream when done,
+ * but the sink belongs to the HTTP request.
+ */
+class SinkOutputStream extends OutputStream {
+    private final BufferedSink sink;
+
+    SinkOutputStream(BufferedSink sink) {
+        this.sink = sink;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        sink.writeByte(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        sink.write(b, off, len);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        // hand buffered data to the socket, but leave flushing the connection to the request
+        sink.emit();
+    }
+
+    @Override
+    public void close() {
+        // let's ignore this...
+    }
+}
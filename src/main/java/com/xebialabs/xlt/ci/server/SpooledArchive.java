@@ -0,0 +1,145 @@
+package com.xebialabs.xlt.ci.server;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import hudson.FilePath;
+import hudson.util.DirScanner;
+import hudson.util.io.ArchiverFactory;
+import okio.BufferedSink;
+import okio.Okio;
+import okio.Source;
+
+/**
+ * An archive that was written to a temporary file once, so it can be sent any number of times. That file is on the
+ * master, or on the node holding the workspace when the test run is sent from there, see {@link AgentUpload}.
+ */
+public class SpooledArchive extends TestRunArchive {
+    private static final Logger LOG = LoggerFactory.getLogger(SpooledArchive.class);
+
+    private final File file;
+    private final int numberOfFiles;
+    private final CompressionStatistics statistics;
+
+    SpooledArchive(File file, int numberOfFiles) {
+        this(file, numberOfFiles, null);
+    }
+
+    SpooledArchive(File file, int numberOfFiles, CompressionStatistics statistics) {
+        this.file = file;
+        this.numberOfFiles = numberOfFiles;
+        this.statistics = statistics;
+    }
+
+    public static SpooledArchive spool(FilePath workspace, DirScanner scanner) throws IOException, InterruptedException {
+        return spool(workspace, scanner, ArchiverFactory.ZIP);
+    }
+
+    public static SpooledArchive spool(FilePath workspace, DirScanner scanner, ArchiverFactory archiver) throws IOException, InterruptedException {
+        File file = File.createTempFile("xltestview-", ".zip");
+        boolean spooled = false;
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+        try {
+            CompressionStatistics statistics = WorkspaceArchive.archive(workspace, archiver, out, scanner);
+            spooled = true;
+            return new SpooledArchive(file, statistics.getEntries(), statistics);
+        } finally {
+            IOUtils.closeQuietly(out);
+            if (!spooled && !file.delete()) {
+                LOG.warn("Unable to delete {}", file);
+            }
+        }
+    }
+
+    /**
+     * Writes an archive that is produced while streaming, such as a {@link MatrixArchive}, to a temporary file.
+     */
+    public static SpooledArchive spool(TestRunArchive archive) throws IOException, InterruptedException {
+        File file = File.createTempFile("xltestview-", ".zip");
+        boolean spooled = false;
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+        try {
+            int numberOfFiles = archive.writeTo(out);
+            out.close();
+            spooled = true;
+            return new SpooledArchive(file, numberOfFiles, archive.getStatistics());
+        } finally {
+            IOUtils.closeQuietly(out);
+            if (!spooled && !file.delete()) {
+                LOG.warn("Unable to delete {}", file);
+            }
+        }
+    }
+
+    /**
+     * Takes up an archive that was spooled before, such as one kept in the outbox across a restart of Jenkins.
+     */
+    public static SpooledArchive reopen(File file, int numberOfFiles) {
+        return new SpooledArchive(file, numberOfFiles);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public int getNumberOfFiles() {
+        return numberOfFiles;
+    }
+
+    /**
+     * @return what compressing achieved when the archive was spooled
+     */
+    @Override
+    public CompressionStatistics getStatistics() {
+        return statistics;
+    }
+
+    @Override
+    public long contentLength() {
+        return file.length();
+    }
+
+    @Override
+    public boolean canBeSentAgain() {
+        return true;
+    }
+
+    @Override
+    public int writeTo(OutputStream out) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            IOUtils.copy(in, out);
+        } finally {
+            in.close();
+        }
+        return numberOfFiles;
+    }
+
+    /**
+     * Reads the file straight into the segments of the sink, without an intermediate buffer.
+     */
+    @Override
+    public int writeTo(BufferedSink sink) throws IOException {
+        Source source = Okio.source(file);
+        try {
+            sink.writeAll(source);
+        } finally {
+            source.close();
+        }
+        return numberOfFiles;
+    }
+
+    public void delete() {
+        if (file.exists() && !file.delete()) {
+            LOG.warn("Unable to delete {}", file);
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package com.xebialabs.xlt.ci.server;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Zips a test run once for several uploads that run at the same time.
+ * <p/>
+ * The zip is written to a temporary file by {@link #spool()}, and each {@link #newReader() reader} sends the file as
+ * it grows. Readers wait for the zip where they catch up with it, but zipping never waits for a reader, so a slow
+ * upload falls behind on its own without holding up the others. Only the file system cache and one buffer per reader
+ * are held in memory.
+ */
+public class TeeArchive {
+    private static final Logger LOG = LoggerFactory.getLogger(TeeArchive.class);
+
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    private final TestRunArchive source;
+    private final File file;
+
+    // guarded by this
+    private long length;
+    private boolean done;
+    private Throwable failure;
+    private int numberOfFiles;
+
+    public TeeArchive(TestRunArchive source) throws IOException {
+        this.source = source;
+        this.file = File.createTempFile("xltestview-", ".zip");
+    }
+
+    /**
+     * Returns an archive that sends the zip as it is written. Readers must be created before {@link #spool()} ends.
+     */
+    public TestRunArchive newReader() {
+        return new Reader();
+    }
+
+    /**
+     * Writes the zip on the calling thread, releasing readers as it grows. Failures are passed on to the readers too.
+     */
+    public void spool() throws IOException, InterruptedException {
+        OutputStream out = new BufferedOutputStream(new Publisher(new FileOutputStream(file)), BUFFER_SIZE);
+        Throwable failed = null;
+        int files = 0;
+        try {
+            files = source.writeTo(out);
+            out.flush();
+        } catch (IOException e) {
+            failed = e;
+            throw e;
+        } catch (InterruptedException e) {
+            failed = e;
+            throw e;
+        } catch (RuntimeException e) {
+            failed = e;
+            throw e;
+        } finally {
+            IOUtils.closeQuietly(out);
+            synchronized (this) {
+                done = true;
+                failure = failed;
+                numberOfFiles = files;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * @return what compressing achieved, once spooled
+     */
+    public CompressionStatistics getStatistics() {
+        return source.getStatistics();
+    }
+
+    public void delete() {
+        if (file.exists() && !file.delete()) {
+            LOG.warn("Unable to delete {}", file);
+        }
+    }
+
+    private synchronized void published(long length) {
+        this.length = length;
+        notifyAll();
+    }
+
+    /**
+     * Waits until the zip is longer than {@code position} or complete.
+     *
+     * @return the length of the zip written so far
+     */
+    private synchronized long awaitBeyond(long position) throws IOException, InterruptedException {
+        while (length <= position && !done) {
+            wait();
+        }
+        if (failure != null) {
+            throw new IOException("Unable to zip the test run: " + failure.getMessage(), failure);
+        }
+        return length;
+    }
+
+    private synchronized int getNumberOfFiles() {
+        return numberOfFiles;
+    }
+
+    /**
+     * Publishes the length of the file after every write that reaches it.
+     */
+    private final class Publisher extends FilterOutputStream {
+        private long written;
+
+        Publisher(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            written += len;
+            published(written);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+    }
+
+    private final class Reader extends TestRunArchive {
+        @Override
+        public int writeTo(OutputStream out) throws IOException, InterruptedException {
+            InputStream in = new FileInputStream(file);
+            try {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                long position = 0;
+                for (long available = awaitBeyond(position); position < available; available = awaitBeyond(position)) {
+                    while (position < available) {
+                        int read = in.read(buffer, 0, (int) Math.min(buffer.length, available - position));
+                        if (read == -1) {
+                            throw new IOException("Spooled test run ended before " + available + " bytes");
+                        }
+                        out.write(buffer, 0, read);
+                        position += read;
+                    }
+                }
+            } finally {
+                in.close();
+            }
+            return getNumberOfFiles();
+        }
+
+        @Override
+        public CompressionStatistics getStatistics() {
+            return TeeArchive.this.getStatistics();
+        }
+    }
+}
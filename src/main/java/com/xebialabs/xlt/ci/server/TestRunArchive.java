@@ -0,0 +1,51 @@
+package com.xebialabs.xlt.ci.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import okio.BufferedSink;
+
+/**
+ * The zip file with test results that is sent along with the metadata of a test run.
+ */
+public abstract class TestRunArchive {
+
+    /**
+     * @return the size of the archive in bytes, or -1 when it is produced while streaming
+     */
+    public long contentLength() {
+        return -1L;
+    }
+
+    /**
+     * @return whether {@link #writeTo(OutputStream)} produces the same bytes every time without collecting or
+     * compressing the files again, so a failed upload can be retried
+     */
+    public boolean canBeSentAgain() {
+        return false;
+    }
+
+    /**
+     * Writes the zip to the given stream. Implementations may close the stream.
+     *
+     * @return the number of files in the archive
+     */
+    public abstract int writeTo(OutputStream out) throws IOException, InterruptedException;
+
+    /**
+     * @return what compressing achieved the last time the archive was written, or {@code null} when not known
+     */
+    public CompressionStatistics getStatistics() {
+        return null;
+    }
+
+    /**
+     * Writes the zip to the body of an HTTP request. Override when the archive can hand its bytes to Okio without
+     * going through an {@link OutputStream}.
+     *
+     * @return the number of files in the archive
+     */
+    public int writeTo(BufferedSink sink) throws IOException, InterruptedException {
+        return writeTo(new SinkOutputStream(sink));
+    }
+}
@@ -0,0 +1,160 @@
+package com.xebialabs.xlt.ci.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import com.xebialabs.xlt.ci.server.domain.Project;
+import com.xebialabs.xlt.ci.server.domain.Qualification;
+import com.xebialabs.xlt.ci.server.domain.TestSpecification;
+import com.xebialabs.xlt.ci.server.domain.TestTool;
+
+/**
+ * Reads the test specification catalog token by token instead of binding it through an intermediate tree.
+ * <p/>
+ * Strings are deduplicated and identical projects, qualifications and test tools are shared between test
+ * specifications, so a catalog of thousands of specifications only keeps one copy of each.
+ */
+class TestSpecificationCatalogReader {
+
+    private final Map<String, String> strings = new HashMap<String, String>();
+    private final Map<List<String>, Project> projects = new HashMap<List<String>, Project>();
+    private final Map<List<String>, Qualification> qualifications = new HashMap<List<String>, Qualification>();
+    private final Map<List<String>, TestTool> testTools = new HashMap<List<String>, TestTool>();
+
+    private TestSpecificationCatalogReader() {
+    }
+
+    static Map<String, TestSpecification> read(JsonFactory factory, InputStream in) throws IOException {
+        JsonParser parser = factory.createParser(in);
+        try {
+            return new TestSpecificationCatalogReader().readCatalog(parser);
+        } finally {
+            parser.close();
+        }
+    }
+
+    private Map<String, TestSpecification> readCatalog(JsonParser parser) throws IOException {
+        if (parser.nextToken() != JsonToken.START_OBJECT) {
+            throw new JsonParseException("Expected an object of test specifications", parser.getCurrentLocation());
+        }
+        Map<String, TestSpecification> testSpecifications = new HashMap<String, TestSpecification>();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String key = intern(parser.getCurrentName());
+            if (parser.nextToken() == JsonToken.START_OBJECT) {
+                testSpecifications.put(key, readTestSpecification(parser));
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return testSpecifications;
+    }
+
+    private TestSpecification readTestSpecification(JsonParser parser) throws IOException {
+        TestSpecification testSpecification = new TestSpecification();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            if ("id".equals(field)) {
+                testSpecification.setId(text(parser));
+            } else if ("title".equals(field)) {
+                testSpecification.setTitle(text(parser));
+            } else if ("type".equals(field)) {
+                testSpecification.setType(text(parser));
+            } else if ("project".equals(field) && value == JsonToken.START_OBJECT) {
+                testSpecification.setProject(readProject(parser));
+            } else if ("qualification".equals(field) && value == JsonToken.START_OBJECT) {
+                testSpecification.setQualification(readQualification(parser));
+            } else if ("testTool".equals(field) && value == JsonToken.START_OBJECT) {
+                testSpecification.setTestTool(readTestTool(parser));
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return testSpecification;
+    }
+
+    private Project readProject(JsonParser parser) throws IOException {
+        List<String> fields = readFields(parser, "id", "title", "type");
+        Project project = projects.get(fields);
+        if (project == null) {
+            project = new Project();
+            project.setId(fields.get(0));
+            project.setTitle(fields.get(1));
+            project.setType(fields.get(2));
+            projects.put(fields, project);
+        }
+        return project;
+    }
+
+    private Qualification readQualification(JsonParser parser) throws IOException {
+        List<String> fields = readFields(parser, "type", "name", "description");
+        Qualification qualification = qualifications.get(fields);
+        if (qualification == null) {
+            qualification = new Qualification();
+            qualification.setType(fields.get(0));
+            qualification.setName(fields.get(1));
+            qualification.setDescription(fields.get(2));
+            qualifications.put(fields, qualification);
+        }
+        return qualification;
+    }
+
+    private TestTool readTestTool(JsonParser parser) throws IOException {
+        List<String> fields = readFields(parser, "name", "category", "defaultSearchPattern");
+        TestTool testTool = testTools.get(fields);
+        if (testTool == null) {
+            testTool = new TestTool();
+            testTool.setName(fields.get(0));
+            testTool.setCategory(fields.get(1));
+            testTool.setDefaultSearchPattern(fields.get(2));
+            testTools.put(fields, testTool);
+        }
+        return testTool;
+    }
+
+    /**
+     * Reads the given scalar fields of the current object, skipping everything else.
+     */
+    private List<String> readFields(JsonParser parser, String... names) throws IOException {
+        String[] values = new String[names.length];
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            parser.nextToken();
+            int i = Arrays.asList(names).indexOf(field);
+            if (i >= 0) {
+                values[i] = text(parser);
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return Arrays.asList(values);
+    }
+
+    private String text(JsonParser parser) throws IOException {
+        if (parser.getCurrentToken() == JsonToken.START_OBJECT || parser.getCurrentToken() == JsonToken.START_ARRAY) {
+            parser.skipChildren();
+            return null;
+        }
+        return intern(parser.getValueAsString());
+    }
+
+    private String intern(String value) {
+        if (value == null) {
+            return null;
+        }
+        String interned = strings.get(value);
+        if (interned == null) {
+            strings.put(value, value);
+            interned = value;
+        }
+        return interned;
+    }
+}
@@ -0,0 +1,30 @@
+/**
+ * Copyright (c) 2014-2015, XebiaLabs B.V., All rights reserved.
+ * <p/>
+ * The XL TestView plugin for Jenkins is licensed under the terms of the GPLv2
+ * <http://www.gnu.org/licenses/old-licenses/gpl-2.0.html>, like most XebiaLabs
+ * Libraries. There are special exceptions to the terms and conditions of the
+ * GPLv2 as it is applied to this software, see the FLOSS License Exception
+ * <https://github.com/jenkinsci/xltestview-plugin/blob/master/LICENSE>.
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; version 2 of the License.
+ * <p/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package com.xebialabs.xlt.ci.server;
+
+public class UnexpectedServerVersionException extends IllegalStateException {
+
+    public UnexpectedServerVersionException(final String s) {
+        super(s);
+    }
+}
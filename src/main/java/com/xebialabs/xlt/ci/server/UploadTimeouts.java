@@ -0,0 +1,122 @@
+package com.xebialabs.xlt.ci.server;
+
+import java.io.Serializable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Works out the timeouts of uploads to one server from how fast recent uploads to it went, instead of using the same
+ * timeouts for a few kilobytes of JUnit XML on a local network and hundreds of megabytes of Gatling results on a slow
+ * link.
+ * <p/>
+ * Two rates are tracked as exponentially weighted moving averages: how fast the archive was written to the connection,
+ * and how fast the server imported it, i.e. the size of the archive over the time from the last byte sent to the
+ * response. Until an upload completed, the timeouts of the other calls are used, and the import is assumed to go at
+ * {@link #DEFAULT_IMPORT_RATE}. Neither is ever stretched to the whole deadline, so a server that accepts connections
+ * but never answers costs no longer with a deadline than without one.
+ */
+public class UploadTimeouts implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    static final long CONNECT_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(10);
+    static final long WRITE_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(10);
+    static final long READ_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    /**
+     * How many times longer than expected a write or the import may take before the upload is given up.
+     */
+    static final int SAFETY_FACTOR = 4;
+
+    /**
+     * Uploads smaller than this say more about latency than about throughput and are not measured.
+     */
+    static final long MIN_MEASURED_BYTES = 64 * 1024;
+
+    /**
+     * The most that is written to the socket at once.
+     */
+    static final long WRITE_SIZE = 64 * 1024;
+
+    /**
+     * Bytes per millisecond, i.e. about 250 KB/s: what a server that was not measured yet is assumed to import at least.
+     */
+    static final double DEFAULT_IMPORT_RATE = 256;
+
+    static final double ALPHA = 0.3;
+
+    // bytes per millisecond; NaN until measured
+    private double transferRate = Double.NaN;
+    private double importRate = Double.NaN;
+    private long largestUpload;
+
+    public UploadTimeouts() {
+    }
+
+    /**
+     * Starts from what the given timeouts measured so far, e.g. for an upload from an agent.
+     */
+    public UploadTimeouts(UploadTimeouts measured) {
+        synchronized (measured) {
+            this.transferRate = measured.transferRate;
+            this.importRate = measured.importRate;
+            this.largestUpload = measured.largestUpload;
+        }
+    }
+
+    /**
+     * Records that an archive of the given size was written to the connection in the given time.
+     */
+    public synchronized void transferred(long bytes, long millis) {
+        largestUpload = Math.max(largestUpload, bytes);
+        transferRate = average(transferRate, bytes, millis);
+    }
+
+    /**
+     * Records that the server answered the given time after the last byte of an archive of the given size was sent.
+     */
+    public synchronized void imported(long bytes, long millis) {
+        importRate = average(importRate, bytes, millis);
+    }
+
+    private static double average(double current, long bytes, long millis) {
+        if (bytes < MIN_MEASURED_BYTES) {
+            return current;
+        }
+        double rate = (double) bytes / Math.max(1, millis);
+        return Double.isNaN(current) ? rate : ALPHA * rate + (1 - ALPHA) * current;
+    }
+
+    public long getConnectTimeoutMillis(Deadline deadline) {
+        return cap(CONNECT_TIMEOUT_MILLIS, deadline);
+    }
+
+    /**
+     * @return how long a single write may block: long enough to send {@link #WRITE_SIZE} at a fraction of the recent
+     * throughput
+     */
+    public synchronized long getWriteTimeoutMillis(Deadline deadline) {
+        if (Double.isNaN(transferRate)) {
+            return cap(WRITE_TIMEOUT_MILLIS, deadline);
+        }
+        return cap(Math.max(WRITE_TIMEOUT_MILLIS, (long) (SAFETY_FACTOR * WRITE_SIZE / transferRate)), deadline);
+    }
+
+    /**
+     * @param bytes the size of the archive, or -1 when it is zipped while sending; the largest upload so far is then
+     *              assumed
+     * @return how long to wait for the server to import the archive after it was sent
+     */
+    public synchronized long getReadTimeoutMillis(long bytes, Deadline deadline) {
+        long expected = bytes >= 0 ? bytes : largestUpload;
+        if (Double.isNaN(importRate)) {
+            return cap(READ_TIMEOUT_MILLIS + (long) (expected / DEFAULT_IMPORT_RATE), deadline);
+        }
+        return cap(READ_TIMEOUT_MILLIS + (long) (SAFETY_FACTOR * expected / importRate), deadline);
+    }
+
+    /**
+     * OkHttp takes 0 for no timeout and at most {@link Integer#MAX_VALUE} milliseconds.
+     */
+    private static long cap(long millis, Deadline deadline) {
+        return Math.max(1, Math.min(Integer.MAX_VALUE, Math.min(millis, deadline.getRemainingMillis())));
+    }
+}
@@ -0,0 +1,84 @@
+package com.xebialabs.xlt.ci.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import hudson.FilePath;
+import hudson.remoting.RemoteOutputStream;
+import hudson.remoting.VirtualChannel;
+import hudson.util.DirScanner;
+import hudson.util.io.Archiver;
+import hudson.util.io.ArchiverFactory;
+import jenkins.MasterToSlaveFileCallable;
+
+/**
+ * Zips the files selected by a {@link DirScanner} while sending, without storing the archive.
+ */
+public class WorkspaceArchive extends TestRunArchive {
+    private final FilePath workspace;
+    private final DirScanner scanner;
+    private final ArchiverFactory archiver;
+    private volatile CompressionStatistics statistics;
+
+    public WorkspaceArchive(FilePath workspace, DirScanner scanner) {
+        this(workspace, scanner, ArchiverFactory.ZIP);
+    }
+
+    public WorkspaceArchive(FilePath workspace, DirScanner scanner, ArchiverFactory archiver) {
+        this.workspace = workspace;
+        this.scanner = scanner;
+        this.archiver = archiver;
+    }
+
+    @Override
+    public int writeTo(OutputStream out) throws IOException, InterruptedException {
+        statistics = archive(workspace, archiver, out, scanner);
+        return statistics.getEntries();
+    }
+
+    @Override
+    public CompressionStatistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * Like {@link FilePath#archive(ArchiverFactory, OutputStream, DirScanner)}, but also brings back what our own
+     * archiver achieved.
+     */
+    static CompressionStatistics archive(FilePath workspace, ArchiverFactory archiver, OutputStream out, DirScanner scanner)
+            throws IOException, InterruptedException {
+        if (!(archiver instanceof ParallelZipArchiverFactory)) {
+            CompressionStatistics statistics = new CompressionStatistics();
+            statistics.setEntries(workspace.archive(archiver, out, scanner));
+            return statistics;
+        }
+        OutputStream target = workspace.isRemote() ? new RemoteOutputStream(out) : out;
+        return workspace.act(new Archive((ParallelZipArchiverFactory) archiver, target, scanner));
+    }
+
+    private static class Archive extends MasterToSlaveFileCallable<CompressionStatistics> {
+        private static final long serialVersionUID = 1L;
+
+        private final ParallelZipArchiverFactory archiver;
+        private final OutputStream out;
+        private final DirScanner scanner;
+
+        Archive(ParallelZipArchiverFactory archiver, OutputStream out, DirScanner scanner) {
+            this.archiver = archiver;
+            this.out = out;
+            this.scanner = scanner;
+        }
+
+        @Override
+        public CompressionStatistics invoke(File dir, VirtualChannel channel) throws IOException {
+            Archiver zip = archiver.create(out);
+            try {
+                scanner.scan(dir, zip);
+            } finally {
+                zip.close();
+            }
+            return ((ParallelZipArchiver) zip).getStatistics();
+        }
+    }
+}
@@ -28,15 +28,52 @@ import java.util.Map;
 
 import com.xebialabs.xlt.ci.server.domain.ServerInfo;
 import com.xebialabs.xlt.ci.server.domain.TestSpecification;
+import com.xebialabs.xlt.ci.server.domain.TestSpecificationCatalog;
 
 import hudson.FilePath;
+import hudson.util.DirScanner;
+import hudson.util.io.ArchiverFactory;
 
-public interface XLTestServer {
+public interface XLTestServer extends AsyncXLTestServer {
     void checkConnection();
 
     Map<String, TestSpecification> getTestSpecifications();
 
+    /**
+     * Fetches the test specifications, revalidating {@code previous} with a conditional request when given.
+     *
+     * @return {@code previous} (marked as revalidated) when the server reports that nothing changed
+     */
+    TestSpecificationCatalog getTestSpecificationCatalog(TestSpecificationCatalog previous);
+
     void uploadTestRun(String testSpecificationId, FilePath workspace, String includes, String excludes, Map<String, Object> metadata, PrintStream logger) throws InterruptedException, IOException;
 
+    /**
+     * @param deadline when to cancel the upload, if it did not complete by then
+     * @throws DeadlineExceededException when it was cancelled
+     */
+    void uploadTestRun(String testSpecificationId, TestRunArchive archive, Map<String, Object> metadata, Deadline deadline, PrintStream logger)
+            throws InterruptedException, IOException;
+
+    /**
+     * @param idempotencyKey identifies the test run to the server, so sending it again, e.g. from the outbox after a
+     *                       restart of Jenkins, does not import it twice
+     */
+    void uploadTestRun(String testSpecificationId, TestRunArchive archive, Map<String, Object> metadata, Deadline deadline, String idempotencyKey,
+                       PrintStream logger) throws InterruptedException, IOException;
+
+    /**
+     * Zips and sends the test run from the node holding the workspace instead of the master.
+     *
+     * @param spool whether to spool the archive on the node, so failed uploads can be retried
+     */
+    void uploadTestRunFromAgent(String testSpecificationId, FilePath workspace, DirScanner scanner, ArchiverFactory archiver, boolean spool,
+                                Map<String, Object> metadata, Deadline deadline, PrintStream logger) throws InterruptedException, IOException;
+
     ServerInfo getServerInfo();
+
+    /**
+     * Returns the cached capabilities of the server, refreshing them in the background once they are stale.
+     */
+    ServerCapabilities getCapabilities();
 }
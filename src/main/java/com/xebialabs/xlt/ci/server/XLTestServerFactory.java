@@ -48,7 +48,24 @@ public class XLTestServerFactory {
         }
     }
 
+    /**
+     * Creates a server that is not cached, e.g. to test settings that have not been saved yet.
+     * It still shares the connection pool of the {@link XLTestServerRegistry}, but has a circuit breaker of its own, so
+     * testing a connection always calls the server and does not affect the builds.
+     */
     public static XLTestServer newInstance(String serverUrl, String proxyUrl, StandardUsernamePasswordCredentials credentials) {
-        return new XLTestServerImpl(serverUrl, proxyUrl, new UsernamePasswordImpl(credentials));
+        return new XLTestServerImpl(XLTestServerRegistry.getInstance().newClient(), serverUrl, proxyUrl, wrap(credentials),
+                new CircuitBreaker(serverUrl));
+    }
+
+    /**
+     * Returns the long-lived server for the given settings from the {@link XLTestServerRegistry}.
+     */
+    public static XLTestServer getInstance(String serverUrl, String proxyUrl, String credentialsId, StandardUsernamePasswordCredentials credentials) {
+        return XLTestServerRegistry.getInstance().getServer(serverUrl, proxyUrl, credentialsId, wrap(credentials));
+    }
+
+    private static UsernamePassword wrap(StandardUsernamePasswordCredentials credentials) {
+        return credentials == null ? null : new UsernamePasswordImpl(credentials);
     }
 }
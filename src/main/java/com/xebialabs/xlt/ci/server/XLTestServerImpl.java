@@ -23,16 +23,29 @@
 package com.xebialabs.xlt.ci.server;
 
 import java.io.IOException;
-import java.io.OutputStream;
+import java.io.InterruptedIOException;
 import java.io.PrintStream;
 import java.net.*;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.UUID;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
 import com.squareup.okhttp.*;
 
 import com.xebialabs.xlt.ci.server.authentication.AuthenticationException;
@@ -40,12 +53,18 @@ import com.xebialabs.xlt.ci.server.authentication.UsernamePassword;
 import com.xebialabs.xlt.ci.server.domain.ImportError;
 import com.xebialabs.xlt.ci.server.domain.ServerInfo;
 import com.xebialabs.xlt.ci.server.domain.TestSpecification;
+import com.xebialabs.xlt.ci.server.domain.TestSpecificationCatalog;
 
 import hudson.FilePath;
 import hudson.util.DirScanner;
 import hudson.util.io.ArchiverFactory;
 import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+import okio.Buffer;
 import okio.BufferedSink;
+import okio.ForwardingSink;
+import okio.Okio;
+import okio.Sink;
 
 import static java.lang.String.format;
 import static org.apache.commons.io.IOUtils.closeQuietly;
@@ -54,8 +73,12 @@ public class XLTestServerImpl implements XLTestServer {
     private static final Logger LOG = LoggerFactory.getLogger(XLTestServerImpl.class);
 
     public static final String XL_TEST_LOG_FORMAT = "[XL TestView] [%s] %s%n";
-    public static final TypeReference<Map<String, TestSpecification>> MAP_OF_TESTSPECIFICATION = new TypeReference<Map<String, TestSpecification>>() {
-    };
+
+    // mappers are expensive to create, readers and writers are immutable and safe to share
+    private static final ObjectMapper MAPPER = createMapper();
+    private static final ObjectReader SERVER_INFO_READER = MAPPER.reader(ServerInfo.class);
+    private static final ObjectReader IMPORT_ERROR_READER = MAPPER.reader(ImportError.class);
+    private static final ObjectWriter METADATA_WRITER = MAPPER.writer();
 
     public static final String API_VERSION = "/api/v1/info";
     public static final String API_CONNECTION_CHECK = "/api/internal/data";
@@ -64,14 +87,43 @@ public class XLTestServerImpl implements XLTestServer {
     public static final String APPLICATION_JSON_UTF_8 = "application/json; charset=utf-8";
     public static final String USER_AGENT = "XL TestView Jenkins plugin";
 
-    private OkHttpClient client = new OkHttpClient();
+    static final int UPLOAD_ATTEMPTS = Integer.getInteger(XLTestServerImpl.class.getName() + ".uploadAttempts", 4);
+    static final long RETRY_BASE_DELAY_MILLIS = 1000;
+    static final long RETRY_MAX_DELAY_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private final OkHttpClient client;
 
     private URI proxyUrl;
     private URL serverUrl;
 
     private UsernamePassword credentials;
+    private final String authorization;
+
+    private final ServerCapabilitiesCache capabilities;
+    private final CircuitBreaker circuitBreaker;
+    private final UploadTimeouts uploadTimeouts;
+    private final Random random = new Random();
 
     XLTestServerImpl(String serverUrl, String proxyUrl, UsernamePassword credentials) {
+        this(new OkHttpClient(), serverUrl, proxyUrl, credentials);
+    }
+
+    /**
+     * Creates a server that shares the {@link CircuitBreaker} of its URL with every other client in this JVM.
+     */
+    XLTestServerImpl(OkHttpClient client, String serverUrl, String proxyUrl, UsernamePassword credentials) {
+        this(client, serverUrl, proxyUrl, credentials, XLTestServerRegistry.getInstance().getCircuitBreaker(serverUrl));
+    }
+
+    XLTestServerImpl(OkHttpClient client, String serverUrl, String proxyUrl, UsernamePassword credentials, CircuitBreaker circuitBreaker) {
+        this(client, serverUrl, proxyUrl, credentials, circuitBreaker, XLTestServerRegistry.getInstance().getUploadTimeouts(serverUrl));
+    }
+
+    XLTestServerImpl(OkHttpClient client, String serverUrl, String proxyUrl, UsernamePassword credentials, CircuitBreaker circuitBreaker,
+                     UploadTimeouts uploadTimeouts) {
+        this.client = client;
+        this.circuitBreaker = circuitBreaker;
+        this.uploadTimeouts = uploadTimeouts;
         try {
             this.serverUrl = new URL(removeTrailingSlashes(serverUrl));
         } catch (MalformedURLException e) {
@@ -81,15 +133,17 @@ public class XLTestServerImpl implements XLTestServer {
             throw new IllegalArgumentException("Need credentials to connect to " + serverUrl);
         }
         this.credentials = credentials;
+        this.authorization = Credentials.basic(credentials.getUsername(), credentials.getPassword());
         this.proxyUrl = proxyUrl != null && !proxyUrl.isEmpty() ? URI.create(proxyUrl) : null;
+        this.capabilities = new ServerCapabilitiesCache(this, Timer.get(), ServerCapabilitiesCache.DEFAULT_TTL_MILLIS);
         setupHttpClient();
     }
 
     private void setupHttpClient() {
-        // TODO: make configurable ?
-        client.setConnectTimeout(10, TimeUnit.SECONDS);
-        client.setWriteTimeout(10, TimeUnit.SECONDS);
-        client.setReadTimeout(30, TimeUnit.SECONDS);
+        // uploads adapt these to the size of the archive and the throughput of recent uploads, see UploadTimeouts
+        client.setConnectTimeout(UploadTimeouts.CONNECT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        client.setWriteTimeout(UploadTimeouts.WRITE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        client.setReadTimeout(UploadTimeouts.READ_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
 
         if (proxyUrl != null) {
             Proxy p = new Proxy(Proxy.Type.HTTP, InetSocketAddress.createUnresolved(proxyUrl.getHost(), proxyUrl.getPort()));
@@ -98,6 +152,10 @@ public class XLTestServerImpl implements XLTestServer {
     }
 
     private Request createRequestFor(String relativeUrl) {
+        return createRequestBuilderFor(relativeUrl).build();
+    }
+
+    private Request.Builder createRequestBuilderFor(String relativeUrl) {
         try {
             URL url = createSensibleURL(relativeUrl, serverUrl);
 
@@ -105,8 +163,7 @@ public class XLTestServerImpl implements XLTestServer {
                     .url(url)
                     .header("User-Agent", getUserAgent())
                     .header("Accept", APPLICATION_JSON_UTF_8)
-                    .header("Authorization", createCredentials())
-                    .build();
+                    .header("Authorization", createCredentials());
 
         } catch (MalformedURLException e) {
             throw new IllegalArgumentException(e);
@@ -133,19 +190,31 @@ public class XLTestServerImpl implements XLTestServer {
     }
 
     private String createCredentials() {
-        return Credentials.basic(credentials.getUsername(), credentials.getPassword());
+        return authorization;
     }
 
     @Override
     public void checkConnection() {
         try {
             LOG.info("Checking connection to {}", serverUrl);
-            Request request = createRequestFor(API_CONNECTION_CHECK);
+            execute(createRequestFor(API_CONNECTION_CHECK), connectionCheckHandler);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public ListenableFuture<Void> checkConnectionAsync() {
+        LOG.info("Checking connection to {}", serverUrl);
+        return enqueue(createRequestFor(API_CONNECTION_CHECK), connectionCheckHandler);
+    }
 
-            Response response = client.newCall(request).execute();
+    private final ResponseHandler<Void> connectionCheckHandler = new ResponseHandler<Void>() {
+        @Override
+        public Void handle(Response response) {
             switch (response.code()) {
                 case 200:
-                    return;
+                    return null;
                 case 401:
                     throw new AuthenticationException(String.format("User '%s' and the supplied password are unable to log in", credentials.getUsername()));
                 case 402:
@@ -153,86 +222,332 @@ public class XLTestServerImpl implements XLTestServer {
                 case 404:
                     throw new ConnectionException("URL is invalid or server is not running");
                 default:
-                    throw new IllegalStateException("Unknown error. Status code: " + response.code() + ". Response message: " + response.toString());
+                    throw unknownError(response);
             }
-        } catch (IOException e) {
-            throw new RuntimeException(e);
         }
-    }
+    };
 
     @Override
     public ServerInfo getServerInfo() {
         try {
-            Request request = new Request.Builder()
-                    .url(createSensibleURL(API_VERSION, serverUrl))
-                    .header("User-Agent", getUserAgent())
-                    .header("Accept", APPLICATION_JSON_UTF_8)
-                    .header("Authorization", createCredentials())
-                    .get()
-                    .build();
+            return execute(createRequestFor(API_VERSION), serverInfoHandler);
+        } catch (IOException e) {
+            e.printStackTrace();
+            LOG.warn("I/O error requesting server version {} {}\n{}", serverUrl.toString(), e.toString(), e);
+            throw new RuntimeException("I/O error determining server info of " + serverUrl.toString() + " " + e.toString(), e);
+        }
+    }
+
+    @Override
+    public ListenableFuture<ServerInfo> getServerInfoAsync() {
+        return enqueue(createRequestFor(API_VERSION), serverInfoHandler);
+    }
 
-            Response response = client.newCall(request).execute();
-            ObjectMapper mapper = createMapper();
+    private final ResponseHandler<ServerInfo> serverInfoHandler = new ResponseHandler<ServerInfo>() {
+        @Override
+        public ServerInfo handle(Response response) throws IOException {
             switch (response.code()) {
                 case 200:
-                    ServerInfo info = mapper.readValue(response.body().byteStream(), ServerInfo.class);
+                    ServerInfo info = SERVER_INFO_READER.readValue(response.body().byteStream());
                     return info;
                 case 401:
                     throw new AuthenticationException(String.format("User '%s' and the supplied password are unable to log in", credentials.getUsername()));
                 case 402:
                     throw new PaymentRequiredException("The XL TestView server does not have a valid license");
                 default:
-                    throw new IllegalStateException("Unknown error. Status code: " + response.code() + ". Response message: " + response.toString());
+                    throw unknownError(response);
             }
-        } catch (URISyntaxException e) {
-            throw new IllegalArgumentException(e);
-        } catch (IOException e) {
-            e.printStackTrace();
-            LOG.warn("I/O error requesting server version {} {}\n{}", serverUrl.toString(), e.toString(), e);
-            throw new RuntimeException("I/O error determining server info of " + serverUrl.toString() + " " + e.toString(), e);
         }
+    };
+
+    @Override
+    public ServerCapabilities getCapabilities() {
+        return capabilities.get();
     }
 
     @Override
     public void uploadTestRun(String testSpecificationId, FilePath workspace, String includes, String excludes, Map<String, Object> metadata, PrintStream
             logger) throws IOException, InterruptedException {
-        if (testSpecificationId == null || testSpecificationId.isEmpty()) {
-            throw new IllegalArgumentException("No test specification id specified. Does the test specification still exist in XL TestView?");
+        logInfo(logger, format("Collecting files from '%s' using include pattern: '%s' and exclude pattern '%s'",
+                workspace.getRemote(), includes, excludes));
+
+        DirScanner scanner = new DirScanner.Glob(includes, excludes);
+        uploadTestRun(testSpecificationId, new WorkspaceArchive(workspace, scanner), metadata, Deadline.NONE, logger);
+    }
+
+    @Override
+    public void uploadTestRun(String testSpecificationId, TestRunArchive archive, Map<String, Object> metadata, Deadline deadline, PrintStream logger)
+            throws IOException, InterruptedException {
+        uploadTestRun(testSpecificationId, archive, metadata, deadline, UUID.randomUUID().toString(), logger);
+    }
+
+    /**
+     * Archives that {@link TestRunArchive#canBeSentAgain() can be sent again} are sent up to {@link #UPLOAD_ATTEMPTS}
+     * times with the same idempotency key, as long as the deadline allows.
+     */
+    @Override
+    public void uploadTestRun(String testSpecificationId, TestRunArchive archive, Map<String, Object> metadata, Deadline deadline,
+                              String idempotencyKey, PrintStream logger) throws IOException, InterruptedException {
+        try {
+            for (int attempt = 1; ; attempt++) {
+                deadline.check();
+                ZipRequestBody zip = new ZipRequestBody(archive, logger);
+                try {
+                    execute(createUploadClient(archive, deadline), createUploadRequest(testSpecificationId, zip, metadata, idempotencyKey), deadline,
+                            new UploadHandler(testSpecificationId, zip, logger));
+                    return;
+                } catch (IOException e) {
+                    long delay = retryDelay(archive, e, attempt, deadline, logger);
+                    if (delay < 0) {
+                        throw e;
+                    }
+                    Thread.sleep(delay);
+                } catch (ServerUnavailableException e) {
+                    long delay = retryDelay(archive, e, attempt, deadline, logger);
+                    if (delay < 0) {
+                        throw e;
+                    }
+                    Thread.sleep(delay);
+                }
+            }
+        } catch (ArchiveException e) {
+            throw e;
+        } catch (IOException e) {
+            e.printStackTrace();
+            LOG.warn("I/O error uploading test run data to {} {}\n{}", serverUrl.toString(), e.toString(), e);
+            throw new IOException("I/O error uploading test run data to " + serverUrl.toString() + " " + e.toString(), e);
         }
+    }
+
+    /**
+     * The circuit breaker of this server decides whether the node may call it, and learns how the calls of the node
+     * went; so do the upload timeouts.
+     */
+    @Override
+    public void uploadTestRunFromAgent(String testSpecificationId, FilePath workspace, DirScanner scanner, ArchiverFactory archiver, boolean spool,
+                                       Map<String, Object> metadata, Deadline deadline, PrintStream logger) throws InterruptedException, IOException {
+        circuitBreaker.acquire();
+        AgentUpload.Outcome outcome = null;
         try {
-            logInfo(logger, format("Collecting files from '%s' using include pattern: '%s' and exclude pattern '%s'",
-                    workspace.getRemote(), includes, excludes));
+            outcome = workspace.act(new AgentUpload(serverUrl.toString(), proxyUrl == null ? null : proxyUrl.toString(), credentials,
+                    testSpecificationId, metadata, scanner, archiver, spool, uploadTimeouts, deadline, logger));
+        } finally {
+            if (outcome == null) {
+                // the node failed or the build was aborted, which says nothing about the server
+                circuitBreaker.cancelled();
+            }
+        }
+        outcome.record(circuitBreaker, uploadTimeouts);
+        outcome.rethrow();
+    }
 
-            DirScanner scanner = new DirScanner.Glob(includes, excludes);
+    @Override
+    public ListenableFuture<Void> uploadTestRunAsync(String testSpecificationId, TestRunArchive archive, Map<String, Object> metadata, Deadline deadline,
+                                                     PrintStream logger) {
+        String idempotencyKey = UUID.randomUUID().toString();
+        if (!archive.canBeSentAgain()) {
+            return enqueueUpload(testSpecificationId, archive, metadata, deadline, idempotencyKey, logger);
+        }
+        return new RetryingUpload(testSpecificationId, archive, metadata, deadline, idempotencyKey, logger).start();
+    }
 
-            ObjectMapper objectMapper = new ObjectMapper();
+    private ListenableFuture<Void> enqueueUpload(String testSpecificationId, TestRunArchive archive, Map<String, Object> metadata, Deadline deadline,
+                                                 String idempotencyKey, PrintStream logger) {
+        ZipRequestBody zip = new ZipRequestBody(archive, logger);
+        Request request;
+        try {
+            deadline.check();
+            request = createUploadRequest(testSpecificationId, zip, metadata, idempotencyKey);
+        } catch (IOException e) {
+            return Futures.immediateFailedFuture(e);
+        } catch (DeadlineExceededException e) {
+            return Futures.immediateFailedFuture(e);
+        }
+        return enqueue(createUploadClient(archive, deadline), request, deadline, new UploadHandler(testSpecificationId, zip, logger));
+    }
 
-            RequestBody body = new MultipartBuilder().type(MultipartBuilder.MIXED)
-                    .addPart(RequestBody.create(MediaType.parse(APPLICATION_JSON_UTF_8), objectMapper.writeValueAsString(metadata)))
-                    .addPart(new ZipRequestBody(workspace, scanner, logger))
-                    .build();
+    /**
+     * Decides whether to send the archive again after a failed attempt: only when it was spooled, when the failure
+     * may pass, i.e. the connection failed or the server answered 429, 502, 503 or 504, and when there is time left.
+     * The delay is what the server asked for with {@code Retry-After}, or else grows exponentially with random jitter,
+     * so builds that failed at the same moment do not all come back at once.
+     *
+     * @return the milliseconds to wait before the next attempt, or -1 to give up
+     */
+    long retryDelay(TestRunArchive archive, Exception failure, int attempt, Deadline deadline, PrintStream logger) {
+        if (!archive.canBeSentAgain() || attempt >= UPLOAD_ATTEMPTS) {
+            return -1;
+        }
+        if (failure instanceof InterruptedIOException && !(failure instanceof SocketTimeoutException)) {
+            // the build was aborted
+            return -1;
+        }
+        if (failure instanceof ArchiveException) {
+            // reading the test run again fails the same way
+            return -1;
+        }
+        long delay = failure instanceof ServerUnavailableException ? ((ServerUnavailableException) failure).getRetryAfterMillis() : -1;
+        if (delay < 0) {
+            long ceiling = Math.min(RETRY_MAX_DELAY_MILLIS, RETRY_BASE_DELAY_MILLIS << (attempt - 1));
+            delay = ceiling / 2 + (long) (random.nextDouble() * ceiling / 2);
+        }
+        if (delay >= deadline.getRemainingMillis()) {
+            logWarn(logger, format("Sending failed and there is no time left to try again: %s", failure.getMessage()));
+            return -1;
+        }
+        logWarn(logger, format("Sending failed, trying again in %d ms (attempt %d of %d): %s", delay, attempt + 1, UPLOAD_ATTEMPTS, failure.getMessage()));
+        return delay;
+    }
 
-            Request request = new Request.Builder()
-                    .url(createSensibleURL(API_IMPORT + "/" + testSpecificationId, serverUrl))
-                    .header("User-Agent", getUserAgent())
-                    .header("Accept", APPLICATION_JSON_UTF_8)
-                    .header("Authorization", createCredentials())
-                    .header("Transfer-Encoding", "chunked")
-                    .post(body)
-                    .build();
+    /**
+     * @param value the {@code Retry-After} header: seconds, or an HTTP date
+     * @return the milliseconds to wait, or -1 when the header is missing or not understood
+     */
+    static long parseRetryAfter(String value, long now) {
+        if (value == null) {
+            return -1;
+        }
+        String trimmed = value.trim();
+        if (trimmed.matches("\\d{1,9}")) {
+            return TimeUnit.SECONDS.toMillis(Long.parseLong(trimmed));
+        }
+        SimpleDateFormat httpDate = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        httpDate.setTimeZone(TimeZone.getTimeZone("GMT"));
+        try {
+            return Math.max(0, httpDate.parse(trimmed).getTime() - now);
+        } catch (ParseException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Sends a spooled archive again after a delay when an attempt failed in a way that may pass.
+     */
+    private final class RetryingUpload implements Runnable {
+        private final String testSpecificationId;
+        private final TestRunArchive archive;
+        private final Map<String, Object> metadata;
+        private final Deadline deadline;
+        private final String idempotencyKey;
+        private final PrintStream logger;
+        private final SettableFuture<Void> result = SettableFuture.create();
+        private int attempt;
+        // the running attempt or the scheduled next one
+        private volatile Future<?> current;
+
+        RetryingUpload(String testSpecificationId, TestRunArchive archive, Map<String, Object> metadata, Deadline deadline, String idempotencyKey,
+                       PrintStream logger) {
+            this.testSpecificationId = testSpecificationId;
+            this.archive = archive;
+            this.metadata = metadata;
+            this.deadline = deadline;
+            this.idempotencyKey = idempotencyKey;
+            this.logger = logger;
+        }
+
+        ListenableFuture<Void> start() {
+            result.addListener(new Runnable() {
+                @Override
+                public void run() {
+                    Future<?> running = current;
+                    if (result.isCancelled() && running != null) {
+                        running.cancel(true);
+                    }
+                }
+            }, MoreExecutors.sameThreadExecutor());
+            run();
+            return result;
+        }
 
-            Response response = client.newCall(request).execute();
-            ObjectMapper mapper = createMapper();
+        @Override
+        public void run() {
+            if (result.isDone()) {
+                return;
+            }
+            attempt++;
+            ListenableFuture<Void> upload = enqueueUpload(testSpecificationId, archive, metadata, deadline, idempotencyKey, logger);
+            current = upload;
+            Futures.addCallback(upload, new FutureCallback<Void>() {
+                @Override
+                public void onSuccess(Void nothing) {
+                    result.set(null);
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    if (result.isDone()) {
+                        return;
+                    }
+                    long delay = t instanceof IOException || t instanceof ServerUnavailableException
+                            ? retryDelay(archive, (Exception) t, attempt, deadline, logger) : -1;
+                    if (delay < 0) {
+                        result.setException(t);
+                        return;
+                    }
+                    current = Timer.get().schedule(RetryingUpload.this, delay, TimeUnit.MILLISECONDS);
+                }
+            });
+        }
+    }
+
+    /**
+     * Returns a client sharing the connection pool and dispatcher, with timeouts for this upload.
+     */
+    private OkHttpClient createUploadClient(TestRunArchive archive, Deadline deadline) {
+        OkHttpClient uploadClient = client.clone();
+        uploadClient.setConnectTimeout(uploadTimeouts.getConnectTimeoutMillis(deadline), TimeUnit.MILLISECONDS);
+        uploadClient.setWriteTimeout(uploadTimeouts.getWriteTimeoutMillis(deadline), TimeUnit.MILLISECONDS);
+        uploadClient.setReadTimeout(uploadTimeouts.getReadTimeoutMillis(archive.contentLength(), deadline), TimeUnit.MILLISECONDS);
+        return uploadClient;
+    }
+
+    /**
+     * @param idempotencyKey the same for every attempt to send the test run, so a server that supports it imports it
+     *                       once even when a response got lost
+     */
+    private Request createUploadRequest(String testSpecificationId, ZipRequestBody zip, Map<String, Object> metadata, String idempotencyKey)
+            throws IOException {
+        if (testSpecificationId == null || testSpecificationId.isEmpty()) {
+            throw new IllegalArgumentException("No test specification id specified. Does the test specification still exist in XL TestView?");
+        }
+        RequestBody body = new MultipartBuilder().type(MultipartBuilder.MIXED)
+                .addPart(RequestBody.create(MediaType.parse(APPLICATION_JSON_UTF_8), METADATA_WRITER.writeValueAsString(metadata)))
+                .addPart(zip)
+                .build();
+
+        return createRequestBuilderFor(API_IMPORT + "/" + testSpecificationId)
+                .header("Transfer-Encoding", "chunked")
+                .header("Idempotency-Key", idempotencyKey)
+                .post(body)
+                .build();
+    }
+
+    private class UploadHandler implements ResponseHandler<Void> {
+        private final String testSpecificationId;
+        private final ZipRequestBody zip;
+        private final PrintStream logger;
+
+        UploadHandler(String testSpecificationId, ZipRequestBody zip, PrintStream logger) {
+            this.testSpecificationId = testSpecificationId;
+            this.zip = zip;
+            this.logger = logger;
+        }
+
+        @Override
+        public Void handle(Response response) throws IOException {
             ImportError importError;
             switch (response.code()) {
                 case 200:
+                    zip.imported();
                     logInfo(logger, "Sent data successfully");
-                    return;
+                    return null;
                 case 304:
                     logWarn(logger, "No new results were detected. Nothing was imported.");
                     throw new IllegalStateException("No new results were detected. Nothing was imported.");
                 case 400:
-                    importError = mapper.readValue(response.body().byteStream(), ImportError.class);
+                    // the server may have been upgraded or downgraded since we negotiated the metadata fields
+                    capabilities.invalidate();
+                    importError = IMPORT_ERROR_READER.readValue(response.body().byteStream());
                     throw new IllegalStateException(importError.getMessage());
                 case 401:
                     throw new AuthenticationException(String.format("User '%s' and the supplied password are unable to log in", credentials.getUsername()));
@@ -244,17 +559,18 @@ public class XLTestServerImpl implements XLTestServer {
                 case 422:
                     logWarn(logger, "Unable to process results.");
                     logWarn(logger, "Are you sure your include/exclude pattern provides all needed files for the test tool?");
-                    importError = mapper.readValue(response.body().byteStream(), ImportError.class);
+                    importError = IMPORT_ERROR_READER.readValue(response.body().byteStream());
                     throw new IllegalStateException(importError.getMessage());
+                case 429:
+                case 503:
+                    throw new ServerUnavailableException("XL TestView is unavailable. Status code: " + response.code() + ". Response message: " + response.toString(),
+                            parseRetryAfter(response.header("Retry-After"), System.currentTimeMillis()));
+                case 502:
+                case 504:
+                    throw new ServerUnavailableException("XL TestView is unavailable. Status code: " + response.code() + ". Response message: " + response.toString(), -1);
                 default:
-                    throw new IllegalStateException("Unknown error. Status code: " + response.code() + ". Response message: " + response.toString());
+                    throw unknownError(response);
             }
-        } catch (URISyntaxException e) {
-            throw new IllegalArgumentException(e);
-        } catch (IOException e) {
-            e.printStackTrace();
-            LOG.warn("I/O error uploading test run data to {} {}\n{}", serverUrl.toString(), e.toString(), e);
-            throw new IOException("I/O error uploading test run data to " + serverUrl.toString() + " " + e.toString(), e);
         }
     }
 
@@ -270,7 +586,7 @@ public class XLTestServerImpl implements XLTestServer {
         }
     }
 
-    private ObjectMapper createMapper() {
+    private static ObjectMapper createMapper() {
         ObjectMapper mapper = new ObjectMapper();
         // make things lenient...
         mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
@@ -279,53 +595,203 @@ public class XLTestServerImpl implements XLTestServer {
 
     @Override
     public Map<String, TestSpecification> getTestSpecifications() {
-        try {
-            Request request = createRequestFor(API_TESTSPECIFICATIONS_EXTENDED);
-            Response response = client.newCall(request).execute();
+        return getTestSpecificationCatalog(null).getTestSpecifications();
+    }
 
-            ObjectMapper mapper = createMapper();
-            Map<String, TestSpecification> testSpecifications = mapper.readValue(response.body().byteStream(), MAP_OF_TESTSPECIFICATION);
-            LOG.debug("Received test specifications: {}", testSpecifications);
-            return testSpecifications;
+    @Override
+    public TestSpecificationCatalog getTestSpecificationCatalog(TestSpecificationCatalog previous) {
+        try {
+            return execute(createCatalogRequest(previous), new CatalogHandler(previous));
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
-    private void logInfo(PrintStream logger, String message) {
-        logger.printf(XL_TEST_LOG_FORMAT, "INFO", message);
+    @Override
+    public ListenableFuture<TestSpecificationCatalog> getTestSpecificationCatalogAsync(TestSpecificationCatalog previous) {
+        return enqueue(createCatalogRequest(previous), new CatalogHandler(previous));
     }
 
-    private void logWarn(PrintStream logger, String message) {
-        logger.printf(XL_TEST_LOG_FORMAT, "WARN", message);
+    private Request createCatalogRequest(TestSpecificationCatalog previous) {
+        Request.Builder builder = createRequestBuilderFor(API_TESTSPECIFICATIONS_EXTENDED);
+        if (previous != null && previous.getEtag() != null) {
+            builder.header("If-None-Match", previous.getEtag());
+        }
+        if (previous != null && previous.getLastModified() != null) {
+            builder.header("If-Modified-Since", previous.getLastModified());
+        }
+        return builder.build();
     }
 
-    private class CloseIgnoringOutputStream extends OutputStream {
-        private final OutputStream wrapped;
+    private class CatalogHandler implements ResponseHandler<TestSpecificationCatalog> {
+        private final TestSpecificationCatalog previous;
 
-        public CloseIgnoringOutputStream(OutputStream wrapped) {
-            this.wrapped = wrapped;
+        CatalogHandler(TestSpecificationCatalog previous) {
+            this.previous = previous;
         }
 
         @Override
-        public void write(int b) throws IOException {
-            wrapped.write(b);
+        public TestSpecificationCatalog handle(Response response) throws IOException {
+            switch (response.code()) {
+                case 200:
+                    Map<String, TestSpecification> testSpecifications = TestSpecificationCatalogReader.read(MAPPER.getFactory(), response.body().byteStream());
+                    LOG.debug("Received {} test specifications", testSpecifications.size());
+                    return new TestSpecificationCatalog(testSpecifications, response.header("ETag"), response.header("Last-Modified"));
+                case 304:
+                    if (previous == null) {
+                        throw new IllegalStateException("Received 304 Not Modified for an unconditional request");
+                    }
+                    LOG.debug("Test specifications of {} not modified", serverUrl);
+                    return previous.revalidated();
+                case 401:
+                    throw new AuthenticationException(String.format("User '%s' and the supplied password are unable to log in", credentials.getUsername()));
+                case 402:
+                    throw new PaymentRequiredException("The XL TestView server does not have a valid license");
+                default:
+                    throw unknownError(response);
+            }
         }
+    }
 
-        @Override
-        public void close() throws IOException {
-            // let's ignore this...
+    /**
+     * Turns a response into a result; shared by the blocking and the asynchronous calls.
+     */
+    private interface ResponseHandler<T> {
+        T handle(Response response) throws IOException;
+    }
+
+    private <T> T execute(Request request, ResponseHandler<T> handler) throws IOException {
+        return execute(client, request, Deadline.NONE, handler);
+    }
+
+    private <T> T execute(OkHttpClient client, Request request, Deadline deadline, ResponseHandler<T> handler) throws IOException {
+        circuitBreaker.acquire();
+        long started = System.nanoTime();
+        Call call = client.newCall(request);
+        Future<?> expiry = deadline.cancelWhenExpired(call);
+        try {
+            Response response;
+            try {
+                response = call.execute();
+            } catch (IOException e) {
+                // timeouts are capped at the deadline, so they may fire just before the call is cancelled
+                if (deadline.isExpired()) {
+                    circuitBreaker.cancelled();
+                    throw deadline.exceeded();
+                }
+                if (call.isCanceled() || e instanceof ArchiveException) {
+                    circuitBreaker.cancelled();
+                } else {
+                    circuitBreaker.failed();
+                }
+                throw e;
+            } catch (RuntimeException e) {
+                circuitBreaker.cancelled();
+                throw e;
+            }
+            record(request, response, started);
+            try {
+                return handler.handle(response);
+            } finally {
+                closeQuietly(response.body());
+            }
+        } finally {
+            expiry.cancel(false);
+        }
+    }
+
+    private <T> ListenableFuture<T> enqueue(Request request, ResponseHandler<T> handler) {
+        return enqueue(client, request, Deadline.NONE, handler);
+    }
+
+    private <T> ListenableFuture<T> enqueue(OkHttpClient client, final Request request, final Deadline deadline, final ResponseHandler<T> handler) {
+        final SettableFuture<T> future = SettableFuture.create();
+        try {
+            circuitBreaker.acquire();
+        } catch (CircuitOpenException e) {
+            future.setException(e);
+            return future;
+        }
+        final long started = System.nanoTime();
+        final Call call = client.newCall(request);
+        final Future<?> expiry = deadline.cancelWhenExpired(call);
+        future.addListener(new Runnable() {
+            @Override
+            public void run() {
+                expiry.cancel(false);
+                if (future.isCancelled()) {
+                    call.cancel();
+                }
+            }
+        }, MoreExecutors.sameThreadExecutor());
+        call.enqueue(new Callback() {
+            @Override
+            public void onFailure(Request failed, IOException e) {
+                if (deadline.isExpired()) {
+                    circuitBreaker.cancelled();
+                    future.setException(deadline.exceeded());
+                    return;
+                }
+                if (call.isCanceled() || e instanceof ArchiveException) {
+                    circuitBreaker.cancelled();
+                } else {
+                    circuitBreaker.failed();
+                }
+                future.setException(e);
+            }
+
+            @Override
+            public void onResponse(Response response) {
+                record(request, response, started);
+                try {
+                    future.set(handler.handle(response));
+                } catch (Exception e) {
+                    future.setException(e);
+                } finally {
+                    closeQuietly(response.body());
+                }
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Server errors count against the circuit breaker; client errors such as a rejected password or an unknown test
+     * specification do not. Uploads are not timed, since their duration depends on the size of the test run.
+     */
+    private void record(Request request, Response response, long started) {
+        if (response.code() >= 500) {
+            circuitBreaker.failed();
+        } else {
+            circuitBreaker.succeeded(request.body() == null ? TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started) : -1);
         }
     }
 
+    /**
+     * Any other 5xx is still the server's fault, so a cluster avoids the node as it does for a 503.
+     */
+    private static IllegalStateException unknownError(Response response) {
+        String message = "Unknown error. Status code: " + response.code() + ". Response message: " + response.toString();
+        return response.code() >= 500 ? new ServerErrorException(message) : new IllegalStateException(message);
+    }
+
+    private void logInfo(PrintStream logger, String message) {
+        logger.printf(XL_TEST_LOG_FORMAT, "INFO", message);
+    }
+
+    private void logWarn(PrintStream logger, String message) {
+        logger.printf(XL_TEST_LOG_FORMAT, "WARN", message);
+    }
+
     private class ZipRequestBody extends RequestBody {
-        private final FilePath workspace;
-        private final DirScanner scanner;
+        private final TestRunArchive archive;
         private final PrintStream logger;
+        // what was sent and when the last byte went out, to measure how fast the server imports
+        private volatile long bytes;
+        private volatile long sent;
 
-        public ZipRequestBody(FilePath workspace, DirScanner scanner, PrintStream logger) {
-            this.workspace = workspace;
-            this.scanner = scanner;
+        public ZipRequestBody(TestRunArchive archive, PrintStream logger) {
+            this.archive = archive;
             this.logger = logger;
         }
 
@@ -336,23 +802,67 @@ public class XLTestServerImpl implements XLTestServer {
 
         @Override
         public long contentLength() {
-            return -1L;
+            return archive.contentLength();
         }
 
         @Override
         public void writeTo(BufferedSink sink) throws IOException {
-            ArchiverFactory factory = ArchiverFactory.ZIP;
-            OutputStream os = null;
+            long started = System.nanoTime();
+            CountingSink counting = new CountingSink(sink);
+            BufferedSink buffered = Okio.buffer(counting);
             try {
-                // the archive function 'conveniently' closes our outputstream
-                os = new CloseIgnoringOutputStream(sink.outputStream());
-                int numberOfFilesArchived = workspace.archive(factory, os, scanner);
+                int numberOfFilesArchived = archive.writeTo(buffered);
+                buffered.emit();
+                bytes = counting.count;
+                sent = System.nanoTime();
+                uploadTimeouts.transferred(bytes, TimeUnit.NANOSECONDS.toMillis(sent - started));
                 logInfo(logger, format("Zipped %d files", numberOfFilesArchived));
+                CompressionStatistics statistics = archive.getStatistics();
+                if (statistics != null) {
+                    for (String line : statistics.describe()) {
+                        logInfo(logger, line);
+                    }
+                }
+            } catch (IOException e) {
+                if (counting.failed) {
+                    throw e;
+                }
+                throw new ArchiveException("Unable to zip the test run: " + e.getMessage(), e);
             } catch (InterruptedException e) {
                 throw new RuntimeException("Writing of zip interrupted.", e);
-            } finally {
-                closeQuietly(os);
             }
         }
+
+        /**
+         * Called when the server responded that it imported the archive.
+         */
+        void imported() {
+            if (sent != 0) {
+                uploadTimeouts.imported(bytes, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - sent));
+            }
+        }
+    }
+
+    /**
+     * Counts what went out, and tells failures to send apart from failures to read the archive.
+     */
+    private static final class CountingSink extends ForwardingSink {
+        private long count;
+        private boolean failed;
+
+        CountingSink(Sink delegate) {
+            super(delegate);
+        }
+
+        @Override
+        public void write(Buffer source, long byteCount) throws IOException {
+            try {
+                super.write(source, byteCount);
+            } catch (IOException e) {
+                failed = true;
+                throw e;
+            }
+            count += byteCount;
+        }
     }
 }
@@ -0,0 +1,301 @@
+/**
+ * Copyright (c) 2014-2015, XebiaLabs B.V., All rights reserved.
+ * <p/>
+ * The XL TestView plugin for Jenkins is licensed under the terms of the GPLv2
+ * <http://www.gnu.org/licenses/old-licenses/gpl-2.0.html>, like most XebiaLabs
+ * Libraries. There are special exceptions to the terms and conditions of the
+ * GPLv2 as it is applied to this software, see the FLOSS License Exception
+ * <https://github.com/jenkinsci/xltestview-plugin/blob/master/LICENSE>.
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; version 2 of the License.
+ * <p/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package com.xebialabs.xlt.ci.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.google.common.base.Objects;
+import com.squareup.okhttp.ConnectionPool;
+import com.squareup.okhttp.Credentials;
+import com.squareup.okhttp.Dispatcher;
+import com.squareup.okhttp.OkHttpClient;
+
+import com.xebialabs.xlt.ci.server.authentication.UsernamePassword;
+
+/**
+ * Hands out one long-lived {@link XLTestServer} per (serverUrl, proxyUrl, credentialsId).
+ * <p/>
+ * All clients of a generation share a single OkHttp connection pool and dispatcher, so TCP/TLS connections
+ * (and proxy tunnels) are reused across builds. {@link #configure(int, long)} atomically replaces the whole
+ * generation; calls that are already running keep using the old clients until they complete.
+ * <p/>
+ * The {@link CircuitBreaker} and {@link UploadTimeouts} of a server URL outlive generations and are shared by all clients
+ * of that URL, whatever their proxy or credentials, since they track the server itself.
+ */
+public class XLTestServerRegistry {
+    private static final Logger LOG = LoggerFactory.getLogger(XLTestServerRegistry.class);
+
+    public static final int DEFAULT_MAX_IDLE_CONNECTIONS = 5;
+    public static final long DEFAULT_KEEP_ALIVE_SECONDS = 300;
+
+    private static final XLTestServerRegistry INSTANCE = new XLTestServerRegistry();
+
+    private final AtomicReference<Generation> current = new AtomicReference<Generation>(
+            new Generation(DEFAULT_MAX_IDLE_CONNECTIONS, DEFAULT_KEEP_ALIVE_SECONDS));
+    private final ConcurrentMap<String, CircuitBreaker> circuitBreakers = new ConcurrentHashMap<String, CircuitBreaker>();
+    private final ConcurrentMap<String, UploadTimeouts> uploadTimeouts = new ConcurrentHashMap<String, UploadTimeouts>();
+
+    public static XLTestServerRegistry getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the cached server for the given key, creating it when absent or when the credentials changed.
+     */
+    public XLTestServer getServer(String serverUrl, String proxyUrl, String credentialsId, UsernamePassword credentials) {
+        if (credentials == null) {
+            throw new IllegalArgumentException("Need credentials to connect to " + serverUrl);
+        }
+        Generation generation = current.get();
+        Key key = new Key(serverUrl, proxyUrl, credentialsId);
+        String authorization = Credentials.basic(credentials.getUsername(), credentials.getPassword());
+
+        Entry entry = generation.servers.get(key);
+        if (entry != null && entry.authorization.equals(authorization)) {
+            generation.hits.incrementAndGet();
+            return entry.server;
+        }
+
+        generation.misses.incrementAndGet();
+        LOG.debug("Creating XL TestView client for {}", key);
+        Entry fresh = new Entry(authorization, new XLTestServerImpl(generation.newClient(), serverUrl, proxyUrl, credentials));
+        if (entry == null) {
+            Entry raced = generation.servers.putIfAbsent(key, fresh);
+            if (raced != null && raced.authorization.equals(authorization)) {
+                return raced.server;
+            }
+        }
+        generation.servers.put(key, fresh);
+        return fresh.server;
+    }
+
+    /**
+     * Returns a client that shares the connection pool of the current generation, but is not cached itself.
+     */
+    public OkHttpClient newClient() {
+        return current.get().newClient();
+    }
+
+    public CircuitBreaker getCircuitBreaker(String serverUrl) {
+        String url = XLTestServerImpl.removeTrailingSlashes(serverUrl);
+        CircuitBreaker breaker = circuitBreakers.get(url);
+        if (breaker == null) {
+            CircuitBreaker fresh = new CircuitBreaker(url);
+            breaker = circuitBreakers.putIfAbsent(url, fresh);
+            if (breaker == null) {
+                breaker = fresh;
+            }
+        }
+        return breaker;
+    }
+
+    public UploadTimeouts getUploadTimeouts(String serverUrl) {
+        String url = XLTestServerImpl.removeTrailingSlashes(serverUrl);
+        UploadTimeouts timeouts = uploadTimeouts.get(url);
+        if (timeouts == null) {
+            UploadTimeouts fresh = new UploadTimeouts();
+            timeouts = uploadTimeouts.putIfAbsent(url, fresh);
+            if (timeouts == null) {
+                timeouts = fresh;
+            }
+        }
+        return timeouts;
+    }
+
+    /**
+     * @return the circuit breakers of all servers called since Jenkins started, by URL
+     */
+    public List<CircuitBreaker> getCircuitBreakers() {
+        List<CircuitBreaker> breakers = new ArrayList<CircuitBreaker>(circuitBreakers.values());
+        Collections.sort(breakers, new Comparator<CircuitBreaker>() {
+            @Override
+            public int compare(CircuitBreaker a, CircuitBreaker b) {
+                return a.getServerUrl().compareTo(b.getServerUrl());
+            }
+        });
+        return breakers;
+    }
+
+    /**
+     * Atomically replaces all cached servers with a new generation using the given pool settings.
+     */
+    public void configure(int maxIdleConnections, long keepAliveSeconds) {
+        Generation fresh = new Generation(maxIdleConnections, keepAliveSeconds);
+        Generation old = current.getAndSet(fresh);
+        LOG.info("Reconfigured XL TestView connection pool: maxIdleConnections={} keepAliveSeconds={}", maxIdleConnections, keepAliveSeconds);
+        // running calls hold on to their connection; only the idle ones are closed
+        old.pool.evictAll();
+    }
+
+    public Statistics getStatistics() {
+        Generation generation = current.get();
+        return new Statistics(generation.servers.size(),
+                generation.pool.getConnectionCount(),
+                generation.pool.getIdleConnectionCount(),
+                generation.hits.get(),
+                generation.misses.get(),
+                generation.maxIdleConnections,
+                generation.keepAliveSeconds);
+    }
+
+    private static final class Generation {
+        private final int maxIdleConnections;
+        private final long keepAliveSeconds;
+        private final ConnectionPool pool;
+        private final Dispatcher dispatcher = new Dispatcher();
+        private final ConcurrentMap<Key, Entry> servers = new ConcurrentHashMap<Key, Entry>();
+        private final AtomicLong hits = new AtomicLong();
+        private final AtomicLong misses = new AtomicLong();
+
+        Generation(int maxIdleConnections, long keepAliveSeconds) {
+            this.maxIdleConnections = maxIdleConnections;
+            this.keepAliveSeconds = keepAliveSeconds;
+            this.pool = new ConnectionPool(maxIdleConnections, TimeUnit.SECONDS.toMillis(keepAliveSeconds));
+        }
+
+        OkHttpClient newClient() {
+            OkHttpClient client = new OkHttpClient();
+            client.setConnectionPool(pool);
+            client.setDispatcher(dispatcher);
+            return client;
+        }
+    }
+
+    private static final class Entry {
+        private final String authorization;
+        private final XLTestServer server;
+
+        Entry(String authorization, XLTestServer server) {
+            this.authorization = authorization;
+            this.server = server;
+        }
+    }
+
+    private static final class Key {
+        private final String serverUrl;
+        private final String proxyUrl;
+        private final String credentialsId;
+
+        Key(String serverUrl, String proxyUrl, String credentialsId) {
+            this.serverUrl = XLTestServerImpl.removeTrailingSlashes(serverUrl);
+            this.proxyUrl = proxyUrl == null ? "" : proxyUrl;
+            this.credentialsId = credentialsId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return Objects.equal(serverUrl, other.serverUrl)
+                    && Objects.equal(proxyUrl, other.proxyUrl)
+                    && Objects.equal(credentialsId, other.credentialsId);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(serverUrl, proxyUrl, credentialsId);
+        }
+
+        @Override
+        public String toString() {
+            return Objects.toStringHelper(this)
+                    .add("serverUrl", serverUrl)
+                    .add("proxyUrl", proxyUrl)
+                    .add("credentialsId", credentialsId)
+                    .toString();
+        }
+    }
+
+    public static final class Statistics {
+        private final int servers;
+        private final int connections;
+        private final int idleConnections;
+        private final long hits;
+        private final long misses;
+        private final int maxIdleConnections;
+        private final long keepAliveSeconds;
+
+        Statistics(int servers, int connections, int idleConnections, long hits, long misses, int maxIdleConnections, long keepAliveSeconds) {
+            this.servers = servers;
+            this.connections = connections;
+            this.idleConnections = idleConnections;
+            this.hits = hits;
+            this.misses = misses;
+            this.maxIdleConnections = maxIdleConnections;
+            this.keepAliveSeconds = keepAliveSeconds;
+        }
+
+        public int getServers() {
+            return servers;
+        }
+
+        public int getConnections() {
+            return connections;
+        }
+
+        public int getIdleConnections() {
+            return idleConnections;
+        }
+
+        public long getHits() {
+            return hits;
+        }
+
+        public long getMisses() {
+            return misses;
+        }
+
+        public int getMaxIdleConnections() {
+            return maxIdleConnections;
+        }
+
+        public long getKeepAliveSeconds() {
+            return keepAliveSeconds;
+        }
+
+        @Override
+        public String toString() {
+            return Objects.toStringHelper(this)
+                    .add("servers", servers)
+                    .add("connections", connections)
+                    .add("idleConnections", idleConnections)
+                    .add("hits", hits)
+                    .add("misses", misses)
+                    .toString();
+        }
+    }
+}
@@ -0,0 +1,431 @@
+package com.xebialabs.xlt.ci.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.Characters;
+import javax.xml.stream.events.StartDocument;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+import com.google.common.base.Objects;
+
+/**
+ * Shrinks JUnit and TestNG result files while they are zipped: truncates or drops the output captured in
+ * {@code system-out} and {@code system-err}, keeps only the first frames of each stack trace and replaces stack traces
+ * seen before in the same file by a reference to the test case that had it first.
+ * <p/>
+ * The files are streamed with StAX, so memory use does not depend on their size: text is buffered at most per line
+ * and per stack trace, and both are bounded.
+ */
+public final class XmlCompaction implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public static final int KEEP = -1;
+
+    public static final XmlCompaction NONE = new XmlCompaction(KEEP, KEEP, false);
+
+    private static final Set<String> OUTPUT_ELEMENTS = new HashSet<String>(Arrays.asList("system-out", "system-err"));
+    private static final Set<String> TRACE_ELEMENTS = new HashSet<String>(Arrays.asList("failure", "error", "stackTrace", "full-stacktrace"));
+
+    /**
+     * Longer lines are written out in pieces; they are never frames.
+     */
+    private static final int MAX_LINE = 8 * 1024;
+    /**
+     * Longer stack traces are written as they are read and not deduplicated.
+     */
+    private static final int MAX_TRACE = 64 * 1024;
+    private static final int MAX_REMEMBERED_TRACES = 10000;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final int maxOutputLength;
+    private final int maxStackTraceFrames;
+    private final boolean deduplicateStackTraces;
+
+    /**
+     * @param maxOutputLength        characters of captured output to keep per element, 0 to drop the elements or
+     *                               {@link #KEEP}
+     * @param maxStackTraceFrames    frames to keep per exception of a stack trace, or {@link #KEEP}
+     * @param deduplicateStackTraces replace stack traces that occurred before in the same file by a reference
+     */
+    public XmlCompaction(int maxOutputLength, int maxStackTraceFrames, boolean deduplicateStackTraces) {
+        if (maxOutputLength < KEEP || maxStackTraceFrames < KEEP) {
+            throw new IllegalArgumentException("Limits must not be negative");
+        }
+        this.maxOutputLength = maxOutputLength;
+        this.maxStackTraceFrames = maxStackTraceFrames;
+        this.deduplicateStackTraces = deduplicateStackTraces;
+    }
+
+    public int getMaxOutputLength() {
+        return maxOutputLength;
+    }
+
+    public int getMaxStackTraceFrames() {
+        return maxStackTraceFrames;
+    }
+
+    public boolean isDeduplicateStackTraces() {
+        return deduplicateStackTraces;
+    }
+
+    public boolean isEnabled() {
+        return maxOutputLength != KEEP || compactsStackTraces();
+    }
+
+    /**
+     * @return whether the entry is compacted; only XML files are
+     */
+    boolean appliesTo(String name, ContentClass contentClass) {
+        return isEnabled() && contentClass == ContentClass.TEXT && name.toLowerCase().endsWith(".xml");
+    }
+
+    private boolean compactsStackTraces() {
+        return maxStackTraceFrames != KEEP || deduplicateStackTraces;
+    }
+
+    /**
+     * Copies the document from {@code in} to {@code out}, compacted. Neither stream is closed.
+     *
+     * @throws MalformedXmlException when the input is not well-formed; part of it may have been written
+     */
+    public void compact(InputStream in, OutputStream out) throws IOException {
+        XMLEventReader reader = null;
+        XMLEventWriter writer = null;
+        try {
+            reader = newInputFactory().createXMLEventReader(in);
+            String encoding = UTF_8.name();
+            if (reader.peek() != null && reader.peek().isStartDocument()) {
+                StartDocument start = (StartDocument) reader.peek();
+                if (start.encodingSet()) {
+                    encoding = start.getCharacterEncodingScheme();
+                }
+            }
+            writer = XMLOutputFactory.newInstance().createXMLEventWriter(out, encoding);
+            new Run(reader, writer).copy();
+            writer.flush();
+        } catch (XMLStreamException e) {
+            throw new MalformedXmlException(e);
+        } finally {
+            closeQuietly(reader, writer);
+        }
+    }
+
+    private static XMLInputFactory newInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, false);
+        return factory;
+    }
+
+    private static void closeQuietly(XMLEventReader reader, XMLEventWriter writer) {
+        try {
+            if (writer != null) {
+                writer.close();
+            }
+        } catch (XMLStreamException ignored) {
+            // the failure that got us here is more interesting
+        }
+        try {
+            if (reader != null) {
+                reader.close();
+            }
+        } catch (XMLStreamException ignored) {
+            // idem
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof XmlCompaction)) {
+            return false;
+        }
+        XmlCompaction other = (XmlCompaction) o;
+        return maxOutputLength == other.maxOutputLength && maxStackTraceFrames == other.maxStackTraceFrames
+                && deduplicateStackTraces == other.deduplicateStackTraces;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hashCode(maxOutputLength, maxStackTraceFrames, deduplicateStackTraces);
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this)
+                .add("maxOutputLength", maxOutputLength)
+                .add("maxStackTraceFrames", maxStackTraceFrames)
+                .add("deduplicateStackTraces", deduplicateStackTraces)
+                .toString();
+    }
+
+    /**
+     * Thrown when a file to compact turns out not to be well-formed XML.
+     */
+    public static class MalformedXmlException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        MalformedXmlException(XMLStreamException cause) {
+            super(cause.getMessage(), cause);
+        }
+    }
+
+    /**
+     * Compacts one document.
+     */
+    private final class Run {
+        private final XMLEventReader reader;
+        private final XMLEventWriter writer;
+        private final XMLEventFactory events = XMLEventFactory.newInstance();
+        private final Map<String, String> traces = new HashMap<String, String>();
+        private final MessageDigest digest;
+
+        private String testCase = "";
+        private int skipDepth;
+        private Text text;
+
+        Run(XMLEventReader reader, XMLEventWriter writer) {
+            this.reader = reader;
+            this.writer = writer;
+            try {
+                this.digest = MessageDigest.getInstance("SHA-1");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        void copy() throws XMLStreamException {
+            while (reader.hasNext()) {
+                XMLEvent event = reader.nextEvent();
+                if (skipDepth > 0) {
+                    if (event.isStartElement()) {
+                        skipDepth++;
+                    } else if (event.isEndElement()) {
+                        skipDepth--;
+                    }
+                    continue;
+                }
+                if (text != null) {
+                    if (event.isCharacters()) {
+                        text.append(event.asCharacters());
+                        continue;
+                    }
+                    text.finish();
+                    text = null;
+                }
+                if (event.isStartElement()) {
+                    StartElement start = event.asStartElement();
+                    String name = start.getName().getLocalPart();
+                    if ("testcase".equals(name)) {
+                        testCase = attribute(start, "classname") + "." + attribute(start, "name");
+                    }
+                    if (maxOutputLength == 0 && OUTPUT_ELEMENTS.contains(name)) {
+                        skipDepth = 1;
+                        continue;
+                    }
+                    writer.add(event);
+                    if (maxOutputLength > 0 && OUTPUT_ELEMENTS.contains(name)) {
+                        text = new Output();
+                    } else if (compactsStackTraces() && TRACE_ELEMENTS.contains(name)) {
+                        text = new Trace();
+                    }
+                    continue;
+                }
+                writer.add(event);
+            }
+        }
+
+        private String attribute(StartElement start, String name) {
+            Attribute attribute = start.getAttributeByName(new QName(name));
+            return attribute != null ? attribute.getValue() : "";
+        }
+
+        private void write(String s) throws XMLStreamException {
+            writer.add(events.createCharacters(s));
+        }
+
+        private abstract class Text {
+            abstract void append(Characters characters) throws XMLStreamException;
+
+            abstract void finish() throws XMLStreamException;
+        }
+
+        /**
+         * Passes on the first characters of captured output and counts the rest.
+         */
+        private final class Output extends Text {
+            private int written;
+            private long truncated;
+
+            @Override
+            void append(Characters characters) throws XMLStreamException {
+                String data = characters.getData();
+                int keep = Math.min(data.length(), maxOutputLength - written);
+                if (keep > 0 && keep < data.length() && Character.isHighSurrogate(data.charAt(keep - 1))) {
+                    keep--;
+                }
+                if (keep > 0) {
+                    String kept = data.substring(0, keep);
+                    writer.add(characters.isCData() ? events.createCData(kept) : events.createCharacters(kept));
+                    written += keep;
+                }
+                truncated += data.length() - keep;
+            }
+
+            @Override
+            void finish() throws XMLStreamException {
+                if (truncated > 0) {
+                    write("\n[" + truncated + " characters truncated]");
+                }
+            }
+        }
+
+        /**
+         * Splits a stack trace into lines, drops the frames beyond the limit and remembers the trace, so the next
+         * identical one is written as a reference.
+         */
+        private final class Trace extends Text {
+            private final StringBuilder line = new StringBuilder();
+            private final StringBuilder kept = new StringBuilder();
+            private boolean longLine;
+            private boolean streaming;
+            private int frames;
+            private int omitted;
+
+            @Override
+            void append(Characters characters) throws XMLStreamException {
+                String data = characters.getData();
+                int start = 0;
+                for (int newline = data.indexOf('\n'); newline != -1; newline = data.indexOf('\n', start)) {
+                    line.append(data, start, newline + 1);
+                    endLine();
+                    start = newline + 1;
+                }
+                line.append(data, start, data.length());
+                if (line.length() > MAX_LINE) {
+                    if (!longLine) {
+                        header();
+                        longLine = true;
+                    }
+                    emit(line.toString());
+                    line.setLength(0);
+                }
+            }
+
+            private void endLine() throws XMLStreamException {
+                String s = line.toString();
+                line.setLength(0);
+                if (longLine) {
+                    longLine = false;
+                    emit(s);
+                } else if (moreFrames(s) >= 0) {
+                    // already left out by the test tool; no frames follow within this exception
+                    if (omitted > 0) {
+                        omitted += moreFrames(s);
+                    } else {
+                        emit(s);
+                    }
+                } else if (isFrame(s)) {
+                    if (maxStackTraceFrames != KEEP && frames >= maxStackTraceFrames) {
+                        omitted++;
+                    } else {
+                        frames++;
+                        emit(s);
+                    }
+                } else {
+                    header();
+                    emit(s);
+                }
+            }
+
+            /**
+             * Starts the next exception of the trace.
+             */
+            private void header() throws XMLStreamException {
+                if (omitted > 0) {
+                    emit("\t... " + omitted + " more\n");
+                    omitted = 0;
+                }
+                frames = 0;
+            }
+
+            private boolean isFrame(String s) {
+                return s.trim().startsWith("at ");
+            }
+
+            /**
+             * @return N for a "... N more" line, or -1 for any other line
+             */
+            private int moreFrames(String s) {
+                String trimmed = s.trim();
+                if (!trimmed.startsWith("... ") || !trimmed.endsWith(" more")) {
+                    return -1;
+                }
+                try {
+                    return Integer.parseInt(trimmed.substring(4, trimmed.length() - 5).trim());
+                } catch (NumberFormatException e) {
+                    return -1;
+                }
+            }
+
+            private void emit(String s) throws XMLStreamException {
+                if (streaming) {
+                    write(s);
+                    return;
+                }
+                kept.append(s);
+                if (kept.length() > MAX_TRACE) {
+                    streaming = true;
+                    write(kept.toString());
+                    kept.setLength(0);
+                }
+            }
+
+            @Override
+            void finish() throws XMLStreamException {
+                if (line.length() > 0) {
+                    endLine();
+                }
+                header();
+                if (streaming || kept.length() == 0) {
+                    return;
+                }
+                String trace = kept.toString();
+                if (!deduplicateStackTraces) {
+                    write(trace);
+                    return;
+                }
+                String key = new BigInteger(1, digest.digest(trace.getBytes(UTF_8))).toString(16);
+                String first = traces.get(key);
+                if (first == null) {
+                    if (traces.size() < MAX_REMEMBERED_TRACES) {
+                        traces.put(key, testCase);
+                    }
+                    write(trace);
+                    return;
+                }
+                int end = trace.indexOf('\n');
+                write(end == -1 ? trace : trace.substring(0, end + 1) + "\t... same stack trace as " + first + "\n");
+            }
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package com.xebialabs.xlt.ci.server.domain;
+
+import java.util.Collections;
+import java.util.Map;
+import com.google.common.base.Objects;
+
+/**
+ * All test specifications known to an XL TestView server, together with the validators needed to revalidate them
+ * with a conditional request.
+ */
+public class TestSpecificationCatalog {
+    public static final TestSpecificationCatalog EMPTY = new TestSpecificationCatalog(Collections.<String, TestSpecification>emptyMap(), null, null);
+
+    private final Map<String, TestSpecification> testSpecifications;
+    private final String etag;
+    private final String lastModified;
+    private final long fetchedAt;
+
+    public TestSpecificationCatalog(Map<String, TestSpecification> testSpecifications, String etag, String lastModified) {
+        this(Collections.unmodifiableMap(testSpecifications), etag, lastModified, System.currentTimeMillis());
+    }
+
+    private TestSpecificationCatalog(Map<String, TestSpecification> testSpecifications, String etag, String lastModified, long fetchedAt) {
+        this.testSpecifications = testSpecifications;
+        this.etag = etag;
+        this.lastModified = lastModified;
+        this.fetchedAt = fetchedAt;
+    }
+
+    /**
+     * Returns the same catalog, marked as fetched now. Used when the server answered 304 Not Modified.
+     */
+    public TestSpecificationCatalog revalidated() {
+        return new TestSpecificationCatalog(testSpecifications, etag, lastModified, System.currentTimeMillis());
+    }
+
+    public Map<String, TestSpecification> getTestSpecifications() {
+        return testSpecifications;
+    }
+
+    public String getEtag() {
+        return etag;
+    }
+
+    public String getLastModified() {
+        return lastModified;
+    }
+
+    public long getFetchedAt() {
+        return fetchedAt;
+    }
+
+    public int size() {
+        return testSpecifications.size();
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this)
+                .add("size", testSpecifications.size())
+                .add("etag", etag)
+                .add("lastModified", lastModified)
+                .add("fetchedAt", fetchedAt)
+                .toString();
+    }
+}
@@ -0,0 +1,78 @@
+package com.xebialabs.xlt.ci;
+
+import java.util.HashMap;
+import java.util.Map;
+import org.mockito.Mockito;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import com.cloudbees.plugins.credentials.SystemCredentialsProvider;
+import com.cloudbees.plugins.credentials.common.StandardUsernamePasswordCredentials;
+import com.google.common.base.Function;
+
+import hudson.model.Saveable;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+
+public class CredentialsCacheTest {
+
+    private CountingResolver resolver;
+
+    @BeforeMethod
+    public void clearCache() {
+        CredentialsCache.invalidateAll();
+        resolver = new CountingResolver();
+    }
+
+    @Test
+    public void shouldResolveCredentialsOnlyOnce() {
+        StandardUsernamePasswordCredentials credentials = resolver.add("xltv");
+
+        assertSame(CredentialsCache.lookup("xltv", resolver), credentials);
+        assertSame(CredentialsCache.lookup("xltv", resolver), credentials);
+        assertEquals(resolver.lookups, 1);
+    }
+
+    @Test
+    public void shouldNotCacheMissingCredentials() {
+        assertNull(CredentialsCache.lookup("xltv", resolver));
+        StandardUsernamePasswordCredentials credentials = resolver.add("xltv");
+
+        assertSame(CredentialsCache.lookup("xltv", resolver), credentials);
+        assertEquals(resolver.lookups, 2);
+    }
+
+    @Test
+    public void shouldResolveAgainWhenCredentialsStoreIsSaved() {
+        resolver.add("xltv");
+        CredentialsCache.lookup("xltv", resolver);
+        CredentialsCache.CredentialsStoreListener listener = new CredentialsCache.CredentialsStoreListener();
+
+        listener.onChange(Mockito.mock(Saveable.class), null);
+        CredentialsCache.lookup("xltv", resolver);
+        assertEquals(resolver.lookups, 1, "unrelated configuration was saved");
+
+        StandardUsernamePasswordCredentials changed = resolver.add("xltv");
+        listener.onChange(Mockito.mock(SystemCredentialsProvider.class), null);
+        assertSame(CredentialsCache.lookup("xltv", resolver), changed);
+        assertEquals(resolver.lookups, 2);
+    }
+
+    private static class CountingResolver implements Function<String, StandardUsernamePasswordCredentials> {
+        private final Map<String, StandardUsernamePasswordCredentials> credentials = new HashMap<String, StandardUsernamePasswordCredentials>();
+        private int lookups;
+
+        StandardUsernamePasswordCredentials add(String id) {
+            StandardUsernamePasswordCredentials added = Mockito.mock(StandardUsernamePasswordCredentials.class);
+            credentials.put(id, added);
+            return added;
+        }
+
+        @Override
+        public StandardUsernamePasswordCredentials apply(String id) {
+            lookups++;
+            return credentials.get(id);
+        }
+    }
+}
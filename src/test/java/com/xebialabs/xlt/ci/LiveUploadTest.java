@@ -0,0 +1,198 @@
+package com.xebialabs.xlt.ci;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import org.apache.commons.io.FileUtils;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import com.google.common.base.Suppliers;
+import com.google.common.io.Files;
+
+import com.xebialabs.xlt.ci.server.Deadline;
+import com.xebialabs.xlt.ci.server.ServerCapabilities;
+import com.xebialabs.xlt.ci.server.ServerUnavailableException;
+import com.xebialabs.xlt.ci.server.TestRunArchive;
+import com.xebialabs.xlt.ci.server.XLTestServer;
+
+import hudson.FilePath;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyMapOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class LiveUploadTest {
+
+    private static final long QUIET_MILLIS = 100000;
+
+    private File workspace;
+    private long now;
+    private LiveUploadAction action;
+    private XLTestServer server;
+    private ServerCapabilities capabilities;
+    private FakeServer received;
+
+    @BeforeMethod
+    public void createWorkspace() throws Exception {
+        workspace = Files.createTempDir();
+        // whole seconds, since some file systems keep no more
+        now = System.currentTimeMillis() / 1000 * 1000;
+        action = new LiveUploadAction("job#1", now - 600000);
+        server = Mockito.mock(XLTestServer.class);
+        capabilities = Mockito.mock(ServerCapabilities.class);
+        when(server.getCapabilities()).thenReturn(capabilities);
+        when(capabilities.supportsPartialImports()).thenReturn(true);
+        received = new FakeServer();
+        doAnswer(received).when(server).uploadTestRun(anyString(), any(TestRunArchive.class), anyMapOf(String.class, Object.class),
+                any(Deadline.class), any(PrintStream.class));
+    }
+
+    @AfterMethod(alwaysRun = true)
+    public void deleteWorkspace() throws IOException {
+        FileUtils.deleteDirectory(workspace);
+        FileUtils.deleteDirectory(ScanIndex.locate(workspace).getParentFile());
+    }
+
+    @Test
+    public void shouldLeaveFilesBeingWrittenForTheNextPart() throws Exception {
+        report("TEST-1.xml", now - 300000);
+        report("TEST-2.xml", now - 50000);
+        XLTestView publisher = publisher("ts1");
+
+        uploader(publisher, QUIET_MILLIS).run();
+        uploader(publisher, 0).run();
+        uploader(publisher, 0).run();
+
+        assertEquals(received.uploads, Arrays.asList(
+                "ts1 part 1: [target/surefire-reports/TEST-1.xml]",
+                "ts1 part 2: [target/surefire-reports/TEST-2.xml]"));
+        assertEquals(action.getFilesSent(), 2);
+        assertEquals(action.getPendingPart(), 0);
+    }
+
+    @Test
+    public void shouldSendPartAgainOnlyToTheTestSpecificationsThatMissedIt() throws Exception {
+        report("TEST-1.xml", now - 300000);
+        XLTestView publisher = publisher("ts1", "ts2");
+        received.failing.add("ts2");
+
+        uploader(publisher, QUIET_MILLIS).run();
+        assertEquals(action.getPendingPart(), 1);
+        assertEquals(action.getCutoff(), now - 600000, "not all test specifications received the part");
+        received.failing.clear();
+        uploader(publisher, QUIET_MILLIS).run();
+
+        assertEquals(received.uploads, Arrays.asList(
+                "ts1 part 1: [target/surefire-reports/TEST-1.xml]",
+                "ts2 part 1 failed",
+                "ts2 part 1: [target/surefire-reports/TEST-1.xml]"));
+        assertEquals(action.getPendingPart(), 0);
+        assertTrue(action.getCutoff() > now - 300000);
+    }
+
+    @Test
+    public void shouldFinishWithWhatEachTestSpecificationDidNotReceive() throws Exception {
+        report("TEST-1.xml", now - 300000);
+        report("TEST-2.xml", now - 50000);
+        XLTestView publisher = publisher("ts1", "ts2");
+        received.failing.add("ts2");
+
+        uploader(publisher, QUIET_MILLIS).run();
+
+        // what the post-build step collects for the last part
+        UploadPlan plan = new UploadPlan(publisher.testSpecifications, action.getCutoffs(publisher.testSpecifications), 1, false);
+        try {
+            plan.scan(new FilePath(workspace), new PrintStream(new ByteArrayOutputStream(), true));
+            assertEquals(plan.countFiles(publisher.testSpecifications.get(0)), 1);
+            assertEquals(plan.countFiles(publisher.testSpecifications.get(1)), 2);
+        } finally {
+            plan.close();
+        }
+        assertTrue(action.hasDelivered());
+    }
+
+    @Test
+    public void shouldNotSendPartsToServersThatImportEachAsATestRun() throws Exception {
+        report("TEST-1.xml", now - 300000);
+        when(capabilities.supportsPartialImports()).thenReturn(false);
+        LiveUpload.Uploader uploader = uploader(publisher("ts1"), QUIET_MILLIS);
+
+        uploader.run();
+        uploader.run();
+
+        assertTrue(received.uploads.isEmpty());
+        assertFalse(action.hasDelivered(), "the post-build step sends the whole test run");
+    }
+
+    private XLTestView publisher(String... testSpecificationIds) {
+        List<TestSpecificationDescribable> testSpecifications = new ArrayList<TestSpecificationDescribable>();
+        for (String id : testSpecificationIds) {
+            testSpecifications.add(new TestSpecificationDescribable(id, "**/*.xml", "", null));
+        }
+        return new XLTestView(testSpecifications);
+    }
+
+    private LiveUpload.Uploader uploader(XLTestView publisher, long quietMillis) {
+        Map<String, Object> metadata = new HashMap<String, Object>();
+        metadata.put(LiveUploadAction.IMPORT_ID, action.getImportId());
+        return new LiveUpload.Uploader(publisher, Suppliers.ofInstance(server), 1, new FilePath(workspace), action, metadata, 0, quietMillis,
+                new PrintStream(new ByteArrayOutputStream(), true));
+    }
+
+    private void report(String name, long lastModified) throws IOException {
+        File file = new File(workspace, "target/surefire-reports/" + name);
+        Files.createParentDirs(file);
+        FileUtils.writeStringToFile(file, "<testsuite/>");
+        assertTrue(file.setLastModified(lastModified));
+    }
+
+    /**
+     * Records the files of each part it receives, failing for the test specifications asked to.
+     */
+    private static final class FakeServer implements Answer<Void> {
+        final List<String> uploads = Collections.synchronizedList(new ArrayList<String>());
+        final List<String> failing = new ArrayList<String>();
+
+        @Override
+        public Void answer(InvocationOnMock invocation) throws Throwable {
+            String id = (String) invocation.getArguments()[0];
+            TestRunArchive archive = (TestRunArchive) invocation.getArguments()[1];
+            Map<?, ?> metadata = (Map<?, ?>) invocation.getArguments()[2];
+            if (failing.contains(id)) {
+                uploads.add(String.format("%s part %s failed", id, metadata.get(LiveUploadAction.PART)));
+                throw new ServerUnavailableException("XL TestView is down for maintenance", -1);
+            }
+            ByteArrayOutputStream zip = new ByteArrayOutputStream();
+            archive.writeTo(zip);
+            List<String> files = new ArrayList<String>();
+            ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(zip.toByteArray()));
+            for (ZipEntry entry = in.getNextEntry(); entry != null; entry = in.getNextEntry()) {
+                if (!entry.isDirectory()) {
+                    files.add(entry.getName());
+                }
+            }
+            Collections.sort(files);
+            uploads.add(String.format("%s part %s: %s", id, metadata.get(LiveUploadAction.PART), files));
+            return null;
+        }
+    }
+}
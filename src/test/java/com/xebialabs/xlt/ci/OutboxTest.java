@@ -0,0 +1,193 @@
+package com.xebialabs.xlt.ci;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.io.FileUtils;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import com.xebialabs.xlt.ci.server.ArchiveException;
+import com.xebialabs.xlt.ci.server.ServerUnavailableException;
+import com.xebialabs.xlt.ci.server.SpooledArchive;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class OutboxTest {
+
+    private File root;
+    private SpooledArchive archive;
+    private ExecutorService workers;
+    private ScheduledExecutorService timer;
+
+    @BeforeMethod
+    public void createOutbox() throws IOException {
+        root = Files.createTempDir();
+        File file = new File(root.getParentFile(), root.getName() + ".zip");
+        Files.write("PK", file, Charsets.UTF_8);
+        archive = SpooledArchive.reopen(file, 1);
+        workers = Executors.newFixedThreadPool(2);
+        timer = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @AfterMethod(alwaysRun = true)
+    public void deleteOutbox() throws IOException {
+        workers.shutdownNow();
+        timer.shutdownNow();
+        archive.delete();
+        FileUtils.deleteDirectory(root);
+    }
+
+    @Test
+    public void shouldSendTestRunsOfAJobInOrderAndRemoveThem() throws Exception {
+        RecordingDelivery delivery = new RecordingDelivery();
+        Outbox outbox = new Outbox(root, delivery, workers, timer);
+        for (int build = 1; build <= 5; build++) {
+            outbox.add("job", build, "ts", Collections.<String, Object>singletonMap("buildNumber", build), archive, 0);
+        }
+
+        assertEquals(delivery.next(), "job #1 DELIVERED");
+        assertEquals(delivery.next(), "job #2 DELIVERED");
+        assertEquals(delivery.next(), "job #3 DELIVERED");
+        assertEquals(delivery.next(), "job #4 DELIVERED");
+        assertEquals(delivery.next(), "job #5 DELIVERED");
+        assertTrue(archive.getFile().exists(), "the archive of the build is left to the build");
+        waitUntilEmpty(outbox);
+        assertEquals(root.list().length, 0);
+    }
+
+    @Test
+    public void shouldSendTestRunsOfAJobInBuildOrder() throws Exception {
+        RecordingDelivery delivery = new RecordingDelivery();
+        delivery.gate = new CountDownLatch(1);
+        Outbox outbox = new Outbox(root, delivery, workers, timer);
+        outbox.add("job", 2, "ts", Collections.<String, Object>emptyMap(), archive, 0);
+        // builds 3 and 4 finish while build 2 is being sent, the later one first
+        outbox.add("job", 4, "ts", Collections.<String, Object>emptyMap(), archive, 0);
+        outbox.add("job", 3, "ts", Collections.<String, Object>emptyMap(), archive, 0);
+        delivery.gate.countDown();
+
+        assertEquals(delivery.next(), "job #2 DELIVERED");
+        assertEquals(delivery.next(), "job #3 DELIVERED");
+        assertEquals(delivery.next(), "job #4 DELIVERED");
+        waitUntilEmpty(outbox);
+    }
+
+    @Test
+    public void shouldKeepDeliveringWhenRecordingOnTheBuildFails() throws Exception {
+        RecordingDelivery delivery = new RecordingDelivery();
+        delivery.recordFailure = new NullPointerException("Jenkins is stopping");
+        Outbox outbox = new Outbox(root, delivery, workers, timer);
+        outbox.add("job", 1, "ts", Collections.<String, Object>emptyMap(), archive, 0);
+        assertEquals(delivery.next(), "job #1 DELIVERED");
+        waitUntilEmpty(outbox);
+
+        outbox.add("job", 2, "ts", Collections.<String, Object>emptyMap(), archive, 0);
+        assertEquals(delivery.next(), "job #2 DELIVERED");
+        waitUntilEmpty(outbox);
+        assertEquals(delivery.attempts, Arrays.asList(0, 0), "each test run is sent once");
+    }
+
+    @Test
+    public void shouldKeepTestRunThatMaySucceedLaterAcrossRestarts() throws Exception {
+        RecordingDelivery unavailable = new RecordingDelivery();
+        unavailable.failure = new ServerUnavailableException("XL TestView is down for maintenance", -1);
+        Outbox outbox = new Outbox(root, unavailable, workers, timer);
+        outbox.add("job", 7, "ts", Collections.<String, Object>emptyMap(), archive, 0);
+        assertEquals(unavailable.next(), "job #7 RETRYING");
+
+        // Jenkins restarts before the retry is due; an entry that was never completely added is dropped
+        assertTrue(new File(root, "1").mkdir());
+        RecordingDelivery available = new RecordingDelivery();
+        Outbox restarted = new Outbox(root, available, workers, timer);
+        restarted.load();
+
+        assertEquals(available.next(), "job #7 DELIVERED");
+        assertEquals(available.attempts, Collections.singletonList(1));
+        assertEquals(available.idempotencyKeys, unavailable.idempotencyKeys, "the server recognises the test run it may have imported");
+        waitUntilEmpty(restarted);
+        assertFalse(new File(root, "1").exists());
+    }
+
+    @Test
+    public void shouldGiveUpOnTestRunThatCannotBeImported() throws Exception {
+        RecordingDelivery delivery = new RecordingDelivery();
+        delivery.failure = new IllegalStateException("No files to import");
+        Outbox outbox = new Outbox(root, delivery, workers, timer);
+        outbox.add("job", 1, "ts", Collections.<String, Object>emptyMap(), archive, 0);
+
+        assertEquals(delivery.next(), "job #1 FAILED");
+        waitUntilEmpty(outbox);
+        assertEquals(root.list().length, 0);
+    }
+
+    @Test
+    public void shouldGiveUpOnTestRunWhoseArchiveCannotBeRead() throws Exception {
+        RecordingDelivery delivery = new RecordingDelivery();
+        delivery.failure = new ArchiveException("Unable to zip the test run: archive.zip", new IOException("archive.zip"));
+        Outbox outbox = new Outbox(root, delivery, workers, timer);
+        outbox.add("job", 1, "ts", Collections.<String, Object>emptyMap(), archive, 0);
+        outbox.add("job", 2, "ts", Collections.<String, Object>emptyMap(), archive, 0);
+
+        assertEquals(delivery.next(), "job #1 FAILED");
+        assertEquals(delivery.next(), "job #2 FAILED", "a broken archive does not hold up later test runs of the job");
+        waitUntilEmpty(outbox);
+    }
+
+    private static void waitUntilEmpty(Outbox outbox) throws InterruptedException {
+        for (int i = 0; i < 100 && outbox.size() > 0; i++) {
+            Thread.sleep(50);
+        }
+        assertEquals(outbox.size(), 0);
+    }
+
+    private static class RecordingDelivery implements Outbox.Delivery {
+        private final BlockingQueue<String> records = new LinkedBlockingQueue<String>();
+        private final List<Integer> attempts = Collections.synchronizedList(new ArrayList<Integer>());
+        private final List<String> idempotencyKeys = Collections.synchronizedList(new ArrayList<String>());
+        private volatile Exception failure;
+        private volatile RuntimeException recordFailure;
+        private volatile CountDownLatch gate;
+
+        @Override
+        public void deliver(OutboxEntry entry, SpooledArchive archive) throws Exception {
+            if (gate != null) {
+                assertTrue(gate.await(5, TimeUnit.SECONDS));
+            }
+            assertTrue(archive.getFile().isFile());
+            attempts.add(entry.getAttempts());
+            idempotencyKeys.add(entry.getIdempotencyKey());
+            if (failure != null) {
+                throw failure;
+            }
+        }
+
+        @Override
+        public void record(OutboxEntry entry, DeliveryAction.Status status) {
+            records.add(entry.getJobName() + " #" + entry.getBuildNumber() + " " + status);
+            if (recordFailure != null) {
+                throw recordFailure;
+            }
+        }
+
+        String next() throws InterruptedException {
+            String record = records.poll(5, TimeUnit.SECONDS);
+            return record == null ? "nothing recorded" : record;
+        }
+    }
+}
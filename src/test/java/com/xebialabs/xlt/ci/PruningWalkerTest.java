@@ -0,0 +1,247 @@
+package com.xebialabs.xlt.ci;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.apache.commons.io.FileUtils;
+import org.apache.tools.ant.DirectoryScanner;
+import org.apache.tools.ant.Project;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.io.Files;
+
+import hudson.Util;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class PruningWalkerTest {
+    private static final Logger LOG = LoggerFactory.getLogger(PruningWalkerTest.class);
+
+    private File workspace;
+
+    @BeforeClass
+    public void createWorkspace() throws IOException {
+        workspace = Files.createTempDir();
+        generate(workspace, 2, 5);
+    }
+
+    @AfterClass(alwaysRun = true)
+    public void deleteWorkspace() throws IOException {
+        FileUtils.deleteDirectory(workspace);
+    }
+
+    @Test
+    public void shouldFindWhatAntFinds() throws InterruptedException {
+        for (String[] patterns : new String[][]{
+                {"**/*.xml", ""},
+                {"**/surefire-reports/*.xml", "**/*-1.xml"},
+                {"module-0/", "**/node_modules/**"},
+                {"**/*", ""}}) {
+            assertEquals(walk(patterns[0], patterns[1]), ant(workspace, patterns[0], patterns[1]), Arrays.toString(patterns));
+        }
+    }
+
+    @Test
+    public void shouldFollowLinksToDirectoriesLikeAnt() throws Exception {
+        File dir = Files.createTempDir();
+        File elsewhere = Files.createTempDir();
+        try {
+            touch(new File(elsewhere, "surefire-reports/TEST-1.xml"));
+            touch(new File(dir, "module-0/pom.xml"));
+            java.nio.file.Files.createSymbolicLink(new File(dir, "module-0/target").toPath(), elsewhere.toPath());
+            PruningWalker walker = new PruningWalker(
+                    Collections.singletonList(SharedWorkspaceScan.compile("**/surefire-reports/*.xml")), Collections.singletonList(new String[0]));
+            List<String> files = walker.walk(dir, 2);
+            assertEquals(files, ant(dir, "**/surefire-reports/*.xml", ""));
+            assertEquals(files, Collections.singletonList(path("module-0", "target", "surefire-reports", "TEST-1.xml")));
+
+            // a link back to the workspace is not walked forever
+            java.nio.file.Files.createSymbolicLink(new File(elsewhere, "surefire-reports/workspace").toPath(), dir.toPath());
+            assertEquals(walker.walk(dir, 2), files);
+        } finally {
+            FileUtils.deleteDirectory(dir);
+            FileUtils.deleteDirectory(elsewhere);
+        }
+    }
+
+    @Test
+    public void shouldPruneDirectoriesThatCannotMatch() {
+        PruningWalker walker = new PruningWalker(
+                Collections.singletonList(SharedWorkspaceScan.compile("**/surefire-reports/*.xml")),
+                Collections.singletonList(SharedWorkspaceScan.compile("**/node_modules/**")));
+
+        assertTrue(walker.mayContainMatches("module-0"));
+        assertFalse(walker.mayContainMatches("module-0" + File.separator + "node_modules"));
+        assertFalse(walker.mayContainMatches(".git"));
+
+        PruningWalker anchored = new PruningWalker(
+                Collections.singletonList(SharedWorkspaceScan.compile("module-1/target/**/*.xml")),
+                Collections.singletonList(new String[0]));
+
+        assertTrue(anchored.mayContainMatches("module-1"));
+        assertFalse(anchored.mayContainMatches("module-0"));
+    }
+
+    @Test
+    public void shouldOnlyFindFilesModifiedSinceUsingTheIndexOfThePreviousWalk() throws Exception {
+        File reused = Files.createTempDir();
+        try {
+            File reports = new File(reused, "target/surefire-reports");
+            touch(new File(reports, "TEST-1.xml"));
+            touch(new File(reports, "TEST-2.xml"));
+            touch(new File(reused, "node_modules/package-0/index.js"));
+            long old = System.currentTimeMillis() - 3600000;
+            setLastModified(reused, old);
+
+            PruningWalker walker = new PruningWalker(
+                    Collections.singletonList(SharedWorkspaceScan.compile("**/*.xml")),
+                    Collections.singletonList(SharedWorkspaceScan.compile("**/node_modules/**")));
+            long since = System.currentTimeMillis() - 60000;
+            List<String> files = walkAndIndex(walker, reused, since);
+            assertEquals(files, Collections.<String>emptyList());
+            assertTrue(ScanIndex.locate(reused).isFile());
+
+            // rewritten in place, which does not change the directory
+            Files.write("<testsuite/>", new File(reports, "TEST-1.xml"), Charsets.UTF_8);
+            assertTrue(reports.setLastModified(old));
+            files = walkAndIndex(walker, reused, since);
+            assertEquals(files, Collections.singletonList(path("target", "surefire-reports", "TEST-1.xml")));
+
+            touch(new File(reports, "TEST-3.xml"));
+            files = walkAndIndex(walker, reused, since);
+            assertEquals(files, Arrays.asList(path("target", "surefire-reports", "TEST-1.xml"), path("target", "surefire-reports", "TEST-3.xml")));
+            assertEquals(walker.walk(reused, 2, since, null, null), files);
+        } finally {
+            FileUtils.deleteDirectory(reused);
+            FileUtils.deleteDirectory(ScanIndex.locate(reused).getParentFile());
+        }
+    }
+
+    @Test
+    public void shouldLeaveOutFilesModifiedAfterTheWindow() throws Exception {
+        File dir = Files.createTempDir();
+        try {
+            long now = System.currentTimeMillis();
+            File reports = new File(dir, "target/surefire-reports");
+            touch(new File(reports, "TEST-1.xml"));
+            touch(new File(reports, "TEST-2.xml"));
+            touch(new File(reports, "TEST-3.xml"));
+            assertTrue(new File(reports, "TEST-1.xml").setLastModified(now - 120000));
+            assertTrue(new File(reports, "TEST-2.xml").setLastModified(now - 30000));
+
+            PruningWalker walker = new PruningWalker(
+                    Collections.singletonList(SharedWorkspaceScan.compile("**/*.xml")), Collections.singletonList(SharedWorkspaceScan.compile("")));
+            assertEquals(walker.walk(dir, 2, now - 60000, now - 10000, null, null),
+                    Collections.singletonList(path("target", "surefire-reports", "TEST-2.xml")));
+        } finally {
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+
+    /**
+     * Generates a workspace of about a million files, almost all of them in dependency and version control
+     * directories, and compares the time to find the test reports with Ant's scanner.
+     */
+    @Test(groups = "benchmark")
+    public void findReportsInMillionFileWorkspace() throws Exception {
+        File large = Files.createTempDir();
+        try {
+            generate(large, 10, 1000);
+            String includes = "**/surefire-reports/*.xml";
+
+            long before = System.nanoTime();
+            List<String> antFiles = ant(large, includes, "");
+            long antMillis = (System.nanoTime() - before) / 1000000;
+
+            before = System.nanoTime();
+            List<String> walkedFiles = new PruningWalker(
+                    Collections.singletonList(SharedWorkspaceScan.compile(includes)),
+                    Collections.singletonList(new String[0])).walk(large, Runtime.getRuntime().availableProcessors());
+            long walkMillis = (System.nanoTime() - before) / 1000000;
+
+            assertEquals(walkedFiles.size(), antFiles.size());
+            LOG.info("Found {} reports: Ant scanner {} ms, pruning walker {} ms", walkedFiles.size(), antMillis, walkMillis);
+        } finally {
+            FileUtils.deleteDirectory(large);
+        }
+    }
+
+    private List<String> walk(String includes, String excludes) throws InterruptedException {
+        return new PruningWalker(
+                Collections.singletonList(SharedWorkspaceScan.compile(includes)),
+                Collections.singletonList(SharedWorkspaceScan.compile(excludes))).walk(workspace, 4);
+    }
+
+    /**
+     * Walks with the index of the previous walk and saves the index of this one, like {@link SharedWorkspaceScan}.
+     */
+    private static List<String> walkAndIndex(PruningWalker walker, File dir, long since) throws Exception {
+        File indexFile = ScanIndex.locate(dir);
+        ScanIndex next = new ScanIndex(System.currentTimeMillis());
+        List<String> files = walker.walk(dir, 2, since, ScanIndex.load(indexFile), next);
+        assertTrue(next.save(indexFile));
+        return files;
+    }
+
+    private static void setLastModified(File file, long time) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                setLastModified(child, time);
+            }
+        }
+        assertTrue(file.setLastModified(time));
+    }
+
+    private static String path(String... names) {
+        return Joiner.on(File.separator).join(names);
+    }
+
+    private static List<String> ant(File dir, String includes, String excludes) {
+        DirectoryScanner ds = Util.createFileSet(dir, includes, excludes).getDirectoryScanner(new Project());
+        List<String> files = Arrays.asList(ds.getIncludedFiles());
+        Collections.sort(files);
+        return files;
+    }
+
+    /**
+     * Creates modules with a few test reports each, next to {@code node_modules} and {@code .git} directories
+     * holding {@code packages * 100} files per module.
+     */
+    private static void generate(File root, int modules, int packages) throws IOException {
+        for (int m = 0; m < modules; m++) {
+            File module = new File(root, "module-" + m);
+            for (int r = 0; r < 20; r++) {
+                touch(new File(module, "target/surefire-reports/TEST-" + r + ".xml"));
+            }
+            touch(new File(module, "target/classes/Main.class"));
+            for (int p = 0; p < packages; p++) {
+                File node = new File(module, "node_modules/package-" + p);
+                for (int f = 0; f < 90; f++) {
+                    touch(new File(node, "lib/file-" + f + ".js"));
+                }
+                File git = new File(module, ".git/objects/" + p);
+                for (int f = 0; f < 10; f++) {
+                    touch(new File(git, "object-" + f));
+                }
+            }
+        }
+        touch(new File(root, "module-0/node_modules/package-0/report.xml"));
+    }
+
+    private static void touch(File file) throws IOException {
+        file.getParentFile().mkdirs();
+        if (!file.createNewFile()) {
+            throw new IOException("Unable to create " + file);
+        }
+    }
+}
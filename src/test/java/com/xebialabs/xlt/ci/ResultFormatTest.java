@@ -0,0 +1,86 @@
+package com.xebialabs.xlt.ci;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import org.apache.commons.io.FileUtils;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+public class ResultFormatTest {
+
+    private File workspace;
+
+    @BeforeMethod
+    public void createWorkspace() {
+        workspace = Files.createTempDir();
+    }
+
+    @AfterMethod(alwaysRun = true)
+    public void deleteWorkspace() throws IOException {
+        FileUtils.deleteDirectory(workspace);
+    }
+
+    @Test
+    public void shouldFindFormatOfTestTool() {
+        assertEquals(ResultFormat.of("JUnit"), ResultFormat.JUNIT);
+        assertEquals(ResultFormat.of("TestNG"), ResultFormat.TESTNG);
+        assertEquals(ResultFormat.of("xUnit.net"), ResultFormat.XUNIT);
+        assertEquals(ResultFormat.of("Cucumber"), ResultFormat.CUCUMBER);
+        assertNull(ResultFormat.of("Gatling"));
+        assertNull(ResultFormat.of(null));
+    }
+
+    @Test
+    public void shouldSniffRootElementOrJson() throws IOException {
+        assertEquals(sniff("TEST-1.xml", "<?xml version=\"1.0\"?>\n<!-- generated -->\n<testsuite name=\"s\">"), "testsuite");
+        assertEquals(sniff("testng-results.xml", "\uFEFF  <testng-results skipped=\"0\">"), "testng-results");
+        assertEquals(sniff("cucumber.json", "\n  [{\"id\": \"feature\""), ResultFormat.JSON);
+        assertEquals(sniff("index.html", "<!DOCTYPE html><html><body>"), "html");
+        assertNull(sniff("build.log", "[INFO] BUILD SUCCESS"), "log line starting with a bracket is not JSON");
+        assertNull(sniff("empty.xml", ""));
+        assertNull(sniff("broken.xml", "<<testsuite>"));
+    }
+
+    @Test
+    public void shouldSniffUtf16Xml() throws IOException {
+        String xml = "<?xml version=\"1.0\" encoding=\"UTF-16\"?>\n<testsuite name=\"s\"></testsuite>";
+        File bigEndian = new File(workspace, "TEST-be.xml");
+        Files.write(xml, bigEndian, Charsets.UTF_16);
+        File littleEndian = new File(workspace, "TEST-le.xml");
+        Files.write("\uFEFF" + xml, littleEndian, Charsets.UTF_16LE);
+
+        assertEquals(ResultFormat.sniff(bigEndian), "testsuite");
+        assertEquals(ResultFormat.sniff(littleEndian), "testsuite");
+    }
+
+    @Test
+    public void shouldOnlyRejectFilesOfWhichNoneFit() throws Exception {
+        sniff("TEST-1.xml", "<testsuite name=\"s\"></testsuite>");
+        sniff("screenshot.png", "\u0089PNG");
+        sniff("cucumber.json", "[]");
+
+        PreflightCheck.Result junit = new PreflightCheck(Arrays.asList("TEST-1.xml", "screenshot.png"), ResultFormat.JUNIT).invoke(workspace, null);
+        assertTrue(junit.isImportable());
+        assertEquals(junit.describe(), "1 of 2 files look like JUnit XML with root element <testsuite> or <testsuites>");
+
+        PreflightCheck.Result nunit = new PreflightCheck(Arrays.asList("TEST-1.xml", "cucumber.json"), ResultFormat.NUNIT).invoke(workspace, null);
+        assertFalse(nunit.isImportable());
+        assertEquals(nunit.describeProblem(), "None of the 2 files matched by the include/exclude pattern look like NUnit XML with root element "
+                + "<test-results> or <test-run>, e.g. [TEST-1.xml has root element <testsuite>, cucumber.json is JSON]");
+    }
+
+    private String sniff(String name, String content) throws IOException {
+        File file = new File(workspace, name);
+        Files.write(content, file, Charsets.UTF_8);
+        return ResultFormat.sniff(file);
+    }
+}
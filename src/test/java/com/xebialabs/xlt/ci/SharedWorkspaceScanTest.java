@@ -0,0 +1,36 @@
+package com.xebialabs.xlt.ci;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+
+public class SharedWorkspaceScanTest {
+
+    private final File workspace = new File(getClass().getResource("/demo_test_results").getPath());
+
+    @Test
+    public void shouldSplitMatchesPerPatternPair() throws Exception {
+        SharedWorkspaceScan scan = new SharedWorkspaceScan(
+                Arrays.asList("**/*.xml", "**/TEST-*Map*.xml", ""),
+                Arrays.asList("**/*MapTest.xml", "", "**/*.xml"));
+
+        List<List<String>> files = scan.invoke(workspace, null);
+
+        assertEquals(files.size(), 3);
+        assertEquals(files.get(0).size(), 26);
+        assertEquals(files.get(1).size(), 3);
+        assertEquals(files.get(2).size(), 0);
+    }
+
+    @Test
+    public void shouldSupportMultipleCommaSeparatedPatterns() throws Exception {
+        SharedWorkspaceScan scan = new SharedWorkspaceScan(
+                Arrays.asList("**/*MapTest.xml, **/*CellTest.xml"),
+                Arrays.asList(""));
+
+        assertEquals(scan.invoke(workspace, null).get(0).size(), 3);
+    }
+}
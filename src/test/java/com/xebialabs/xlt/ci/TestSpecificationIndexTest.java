@@ -0,0 +1,123 @@
+package com.xebialabs.xlt.ci;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.xebialabs.xlt.ci.server.domain.Project;
+import com.xebialabs.xlt.ci.server.domain.Qualification;
+import com.xebialabs.xlt.ci.server.domain.TestSpecification;
+import com.xebialabs.xlt.ci.server.domain.TestTool;
+
+import hudson.util.ListBoxModel;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+public class TestSpecificationIndexTest {
+
+    private TestSpecificationIndex index;
+
+    @BeforeMethod
+    public void setup() {
+        Map<String, TestSpecification> specs = new LinkedHashMap<String, TestSpecification>();
+        specs.put("unit", spec("unit", "Unit tests", "shop", "Web Shop", "JUnit", "Functional tests"));
+        specs.put("perf", spec("perf", "Load tests", "shop", "Web Shop", "Gatling", "Performance tests"));
+        specs.put("e2e", spec("e2e", "End to end", "backend", "Backend", "Cucumber", "Functional tests"));
+        TestSpecification set = spec("set", "All tests", "shop", "Web Shop", null, null);
+        set.setType("xlt.TestSpecificationSet");
+        specs.put("set", set);
+        index = new TestSpecificationIndex(specs);
+    }
+
+    @Test
+    public void shouldSkipSetsOfTestSpecifications() {
+        assertEquals(index.size(), 3);
+    }
+
+    @Test
+    public void shouldMatchPrefixesOfAllQueryWords() {
+        List<TestSpecificationIndex.Entry> result = index.search("web func", null, 10);
+
+        assertEquals(result.size(), 1);
+        assertEquals(result.get(0).getId(), "unit");
+    }
+
+    @Test
+    public void shouldMatchTestTool() {
+        assertEquals(index.search("gatl", null, 10).get(0).getId(), "perf");
+    }
+
+    @Test
+    public void shouldFindEntryOfSuggestion() {
+        TestSpecification noTool = spec("manual", "Manual checks", "shop", "Web Shop", null, null);
+        Map<String, TestSpecification> specs = new LinkedHashMap<String, TestSpecification>();
+        specs.put("manual", noTool);
+        specs.put("unit", spec("unit", "Unit tests", "shop", "Web Shop", "JUnit", "Functional tests"));
+        TestSpecificationIndex withoutTool = new TestSpecificationIndex(specs);
+
+        for (TestSpecificationIndex.Entry entry : withoutTool.search("web", null, 10)) {
+            List<TestSpecificationIndex.Entry> result = withoutTool.search(entry.getSuggestion(), null, 10);
+
+            assertEquals(result.size(), 1, entry.getSuggestion());
+            assertEquals(result.get(0).getId(), entry.getId());
+        }
+        assertEquals(withoutTool.search("unit", null, 10).get(0).getSuggestion(), "Web Shop > Unit tests (JUnit)");
+    }
+
+    @Test
+    public void shouldLimitResultsInLabelOrder() {
+        List<TestSpecificationIndex.Entry> result = index.search("", null, 2);
+
+        assertEquals(result.size(), 2);
+        assertTrue(result.get(0).getLabel().startsWith("Backend > End to end"));
+    }
+
+    @Test
+    public void shouldDrillDownByProject() {
+        assertEquals(index.getProjects().keySet().toString(), "[backend, shop]");
+        assertEquals(index.getTestSpecifications("shop").size(), 2);
+        assertEquals(index.search("functional", "backend", 10).size(), 1);
+        assertEquals(index.getProjectId("perf"), "shop");
+        assertNull(index.getProjectId("unknown"));
+    }
+
+    @Test
+    public void shouldKeepConfiguredTestSpecificationInOptions() {
+        List<TestSpecificationIndex.Entry> first = index.search("", null, 1);
+
+        ListBoxModel options = index.toListBoxModel(first, "unit");
+        assertEquals(options.size(), 2);
+        assertEquals(options.get(1).value, "unit");
+        assertTrue(options.get(1).name.startsWith("Web Shop > Unit tests"));
+        assertEquals(index.toListBoxModel(first, first.get(0).getId()).size(), 1);
+        assertEquals(index.toListBoxModel(first, "removed").get(1).name, "removed");
+        assertEquals(index.toListBoxModel(first, null).size(), 1);
+    }
+
+    private static TestSpecification spec(String id, String title, String projectId, String projectTitle, String tool, String qualification) {
+        Project project = new Project();
+        project.setId(projectId);
+        project.setTitle(projectTitle);
+
+        TestSpecification spec = new TestSpecification();
+        spec.setId(id);
+        spec.setTitle(title);
+        spec.setType("xlt.TestSpecification");
+        spec.setProject(project);
+        if (tool != null) {
+            TestTool testTool = new TestTool();
+            testTool.setName(tool);
+            spec.setTestTool(testTool);
+        }
+        if (qualification != null) {
+            Qualification q = new Qualification();
+            q.setDescription(qualification);
+            spec.setQualification(q);
+        }
+        return spec;
+    }
+}
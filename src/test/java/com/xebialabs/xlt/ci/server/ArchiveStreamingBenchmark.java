@@ -0,0 +1,188 @@
+package com.xebialabs.xlt.ci.server;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.Okio;
+import okio.Sink;
+import okio.Timeout;
+
+import static org.testng.Assert.assertEquals;
+
+/**
+ * Compares the byte-at-a-time stream the upload used to write through with the bulk paths into Okio.
+ * <p/>
+ * Run with {@code gradle benchmark}; only the correctness check is part of the regular tests.
+ */
+public class ArchiveStreamingBenchmark {
+    private static final Logger LOG = LoggerFactory.getLogger(ArchiveStreamingBenchmark.class);
+
+    private static final int MB = 1024 * 1024;
+    // the chunk size in which the zip archivers of Jenkins write
+    private static final int CHUNK = 8192;
+
+    @Test
+    public void shouldWriteAllBytesAndKeepSinkOpen() throws Exception {
+        Buffer buffer = new Buffer();
+        BufferedSink sink = Okio.buffer((Sink) buffer);
+        SyntheticArchive archive = new SyntheticArchive(CHUNK * 3 + 17);
+
+        archive.writeTo(sink);
+        sink.writeUtf8("trailer");
+        sink.flush();
+
+        assertEquals(buffer.size(), CHUNK * 3 + 17 + "trailer".length());
+    }
+
+    @Test
+    public void shouldSendSpooledFileUnchanged() throws Exception {
+        File file = createFile(3 * CHUNK + 5);
+        try {
+            Buffer buffer = new Buffer();
+            new SpooledArchive(file, 1).writeTo(buffer);
+            assertEquals(buffer.size(), file.length());
+        } finally {
+            file.delete();
+        }
+    }
+
+    @DataProvider
+    public Object[][] sizes() {
+        return new Object[][]{{1}, {16}, {256}, {1024}};
+    }
+
+    @Test(groups = "benchmark", dataProvider = "sizes")
+    public void streamingArchive(int megabytes) throws Exception {
+        SyntheticArchive archive = new SyntheticArchive((long) megabytes * MB);
+
+        long before = System.nanoTime();
+        BufferedSink old = Okio.buffer(new DiscardingSink());
+        archive.writeTo(new ByteAtATimeOutputStream(old.outputStream()));
+        old.flush();
+        long byteAtATime = System.nanoTime() - before;
+
+        before = System.nanoTime();
+        BufferedSink bulk = Okio.buffer(new DiscardingSink());
+        archive.writeTo(bulk);
+        bulk.flush();
+        long bulkCopy = System.nanoTime() - before;
+
+        report("streaming", megabytes, byteAtATime, bulkCopy);
+    }
+
+    @Test(groups = "benchmark", dataProvider = "sizes")
+    public void spooledArchive(int megabytes) throws Exception {
+        File file = createFile((long) megabytes * MB);
+        try {
+            SpooledArchive archive = new SpooledArchive(file, 1);
+
+            long before = System.nanoTime();
+            BufferedSink old = Okio.buffer(new DiscardingSink());
+            archive.writeTo(new ByteAtATimeOutputStream(old.outputStream()));
+            old.flush();
+            long byteAtATime = System.nanoTime() - before;
+
+            before = System.nanoTime();
+            BufferedSink direct = Okio.buffer(new DiscardingSink());
+            archive.writeTo(direct);
+            direct.flush();
+            long segments = System.nanoTime() - before;
+
+            report("spooled", megabytes, byteAtATime, segments);
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static void report(String kind, int megabytes, long oldNanos, long newNanos) {
+        LOG.info("{} archive of {} MB: byte at a time {} MB/s, bulk {} MB/s", kind, megabytes,
+                throughput(megabytes, oldNanos), throughput(megabytes, newNanos));
+    }
+
+    private static long throughput(int megabytes, long nanos) {
+        return Math.round(megabytes / (nanos / 1e9));
+    }
+
+    private static File createFile(long size) throws IOException {
+        File file = File.createTempFile("benchmark", ".zip");
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+        try {
+            new SyntheticArchive(size).writeTo(out);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    /**
+     * Writes random bytes in the chunks a zip archiver would.
+     */
+    private static class SyntheticArchive extends TestRunArchive {
+        private final long size;
+        private final byte[] chunk = new byte[CHUNK];
+
+        SyntheticArchive(long size) {
+            this.size = size;
+            new Random(42).nextBytes(chunk);
+        }
+
+        @Override
+        public int writeTo(OutputStream out) throws IOException {
+            for (long remaining = size; remaining > 0; remaining -= CHUNK) {
+                out.write(chunk, 0, (int) Math.min(CHUNK, remaining));
+            }
+            out.close();
+            return 1;
+        }
+    }
+
+    /**
+     * The stream the upload used to write through: only {@code write(int)} is forwarded.
+     */
+    private static class ByteAtATimeOutputStream extends OutputStream {
+        private final OutputStream wrapped;
+
+        ByteAtATimeOutputStream(OutputStream wrapped) {
+            this.wrapped = wrapped;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            wrapped.write(b);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static class DiscardingSink implements Sink {
+        @Override
+        public void write(Buffer source, long byteCount) throws IOException {
+            source.skip(byteCount);
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public Timeout timeout() {
+            return Timeout.NONE;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
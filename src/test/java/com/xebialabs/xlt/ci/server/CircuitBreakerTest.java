@@ -0,0 +1,116 @@
+package com.xebialabs.xlt.ci.server;
+
+import java.util.concurrent.TimeUnit;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import com.google.common.base.Ticker;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class CircuitBreakerTest {
+
+    private long now;
+    private CircuitBreaker breaker;
+
+    @BeforeMethod
+    public void createBreaker() {
+        now = 0;
+        breaker = new CircuitBreaker("http://xltestview", new Ticker() {
+            @Override
+            public long read() {
+                return now;
+            }
+        });
+    }
+
+    @Test
+    public void shouldOpenWhenHalfOfTheCallsFail() {
+        succeedCalls(3);
+        failCalls(2);
+        assertEquals(breaker.getState(), CircuitBreaker.State.CLOSED);
+
+        failCalls(1);
+        assertEquals(breaker.getState(), CircuitBreaker.State.OPEN);
+        assertTrue(breaker.describe().contains("3 of the last 6 calls failed"), breaker.describe());
+        try {
+            breaker.acquire();
+            fail("circuit should be open");
+        } catch (CircuitOpenException e) {
+            assertEquals(e.getMessage(), "XL TestView at http://xltestview is considered unavailable for another 60 s, "
+                    + "since 3 of the last 6 calls failed");
+        }
+    }
+
+    @Test
+    public void shouldOpenWhenHalfOfTheCallsAreSlow() {
+        for (int i = 0; i < 4; i++) {
+            breaker.acquire();
+            breaker.succeeded(i % 2 == 0 ? CircuitBreaker.SLOW_CALL_MILLIS : 10);
+        }
+        assertEquals(breaker.getState(), CircuitBreaker.State.CLOSED, "too few calls to tell");
+
+        breaker.acquire();
+        breaker.succeeded(-1);
+        assertEquals(breaker.getState(), CircuitBreaker.State.CLOSED);
+        breaker.acquire();
+        breaker.succeeded(CircuitBreaker.SLOW_CALL_MILLIS + 1);
+        assertEquals(breaker.getState(), CircuitBreaker.State.OPEN);
+    }
+
+    @Test
+    public void shouldLetOneTrialCallThroughAfterWaiting() {
+        failCalls(CircuitBreaker.MIN_CALLS);
+        now += TimeUnit.MILLISECONDS.toNanos(CircuitBreaker.OPEN_MILLIS);
+        assertEquals(breaker.getState(), CircuitBreaker.State.HALF_OPEN);
+
+        breaker.acquire();
+        try {
+            breaker.acquire();
+            fail("only one trial call at a time");
+        } catch (CircuitOpenException expected) {
+        }
+        breaker.failed();
+        assertEquals(breaker.getState(), CircuitBreaker.State.OPEN);
+
+        now += TimeUnit.MILLISECONDS.toNanos(CircuitBreaker.OPEN_MILLIS);
+        breaker.acquire();
+        breaker.cancelled();
+        breaker.acquire();
+        breaker.succeeded(10);
+        assertEquals(breaker.getState(), CircuitBreaker.State.CLOSED);
+        assertEquals(breaker.describe(), "http://xltestview: closed, 0 failed and 0 slow of the last 0 calls");
+    }
+
+    @Test
+    public void shouldLetAnotherCallTryWhileALongTrialIsRunning() {
+        failCalls(CircuitBreaker.MIN_CALLS);
+        now += TimeUnit.MILLISECONDS.toNanos(CircuitBreaker.OPEN_MILLIS);
+        // an upload of a large test run
+        breaker.acquire();
+
+        now += TimeUnit.MILLISECONDS.toNanos(CircuitBreaker.TRIAL_MILLIS);
+        breaker.acquire();
+        breaker.succeeded(10);
+        assertEquals(breaker.getState(), CircuitBreaker.State.CLOSED);
+        breaker.acquire();
+
+        breaker.succeeded(-1);
+        assertEquals(breaker.getState(), CircuitBreaker.State.CLOSED);
+    }
+
+    private void succeedCalls(int calls) {
+        for (int i = 0; i < calls; i++) {
+            breaker.acquire();
+            breaker.succeeded(10);
+        }
+    }
+
+    private void failCalls(int calls) {
+        for (int i = 0; i < calls; i++) {
+            breaker.acquire();
+            breaker.failed();
+        }
+    }
+}
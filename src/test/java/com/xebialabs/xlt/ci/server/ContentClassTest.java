@@ -0,0 +1,33 @@
+package com.xebialabs.xlt.ci.server;
+
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+
+public class ContentClassTest {
+
+    @Test
+    public void shouldRecognizeExtensions() {
+        assertEquals(ContentClass.of("target/surefire-reports/TEST-Foo.xml", new byte[0], 0), ContentClass.TEXT);
+        assertEquals(ContentClass.of("screenshots/Login.PNG", new byte[0], 0), ContentClass.IMAGE);
+        assertEquals(ContentClass.of("videos/run.webm", new byte[0], 0), ContentClass.VIDEO);
+        assertEquals(ContentClass.of("logs/server.log.gz", new byte[0], 0), ContentClass.ARCHIVE);
+    }
+
+    @Test
+    public void shouldRecognizeContentWithoutKnownExtension() {
+        assertEquals(ContentClass.of("reports.v2/screenshot", bytes(0xFF, 0xD8, 0xFF, 0xE0), 4), ContentClass.IMAGE);
+        assertEquals(ContentClass.of("video", bytes(0, 0, 0, 0x18, 'f', 't', 'y', 'p'), 8), ContentClass.VIDEO);
+        assertEquals(ContentClass.of("server.log.1", bytes(0x1F, 0x8B, 8, 0), 4), ContentClass.ARCHIVE);
+        assertEquals(ContentClass.of("results", "<testsuite>".getBytes(), 11), ContentClass.TEXT);
+        assertEquals(ContentClass.of("core", bytes(0x7F, 'E', 'L', 'F', 2, 1), 6), ContentClass.OTHER);
+    }
+
+    private static byte[] bytes(int... values) {
+        byte[] bytes = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            bytes[i] = (byte) values[i];
+        }
+        return bytes;
+    }
+}
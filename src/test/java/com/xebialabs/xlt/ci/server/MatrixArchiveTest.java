@@ -0,0 +1,78 @@
+package com.xebialabs.xlt.ci.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import hudson.FilePath;
+import hudson.util.DirScanner;
+
+import static org.testng.Assert.assertEquals;
+
+public class MatrixArchiveTest {
+
+    private File workspace;
+
+    @BeforeMethod
+    public void createWorkspace() {
+        workspace = Files.createTempDir();
+    }
+
+    @AfterMethod(alwaysRun = true)
+    public void deleteWorkspace() throws IOException {
+        FileUtils.deleteDirectory(workspace);
+    }
+
+    @Test
+    public void shouldPutEachConfigurationInItsOwnDirectory() throws Exception {
+        File linux = new File(workspace, "linux");
+        File windows = new File(workspace, "windows");
+        Files.createParentDirs(new File(linux, "reports/TEST-1.xml"));
+        Files.createParentDirs(new File(windows, "reports/TEST-1.xml"));
+        Files.write("<testsuite name=\"linux\"/>", new File(linux, "reports/TEST-1.xml"), Charsets.UTF_8);
+        Files.write("<testsuite name=\"windows\"/>", new File(windows, "reports/TEST-1.xml"), Charsets.UTF_8);
+        // larger than the pipe, so zipping has to wait for the copy
+        byte[] screenshot = new byte[4 * MatrixArchive.PIPE_SIZE];
+        new Random(42).nextBytes(screenshot);
+        FileUtils.writeByteArrayToFile(new File(windows, "screenshot.png"), screenshot);
+
+        ParallelZipArchiverFactory archiver = new ParallelZipArchiverFactory(2, CompressionPolicy.DEFAULT);
+        MatrixArchive archive = new MatrixArchive(Arrays.asList(
+                new MatrixArchive.Cell("os=linux", new FilePath(linux), new DirScanner.Glob("**/*", null), archiver),
+                new MatrixArchive.Cell("os=windows", new FilePath(windows), new DirScanner.Glob("**/*", null), archiver)));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(archive.writeTo(out), 3);
+
+        Map<String, byte[]> entries = new LinkedHashMap<String, byte[]>();
+        ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(out.toByteArray()));
+        for (ZipEntry entry = in.getNextEntry(); entry != null; entry = in.getNextEntry()) {
+            entries.put(entry.getName(), IOUtils.toByteArray(in));
+            if (entry.getName().endsWith(".png")) {
+                assertEquals(entry.getMethod(), ZipEntry.STORED);
+            }
+        }
+        assertEquals(entries.keySet().toString(), "[os=linux/reports/TEST-1.xml, os=windows/reports/TEST-1.xml, os=windows/screenshot.png]");
+        assertEquals(new String(entries.get("os=windows/reports/TEST-1.xml"), Charsets.UTF_8), "<testsuite name=\"windows\"/>");
+        assertEquals(entries.get("os=windows/screenshot.png"), screenshot);
+        assertEquals(archive.getStatistics().getEntries(), 3);
+        int files = 0;
+        for (String line : archive.getStatistics().describe()) {
+            files += Integer.parseInt(line.replaceAll("^.*: (\\d+) files,.*$", "$1"));
+        }
+        assertEquals(files, 3, "the statistics of both configurations");
+    }
+}
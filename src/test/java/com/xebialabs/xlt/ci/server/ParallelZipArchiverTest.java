@@ -0,0 +1,251 @@
+package com.xebialabs.xlt.ci.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.io.Files;
+
+import hudson.FilePath;
+import hudson.util.DirScanner;
+import hudson.util.io.ArchiverFactory;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class ParallelZipArchiverTest {
+    private static final Logger LOG = LoggerFactory.getLogger(ParallelZipArchiverTest.class);
+
+    private File workspace;
+
+    @BeforeMethod
+    public void createWorkspace() {
+        workspace = Files.createTempDir();
+    }
+
+    @AfterMethod(alwaysRun = true)
+    public void deleteWorkspace() throws IOException {
+        FileUtils.deleteDirectory(workspace);
+    }
+
+    @Test
+    public void shouldWriteEntriesInVisitOrder() throws IOException {
+        List<String> names = new ArrayList<String>();
+        Random random = new Random(42);
+        for (int i = 0; i < 40; i++) {
+            String name = (i % 2 == 0 ? "reports/" : "") + "TEST-" + i + ".xml";
+            writeXml(new File(workspace, name), random.nextInt(2000));
+            names.add(name);
+        }
+        // larger than the in-memory limit, so it is stored straight from the workspace
+        byte[] screenshot = new byte[100000];
+        random.nextBytes(screenshot);
+        FileUtils.writeByteArrayToFile(new File(workspace, "screenshot.png"), screenshot);
+        names.add("screenshot.png");
+
+        File zip = new File(workspace, "results.zip");
+        try {
+            ParallelZipArchiver archiver = new ParallelZipArchiver(new FileOutputStream(zip), 3, 1024, CompressionPolicy.DEFAULT);
+            for (String name : names) {
+                archiver.visit(new File(workspace, name), name);
+            }
+            archiver.close();
+            assertEquals(archiver.countEntries(), names.size());
+
+            ZipInputStream in = new ZipInputStream(new FileInputStream(zip));
+            try {
+                for (String name : names) {
+                    ZipEntry entry = in.getNextEntry();
+                    assertEquals(entry.getName(), name);
+                    assertEquals(IOUtils.toByteArray(in), FileUtils.readFileToByteArray(new File(workspace, name)));
+                }
+            } finally {
+                in.close();
+            }
+            ZipFile zipFile = new ZipFile(zip);
+            try {
+                assertEquals(zipFile.size(), names.size());
+                assertEquals(zipFile.getEntry("screenshot.png").getSize(), screenshot.length);
+            } finally {
+                zipFile.close();
+            }
+        } finally {
+            zip.delete();
+        }
+    }
+
+    @Test
+    public void shouldStoreCompressedContentAndDeflateText() throws IOException {
+        File report = new File(workspace, "TEST-1.xml");
+        writeXml(report, 500);
+        File screenshot = new File(workspace, "failure");
+        byte[] png = new byte[5000];
+        new Random(42).nextBytes(png);
+        System.arraycopy(new byte[]{(byte) 0x89, 'P', 'N', 'G'}, 0, png, 0, 4);
+        FileUtils.writeByteArrayToFile(screenshot, png);
+
+        File zip = new File(workspace, "results.zip");
+        ParallelZipArchiver archiver = new ParallelZipArchiver(new FileOutputStream(zip), 2, 1024, new CompressionPolicy(9, true));
+        archiver.visit(report, "TEST-1.xml");
+        archiver.visit(screenshot, "failure");
+        archiver.close();
+
+        ZipFile zipFile = new ZipFile(zip);
+        try {
+            assertEquals(zipFile.getEntry("TEST-1.xml").getMethod(), ZipEntry.DEFLATED);
+            assertEquals(zipFile.getEntry("failure").getMethod(), ZipEntry.STORED);
+            assertEquals(IOUtils.toByteArray(zipFile.getInputStream(zipFile.getEntry("failure"))), png);
+        } finally {
+            zipFile.close();
+        }
+        List<String> statistics = archiver.getStatistics().describe();
+        assertEquals(statistics.size(), 2);
+        assertTrue(statistics.get(0).startsWith("text: 1 files"), statistics.get(0));
+        assertTrue(statistics.get(1).startsWith("images: 1 files"), statistics.get(1));
+    }
+
+    @Test
+    public void shouldCompactXmlAndZipMalformedXmlAsIs() throws IOException {
+        File report = new File(workspace, "TEST-1.xml");
+        Files.write("<testsuite><testcase name=\"t\"><system-out>" + Strings.repeat("output\n", 1000) + "</system-out></testcase></testsuite>",
+                report, Charsets.UTF_8);
+        File broken = new File(workspace, "TEST-2.xml");
+        Files.write("<testsuite><system-out>output</testsuite>", broken, Charsets.UTF_8);
+
+        File zip = new File(workspace, "results.zip");
+        ParallelZipArchiver archiver = new ParallelZipArchiver(new FileOutputStream(zip), 2, 1024, CompressionPolicy.DEFAULT,
+                new XmlCompaction(0, XmlCompaction.KEEP, false));
+        archiver.visit(report, "TEST-1.xml");
+        archiver.visit(broken, "TEST-2.xml");
+        archiver.close();
+
+        ZipFile zipFile = new ZipFile(zip);
+        try {
+            String compacted = new String(IOUtils.toByteArray(zipFile.getInputStream(zipFile.getEntry("TEST-1.xml"))), Charsets.UTF_8);
+            assertTrue(compacted.contains("<testcase name=\"t\"></testcase>"), compacted);
+            assertEquals(IOUtils.toByteArray(zipFile.getInputStream(zipFile.getEntry("TEST-2.xml"))), Files.toByteArray(broken));
+        } finally {
+            zipFile.close();
+        }
+        List<String> statistics = archiver.getStatistics().describe();
+        assertTrue(statistics.get(statistics.size() - 1).startsWith("xml compaction: 1 files"), statistics.toString());
+    }
+
+    @Test
+    public void shouldKeepEntriesWithinTheMemoryBudget() throws IOException {
+        List<String> names = new ArrayList<String>();
+        for (int i = 0; i < 64; i++) {
+            String name = "TEST-" + i + ".xml";
+            writeXml(new File(workspace, name), 250);
+            names.add(name);
+        }
+        int fileSize = (int) new File(workspace, names.get(0)).length();
+
+        for (int budget : new int[]{fileSize / 2, 3 * fileSize}) {
+            File zip = new File(workspace, "results.zip");
+            ParallelZipArchiver archiver = new ParallelZipArchiver(new FileOutputStream(zip), 8, ParallelZipArchiver.DEFAULT_IN_MEMORY_LIMIT, budget,
+                    CompressionPolicy.DEFAULT, XmlCompaction.NONE);
+            for (String name : names) {
+                archiver.visit(new File(workspace, name), name);
+            }
+            archiver.close();
+
+            assertTrue(archiver.getPeakMemory() <= budget, archiver.getPeakMemory() + " > " + budget);
+            if (budget < fileSize) {
+                assertEquals(archiver.getPeakMemory(), 0, "no entry fits, so all are deflated to temporary files");
+            } else {
+                assertTrue(archiver.getPeakMemory() > 0);
+            }
+            ZipFile zipFile = new ZipFile(zip);
+            try {
+                assertEquals(zipFile.size(), names.size());
+                for (String name : names) {
+                    assertEquals(IOUtils.toByteArray(zipFile.getInputStream(zipFile.getEntry(name))),
+                            FileUtils.readFileToByteArray(new File(workspace, name)));
+                }
+            } finally {
+                zipFile.close();
+            }
+            zip.delete();
+        }
+    }
+
+    @Test
+    public void shouldWriteZip64DirectoryForManyEntries() throws IOException {
+        File file = new File(workspace, "TEST-1.xml");
+        writeXml(file, 10);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        ParallelZipArchiver archiver = new ParallelZipArchiver(bytes, 4, ParallelZipArchiver.DEFAULT_IN_MEMORY_LIMIT, CompressionPolicy.DEFAULT);
+        for (int i = 0; i < 70000; i++) {
+            archiver.visit(file, "TEST-" + i + ".xml");
+        }
+        archiver.close();
+
+        File zip = new File(workspace, "many.zip");
+        FileUtils.writeByteArrayToFile(zip, bytes.toByteArray());
+        ZipFile zipFile = new ZipFile(zip);
+        try {
+            assertEquals(zipFile.size(), 70000);
+        } finally {
+            zipFile.close();
+        }
+    }
+
+    @Test(groups = "benchmark")
+    public void reportSpeedupByThreads() throws Exception {
+        Random random = new Random(42);
+        for (int i = 0; i < 4000; i++) {
+            writeXml(new File(workspace, "surefire-reports/TEST-" + i + ".xml"), 200 + random.nextInt(600));
+        }
+        FilePath path = new FilePath(workspace);
+        DirScanner scanner = new DirScanner.Glob("**/*.xml", null);
+
+        long single = time(path, ArchiverFactory.ZIP, scanner);
+        LOG.info("Jenkins zip archiver: {} ms", single);
+        for (int threads = 1; threads <= Runtime.getRuntime().availableProcessors(); threads *= 2) {
+            long parallel = time(path, new ParallelZipArchiverFactory(threads, CompressionPolicy.DEFAULT), scanner);
+            LOG.info("Parallel zip archiver with {} threads: {} ms, speedup {}", threads, parallel, String.format("%.2f", (double) single / parallel));
+        }
+    }
+
+    private static long time(FilePath path, ArchiverFactory factory, DirScanner scanner) throws IOException, InterruptedException {
+        // warm up once, then measure
+        path.archive(factory, new NullOutputStream(), scanner);
+        long before = System.nanoTime();
+        path.archive(factory, new NullOutputStream(), scanner);
+        return (System.nanoTime() - before) / 1000000;
+    }
+
+    private static void writeXml(File file, int testCases) throws IOException {
+        file.getParentFile().mkdirs();
+        Writer writer = Files.newWriter(file, Charsets.UTF_8);
+        try {
+            writer.write("<testsuite name=\"" + file.getName() + "\">\n");
+            for (int i = 0; i < testCases; i++) {
+                writer.write("  <testcase classname=\"com.example.Suite\" name=\"test" + i + "\" time=\"0." + i + "\"/>\n");
+            }
+            writer.write("</testsuite>\n");
+        } finally {
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/**
+ * Copyright (c) 2014-2015, XebiaLabs B.V., All rights reserved.
+ * <p/>
+ * The XL TestView plugin for Jenkins is licensed under the terms of the GPLv2
+ * <http://www.gnu.org/licenses/old-licenses/gpl-2.0.html>, like most XebiaLabs
+ * Libraries. There are special exceptions to the terms and conditions of the
+ * GPLv2 as it is applied to this software, see the FLOSS License Exception
+ * <https://github.com/jenkinsci/xltestview-plugin/blob/master/LICENSE>.
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; version 2 of the License.
+ * <p/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package com.xebialabs.xlt.ci.server;
+
+import java.util.HashMap;
+import java.util.Map;
+import org.mockito.Mockito;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import com.github.zafarkhaja.semver.Version;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import com.xebialabs.xlt.ci.server.domain.ServerInfo;
+
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class ServerCapabilitiesCacheTest {
+
+    private final XLTestServer server = Mockito.mock(XLTestServer.class);
+
+    @BeforeMethod
+    public void setup() {
+        Mockito.reset(server);
+    }
+
+    @Test
+    public void shouldRemoveBuildDurationForOldServers() {
+        Map<String, Object> metadata = new HashMap<String, Object>();
+        metadata.put("buildDuration", 10L);
+        metadata.put("buildNumber", "1");
+
+        ServerCapabilities capabilities = ServerCapabilities.from(info("1.4.3"));
+
+        assertFalse(capabilities.supportsMetadata("buildDuration"));
+        assertEquals(capabilities.removeUnsupportedMetadata(metadata).size(), 1);
+        assertEquals(metadata.size(), 1);
+    }
+
+    @Test
+    public void shouldKeepBuildDurationForNewServers() {
+        assertTrue(ServerCapabilities.from(info("1.4.4")).supportsMetadata("buildDuration"));
+        assertTrue(ServerCapabilities.from(info("1.4.4-SNAPSHOT")).supportsMetadata("buildDuration"));
+        assertFalse(ServerCapabilities.from(info("1.4.3-SNAPSHOT")).supportsMetadata("buildDuration"));
+    }
+
+    @Test
+    public void shouldOnlySendPartsToServersThatPutThemTogether() {
+        Map<String, Object> metadata = new HashMap<String, Object>();
+        metadata.put("importId", "job#1");
+        metadata.put("part", 1);
+
+        assertFalse(new ServerCapabilities(Version.valueOf("1.4.4")).supportsPartialImports());
+        assertFalse(new ServerCapabilities(Version.valueOf("1.4.4"), Version.valueOf("1.5.0")).supportsPartialImports());
+        assertTrue(new ServerCapabilities(Version.valueOf("1.5.0"), Version.valueOf("1.5.0")).supportsPartialImports());
+        assertEquals(new ServerCapabilities(Version.valueOf("1.4.4")).removeUnsupportedMetadata(metadata).size(), 2);
+        assertTrue(metadata.isEmpty());
+    }
+
+    @Test
+    public void shouldOnlyFetchOnceWithinTtl() {
+        when(server.getServerInfo()).thenReturn(info("1.4.4"));
+        ServerCapabilitiesCache cache = new ServerCapabilitiesCache(server, MoreExecutors.sameThreadExecutor(), 60000);
+
+        cache.get();
+        cache.get();
+
+        verify(server, times(1)).getServerInfo();
+    }
+
+    @Test
+    public void shouldServeStaleValueAndRefresh() {
+        when(server.getServerInfo()).thenReturn(info("1.4.3"), info("1.5.0"));
+        ServerCapabilitiesCache cache = new ServerCapabilitiesCache(server, MoreExecutors.sameThreadExecutor(), 0);
+
+        assertEquals(cache.get().getVersion().toString(), "1.4.3");
+        // stale: the old value is returned while the refresh takes place
+        assertEquals(cache.get().getVersion().toString(), "1.4.3");
+        assertEquals(cache.get().getVersion().toString(), "1.5.0");
+    }
+
+    @Test
+    public void shouldInvalidateOnUnexpectedVersion() {
+        when(server.getServerInfo()).thenReturn(info("1.4.3"), info("not-a-version"), info("1.5.0"));
+        ServerCapabilitiesCache cache = new ServerCapabilitiesCache(server, MoreExecutors.sameThreadExecutor(), 0);
+
+        cache.get();
+        cache.get();
+        assertEquals(cache.get().getVersion().toString(), "1.5.0");
+        verify(server, times(3)).getServerInfo();
+    }
+
+    @Test(expectedExceptions = UnexpectedServerVersionException.class)
+    public void shouldFailOnUnexpectedVersionWithoutCachedValue() {
+        when(server.getServerInfo()).thenReturn(info("garbage"));
+        new ServerCapabilitiesCache(server, MoreExecutors.sameThreadExecutor(), 0).get();
+    }
+
+    private static ServerInfo info(String version) {
+        ServerInfo info = new ServerInfo();
+        info.setVersion(version);
+        return info;
+    }
+}
@@ -0,0 +1,189 @@
+package com.xebialabs.xlt.ci.server;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import org.apache.commons.io.output.NullOutputStream;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import com.google.common.base.Function;
+import com.google.common.base.Functions;
+import com.google.common.base.Predicate;
+import com.google.common.base.Predicates;
+
+import hudson.FilePath;
+import hudson.util.DirScanner;
+import hudson.util.io.ArchiverFactory;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyMapOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class ServerClusterTest {
+
+    private static final Predicate<ServerCluster.Member> ANY = Predicates.alwaysFalse();
+
+    private ServerCluster cluster;
+    private ServerCluster.Member slow;
+    private ServerCluster.Member fast;
+    private ServerCluster.Member europe;
+
+    @BeforeMethod
+    public void createCluster() {
+        cluster = new ServerCluster(Arrays.asList(
+                new ServerCluster.Endpoint("http://slow", null),
+                new ServerCluster.Endpoint("http://fast", ""),
+                new ServerCluster.Endpoint("http://europe", "europe")),
+                new Function<String, XLTestServer>() {
+                    @Override
+                    public XLTestServer apply(String url) {
+                        throw new UnsupportedOperationException();
+                    }
+                });
+        slow = cluster.getMembers().get(0);
+        fast = cluster.getMembers().get(1);
+        europe = cluster.getMembers().get(2);
+        slow.answered(100);
+        fast.answered(10);
+        europe.answered(10);
+    }
+
+    @Test
+    public void shouldRouteToTheLeastLoadedNode() {
+        fast.begin();
+        assertEquals(cluster.choose(ANY), europe);
+        europe.begin();
+        europe.begin();
+        assertEquals(cluster.choose(ANY), fast);
+        fast.end();
+        assertEquals(cluster.choose(ANY), fast);
+    }
+
+    @Test
+    public void shouldAverageLatency() {
+        fast.answered(110);
+        assertEquals(fast.getLatency(), 0.3 * 110 + 0.7 * 10, 0.001);
+    }
+
+    @Test
+    public void shouldPreferNodesCloseToTheAgentWhileHealthy() {
+        Predicate<ServerCluster.Member> inEurope = new Predicate<ServerCluster.Member>() {
+            @Override
+            public boolean apply(ServerCluster.Member member) {
+                return member.getLabels().equals("europe");
+            }
+        };
+        europe.begin();
+        europe.begin();
+        assertEquals(cluster.choose(inEurope), europe);
+
+        europe.failed(new IOException("Connection refused"));
+        assertFalse(europe.isHealthy());
+        assertEquals(europe.getProblem(), "Connection refused");
+        assertEquals(cluster.choose(inEurope), fast);
+
+        europe.answered(10);
+        assertTrue(europe.isHealthy());
+        assertEquals(cluster.choose(inEurope), europe);
+    }
+
+    @Test
+    public void shouldSendUploadToTheNodeItsCapabilitiesCameFrom() throws Exception {
+        Map<String, XLTestServer> servers = new HashMap<String, XLTestServer>();
+        for (String url : Arrays.asList("http://a", "http://b")) {
+            servers.put(url, Mockito.mock(XLTestServer.class));
+        }
+        ServerCluster cluster = new ServerCluster(Arrays.asList(new ServerCluster.Endpoint("http://a", null), new ServerCluster.Endpoint("http://b", null)),
+                Functions.forMap(servers));
+        final ServerCluster.Member a = cluster.getMembers().get(0);
+        final ServerCluster.Member b = cluster.getMembers().get(1);
+        a.answered(10);
+        b.answered(10);
+
+        XLTestServer pinned = cluster.pin(ANY);
+        pinned.getCapabilities();
+        // another upload takes the same node in the meantime
+        ServerCluster.Member chosen = cluster.choose(ANY);
+        chosen.begin();
+        final ServerCluster.Member other = chosen == a ? b : a; // the node the pinned server negotiated with
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                assertEquals(other.getInFlight(), 1);
+                return null;
+            }
+        }).when(servers.get(other.getServerUrl())).uploadTestRunFromAgent(anyString(), any(FilePath.class), any(DirScanner.class),
+                any(ArchiverFactory.class), anyBoolean(), anyMapOf(String.class, Object.class), any(Deadline.class), any(PrintStream.class));
+        pinned.uploadTestRunFromAgent("ts", null, null, null, false, Collections.<String, Object>emptyMap(), Deadline.NONE,
+                new PrintStream(new NullOutputStream()));
+
+        XLTestServer negotiated = servers.get(other.getServerUrl());
+        verify(negotiated).getCapabilities();
+        verify(negotiated).uploadTestRunFromAgent(anyString(), any(FilePath.class), any(DirScanner.class), any(ArchiverFactory.class), anyBoolean(),
+                anyMapOf(String.class, Object.class), any(Deadline.class), any(PrintStream.class));
+        verify(servers.get(chosen.getServerUrl()), never()).getCapabilities();
+        assertEquals(other.getInFlight(), 0);
+    }
+
+    @Test
+    public void shouldBlameNodesOnlyForTheirOwnFailures() throws Exception {
+        XLTestServer server = Mockito.mock(XLTestServer.class);
+        ServerCluster cluster = new ServerCluster(Collections.singletonList(new ServerCluster.Endpoint("http://a", null)),
+                Functions.forMap(Collections.singletonMap("http://a", server)));
+        ServerCluster.Member a = cluster.getMembers().get(0);
+        doThrow(new ArchiveException("Unable to zip the test run: No space left on device", new IOException("No space left on device")))
+                .doThrow(new IOException("I/O error uploading test run data to http://a", new InterruptedIOException("interrupted")))
+                .doThrow(new ServerErrorException("Unknown error. Status code: 500"))
+                .when(server).uploadTestRun(anyString(), any(TestRunArchive.class), anyMapOf(String.class, Object.class), any(Deadline.class),
+                        any(PrintStream.class));
+        PrintStream logger = new PrintStream(new NullOutputStream());
+
+        try {
+            cluster.pin(ANY).uploadTestRun("ts", null, Collections.<String, Object>emptyMap(), Deadline.NONE, logger);
+            fail();
+        } catch (ArchiveException expected) {
+        }
+        assertTrue(a.isHealthy());
+
+        // the build was aborted
+        try {
+            cluster.pin(ANY).uploadTestRun("ts", null, Collections.<String, Object>emptyMap(), Deadline.NONE, logger);
+            fail();
+        } catch (IOException expected) {
+        }
+        assertTrue(a.isHealthy());
+
+        try {
+            cluster.pin(ANY).uploadTestRun("ts", null, Collections.<String, Object>emptyMap(), Deadline.NONE, logger);
+            fail();
+        } catch (ServerErrorException expected) {
+        }
+        assertFalse(a.isHealthy());
+        assertEquals(a.getInFlight(), 0);
+    }
+
+    @Test
+    public void shouldTryAllNodesWhenNoneIsHealthy() {
+        for (ServerCluster.Member member : cluster.getMembers()) {
+            member.failed(new IOException("down"));
+        }
+        fast.begin();
+        assertEquals(cluster.choose(ANY), europe);
+    }
+}
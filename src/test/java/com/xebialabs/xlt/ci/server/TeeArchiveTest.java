@@ -0,0 +1,112 @@
+package com.xebialabs.xlt.ci.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class TeeArchiveTest {
+
+    @Test
+    public void shouldSendTheSameBytesToFastAndSlowReaders() throws Exception {
+        byte[] zip = new byte[10 * TeeArchive.BUFFER_SIZE + 123];
+        new Random(42).nextBytes(zip);
+        TeeArchive tee = new TeeArchive(new BytesArchive(zip, 7, null));
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<ByteArrayOutputStream> fast = executor.submit(read(tee.newReader(), 0, 7));
+            Future<ByteArrayOutputStream> slow = executor.submit(read(tee.newReader(), 20, 7));
+            tee.spool();
+            // zipping does not wait for the slow reader
+            assertFalse(slow.isDone());
+            assertEquals(fast.get(10, TimeUnit.SECONDS).toByteArray(), zip);
+            assertEquals(slow.get(10, TimeUnit.SECONDS).toByteArray(), zip);
+        } finally {
+            executor.shutdownNow();
+            tee.delete();
+        }
+    }
+
+    @Test
+    public void shouldFailReadersWhenZippingFails() throws Exception {
+        TeeArchive tee = new TeeArchive(new BytesArchive(new byte[10000], 1, new IOException("disk full")));
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<ByteArrayOutputStream> reader = executor.submit(read(tee.newReader(), 0, 1));
+            try {
+                tee.spool();
+                fail("expected the failure to be thrown");
+            } catch (IOException e) {
+                assertEquals(e.getMessage(), "disk full");
+            }
+            try {
+                reader.get(10, TimeUnit.SECONDS);
+                fail("expected the reader to fail");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause().getMessage().contains("disk full"), e.getCause().getMessage());
+            }
+        } finally {
+            executor.shutdownNow();
+            tee.delete();
+        }
+    }
+
+    private static Callable<ByteArrayOutputStream> read(final TestRunArchive archive, final long millisPerWrite, final int numberOfFiles) {
+        return new Callable<ByteArrayOutputStream>() {
+            @Override
+            public ByteArrayOutputStream call() throws Exception {
+                ByteArrayOutputStream out = new ByteArrayOutputStream() {
+                    @Override
+                    public synchronized void write(byte[] b, int off, int len) {
+                        try {
+                            Thread.sleep(millisPerWrite);
+                        } catch (InterruptedException e) {
+                            throw new IllegalStateException(e);
+                        }
+                        super.write(b, off, len);
+                    }
+                };
+                assertEquals(archive.writeTo(out), numberOfFiles);
+                return out;
+            }
+        };
+    }
+
+    /**
+     * Writes its bytes in small pieces, optionally failing half way.
+     */
+    private static final class BytesArchive extends TestRunArchive {
+        private final byte[] bytes;
+        private final int numberOfFiles;
+        private final IOException failure;
+
+        BytesArchive(byte[] bytes, int numberOfFiles, IOException failure) {
+            this.bytes = bytes;
+            this.numberOfFiles = numberOfFiles;
+            this.failure = failure;
+        }
+
+        @Override
+        public int writeTo(OutputStream out) throws IOException {
+            for (int i = 0; i < bytes.length; i += 1000) {
+                if (failure != null && i >= bytes.length / 2) {
+                    throw failure;
+                }
+                out.write(bytes, i, Math.min(1000, bytes.length - i));
+            }
+            return numberOfFiles;
+        }
+    }
+}
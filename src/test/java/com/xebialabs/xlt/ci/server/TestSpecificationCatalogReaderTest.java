@@ -0,0 +1,120 @@
+package com.xebialabs.xlt.ci.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import com.xebialabs.xlt.ci.server.domain.TestSpecification;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertSame;
+
+public class TestSpecificationCatalogReaderTest {
+    private static final Logger LOG = LoggerFactory.getLogger(TestSpecificationCatalogReaderTest.class);
+
+    private static final int NUMBER_OF_SPECIFICATIONS = 100000;
+    private static final int NUMBER_OF_PROJECTS = 100;
+
+    private File catalog;
+
+    @BeforeClass
+    public void generateCatalog() throws IOException {
+        catalog = File.createTempFile("catalog", ".json");
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(catalog), "UTF-8"));
+        try {
+            writer.write('{');
+            for (int i = 0; i < NUMBER_OF_SPECIFICATIONS; i++) {
+                if (i > 0) {
+                    writer.write(',');
+                }
+                int project = i % NUMBER_OF_PROJECTS;
+                writer.write("\"spec-" + i + "\":{\"id\":\"spec-" + i + "\",\"title\":\"Test specification " + i + "\"," +
+                        "\"type\":\"xlt.TestSpecification\",\"extra\":{\"ignored\":[1,2,3]}," +
+                        "\"project\":{\"id\":\"project-" + project + "\",\"title\":\"Project " + project + "\",\"type\":\"xlt.Project\"}," +
+                        "\"qualification\":{\"description\":\"Description unavailable\",\"type\":\"xlt.DefaultFunctionalTestsQualifier\"}," +
+                        "\"testTool\":{\"name\":\"JUnit\",\"category\":\"Functional\",\"defaultSearchPattern\":\"**/TEST-*.xml\"}}");
+            }
+            writer.write('}');
+        } finally {
+            writer.close();
+        }
+    }
+
+    @AfterClass(alwaysRun = true)
+    public void deleteCatalog() {
+        if (catalog != null) {
+            catalog.delete();
+        }
+    }
+
+    @Test
+    public void shouldShareIdenticalObjects() throws IOException {
+        Map<String, TestSpecification> specs = read();
+
+        assertEquals(specs.size(), NUMBER_OF_SPECIFICATIONS);
+        assertEquals(specs.get("spec-42").getTitle(), "Test specification 42");
+        assertEquals(specs.get("spec-42").getTestToolDefaultSearchPattern(), "**/TEST-*.xml");
+        assertSame(specs.get("spec-1").getProject(), specs.get("spec-101").getProject());
+        assertSame(specs.get("spec-1").getTestTool(), specs.get("spec-2").getTestTool());
+        assertSame(specs.get("spec-1").getType(), specs.get("spec-2").getType());
+    }
+
+    /**
+     * Compares the heap retained by the streaming reader with plain data binding. Only reports, since heap figures
+     * depend on the JVM and the collector; run with {@code gradle benchmark}.
+     */
+    @Test(groups = "benchmark")
+    public void reportHeapUsage() throws IOException {
+        long baseline = usedHeap();
+        Map<String, TestSpecification> streamed = read();
+        long streaming = usedHeap() - baseline;
+
+        ObjectMapper mapper = new ObjectMapper().configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+        InputStream in = new BufferedInputStream(new FileInputStream(catalog));
+        Map<String, TestSpecification> bound;
+        try {
+            bound = mapper.readValue(in, new TypeReference<Map<String, TestSpecification>>() {
+            });
+        } finally {
+            in.close();
+        }
+        long binding = usedHeap() - baseline - streaming;
+
+        LOG.info("Retained heap for {} test specifications: streaming reader {} KB, data binding {} KB",
+                NUMBER_OF_SPECIFICATIONS, streaming / 1024, binding / 1024);
+        assertEquals(streamed.size(), bound.size());
+    }
+
+    private Map<String, TestSpecification> read() throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(catalog));
+        try {
+            return TestSpecificationCatalogReader.read(new JsonFactory(), in);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,59 @@
+package com.xebialabs.xlt.ci.server;
+
+import java.util.concurrent.TimeUnit;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class UploadTimeoutsTest {
+
+    private static final long MB = 1024 * 1024;
+
+    @Test
+    public void shouldUseTheDefaultsUntilAnUploadWasMeasured() {
+        UploadTimeouts timeouts = new UploadTimeouts();
+        timeouts.transferred(1024, 1);
+
+        assertEquals(timeouts.getWriteTimeoutMillis(Deadline.NONE), UploadTimeouts.WRITE_TIMEOUT_MILLIS);
+        assertEquals(timeouts.getReadTimeoutMillis(0, Deadline.NONE), UploadTimeouts.READ_TIMEOUT_MILLIS);
+        assertEquals(timeouts.getReadTimeoutMillis(500 * MB, Deadline.NONE), 30000 + 500 * MB / 256, "allows for the import of a large test run");
+    }
+
+    @Test
+    public void shouldNotWaitForAServerThatWasNotMeasuredUntilTheDeadline() {
+        UploadTimeouts timeouts = new UploadTimeouts();
+        Deadline deadline = Deadline.after(TimeUnit.MINUTES.toMillis(60));
+
+        assertEquals(timeouts.getReadTimeoutMillis(MB, deadline), 30000 + MB / 256);
+        assertEquals(timeouts.getReadTimeoutMillis(-1, deadline), UploadTimeouts.READ_TIMEOUT_MILLIS, "nothing was uploaded yet");
+        long readTimeout = timeouts.getReadTimeoutMillis(5000 * MB, Deadline.after(TimeUnit.MINUTES.toMillis(10)));
+        assertTrue(readTimeout <= TimeUnit.MINUTES.toMillis(10), "never waits past the deadline: " + readTimeout);
+    }
+
+    @Test
+    public void shouldStretchTimeoutsForSlowLinksAndLargeTestRuns() {
+        UploadTimeouts timeouts = new UploadTimeouts();
+        // 8 bytes sent and 64 bytes imported per millisecond
+        timeouts.transferred(8 * MB, 1024 * 1024);
+        timeouts.imported(8 * MB, 128 * 1024);
+
+        assertEquals(timeouts.getWriteTimeoutMillis(Deadline.NONE), 4 * 64 * 1024 / 8);
+        assertEquals(timeouts.getReadTimeoutMillis(8 * MB, Deadline.NONE), 30000 + 4 * 8 * MB / 64);
+        assertEquals(timeouts.getReadTimeoutMillis(-1, Deadline.NONE), 30000 + 4 * 8 * MB / 64, "assumes the largest upload so far");
+        assertEquals(timeouts.getReadTimeoutMillis(0, Deadline.NONE), UploadTimeouts.READ_TIMEOUT_MILLIS);
+    }
+
+    @Test
+    public void shouldNeverWaitPastTheDeadline() {
+        UploadTimeouts timeouts = new UploadTimeouts();
+        timeouts.transferred(10 * MB, 1000000);
+        timeouts.imported(10 * MB, 100000);
+
+        Deadline deadline = Deadline.after(TimeUnit.SECONDS.toMillis(5));
+        assertTrue(timeouts.getConnectTimeoutMillis(deadline) <= 5000);
+        assertTrue(timeouts.getWriteTimeoutMillis(deadline) <= 5000);
+        assertTrue(timeouts.getReadTimeoutMillis(10 * MB, deadline) <= 5000);
+        assertEquals(timeouts.getReadTimeoutMillis(10 * MB, Deadline.after(0)), 1, "0 would mean no timeout at all");
+    }
+}
@@ -9,6 +9,8 @@ import java.net.URL;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import javax.mail.BodyPart;
 import javax.mail.MessagingException;
 import javax.mail.internet.MimeMultipart;
@@ -21,17 +23,24 @@ import org.slf4j.LoggerFactory;
 import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.squareup.okhttp.OkHttpClient;
 import com.squareup.okhttp.mockwebserver.MockResponse;
 import com.squareup.okhttp.mockwebserver.MockWebServer;
 import com.squareup.okhttp.mockwebserver.RecordedRequest;
+import com.squareup.okhttp.mockwebserver.SocketPolicy;
 
 import com.xebialabs.xlt.ci.TestSpecificationDescribable;
 import com.xebialabs.xlt.ci.server.authentication.AuthenticationException;
 import com.xebialabs.xlt.ci.server.authentication.UsernamePassword;
+import com.xebialabs.xlt.ci.server.domain.ServerInfo;
 import com.xebialabs.xlt.ci.server.domain.TestSpecification;
+import com.xebialabs.xlt.ci.server.domain.TestSpecificationCatalog;
 
 import hudson.FilePath;
+import hudson.util.DirScanner;
 import hudson.util.ListBoxModel;
+import hudson.util.io.ArchiverFactory;
 
 import static com.xebialabs.xlt.ci.server.XLTestServerImpl.createSensibleURL;
 import static com.xebialabs.xlt.ci.server.XLTestServerImpl.removeTrailingSlashes;
@@ -43,6 +52,7 @@ import static org.hamcrest.core.IsNull.nullValue;
 import static org.mockito.Mockito.when;
 import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
 
 public class XLTestServerImplTest {
 
@@ -124,6 +134,62 @@ public class XLTestServerImplTest {
         assertEquals(request.getBody().readUtf8(), "");
     }
 
+    @Test
+    public void shouldRevalidateTestSpecificationCatalog() throws InterruptedException {
+        xltestviewMock.enqueue(new MockResponse()
+                .addHeader("Content-Type", "application/json; charset=utf-8")
+                .addHeader("ETag", "\"v1\"")
+                .setBody(TEST_SPEC_RESPONSE));
+        xltestviewMock.enqueue(new MockResponse().setResponseCode(304));
+
+        TestSpecificationCatalog catalog = xlTestServer.getTestSpecificationCatalog(null);
+        TestSpecificationCatalog revalidated = xlTestServer.getTestSpecificationCatalog(catalog);
+
+        assertEquals(catalog.getEtag(), "\"v1\"");
+        assertEquals(revalidated.getTestSpecifications(), catalog.getTestSpecifications());
+
+        xltestviewMock.takeRequest();
+        RecordedRequest request = xltestviewMock.takeRequest();
+        assertEquals(request.getRequestLine(), "GET /api/internal/testspecifications/extended HTTP/1.1");
+        assertEquals(request.getHeader("If-None-Match"), "\"v1\"");
+    }
+
+    @Test
+    public void shouldLoadTestSpecificationCatalogAsynchronously() throws Exception {
+        xltestviewMock.enqueue(new MockResponse()
+                .addHeader("Content-Type", "application/json; charset=utf-8")
+                .setBody(TEST_SPEC_RESPONSE));
+
+        ListenableFuture<TestSpecificationCatalog> catalog = xlTestServer.getTestSpecificationCatalogAsync(null);
+
+        assertEquals(catalog.get(10, TimeUnit.SECONDS).size(), 6);
+        RecordedRequest request = xltestviewMock.takeRequest();
+        assertEquals(request.getRequestLine(), "GET /api/internal/testspecifications/extended HTTP/1.1");
+    }
+
+    @Test
+    public void shouldFailFutureWithTheErrorOfTheBlockingCall() throws Exception {
+        xltestviewMock.enqueue(new MockResponse().setResponseCode(402));
+
+        try {
+            xlTestServer.checkConnectionAsync().get(10, TimeUnit.SECONDS);
+            fail("Expected the check to fail");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof PaymentRequiredException);
+        }
+    }
+
+    @Test
+    public void shouldCancelPendingCall() throws Exception {
+        xltestviewMock.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.NO_RESPONSE));
+
+        ListenableFuture<ServerInfo> info = xlTestServer.getServerInfoAsync();
+        xltestviewMock.takeRequest();
+
+        assertTrue(info.cancel(true));
+        assertTrue(info.isCancelled());
+    }
+
     @Test
     public void fillsTestSpecificationIdItems() {
         xltestviewMock.enqueue(new MockResponse()
@@ -154,6 +220,73 @@ public class XLTestServerImplTest {
         verifyUploadRequest(request);
     }
 
+    @Test
+    public void shouldImportFromTheNodeHoldingTheWorkspace() throws Exception {
+        xltestviewMock.enqueue(new MockResponse()
+                .addHeader("Content-Type", "application/json; charset=utf-8")
+                .setBody("{ \"testRunId\": \"testrunid\" }"));
+        File workspace = new File(this.getClass().getResource("/demo_test_results").getPath());
+
+        String url = String.format("http://127.0.0.1:%d", xltestviewMock.getPort());
+        CircuitBreaker circuitBreaker = new CircuitBreaker(url);
+        XLTestServerImpl server = new XLTestServerImpl(new OkHttpClient(), url, null, cred, circuitBreaker);
+
+        server.uploadTestRunFromAgent("testspecid", new FilePath(workspace), new DirScanner.Glob("**/*.xml", null), ArchiverFactory.ZIP, false,
+                createMetadata(), Deadline.NONE, log4jStream);
+
+        RecordedRequest request = xltestviewMock.takeRequest();
+        verifyUploadRequest(request);
+        // the call the agent made counts for the breaker on the master
+        assertEquals(circuitBreaker.describe(), url + ": closed, 0 failed and 0 slow of the last 1 calls");
+    }
+
+    @Test(expectedExceptions = DeadlineExceededException.class, expectedExceptionsMessageRegExp = "Sending the test run did not complete within its deadline of 1 s.*")
+    public void shouldCancelImportAtTheDeadline() throws Exception {
+        xltestviewMock.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.NO_RESPONSE));
+        FilePath fp = new FilePath(new File(this.getClass().getResource("/demo_test_results").getPath()));
+
+        xlTestServer.uploadTestRun("testspecid", new WorkspaceArchive(fp, new DirScanner.Glob("**/*.xml", null)), createMetadata(),
+                Deadline.after(TimeUnit.SECONDS.toMillis(1)), log4jStream);
+    }
+
+    @Test
+    public void shouldSendSpooledArchiveAgainWithTheSameIdempotencyKey() throws Exception {
+        xltestviewMock.enqueue(new MockResponse().setResponseCode(503).addHeader("Retry-After", "0"));
+        xltestviewMock.enqueue(new MockResponse()
+                .addHeader("Content-Type", "application/json; charset=utf-8")
+                .setBody("{ \"testRunId\": \"testrunid\" }"));
+        FilePath fp = new FilePath(new File(this.getClass().getResource("/demo_test_results").getPath()));
+        SpooledArchive archive = SpooledArchive.spool(fp, new DirScanner.Glob("**/*.xml", null));
+        try {
+            xlTestServer.uploadTestRun("testspecid", archive, createMetadata(), Deadline.NONE, log4jStream);
+        } finally {
+            archive.delete();
+        }
+
+        RecordedRequest failed = xltestviewMock.takeRequest();
+        RecordedRequest retried = xltestviewMock.takeRequest();
+        verifyUploadRequest(retried);
+        assertEquals(retried.getHeader("Idempotency-Key"), failed.getHeader("Idempotency-Key"));
+        assertEquals(retried.getBodySize(), failed.getBodySize());
+    }
+
+    @Test(expectedExceptions = ServerUnavailableException.class, expectedExceptionsMessageRegExp = "XL TestView is unavailable. Status code: 503.*")
+    public void shouldNotSendStreamedArchiveAgain() throws Exception {
+        xltestviewMock.enqueue(new MockResponse().setResponseCode(503).addHeader("Retry-After", "0"));
+        FilePath fp = new FilePath(new File(this.getClass().getResource("/demo_test_results").getPath()));
+
+        xlTestServer.uploadTestRun("testspecid", fp, "**/*.xml", null, createMetadata(), log4jStream);
+    }
+
+    @Test
+    public void shouldParseRetryAfter() {
+        assertEquals(XLTestServerImpl.parseRetryAfter("120", 0), 120000);
+        assertEquals(XLTestServerImpl.parseRetryAfter("Thu, 01 Jan 1970 00:00:30 GMT", 10000), 20000);
+        assertEquals(XLTestServerImpl.parseRetryAfter("Thu, 01 Jan 1970 00:00:30 GMT", 40000), 0);
+        assertEquals(XLTestServerImpl.parseRetryAfter("soon", 0), -1);
+        assertEquals(XLTestServerImpl.parseRetryAfter(null, 0), -1);
+    }
+
     @Test(expectedExceptions = AuthenticationException.class, expectedExceptionsMessageRegExp = "User 'admin' and the supplied password are unable to log in")
     public void shouldHandleAuthenticationErrorDuringImport() throws Exception {
         xltestviewMock.enqueue(new MockResponse().setResponseCode(401));
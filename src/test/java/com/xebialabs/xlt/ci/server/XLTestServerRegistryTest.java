@@ -0,0 +1,80 @@
+/**
+ * Copyright (c) 2014-2015, XebiaLabs B.V., All rights reserved.
+ * <p/>
+ * The XL TestView plugin for Jenkins is licensed under the terms of the GPLv2
+ * <http://www.gnu.org/licenses/old-licenses/gpl-2.0.html>, like most XebiaLabs
+ * Libraries. There are special exceptions to the terms and conditions of the
+ * GPLv2 as it is applied to this software, see the FLOSS License Exception
+ * <https://github.com/jenkinsci/xltestview-plugin/blob/master/LICENSE>.
+ * <p/>
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; version 2 of the License.
+ * <p/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package com.xebialabs.xlt.ci.server;
+
+import org.mockito.Mockito;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.xebialabs.xlt.ci.server.authentication.UsernamePassword;
+
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertSame;
+
+public class XLTestServerRegistryTest {
+
+    private static final String SERVER_URL = "http://localhost:6516";
+
+    private XLTestServerRegistry registry;
+    private final UsernamePassword cred = Mockito.mock(UsernamePassword.class);
+
+    @BeforeMethod
+    public void setup() {
+        registry = new XLTestServerRegistry();
+        when(cred.getUsername()).thenReturn("admin");
+        when(cred.getPassword()).thenReturn("admin");
+    }
+
+    @Test
+    public void shouldReuseServerForSameSettings() {
+        XLTestServer first = registry.getServer(SERVER_URL, null, "cred-id", cred);
+        XLTestServer second = registry.getServer(SERVER_URL + "/", "", "cred-id", cred);
+
+        assertSame(second, first);
+        assertEquals(registry.getStatistics().getServers(), 1);
+        assertEquals(registry.getStatistics().getHits(), 1L);
+        assertEquals(registry.getStatistics().getMisses(), 1L);
+    }
+
+    @Test
+    public void shouldCreateNewServerWhenPasswordChanged() {
+        XLTestServer first = registry.getServer(SERVER_URL, null, "cred-id", cred);
+        when(cred.getPassword()).thenReturn("changed");
+        XLTestServer second = registry.getServer(SERVER_URL, null, "cred-id", cred);
+
+        assertNotSame(second, first);
+        assertEquals(registry.getStatistics().getServers(), 1);
+    }
+
+    @Test
+    public void shouldDropServersWhenReconfigured() {
+        XLTestServer first = registry.getServer(SERVER_URL, null, "cred-id", cred);
+        registry.configure(10, 60);
+
+        assertEquals(registry.getStatistics().getServers(), 0);
+        assertEquals(registry.getStatistics().getMaxIdleConnections(), 10);
+        assertNotSame(registry.getServer(SERVER_URL, null, "cred-id", cred), first);
+    }
+}
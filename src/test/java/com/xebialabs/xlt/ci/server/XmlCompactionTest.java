@@ -0,0 +1,76 @@
+package com.xebialabs.xlt.ci.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import org.testng.annotations.Test;
+import com.google.common.base.Charsets;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class XmlCompactionTest {
+
+    private static final String TRACE = "java.lang.AssertionError: expected 2\n"
+            + "\tat com.example.CalculatorTest.add(CalculatorTest.java:12)\n"
+            + "\tat sun.reflect.NativeMethodAccessorImpl.invoke0(Native Method)\n"
+            + "\tat sun.reflect.NativeMethodAccessorImpl.invoke(NativeMethodAccessorImpl.java:62)\n"
+            + "Caused by: java.lang.IllegalStateException: broken\n"
+            + "\tat com.example.Calculator.add(Calculator.java:7)\n"
+            + "\tat com.example.CalculatorTest.add(CalculatorTest.java:11)\n"
+            + "\t... 2 more\n";
+
+    private static final String SUITE = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+            + "<testsuite name=\"com.example.CalculatorTest\" tests=\"2\">\n"
+            + "  <testcase classname=\"com.example.CalculatorTest\" name=\"add\">"
+            + "<failure message=\"expected 2\" type=\"java.lang.AssertionError\">" + TRACE + "</failure>"
+            + "<system-out>0123456789 &amp; more</system-out></testcase>\n"
+            + "  <testcase classname=\"com.example.CalculatorTest\" name=\"addAgain\">"
+            + "<failure message=\"expected 2\" type=\"java.lang.AssertionError\">" + TRACE + "</failure></testcase>\n"
+            + "  <system-err>warning: &lt;deprecated&gt;</system-err>\n"
+            + "</testsuite>\n";
+
+    @Test
+    public void shouldTruncateOutputAndCapStackTraces() throws IOException {
+        String compacted = compact(new XmlCompaction(10, 1, false), SUITE);
+
+        assertTrue(compacted.contains("<system-out>0123456789\n[7 characters truncated]</system-out>"), compacted);
+        assertTrue(compacted.contains("<system-err>warning: &lt;\n[11 characters truncated]</system-err>"), compacted);
+        assertTrue(compacted.contains("java.lang.AssertionError: expected 2\n"
+                + "\tat com.example.CalculatorTest.add(CalculatorTest.java:12)\n"
+                + "\t... 2 more\n"
+                + "Caused by: java.lang.IllegalStateException: broken\n"
+                + "\tat com.example.Calculator.add(Calculator.java:7)\n"
+                + "\t... 3 more\n</failure>"), compacted);
+        assertTrue(compacted.contains("message=\"expected 2\""), compacted);
+    }
+
+    @Test
+    public void shouldDropOutputAndDeduplicateStackTraces() throws IOException {
+        String compacted = compact(new XmlCompaction(0, XmlCompaction.KEEP, true), SUITE);
+
+        assertFalse(compacted.contains("system-out"), compacted);
+        assertFalse(compacted.contains("system-err"), compacted);
+        assertTrue(compacted.contains(">" + TRACE + "</failure>"), compacted);
+        assertTrue(compacted.contains(">java.lang.AssertionError: expected 2\n"
+                + "\t... same stack trace as com.example.CalculatorTest.add\n</failure>"), compacted);
+    }
+
+    @Test
+    public void shouldKeepDocumentsWithoutOutputOrStackTraces() throws IOException {
+        String suite = "<?xml version=\"1.0\" encoding=\"UTF-8\"?><testsuite name=\"s\"><testcase name=\"t\"></testcase></testsuite>";
+        assertEquals(compact(new XmlCompaction(0, 0, true), suite), suite);
+    }
+
+    @Test(expectedExceptions = XmlCompaction.MalformedXmlException.class)
+    public void shouldRejectMalformedXml() throws IOException {
+        compact(new XmlCompaction(0, 0, true), "<testsuite><testcase></testsuite>");
+    }
+
+    private static String compact(XmlCompaction compaction, String xml) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        compaction.compact(new ByteArrayInputStream(xml.getBytes(Charsets.UTF_8)), out);
+        return new String(out.toByteArray(), Charsets.UTF_8);
+    }
+}